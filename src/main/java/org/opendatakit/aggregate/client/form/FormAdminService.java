@@ -43,6 +43,13 @@ public interface FormAdminService extends RemoteService {
   @XsrfProtect
   void setFormAcceptSubmissions(String formId, Boolean acceptSubmissions) throws RequestFailureException, DatastoreFailureException;
 
+  /**
+   * Sets the policy for downscaling the form's image attachments as they are
+   * received. A null maxDimension removes the policy.
+   */
+  @XsrfProtect
+  void setFormImagePolicy(String formId, Integer maxDimension, Integer jpegQuality, Boolean keepOriginal) throws RequestFailureException, DatastoreFailureException;
+
   @XsrfProtect
   Date purgePublishedData(String uriExternalService, Date earliest) throws DatastoreFailureException, RequestFailureException;
 
@@ -30,6 +30,8 @@ public interface FormAdminServiceAsync {
 
   void setFormAcceptSubmissions(String formId, Boolean acceptSubmissions, AsyncCallback<Void> callback);
 
+  void setFormImagePolicy(String formId, Integer maxDimension, Integer jpegQuality, Boolean keepOriginal, AsyncCallback<Void> callback);
+
   void setFormDownloadable(String formId, Boolean downloadable, AsyncCallback<Void> callback);
 
   void deleteSubmission(String submissionKeyAsString, AsyncCallback<Void> callback);
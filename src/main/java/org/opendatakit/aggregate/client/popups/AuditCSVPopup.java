@@ -16,66 +16,116 @@
 
 package org.opendatakit.aggregate.client.popups;
 
+import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.safehtml.shared.SafeHtml;
 import com.google.gwt.safehtml.shared.SafeHtmlBuilder;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.FlexTable;
 import com.google.gwt.user.client.ui.HTML;
 import com.google.gwt.user.client.ui.HTMLPanel;
+import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.SimplePanel;
 import java.util.Date;
 import org.opendatakit.aggregate.client.AggregateUI;
 import org.opendatakit.aggregate.client.SecureGWT;
+import org.opendatakit.aggregate.client.submission.AuditCSVPage;
+import org.opendatakit.aggregate.client.widgets.AggregateButton;
 import org.opendatakit.aggregate.client.widgets.ClosePopupButton;
 import org.opendatakit.aggregate.constants.common.UIConsts;
 
 
 public class AuditCSVPopup extends AbstractPopupBase {
+  private static final int PAGE_SIZE = 100;
+
+  private final String blobKey;
+  private final HTML table = new HTML();
+  private final Label position = new Label();
+  private final AggregateButton previous;
+  private final AggregateButton next;
+  private int offset = 0;
+  // counted with the first page, and passed back so it is not counted again
+  private int totalRows = -1;
+
   public AuditCSVPopup(String keyString) {
     super();
     String[] parts = keyString.split("\\?");
     if (parts.length != 2)
       throw new RuntimeException("blobKey missing in keyString");
-    String blobKey = parts[1].split("=")[1];
+    blobKey = parts[1].split("=")[1];
 
     setTitle("Audit CSV");
     int width = Window.getClientWidth() / 2;
     int height = Window.getClientHeight() / 2;
 
+    previous = new AggregateButton("Previous", "Show the previous rows of the audit CSV") {
+      @Override
+      public void onClick(ClickEvent event) {
+        super.onClick(event);
+        fetchPage(Math.max(0, offset - PAGE_SIZE));
+      }
+    };
+    next = new AggregateButton("Next", "Show the next rows of the audit CSV") {
+      @Override
+      public void onClick(ClickEvent event) {
+        super.onClick(event);
+        fetchPage(offset + PAGE_SIZE);
+      }
+    };
+    previous.setEnabled(false);
+    next.setEnabled(false);
+
+    FlexTable navigation = new FlexTable();
+    navigation.setWidget(0, 0, previous);
+    navigation.setWidget(0, 1, position);
+    navigation.setWidget(0, 2, next);
+
     final HTMLPanel panel = new HTMLPanel("");
     panel.add(new SimplePanel(new ClosePopupButton(this)));
     panel.add(new HTML("<h2>Audit CSV contents</h2>"));
+    panel.add(navigation);
+    panel.add(table);
     panel.setStylePrimaryName(UIConsts.VERTICAL_FLOW_PANEL_STYLENAME);
     panel.getElement().getStyle().setProperty("overflow", "scroll");
     panel.setPixelSize(width + 6, height + 30);
     setWidget(panel);
 
-    AsyncCallback<String> callback = new AsyncCallback<String>() {
+    fetchPage(0);
+  }
+
+  private void fetchPage(int requestedOffset) {
+    AsyncCallback<AuditCSVPage> callback = new AsyncCallback<AuditCSVPage>() {
       public void onFailure(Throwable caught) {
         AggregateUI.getUI().reportError(caught);
       }
 
-      public void onSuccess(String csvContents) {
-        String[] allLines = csvContents.split("\n");
-
+      public void onSuccess(AuditCSVPage page) {
         SafeHtmlBuilder builder = new SafeHtmlBuilder();
         builder.appendHtmlConstant("<table class=\"dataTable\">")
             .appendHtmlConstant("<tr class=\"titleBar\">")
             .appendHtmlConstant("<td>Event</td><td>Node</td><td>Start</td><td>End</td>")
             .appendHtmlConstant("</tr>");
 
-        for (int i = 1, max = allLines.length; i < max; i++) {
-          builder.append(Row.from(allLines[i]).asTr());
+        for (String[] values : page.getRows()) {
+          builder.append(Row.from(values).asTr());
         }
         builder.appendHtmlConstant("</table>");
 
+        offset = page.getOffset();
+        totalRows = page.getTotalRows();
+        int last = page.getOffset() + page.getRows().size();
+        position.setText((page.getRows().isEmpty() ? 0 : page.getOffset() + 1) + " - " + last
+            + " of " + page.getTotalRows());
+        previous.setEnabled(page.hasPriorRows());
+        next.setEnabled(page.hasMoreRows());
+
         AggregateUI.getUI().clearError();
-        panel.add(new HTML(builder.toSafeHtml()));
+        table.setHTML(builder.toSafeHtml());
         AggregateUI.resize();
       }
     };
 
-    SecureGWT.getSubmissionService().getSubmissionAuditCSV(blobKey, callback);
+    SecureGWT.getSubmissionService().getSubmissionAuditCSVPage(blobKey, requestedOffset, PAGE_SIZE, totalRows, callback);
   }
 
   static private class Row {
@@ -91,22 +141,30 @@ public class AuditCSVPopup extends AbstractPopupBase {
       this.end = end;
     }
 
-    static Row from(String csvLine) {
-      String[] values = csvLine.split(",");
+    static Row from(String[] values) {
       return new Row(
-          values[0],
-          values[1],
-          new Date(Long.parseLong(values[2])),
-          values.length == 4 ? new Date(Long.parseLong(values[3])) : null
+          value(values, 0),
+          value(values, 1),
+          date(values, 2),
+          date(values, 3)
       );
     }
 
+    // empty fields are null; a missing end time is reported as N/A
+    private static String value(String[] values, int i) {
+      return (values.length > i && values[i] != null) ? values[i] : "";
+    }
+
+    private static Date date(String[] values, int i) {
+      return (values.length > i && values[i] != null) ? new Date(Long.parseLong(values[i])) : null;
+    }
+
     SafeHtml asTr() {
       return new SafeHtmlBuilder()
           .appendHtmlConstant("<tr>")
           .appendHtmlConstant("<td>").appendEscaped(this.event).appendHtmlConstant("</td>")
           .appendHtmlConstant("<td>").appendEscaped(this.node).appendHtmlConstant("</td>")
-          .appendHtmlConstant("<td>").appendEscaped(this.start.toString()).appendHtmlConstant("</td>")
+          .appendHtmlConstant("<td>").appendEscaped(this.start != null ? this.start.toString() : "").appendHtmlConstant("</td>")
           .appendHtmlConstant("<td>").appendEscaped(this.getEnd()).appendHtmlConstant("</td>")
           .appendHtmlConstant("</tr>")
           .toSafeHtml();
@@ -16,47 +16,86 @@
 
 package org.opendatakit.aggregate.client.popups;
 
+import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.FlexTable;
 import com.google.gwt.user.client.ui.FlowPanel;
 import com.google.gwt.user.client.ui.ScrollPanel;
+import com.google.gwt.user.client.ui.SimplePanel;
 import org.opendatakit.aggregate.client.AggregateUI;
 import org.opendatakit.aggregate.client.SecureGWT;
 import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.client.table.SubmissionTable;
+import org.opendatakit.aggregate.client.widgets.AggregateButton;
 import org.opendatakit.aggregate.client.widgets.ClosePopupButton;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
 
 public class RepeatPopup extends AbstractPopupBase {
+  private static final int PAGE_SIZE = 100;
 
-  private FlowPanel panel;
+  private final String keyString;
+  private final SimplePanel table = new SimplePanel();
+  private final AggregateButton previous;
+  private final AggregateButton next;
+  private UIQueryResumePoint backwardCursor;
+  private UIQueryResumePoint resumeCursor;
 
   public RepeatPopup(final String keyString) {
     super();
-    panel = new FlowPanel();
+    this.keyString = keyString;
 
-
-    // Set up the callback object.
-    AsyncCallback<SubmissionUISummary> callback = new AsyncCallback<SubmissionUISummary>() {
-      public void onFailure(Throwable caught) {
-        AggregateUI.getUI().reportError(caught);
+    previous = new AggregateButton("Previous", "Show the previous repeats") {
+      @Override
+      public void onClick(ClickEvent event) {
+        super.onClick(event);
+        fetchPage(backwardCursor);
       }
-
-      public void onSuccess(SubmissionUISummary summary) {
-        panel.add(new SubmissionTable(summary, false)); //contains the data
+    };
+    next = new AggregateButton("Next", "Show the next repeats") {
+      @Override
+      public void onClick(ClickEvent event) {
+        super.onClick(event);
+        fetchPage(resumeCursor);
       }
     };
+    previous.setEnabled(false);
+    next.setEnabled(false);
 
-    // obtain repeats
-    SecureGWT.getSubmissionService().getRepeatSubmissions(keyString, callback);
-
+    FlexTable navigation = new FlexTable();
+    navigation.setWidget(0, 0, previous);
+    navigation.setWidget(0, 1, next);
 
     // populate the panel
+    FlowPanel panel = new FlowPanel();
     panel.add(new ClosePopupButton(this));
+    panel.add(navigation);
+    panel.add(table);
 
     ScrollPanel scroll = new ScrollPanel(panel);
     scroll.setPixelSize((Window.getClientWidth() * 3 / 4), (Window.getClientHeight() * 3 / 4));
     setWidget(scroll);
+
+    fetchPage(null);
   }
 
+  private void fetchPage(UIQueryResumePoint cursor) {
+    // Set up the callback object.
+    AsyncCallback<SubmissionUISummary> callback = new AsyncCallback<SubmissionUISummary>() {
+      public void onFailure(Throwable caught) {
+        AggregateUI.getUI().reportError(caught);
+      }
 
+      public void onSuccess(SubmissionUISummary summary) {
+        backwardCursor = summary.getBackwardCursor();
+        resumeCursor = summary.getResumeCursor();
+        previous.setEnabled(summary.hasPriorResults());
+        next.setEnabled(summary.hasMoreResults());
+        table.setWidget(new SubmissionTable(summary, false)); //contains the data
+      }
+    };
+
+    // obtain repeats
+    SecureGWT.getSubmissionService().getRepeatSubmissionsPage(keyString, cursor, PAGE_SIZE, callback);
+  }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.client.submission;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A window of the rows of an audit CSV attachment, excluding its header row.
+ */
+public class AuditCSVPage implements Serializable {
+
+  /**
+   * Serialization Identifier
+   */
+  private static final long serialVersionUID = -3391250658347227311L;
+
+  private ArrayList<String[]> rows = new ArrayList<String[]>();
+
+  private int offset;
+
+  private int totalRows;
+
+  public AuditCSVPage() {
+  }
+
+  public AuditCSVPage(int offset) {
+    this.offset = offset;
+  }
+
+  public ArrayList<String[]> getRows() {
+    return rows;
+  }
+
+  public void addRow(String[] row) {
+    rows.add(row);
+  }
+
+  /**
+   * @return the index of the first row of this page.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  public int getTotalRows() {
+    return totalRows;
+  }
+
+  public void setTotalRows(int totalRows) {
+    this.totalRows = totalRows;
+  }
+
+  public boolean hasPriorRows() {
+    return offset > 0;
+  }
+
+  public boolean hasMoreRows() {
+    return offset + rows.size() < totalRows;
+  }
+}
@@ -21,6 +21,7 @@ import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
 import org.opendatakit.common.persistence.client.exception.DatastoreFailureException;
 
 @RemoteServiceRelativePath("submissionservice")
@@ -28,7 +29,11 @@ public interface SubmissionService extends RemoteService {
 
   SubmissionUISummary getSubmissions(FilterGroup filter) throws FormNotAvailableException, RequestFailureException, DatastoreFailureException;
 
-  SubmissionUISummary getRepeatSubmissions(String keyString) throws FormNotAvailableException, RequestFailureException, DatastoreFailureException;
+  SubmissionUISummary getRepeatSubmissionsPage(String keyString, UIQueryResumePoint cursor, int fetchLimit) throws FormNotAvailableException, RequestFailureException, DatastoreFailureException;
 
-  String getSubmissionAuditCSV(String keyString) throws RequestFailureException;
+  /**
+   * @param knownTotalRows the total returned with an earlier page of the
+   *                       same attachment, or -1 to have the rows counted.
+   */
+  AuditCSVPage getSubmissionAuditCSVPage(String keyString, int offset, int limit, int knownTotalRows) throws RequestFailureException;
 }
@@ -18,12 +18,13 @@ package org.opendatakit.aggregate.client.submission;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
 
 public interface SubmissionServiceAsync {
 
   void getSubmissions(FilterGroup filter, AsyncCallback<SubmissionUISummary> callback);
 
-  void getRepeatSubmissions(String keyString, AsyncCallback<SubmissionUISummary> callback);
+  void getRepeatSubmissionsPage(String keyString, UIQueryResumePoint cursor, int fetchLimit, AsyncCallback<SubmissionUISummary> callback);
 
-  void getSubmissionAuditCSV(String keyString, AsyncCallback<String> async);
+  void getSubmissionAuditCSVPage(String keyString, int offset, int limit, int knownTotalRows, AsyncCallback<AuditCSVPage> async);
 }
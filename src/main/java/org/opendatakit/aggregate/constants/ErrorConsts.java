@@ -72,6 +72,7 @@ public final class ErrorConsts {
   public static final String PARSING_PROBLEM = "Problem parsing submission XML";
   public static final String FORM_DOES_NOT_ALLOW_SUBMISSIONS = "Submissions have been disallowed on this form";
   public static final String TASK_LOCK_PROBLEM = "Unable to gain lock for modification or creation of this submission. Try again.";
+  public static final String SUBMISSIONS_OVERLOADED = "Server is busy processing other submissions. Try again later.";
   /**
    * Constant used to log error if string array does not match column size
    */
@@ -28,7 +28,9 @@ public enum TaskLockType implements ITaskLockType {
   FORM_DELETION(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
   PURGE_OLDER_SUBMISSIONS(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
   STARTUP_SERIALIZATION(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
-  CREATE_FORM(60000 + 2 * PersistConsts.MAX_SETTLE_MILLISECONDS, PersistConsts.MIN_SETTLE_MILLISECONDS); // 60 second request timeout, 2x settle for replication delay
+  CREATE_FORM(60000 + 2 * PersistConsts.MAX_SETTLE_MILLISECONDS, PersistConsts.MIN_SETTLE_MILLISECONDS), // 60 second request timeout, 2x settle for replication delay
+  WATCHDOG_SWEEP(30000 - PersistConsts.MAX_SETTLE_MILLISECONDS, PersistConsts.MIN_SETTLE_MILLISECONDS), // held (never released) for just under the fast watchdog interval
+  BLOB_STORE_MIGRATION(120000, PersistConsts.MIN_SETTLE_MILLISECONDS);
 
   private long timeout;
   private long minSettleTime;
@@ -31,6 +31,7 @@ public class UIConsts {
 
   public static final String FORM_UPLOAD_SERVLET_ADDR = "formUpload";
   public static final String USERS_AND_PERMS_UPLOAD_SERVLET_ADDR = "ssl/reset-users-and-permissions";
+  public static final String BULK_SUBMISSION_IMPORT_SERVLET_ADDR = "ssl/bulk-submission-import";
   public static final String GET_USERS_AND_PERMS_CSV_SERVLET_ADDR = "ssl/get-users-and-permissions";
 
   public static final String SERVICE_ACCOUNT_PRIVATE_KEY_UPLOAD_ADDR = "ssl/oauth2-service-account";
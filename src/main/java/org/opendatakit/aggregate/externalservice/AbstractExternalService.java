@@ -139,7 +139,7 @@ public abstract class AbstractExternalService implements ExternalService {
   }
 
   @Override
-  public void sendSubmissions(List<Submission> submissions, boolean streaming, CallingContext cc) throws ODKExternalServiceException {
+  public void sendSubmissions(List<Submission> submissions, boolean streaming, BatchListener listener, CallingContext cc) throws ODKExternalServiceException {
     throw new ODKExternalServiceException(NO_BATCH_FUNCTIONALITY_ERROR);
   }
 
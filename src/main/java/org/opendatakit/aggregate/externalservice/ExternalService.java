@@ -33,7 +33,7 @@ public interface ExternalService {
 
   void sendSubmission(Submission submission, CallingContext cc) throws ODKExternalServiceException;
 
-  void sendSubmissions(List<Submission> submissions, boolean streaming, CallingContext cc) throws ODKExternalServiceException;
+  void sendSubmissions(List<Submission> submissions, boolean streaming, BatchListener listener, CallingContext cc) throws ODKExternalServiceException;
 
   void setUploadCompleted(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException;
 
@@ -48,4 +48,13 @@ public interface ExternalService {
   String getDescriptiveTargetString();
 
   ExternServSummary transform();
+
+  /**
+   * Told each time {@link #sendSubmissions} has sent a batch of submissions
+   * and persisted the cursor past them, so that a long send can renew the
+   * task lock it runs under.
+   */
+  interface BatchListener {
+    void batchSent(int submissionCount) throws ODKExternalServiceException;
+  }
 }
@@ -166,27 +166,33 @@ public final class FormServiceCursor extends CommonFieldsBase {
   }
 
   public static final List<ExternalService> getExternalServicesForForm(IForm form, CallingContext cc) throws ODKDatastoreException {
-    FormServiceCursor relation = assertRelation(cc);
-    Query query = cc.getDatastore().createQuery(relation, "FormServiceCursor.getExternalServicesForForm[" + form.getFormId() + "]", cc.getCurrentUser());
-    // filter on the Form's Uri. We cannot filter on the FORM_ID since it is a
-    // Text field in bigtable
-    query.addFilter(URI_MD5_FORM_ID_PROPERTY, FilterOperation.EQUAL, form.getEntityKey().getKey());
-    query.addSort(URI_MD5_FORM_ID_PROPERTY, Direction.ASCENDING); // gae optimization
     List<ExternalService> esList = new ArrayList<ExternalService>();
 
-    List<? extends CommonFieldsBase> fscList = query.executeQuery();
-    for (CommonFieldsBase cb : fscList) {
-      FormServiceCursor c = (FormServiceCursor) cb;
-
+    for (FormServiceCursor c : getFormServiceCursorsForForm(form, cc)) {
       ExternalService obj = constructExternalService(c, form, cc);
       if (obj != null) {
         esList.add(obj);
       }
-
     }
     return esList;
   }
 
+  public static final List<FormServiceCursor> getFormServiceCursorsForForm(IForm form, CallingContext cc) throws ODKDatastoreException {
+    FormServiceCursor relation = assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation, "FormServiceCursor.getExternalServicesForForm[" + form.getFormId() + "]", cc.getCurrentUser());
+    // filter on the Form's Uri. We cannot filter on the FORM_ID since it is a
+    // Text field in bigtable
+    query.addFilter(URI_MD5_FORM_ID_PROPERTY, FilterOperation.EQUAL, form.getEntityKey().getKey());
+    query.addSort(URI_MD5_FORM_ID_PROPERTY, Direction.ASCENDING); // gae optimization
+    List<FormServiceCursor> fscList = new ArrayList<FormServiceCursor>();
+
+    List<? extends CommonFieldsBase> cfbList = query.executeQuery();
+    for (CommonFieldsBase cb : cfbList) {
+      fscList.add((FormServiceCursor) cb);
+    }
+    return fscList;
+  }
+
   public static final FormServiceCursor getFormServiceCursor(String uri, CallingContext cc) throws ODKDatastoreException {
     try {
       FormServiceCursor relation = assertRelation(cc);
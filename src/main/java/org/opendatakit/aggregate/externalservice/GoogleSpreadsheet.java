@@ -79,6 +79,7 @@ import org.opendatakit.aggregate.form.MiscTasks.TaskType;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.LinkElementFormatter;
 import org.opendatakit.aggregate.format.header.GoogleSpreadsheetHeaderFormatter;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.servlet.FormMultipleValueServlet;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionSet;
@@ -552,36 +553,7 @@ public class GoogleSpreadsheet extends GoogleOauth2ExternalService implements Ex
       try {
         buildSheetInfoMap(cc);
 
-        SheetInfo sheetInfo;
-        List<Request> requests = new ArrayList<Request>();
-
-        // upload base submission values
-        sheetInfo = sheetInfoMap.get(objectEntity.getTopLevelWorksheetId());
-        AppendCellsRequest acr = createAppendCellsRequest(submission, sheetInfo, cc);
-        requests.add(new Request().setAppendCells(acr));
-
-        // upload repeat values
-        for (GoogleSpreadsheet2RepeatParameterTable tableId : repeatElementEntities) {
-          FormElementKey elementKey = tableId.getFormElementKey();
-          FormElementModel element = FormElementModel.retrieveFormElementModel(form, elementKey);
-          sheetInfo = sheetInfoMap.get(tableId.getWorksheetId());
-
-          List<SubmissionValue> values = submission.findElementValue(element);
-          for (SubmissionValue value : values) {
-            if (value instanceof RepeatSubmissionType) {
-              RepeatSubmissionType repeat = (RepeatSubmissionType) value;
-              if (repeat.getElement().equals(element)) {
-                for (SubmissionSet set : repeat.getSubmissionSets()) {
-                  acr = createAppendCellsRequest(set, sheetInfo, cc);
-                  requests.add(new Request().setAppendCells(acr));
-                }
-              }
-            } else {
-              System.out
-                  .println("ERROR: How did a non Repeat Submission Type get in the for loop?");
-            }
-          }
-        }
+        List<Request> requests = createAppendRequests(submission, cc);
 
         if (!requests.isEmpty()) {
           BatchUpdateSpreadsheetRequest req = new BatchUpdateSpreadsheetRequest();
@@ -599,6 +571,101 @@ public class GoogleSpreadsheet extends GoogleOauth2ExternalService implements Ex
     }
   }
 
+  @Override
+  public boolean canBatchSubmissions() {
+    return true;
+  }
+
+  /**
+   * Send the append requests of all the given submissions, combining them
+   * into as few batchUpdate calls as the configured request cap allows. The
+   * cursor is advanced and persisted, and the listener told, after each
+   * successful call.
+   */
+  @Override
+  public void sendSubmissions(List<Submission> submissions, boolean streaming, BatchListener listener, CallingContext cc) throws ODKExternalServiceException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    try {
+      if (!getReady()) {
+        // nothing can be sent yet; skip these as insertData() does.
+        if (!submissions.isEmpty()) {
+          ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(fsc,
+              submissions.get(submissions.size() - 1), streaming);
+          ds.putEntity(fsc, user);
+        }
+        return;
+      }
+
+      buildSheetInfoMap(cc);
+
+      SheetsAppendBatch batch = new SheetsAppendBatch(spreadsheetService,
+          objectEntity.getSpreadsheetKey(),
+          ServerPreferencesProperties.getGoogleSheetsMaxAppendRequests(cc));
+      Submission lastQueued = null;
+      int queuedCount = 0;
+      for (Submission submission : submissions) {
+        if (batch.add(createAppendRequests(submission, cc))) {
+          ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(fsc, lastQueued, streaming);
+          ds.putEntity(fsc, user);
+          listener.batchSent(queuedCount);
+          queuedCount = 0;
+        }
+        lastQueued = submission;
+        ++queuedCount;
+      }
+      if (batch.flush()) {
+        ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(fsc, lastQueued, streaming);
+        ds.putEntity(fsc, user);
+        listener.batchSent(queuedCount);
+      }
+      logger.info("Sent " + submissions.size() + " submissions to spreadsheet "
+          + objectEntity.getSpreadsheetName() + " in " + batch.getBatchUpdateCount() + " batchUpdate calls");
+    } catch (Exception e) {
+      logger.error("Unable to insert data into spreadsheet " + objectEntity.getSpreadsheetName()
+          + " exception: " + e.getMessage(), e);
+      throw new ODKExternalServiceException(e);
+    }
+  }
+
+  /**
+   * Creates the requests appending the top-level row and each repeat instance
+   * of the submission to their worksheets.
+   */
+  private List<Request> createAppendRequests(Submission submission, CallingContext cc) throws ODKDatastoreException {
+    SheetInfo sheetInfo;
+    List<Request> requests = new ArrayList<Request>();
+
+    // upload base submission values
+    sheetInfo = sheetInfoMap.get(objectEntity.getTopLevelWorksheetId());
+    AppendCellsRequest acr = createAppendCellsRequest(submission, sheetInfo, cc);
+    requests.add(new Request().setAppendCells(acr));
+
+    // upload repeat values
+    for (GoogleSpreadsheet2RepeatParameterTable tableId : repeatElementEntities) {
+      FormElementKey elementKey = tableId.getFormElementKey();
+      FormElementModel element = FormElementModel.retrieveFormElementModel(form, elementKey);
+      sheetInfo = sheetInfoMap.get(tableId.getWorksheetId());
+
+      List<SubmissionValue> values = submission.findElementValue(element);
+      for (SubmissionValue value : values) {
+        if (value instanceof RepeatSubmissionType) {
+          RepeatSubmissionType repeat = (RepeatSubmissionType) value;
+          if (repeat.getElement().equals(element)) {
+            for (SubmissionSet set : repeat.getSubmissionSets()) {
+              acr = createAppendCellsRequest(set, sheetInfo, cc);
+              requests.add(new Request().setAppendCells(acr));
+            }
+          }
+        } else {
+          System.out
+              .println("ERROR: How did a non Repeat Submission Type get in the for loop?");
+        }
+      }
+    }
+    return requests;
+  }
+
   /**
    * Creates the request to append the data in the given submissionSet as a new entry (i.e. a new row)
    * in the given worksheet, including only the data specified by headers.
@@ -17,18 +17,16 @@
 
 package org.opendatakit.aggregate.externalservice;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.opendatakit.aggregate.constants.common.BinaryOption;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
 import org.opendatakit.aggregate.constants.common.ExternalServiceType;
@@ -48,7 +46,6 @@ import org.opendatakit.common.security.common.EmailParser;
 import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
-import org.opendatakit.common.web.constants.HtmlConsts;
 
 /**
  * @author wbrunette@gmail.com
@@ -56,6 +53,8 @@ import org.opendatakit.common.web.constants.HtmlConsts;
  */
 public class JsonServer extends AbstractExternalService implements ExternalService {
 
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
   /**
    * Datastore entity specific to this type of external service
    */
@@ -165,28 +164,24 @@ public class JsonServer extends AbstractExternalService implements ExternalServi
       BinaryOption option = objectEntity.getBinaryOption();
 
       ByteArrayOutputStream baStream = new ByteArrayOutputStream();
-      PrintWriter pWriter = new PrintWriter(new OutputStreamWriter(baStream, HtmlConsts.UTF8_ENCODE));
 
       System.out.println("Sending one JSON Submission");
 
-      // format submission
-      JsonFormatterWithFilters formatter = new JsonFormatterWithFilters(pWriter, form, null, option,
-          true, cc.getServerURL());
-      formatter.processSubmissions(Collections.singletonList(submission), cc);
-      pWriter.flush();
-
-      JsonParser parser = new JsonParser();
-      JsonElement submissionJsonObj = parser.parse(baStream.toString(HtmlConsts.UTF8_ENCODE));
-
-      // create json object
-      JsonObject entity = new JsonObject();
-      entity.addProperty("token", getAuthKey());
-      entity.addProperty("content", "record");
-      entity.addProperty("formId", form.getFormId());
-      entity.addProperty("formVersion", form.getMajorMinorVersionString());
-      entity.add("data", submissionJsonObj);
+      // create json object, streaming the formatted submission into it
+      try (JsonGenerator generator = jsonFactory.createGenerator(baStream, JsonEncoding.UTF8)) {
+        generator.writeStartObject();
+        generator.writeStringField("token", getAuthKey());
+        generator.writeStringField("content", "record");
+        generator.writeStringField("formId", form.getFormId());
+        generator.writeStringField("formVersion", form.getMajorMinorVersionString());
+        generator.writeFieldName("data");
+        JsonFormatterWithFilters formatter = new JsonFormatterWithFilters(generator, form, null,
+            option, true, cc.getServerURL());
+        formatter.processSubmissions(Collections.singletonList(submission), cc);
+        generator.writeEndObject();
+      }
 
-      StringEntity postentity = new StringEntity(entity.toString(), HtmlConsts.UTF8_ENCODE);
+      ByteArrayEntity postentity = new ByteArrayEntity(baStream.toByteArray());
       postentity.setContentType("application/json");
 
       this.sendRequest(getServerUrl(), postentity, cc);
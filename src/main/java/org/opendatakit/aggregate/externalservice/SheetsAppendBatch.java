@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.externalservice;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.Request;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates the append requests of several submissions so that they can be
+ * sent to the Sheets API in a single spreadsheets.batchUpdate call.
+ * <p>
+ * The requests of one submission are never split across two calls. A
+ * pending batch is sent before it would exceed the request cap; a single
+ * submission with more requests than the cap is sent on its own.
+ */
+class SheetsAppendBatch {
+
+  private final Sheets spreadsheetService;
+  private final String spreadsheetKey;
+  private final int maxRequestsPerBatch;
+  private final List<Request> pendingRequests = new ArrayList<Request>();
+  private int batchUpdateCount = 0;
+
+  SheetsAppendBatch(Sheets spreadsheetService, String spreadsheetKey, int maxRequestsPerBatch) {
+    this.spreadsheetService = spreadsheetService;
+    this.spreadsheetKey = spreadsheetKey;
+    this.maxRequestsPerBatch = Math.max(1, maxRequestsPerBatch);
+  }
+
+  /**
+   * Queue the requests of one submission.
+   *
+   * @return true if the previously queued requests were sent to make room.
+   */
+  boolean add(List<Request> submissionRequests) throws IOException {
+    boolean flushed = false;
+    if (!pendingRequests.isEmpty()
+        && pendingRequests.size() + submissionRequests.size() > maxRequestsPerBatch) {
+      flushed = flush();
+    }
+    pendingRequests.addAll(submissionRequests);
+    return flushed;
+  }
+
+  /**
+   * Send any queued requests.
+   *
+   * @return true if a batchUpdate call was made.
+   */
+  boolean flush() throws IOException {
+    if (pendingRequests.isEmpty()) {
+      return false;
+    }
+    BatchUpdateSpreadsheetRequest req = new BatchUpdateSpreadsheetRequest();
+    req.setRequests(new ArrayList<Request>(pendingRequests));
+    req.setIncludeSpreadsheetInResponse(false);
+    spreadsheetService.spreadsheets().batchUpdate(spreadsheetKey, req).execute();
+    pendingRequests.clear();
+    ++batchUpdateCount;
+    return true;
+  }
+
+  int getBatchUpdateCount() {
+    return batchUpdateCount;
+  }
+}
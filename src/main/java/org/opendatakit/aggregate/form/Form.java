@@ -18,6 +18,8 @@ package org.opendatakit.aggregate.form;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -391,6 +393,13 @@ class Form implements IForm {
     return set;
   }
 
+  public Collection<? extends CommonFieldsBase> getBackingTableSet() {
+    if (formDefinition == null) {
+      return Collections.emptyList();
+    }
+    return formDefinition.getBackingTableSet();
+  }
+
   private void getAllBackingObjectsHelper(FormElementModel current, Set<DynamicCommonFieldsBase> set) {
     for (FormElementModel m : current.getChildren()) {
       set.add((DynamicCommonFieldsBase) m.getFormDataModel().getBackingObjectPrototype());
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.form;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The per-form policy for downscaling image attachments as submissions are
+ * received. A form without a row stores its attachments exactly as uploaded.
+ * <p>
+ * JPEG attachments larger than the maximum pixel dimension are scaled down
+ * so that their longer side fits, and re-encoded at the given JPEG quality.
+ * Images that already fit are re-encoded too, unless the policy keeps
+ * originals, in which case they are stored unchanged.
+ */
+public final class FormImagePolicy extends CommonFieldsBase {
+  private static final Logger logger = LoggerFactory.getLogger(FormImagePolicy.class);
+
+  public static final int MIN_DIMENSION = 64;
+  public static final int DEFAULT_JPEG_QUALITY = 80;
+
+  private static final String TABLE_NAME = "_form_image_policy";
+  private static final DataField FORM_ID = new DataField("FORM_ID", DataField.DataType.STRING, false, IForm.MAX_FORM_ID_LENGTH);
+  private static final DataField MAX_DIMENSION = new DataField("MAX_DIMENSION", DataField.DataType.INTEGER, false);
+  private static final DataField JPEG_QUALITY = new DataField("JPEG_QUALITY", DataField.DataType.INTEGER, false);
+  private static final DataField KEEP_ORIGINAL = new DataField("KEEP_ORIGINAL", DataField.DataType.BOOLEAN, false);
+
+  private static FormImagePolicy relation = null;
+
+  private FormImagePolicy(String databaseSchema) {
+    super(databaseSchema, TABLE_NAME);
+
+    fieldList.add(FORM_ID);
+    fieldList.add(MAX_DIMENSION);
+    fieldList.add(JPEG_QUALITY);
+    fieldList.add(KEEP_ORIGINAL);
+  }
+
+  private FormImagePolicy(FormImagePolicy ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized final FormImagePolicy assertRelation(CallingContext cc) throws ODKDatastoreException {
+    if (relation == null) {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      FormImagePolicy relationPrototype;
+      relationPrototype = new FormImagePolicy(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      // at this point, the prototype has become fully populated
+      relation = relationPrototype; // set static variable only upon success...
+    }
+    return relation;
+  }
+
+  /**
+   * @param formId
+   * @param cc
+   * @return the image policy of the form, or null if it has none.
+   * @throws ODKDatastoreException
+   */
+  public static final FormImagePolicy getPolicy(String formId, CallingContext cc) throws ODKDatastoreException {
+    FormImagePolicy prototype = assertRelation(cc);
+    try {
+      return cc.getDatastore().getEntity(prototype, CommonFieldsBase.newMD5HashUri(formId), cc.getCurrentUser());
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sets or replaces the image policy of the form.
+   *
+   * @param formId
+   * @param maxDimension the maximum width or height, in pixels.
+   * @param jpegQuality  the JPEG quality, 1 through 100.
+   * @param keepOriginal store images that already fit unchanged.
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static final void setPolicy(String formId, int maxDimension, int jpegQuality, boolean keepOriginal, CallingContext cc) throws ODKDatastoreException {
+    if (maxDimension < MIN_DIMENSION) {
+      throw new IllegalArgumentException("maxDimension must be at least " + MIN_DIMENSION);
+    }
+    if (jpegQuality < 1 || jpegQuality > 100) {
+      throw new IllegalArgumentException("jpegQuality must be between 1 and 100");
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    FormImagePolicy prototype = assertRelation(cc);
+    FormImagePolicy policy = ds.createEntityUsingRelation(prototype, user);
+    policy.setStringField(prototype.primaryKey, CommonFieldsBase.newMD5HashUri(formId));
+    policy.setFormId(formId);
+    policy.setLongField(MAX_DIMENSION, (long) maxDimension);
+    policy.setLongField(JPEG_QUALITY, (long) jpegQuality);
+    policy.setBooleanField(KEEP_ORIGINAL, keepOriginal);
+    ds.upsertEntity(policy, user);
+  }
+
+  /**
+   * Removes the image policy of the form. Called when the form is deleted.
+   *
+   * @param formId
+   * @param cc
+   */
+  public static final void clear(String formId, CallingContext cc) {
+    try {
+      FormImagePolicy prototype = assertRelation(cc);
+      cc.getDatastore().deleteEntity(new EntityKey(prototype, CommonFieldsBase.newMD5HashUri(formId)), cc.getCurrentUser());
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to clear image policy for " + formId, e);
+    }
+  }
+
+  @Override
+  public FormImagePolicy getEmptyRow(User user) {
+    return new FormImagePolicy(this, user);
+  }
+
+  public String getFormId() {
+    return getStringField(FORM_ID);
+  }
+
+  public void setFormId(String value) {
+    if (!setStringField(FORM_ID, value)) {
+      throw new IllegalStateException("overflow formId");
+    }
+  }
+
+  public int getMaxDimension() {
+    return getLongField(MAX_DIMENSION).intValue();
+  }
+
+  public int getJpegQuality() {
+    return getLongField(JPEG_QUALITY).intValue();
+  }
+
+  public boolean isKeepOriginal() {
+    return getBooleanField(KEEP_ORIGINAL);
+  }
+}
@@ -17,6 +17,7 @@
 
 package org.opendatakit.aggregate.form;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -27,6 +28,7 @@ import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -108,6 +110,12 @@ public interface IForm {
 
   Set<DynamicCommonFieldsBase> getAllBackingObjects();
 
+  /**
+   * All tables backing the form's submissions, including the blob and
+   * binary-content tables that are not reachable from the element tree.
+   */
+  Collection<? extends CommonFieldsBase> getBackingTableSet();
+
   List<FormElementModel> getRepeatGroupsInModel();
 
   FormSummary generateFormSummary(CallingContext cc) throws ODKDatastoreException;
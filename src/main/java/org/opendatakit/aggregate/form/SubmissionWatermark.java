@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.form;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks, for each form, the most recent submission that was marked as
+ * complete. The Watchdog reads this table to decide whether a streaming
+ * publisher has anything new to publish, rather than querying each form's
+ * submission table.
+ * <p>
+ * A form without a row falls back to querying its submission table; the
+ * row is dropped whenever submissions are deleted so that it never refers
+ * to a submission that no longer exists.
+ */
+
+public final class SubmissionWatermark extends CommonFieldsBase {
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionWatermark.class);
+
+  private static final String TABLE_NAME = "_form_submission_watermark";
+  private static final DataField FORM_ID = new DataField("FORM_ID", DataField.DataType.STRING, false, IForm.MAX_FORM_ID_LENGTH);
+  private static final DataField LAST_SUBMISSION_URI = new DataField("LAST_SUBMISSION_URI", DataField.DataType.URI, false, PersistConsts.URI_STRING_LEN);
+  private static final DataField LAST_MARKED_AS_COMPLETE_DATE = new DataField("LAST_MARKED_AS_COMPLETE_DATE", DataField.DataType.DATETIME, false);
+
+  private static SubmissionWatermark relation = null;
+
+  private SubmissionWatermark(String databaseSchema) {
+    super(databaseSchema, TABLE_NAME);
+
+    fieldList.add(FORM_ID);
+    fieldList.add(LAST_SUBMISSION_URI);
+    fieldList.add(LAST_MARKED_AS_COMPLETE_DATE);
+  }
+
+  private SubmissionWatermark(SubmissionWatermark ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized final SubmissionWatermark assertRelation(CallingContext cc) throws ODKDatastoreException {
+    if (relation == null) {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      SubmissionWatermark relationPrototype;
+      relationPrototype = new SubmissionWatermark(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      // at this point, the prototype has become fully populated
+      relation = relationPrototype; // set static variable only upon success...
+    }
+    return relation;
+  }
+
+  /**
+   * Advances the watermark of the form to the given submission if it was
+   * marked as complete later than the current watermark. The comparison is
+   * made by the database, so concurrent calls from any server cannot move
+   * the watermark backwards.
+   *
+   * @param formId
+   * @param submissionUri
+   * @param markedAsCompleteDate
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static final void advance(String formId, String submissionUri, Date markedAsCompleteDate, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    SubmissionWatermark prototype = assertRelation(cc);
+    SubmissionWatermark watermark = ds.createEntityUsingRelation(prototype, user);
+    watermark.setStringField(prototype.primaryKey, CommonFieldsBase.newMD5HashUri(formId));
+    watermark.setFormId(formId);
+    watermark.setLastSubmissionUri(submissionUri);
+    watermark.setLastMarkedAsCompleteDate(markedAsCompleteDate);
+    if (ds.updateEntityIfLater(watermark, LAST_MARKED_AS_COMPLETE_DATE, LAST_SUBMISSION_URI, user)) {
+      return;
+    }
+    try {
+      ds.putEntity(watermark, user);
+    } catch (ODKEntityPersistException e) {
+      // the row exists: it is either later than this submission or it was
+      // just inserted by a concurrent call.
+      ds.updateEntityIfLater(watermark, LAST_MARKED_AS_COMPLETE_DATE, LAST_SUBMISSION_URI, user);
+    }
+  }
+
+  /**
+   * Removes the watermark of the form. Called when submissions are deleted.
+   * Errors are logged, as the watermark is re-established by the Watchdog.
+   *
+   * @param formId
+   * @param cc
+   */
+  public static final void clear(String formId, CallingContext cc) {
+    try {
+      SubmissionWatermark prototype = assertRelation(cc);
+      cc.getDatastore().deleteEntity(new EntityKey(prototype, CommonFieldsBase.newMD5HashUri(formId)), cc.getCurrentUser());
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to clear submission watermark for " + formId, e);
+    }
+  }
+
+  /**
+   * @param cc
+   * @return the watermarks of all forms, keyed by formId.
+   * @throws ODKDatastoreException
+   */
+  public static final Map<String, SubmissionWatermark> getWatermarks(CallingContext cc) throws ODKDatastoreException {
+    SubmissionWatermark prototype = assertRelation(cc);
+    Query q = cc.getDatastore().createQuery(prototype, "SubmissionWatermark.getWatermarks", cc.getCurrentUser());
+    List<? extends CommonFieldsBase> l = q.executeQuery();
+    Map<String, SubmissionWatermark> watermarks = new HashMap<String, SubmissionWatermark>();
+    for (CommonFieldsBase b : l) {
+      SubmissionWatermark w = (SubmissionWatermark) b;
+      watermarks.put(w.getFormId(), w);
+    }
+    return watermarks;
+  }
+
+  @Override
+  public SubmissionWatermark getEmptyRow(User user) {
+    return new SubmissionWatermark(this, user);
+  }
+
+  public String getFormId() {
+    return getStringField(FORM_ID);
+  }
+
+  public void setFormId(String value) {
+    if (!setStringField(FORM_ID, value)) {
+      throw new IllegalStateException("overflow formId");
+    }
+  }
+
+  public String getLastSubmissionUri() {
+    return getStringField(LAST_SUBMISSION_URI);
+  }
+
+  public void setLastSubmissionUri(String value) {
+    if (!setStringField(LAST_SUBMISSION_URI, value)) {
+      throw new IllegalStateException("overflow lastSubmissionUri");
+    }
+  }
+
+  public Date getLastMarkedAsCompleteDate() {
+    return getDateField(LAST_MARKED_AS_COMPLETE_DATE);
+  }
+
+  public void setLastMarkedAsCompleteDate(Date value) {
+    setDateField(LAST_MARKED_AS_COMPLETE_DATE, value);
+  }
+}
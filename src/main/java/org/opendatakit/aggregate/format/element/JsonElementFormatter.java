@@ -15,25 +15,23 @@
  */
 package org.opendatakit.aggregate.format.element;
 
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import org.apache.commons.codec.binary.Base64;
 import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
-import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.servlet.BinaryDataServlet;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionRepeat;
+import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.GeoPoint;
 import org.opendatakit.aggregate.submission.type.jr.JRTemporal;
@@ -43,17 +41,16 @@ import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 
 /**
+ * Writes each value as a field of the JSON object that the generator is
+ * currently positioned in, rather than adding it to the row. Repeat groups
+ * are written as arrays of objects.
+ *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  */
 public class JsonElementFormatter implements ElementFormatter {
-  private static final String JSON_NULL = "null";
-  private static final String JSON_TRUE = "true";
-  private static final String JSON_FALSE = "false";
-
-  private static ObjectMapper mapper = new ObjectMapper();
 
-  private RepeatCallbackFormatter callbackFormatter;
+  private final JsonGenerator generator;
 
   private String baseWebServerUrl;
 
@@ -80,26 +77,28 @@ public class JsonElementFormatter implements ElementFormatter {
   /**
    * Construct a JSON Element Formatter
    *
+   * @param generator                          generator the values are written to
    * @param separateGpsCoordinates             separate the GPS coordinates of latitude and longitude into
    *                                           columns
    * @param includeGpsAltitude                 include GPS altitude data
    * @param includeGpsAccuracy                 include GPS accuracy data
    * @param expressMultipleChoiceListsAsArrays if true, express the multiple-choice fields as arrays of strings
    */
-  public JsonElementFormatter(boolean separateGpsCoordinates, boolean includeGpsAltitude,
-                              boolean includeGpsAccuracy, boolean expressMultipleChoiceListsAsArrays,
-                              RepeatCallbackFormatter formatter) {
+  public JsonElementFormatter(JsonGenerator generator, boolean separateGpsCoordinates,
+                              boolean includeGpsAltitude, boolean includeGpsAccuracy,
+                              boolean expressMultipleChoiceListsAsArrays) {
+    this.generator = generator;
     separateCoordinates = separateGpsCoordinates;
     includeAltitude = includeGpsAltitude;
     includeAccuracy = includeGpsAccuracy;
     this.expressMultipleChoiceListsAsArrays = expressMultipleChoiceListsAsArrays;
-    callbackFormatter = formatter;
     baseWebServerUrl = null;
   }
 
   /**
    * Construct a JSON Element Formatter with links
    *
+   * @param generator                          generator the values are written to
    * @param webServerUrl                       base url for the web app (e.g.,
    *                                           localhost:8080/ODKAggregatePlatform)
    * @param separateGpsCoordinates             separate the GPS coordinates of latitude and longitude into
@@ -108,11 +107,11 @@ public class JsonElementFormatter implements ElementFormatter {
    * @param includeGpsAccuracy                 include GPS accuracy data
    * @param expressMultipleChoiceListsAsArrays if true, express the multiple-choice fields as arrays of strings
    */
-  public JsonElementFormatter(String webServerUrl, boolean separateGpsCoordinates,
-                              boolean includeGpsAltitude, boolean includeGpsAccuracy,
-                              boolean expressMultipleChoiceListsAsArrays, RepeatCallbackFormatter formatter) {
-    this(separateGpsCoordinates, includeGpsAltitude, includeGpsAccuracy,
-        expressMultipleChoiceListsAsArrays, formatter);
+  public JsonElementFormatter(JsonGenerator generator, String webServerUrl,
+                              boolean separateGpsCoordinates, boolean includeGpsAltitude,
+                              boolean includeGpsAccuracy, boolean expressMultipleChoiceListsAsArrays) {
+    this(generator, separateGpsCoordinates, includeGpsAltitude, includeGpsAccuracy,
+        expressMultipleChoiceListsAsArrays);
     baseWebServerUrl = webServerUrl;
   }
 
@@ -126,7 +125,7 @@ public class JsonElementFormatter implements ElementFormatter {
                            String ordinalValue, Row row, CallingContext cc) throws ODKDatastoreException {
     if (blobSubmission == null || (blobSubmission.getAttachmentCount(cc) == 0)
         || (blobSubmission.getContentHash(1, cc) == null)) {
-      addToJsonValueToRow(null, true, element.getElementName(), row);
+      writeString(element.getElementName(), null);
       return;
     }
 
@@ -135,126 +134,100 @@ public class JsonElementFormatter implements ElementFormatter {
       imageBlob = blobSubmission.getBlob(1, cc);
     }
     if (imageBlob != null && imageBlob.length > 0) {
-      Map<String, String> obj = new HashMap<String, String>();
-      obj.put("filename", blobSubmission.getUnrootedFilename(1, cc));
-      obj.put("type", blobSubmission.getContentType(1, cc));
-      if (baseWebServerUrl == null) {
-        // embed the binary
-        obj.put("bytes", new String(Base64.encodeBase64(imageBlob)));
-      } else {
-        // create a link to the binary
-        SubmissionKey key = blobSubmission.getValue();
-        Map<String, String> properties = new HashMap<String, String>();
-        properties.put(ServletConsts.BLOB_KEY, key.toString());
-        String url = HtmlUtil.createLinkWithProperties(baseWebServerUrl + BasicConsts.FORWARDSLASH
-            + BinaryDataServlet.ADDR, properties);
-        obj.put("url", url);
-      }
-      String serialized = null;
       try {
-        serialized = mapper.writeValueAsString(obj);
-      } catch (JsonGenerationException e) {
-        e.printStackTrace();
-      } catch (JsonMappingException e) {
-        e.printStackTrace();
+        // the fields are written in the order earlier releases wrote them in
+        generator.writeObjectFieldStart(element.getElementName());
+        generator.writeStringField("filename", blobSubmission.getUnrootedFilename(1, cc));
+        if (baseWebServerUrl == null) {
+          // embed the binary, base64-encoded
+          generator.writeFieldName("bytes");
+          generator.writeBinary(imageBlob);
+          generator.writeStringField("type", blobSubmission.getContentType(1, cc));
+        } else {
+          generator.writeStringField("type", blobSubmission.getContentType(1, cc));
+          // create a link to the binary
+          SubmissionKey key = blobSubmission.getValue();
+          Map<String, String> properties = new HashMap<String, String>();
+          properties.put(ServletConsts.BLOB_KEY, key.toString());
+          String url = HtmlUtil.createLinkWithProperties(baseWebServerUrl + BasicConsts.FORWARDSLASH
+              + BinaryDataServlet.ADDR, properties);
+          generator.writeStringField("url", url);
+        }
+        generator.writeEndObject();
       } catch (IOException e) {
-        e.printStackTrace();
+        throw new UncheckedIOException(e);
       }
-      addToJsonValueToRow(serialized, false, element.getElementName(), row);
     }
 
   }
 
   @Override
   public void formatBoolean(Boolean bool, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(((bool == null) ? null : (bool ? JSON_TRUE : JSON_FALSE)), false,
-        element.getElementName(), row);
+    try {
+      if (bool == null) {
+        generator.writeNullField(element.getElementName());
+      } else {
+        generator.writeBooleanField(element.getElementName(), bool);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
   public void formatChoices(List<String> choices, FormElementModel element, String ordinalValue,
                             Row row) {
-    StringBuilder b = new StringBuilder();
-
     if (choices.size() == 0) {
-      addToJsonValueToRow(null, true, element.getElementName(), row);
-    } else {
-      if (expressMultipleChoiceListsAsArrays) {
-        b.append(BasicConsts.LEFT_BRACKET);
-        boolean first = true;
-        for (String s : choices) {
-          if (!first) {
-            b.append(BasicConsts.COMMA);
-          }
-          first = false;
-          try {
-            b.append(mapper.writeValueAsString(s));
-          } catch (JsonGenerationException e) {
-            e.printStackTrace();
-          } catch (JsonMappingException e) {
-            e.printStackTrace();
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-        }
-        b.append(BasicConsts.RIGHT_BRACKET);
-        addToJsonValueToRow(b.toString(), false, element.getElementName(), row);
-      } else {
-        boolean first = true;
+      writeString(element.getElementName(), null);
+    } else if (expressMultipleChoiceListsAsArrays) {
+      try {
+        generator.writeArrayFieldStart(element.getElementName());
         for (String s : choices) {
-          if (!first) {
-            b.append(BasicConsts.SPACE);
-          }
-          first = false;
-          b.append(s);
+          generator.writeString(s);
         }
-        addToJsonValueToRow(b.toString(), true, element.getElementName(), row);
+        generator.writeEndArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    } else {
+      writeString(element.getElementName(), String.join(BasicConsts.SPACE, choices));
     }
   }
 
   @Override
   public void formatDateTime(Date date, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(
-        Optional.ofNullable(date).map(JRTemporal::dateTime).map(JRTemporal::getRaw).orElse(null),
-        true,
+    writeString(
         element.getElementName(),
-        row
+        Optional.ofNullable(date).map(JRTemporal::dateTime).map(JRTemporal::getRaw).orElse(null)
     );
   }
 
   @Override
   public void formatDecimal(WrappedBigDecimal dub, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(dub, false, element.getElementName(), row);
+    writeNumber(element.getElementName(), dub);
   }
 
   @Override
   public void formatJRDate(JRTemporal value, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(
-        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null),
-        true,
+    writeString(
         element.getElementName(),
-        row
+        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null)
     );
   }
 
   @Override
   public void formatJRTime(JRTemporal value, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(
-        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null),
-        true,
+    writeString(
         element.getElementName(),
-        row
+        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null)
     );
   }
 
   @Override
   public void formatJRDateTime(JRTemporal value, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(
-        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null),
-        true,
+    writeString(
         element.getElementName(),
-        row
+        Optional.ofNullable(value).map(JRTemporal::getRaw).orElse(null)
     );
   }
 
@@ -262,35 +235,35 @@ public class JsonElementFormatter implements ElementFormatter {
   public void formatGeoPoint(GeoPoint coordinate, FormElementModel element, String ordinalValue,
                              Row row) {
     if (separateCoordinates) {
-      addToJsonValueToRow(coordinate.getLatitude(), false, element.getElementName()
-          + FormatConsts.HEADER_CONCAT + GeoPoint.LATITUDE, row);
-      addToJsonValueToRow(coordinate.getLongitude(), false, element.getElementName()
-          + FormatConsts.HEADER_CONCAT + GeoPoint.LONGITUDE, row);
+      writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.LATITUDE,
+          coordinate.getLatitude());
+      writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.LONGITUDE,
+          coordinate.getLongitude());
 
       if (includeAltitude) {
-        addToJsonValueToRow(coordinate.getAltitude(), false, element.getElementName()
-            + FormatConsts.HEADER_CONCAT + GeoPoint.ALTITUDE, row);
+        writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.ALTITUDE,
+            coordinate.getAltitude());
       }
 
       if (includeAccuracy) {
-        addToJsonValueToRow(coordinate.getAccuracy(), false, element.getElementName()
-            + FormatConsts.HEADER_CONCAT + GeoPoint.ACCURACY, row);
+        writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.ACCURACY,
+            coordinate.getAccuracy());
       }
     } else {
       if (coordinate.getLongitude() != null && coordinate.getLatitude() != null) {
         String coordVal = coordinate.getLatitude().toString() + BasicConsts.COMMA
             + BasicConsts.SPACE + coordinate.getLongitude().toString();
-        addToJsonValueToRow(coordVal, true, element.getElementName(), row);
+        writeString(element.getElementName(), coordVal);
         if (includeAltitude) {
-          addToJsonValueToRow(coordinate.getAltitude(), false, element.getElementName()
-              + FormatConsts.HEADER_CONCAT + GeoPoint.ALTITUDE, row);
+          writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.ALTITUDE,
+              coordinate.getAltitude());
         }
         if (includeAccuracy) {
-          addToJsonValueToRow(coordinate.getAccuracy(), false, element.getElementName()
-              + FormatConsts.HEADER_CONCAT + GeoPoint.ACCURACY, row);
+          writeNumber(element.getElementName() + FormatConsts.HEADER_CONCAT + GeoPoint.ACCURACY,
+              coordinate.getAccuracy());
         }
       } else {
-        addToJsonValueToRow(null, false, element.getElementName(), row);
+        writeString(element.getElementName(), null);
       }
     }
 
@@ -298,46 +271,56 @@ public class JsonElementFormatter implements ElementFormatter {
 
   @Override
   public void formatLong(Long longInt, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(longInt, false, element.getElementName(), row);
+    writeNumber(element.getElementName(), longInt);
   }
 
   @Override
   public void formatRepeats(SubmissionRepeat repeat, FormElementModel repeatElement, Row row,
                             CallingContext cc) throws ODKDatastoreException {
-    callbackFormatter.processRepeatedSubmssionSetsIntoRow(repeat.getSubmissionSets(),
-        repeatElement, row, cc);
+    try {
+      generator.writeArrayFieldStart(repeatElement.getElementName());
+      for (SubmissionSet repeatSet : repeat.getSubmissionSets()) {
+        generator.writeStartObject();
+        repeatSet.getFormattedValuesAsRow(null, this, false, cc);
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
   public void formatString(String string, FormElementModel element, String ordinalValue, Row row) {
-    addToJsonValueToRow(string, true, element.getElementName(), row);
+    writeString(element.getElementName(), string);
   }
 
-  private void addToJsonValueToRow(Object value, boolean quoted, String propertyName, Row row) {
-    StringBuilder jsonString = new StringBuilder();
-    jsonString.append(BasicConsts.QUOTE);
-    jsonString.append(propertyName);
-    jsonString.append(BasicConsts.QUOTE + BasicConsts.COLON);
-
-    if (value != null) {
-      if (quoted) {
-        try {
-          jsonString.append(mapper.writeValueAsString(value.toString()));
-        } catch (JsonGenerationException e) {
-          e.printStackTrace();
-        } catch (JsonMappingException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+  private void writeString(String propertyName, String value) {
+    try {
+      if (value == null) {
+        generator.writeNullField(propertyName);
       } else {
-        jsonString.append(value.toString());
+        generator.writeStringField(propertyName, value);
       }
-    } else {
-      jsonString.append(JSON_NULL);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+  }
 
-    row.addFormattedValue(jsonString.toString());
+  /**
+   * Numbers are written as their string representation, unquoted.
+   */
+  private void writeNumber(String propertyName, Object value) {
+    try {
+      generator.writeFieldName(propertyName);
+      if (value == null) {
+        generator.writeNull();
+      } else {
+        generator.writeNumber(value.toString());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
 }
@@ -14,49 +14,75 @@
 
 package org.opendatakit.aggregate.format.structure;
 
-import java.io.PrintWriter;
-import java.util.Iterator;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.constants.common.BinaryOption;
-import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
-import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
-import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.element.JsonElementFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
 import org.opendatakit.aggregate.submission.Submission;
-import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
-import org.opendatakit.common.web.constants.BasicConsts;
 
 /**
+ * Streams submissions as a JSON array of objects through a Jackson
+ * JsonGenerator, without building intermediate strings for each value.
+ *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  */
-public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCallbackFormatter {
+public class JsonFormatterWithFilters implements SubmissionFormatter {
 
-  private boolean first = true;
+  private static final JsonFactory factory = new JsonFactory();
 
-  private JsonElementFormatter elemFormatter;
+  private final JsonElementFormatter elemFormatter;
 
-  private List<FormElementModel> propertyNames;
+  private final List<FormElementModel> propertyNames;
 
-  private PrintWriter output;
+  private final JsonGenerator generator;
 
-  public JsonFormatterWithFilters(PrintWriter printWriter, IForm form, FilterGroup filterGroup,
+  private final boolean ownsGenerator;
+
+  /**
+   * Writes the submissions, UTF-8 encoded, to the output stream.
+   */
+  public JsonFormatterWithFilters(OutputStream outputStream, IForm form, FilterGroup filterGroup,
+                                  BinaryOption binaryOption, boolean expandMultipleChoiceAsArray, String webServerUrl) throws IOException {
+    this(factory.createGenerator(outputStream, JsonEncoding.UTF8), true, form, filterGroup,
+        binaryOption, expandMultipleChoiceAsArray, webServerUrl);
+  }
+
+  /**
+   * Writes the submissions as the next value of an enclosing JSON document.
+   * The generator is flushed, but not closed, once the submissions are written.
+   */
+  public JsonFormatterWithFilters(JsonGenerator generator, IForm form, FilterGroup filterGroup,
                                   BinaryOption binaryOption, boolean expandMultipleChoiceAsArray, String webServerUrl) {
-    output = printWriter;
+    this(generator, false, form, filterGroup, binaryOption, expandMultipleChoiceAsArray,
+        webServerUrl);
+  }
+
+  private JsonFormatterWithFilters(JsonGenerator generator, boolean ownsGenerator, IForm form,
+                                   FilterGroup filterGroup, BinaryOption binaryOption, boolean expandMultipleChoiceAsArray,
+                                   String webServerUrl) {
+    this.generator = generator;
+    this.ownsGenerator = ownsGenerator;
 
     if (binaryOption == BinaryOption.EMBED_BINARY) {
-      elemFormatter = new JsonElementFormatter(true, true, true, expandMultipleChoiceAsArray, this);
+      elemFormatter = new JsonElementFormatter(generator, true, true, true,
+          expandMultipleChoiceAsArray);
     } else {
-      elemFormatter = new JsonElementFormatter(webServerUrl, true, true, true,
-          expandMultipleChoiceAsArray, this);
+      elemFormatter = new JsonElementFormatter(generator, webServerUrl, true, true, true,
+          expandMultipleChoiceAsArray);
     }
 
     SubmissionUISummary summary = new SubmissionUISummary(form.getViewableName());
@@ -67,27 +93,39 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
 
   @Override
   public void beforeProcessSubmissions(CallingContext cc) {
-    output.append(BasicConsts.LEFT_BRACKET);
-    first = true;
+    try {
+      generator.writeStartArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
   public void processSubmissionSegment(List<Submission> submissions, CallingContext cc)
       throws ODKDatastoreException {
-    // format row elements
-    for (Submission sub : submissions) {
-      if (!first) {
-        output.append(FormatConsts.JSON_VALUE_DELIMITER);
+    try {
+      for (Submission sub : submissions) {
+        generator.writeStartObject();
+        sub.getFormattedValuesAsRow(propertyNames, elemFormatter, false, cc);
+        generator.writeEndObject();
       }
-      first = false;
-      Row row = sub.getFormattedValuesAsRow(propertyNames, elemFormatter, false, cc);
-      appendJsonObject(row.getFormattedValues().iterator());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
   }
 
   @Override
   public void afterProcessSubmissions(CallingContext cc) {
-    output.append(BasicConsts.RIGHT_BRACKET);
+    try {
+      generator.writeEndArray();
+      if (ownsGenerator) {
+        generator.close();
+      } else {
+        generator.flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
@@ -97,57 +135,4 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
     processSubmissionSegment(submissions, cc);
     afterProcessSubmissions(cc);
   }
-
-  @Override
-  public void processRepeatedSubmssionSetsIntoRow(List<SubmissionSet> repeats,
-                                                  FormElementModel repeatElement, Row row, CallingContext cc) throws ODKDatastoreException {
-
-    StringBuilder jsonString = new StringBuilder();
-    jsonString.append(BasicConsts.QUOTE);
-    jsonString.append(repeatElement.getElementName());
-    jsonString.append(BasicConsts.QUOTE + BasicConsts.COLON);
-    jsonString.append(BasicConsts.LEFT_BRACKET);
-    boolean firstRepeatGroup = true;
-    // format row elements
-    for (int i = 0; i < repeats.size(); ++i) {
-      if (!firstRepeatGroup) {
-        jsonString.append(FormatConsts.JSON_VALUE_DELIMITER);
-      }
-      firstRepeatGroup = false;
-      SubmissionSet repeat = repeats.get(i);
-      Row repeatRow = repeat.getFormattedValuesAsRow(null, elemFormatter, false, cc);
-      Iterator<String> itr = repeatRow.getFormattedValues().iterator();
-      boolean firstElement = true;
-      jsonString.append(BasicConsts.LEFT_BRACE);
-      while (itr.hasNext()) {
-        if (!firstElement) {
-          jsonString.append(FormatConsts.JSON_VALUE_DELIMITER);
-        }
-        firstElement = false;
-        jsonString.append(itr.next());
-      }
-      jsonString.append(BasicConsts.RIGHT_BRACE);
-    }
-    jsonString.append(BasicConsts.RIGHT_BRACKET);
-    row.addFormattedValue(jsonString.toString());
-  }
-
-  /**
-   * Helper function used to convert row to a JSON object and append to the
-   * stream
-   *
-   * @param itr string values to be separated by commas
-   */
-  private void appendJsonObject(Iterator<String> itr) {
-    output.append(BasicConsts.LEFT_BRACE);
-    boolean firstElement = true;
-    while (itr.hasNext()) {
-      if (!firstElement) {
-        output.append(FormatConsts.JSON_VALUE_DELIMITER);
-      }
-      firstElement = false;
-      output.append(itr.next());
-    }
-    output.append(BasicConsts.RIGHT_BRACE);
-  }
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.format.table;
+
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.opendatakit.aggregate.client.filter.Filter;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.filter.RowFilter;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
+import org.opendatakit.aggregate.constants.common.FormElementNamespace;
+import org.opendatakit.aggregate.constants.common.GeoPointConsts;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.server.GenerateHeaderInfo;
+import org.opendatakit.aggregate.submission.type.jr.JRTemporal;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.FlatSelect;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+
+/**
+ * Writes the complete-submissions CSV export of a flat form with a single
+ * SELECT over the top-level table and its phantom (column overflow) tables,
+ * streamed by the database's bulk export path instead of materializing each
+ * {@link org.opendatakit.aggregate.submission.Submission}.
+ *
+ * <p>
+ * The output is identical to {@link CsvFormatterWithFilters} fed by
+ * {@link org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup}.
+ * Forms with repeats, selects or attachments, and filter groups with row
+ * filters, are not handled; {@link #export(CallingContext)} then returns
+ * false without writing anything.
+ */
+public class CsvFlatExporter {
+
+  /**
+   * How the text the database returns for a column becomes the text the
+   * element formatter would have produced.
+   */
+  private enum Conversion {
+    AS_IS,
+    DECIMAL,
+    DATETIME,
+    LEGACY_JR_DATE,
+    LEGACY_JR_TIME,
+    LEGACY_JR_DATETIME,
+    JR_RAW
+  }
+
+  private static final class OutputColumn {
+    private final Conversion conversion;
+    private final int index;
+    // for JR_RAW, the parsed value that must be present for raw to be shown
+    private final int parsedIndex;
+
+    private OutputColumn(Conversion conversion, int index, int parsedIndex) {
+      this.conversion = conversion;
+      this.index = index;
+      this.parsedIndex = parsedIndex;
+    }
+  }
+
+  private final PrintWriter output;
+  private final List<String> headers = new ArrayList<String>();
+  private final List<OutputColumn> outputColumns = new ArrayList<OutputColumn>();
+  private FlatSelect select;
+
+  public CsvFlatExporter(IForm form, PrintWriter printWriter, FilterGroup filterGroup) {
+    output = printWriter;
+
+    SubmissionUISummary summary = new SubmissionUISummary(form.getViewableName());
+    GenerateHeaderInfo headerGenerator = new GenerateHeaderInfo(filterGroup, summary, form);
+    headerGenerator.processForHeaderInfo(form.getTopLevelGroupElement());
+    for (Column col : summary.getHeaders()) {
+      headers.add(col.getDisplayHeader());
+    }
+
+    for (Filter filter : filterGroup.getFilters()) {
+      if (filter instanceof RowFilter) {
+        return;
+      }
+    }
+
+    List<FormElementNamespace> namespaces = headerGenerator.includedFormElementNamespaces();
+    boolean hasMeta = namespaces.contains(FormElementNamespace.METADATA);
+    boolean hasValues = namespaces.contains(FormElementNamespace.VALUES);
+
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement().getFormDataModel()
+        .getBackingObjectPrototype();
+    FlatSelect candidate = new FlatSelect(tbl);
+    for (FormElementModel m : headerGenerator.getIncludedElements()) {
+      boolean added;
+      if (m.isMetadata()) {
+        added = !hasMeta || addMetadataColumn(candidate, tbl, m);
+      } else {
+        added = !hasValues || addValueColumn(candidate, tbl, m);
+      }
+      if (!added) {
+        outputColumns.clear();
+        return;
+      }
+    }
+
+    // same rows and order as QueryByUIFilterGroup with ONLY_COMPLETE_SUBMISSIONS
+    candidate.addFilter(tbl.markedAsCompleteDate, Query.FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+    candidate.addFilter(tbl.isComplete, Query.FilterOperation.EQUAL, true);
+    candidate.addSort(tbl.markedAsCompleteDate, Query.Direction.ASCENDING);
+    candidate.addSort(tbl.primaryKey, Query.Direction.ASCENDING);
+    select = candidate;
+  }
+
+  /**
+   * Write the header and every complete submission to the output.
+   *
+   * @return false if the form or the datastore cannot use this path, in which
+   *     case nothing has been written.
+   */
+  public boolean export(CallingContext cc) throws ODKDatastoreException {
+    if (select == null) {
+      return false;
+    }
+    final boolean[] headerWritten = {false};
+    boolean streamed = cc.getDatastore().streamFlatSelect(select, new FlatSelect.RowHandler() {
+      @Override
+      public void handleRow(String[] values) {
+        if (!headerWritten[0]) {
+          CsvFormatterWithFilters.appendCsvRow(output, headers.iterator());
+          headerWritten[0] = true;
+        }
+        CsvFormatterWithFilters.appendCsvRow(output, convertRow(values).iterator());
+      }
+    }, cc.getCurrentUser());
+    if (streamed && !headerWritten[0]) {
+      CsvFormatterWithFilters.appendCsvRow(output, headers.iterator());
+    }
+    return streamed;
+  }
+
+  private boolean addMetadataColumn(FlatSelect candidate, TopLevelDynamicBase tbl, FormElementModel m) {
+    switch (m.getType()) {
+      case META_INSTANCE_ID:
+        addColumn(Conversion.AS_IS, candidate.addColumn(tbl, tbl.primaryKey));
+        return true;
+      case META_MODEL_VERSION:
+        addColumn(Conversion.AS_IS, candidate.addColumn(tbl, tbl.modelVersion));
+        return true;
+      case META_UI_VERSION:
+        addColumn(Conversion.AS_IS, candidate.addColumn(tbl, tbl.uiVersion));
+        return true;
+      case META_SUBMISSION_DATE:
+        addColumn(Conversion.DATETIME, candidate.addColumn(tbl, tbl.submissionDate));
+        return true;
+      case META_IS_COMPLETE:
+        addColumn(Conversion.AS_IS, candidate.addColumn(tbl, tbl.isComplete));
+        return true;
+      case META_DATE_MARKED_AS_COMPLETE:
+        addColumn(Conversion.DATETIME, candidate.addColumn(tbl, tbl.markedAsCompleteDate));
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private boolean addValueColumn(FlatSelect candidate, TopLevelDynamicBase tbl, FormElementModel m) {
+    FormDataModel fdm = m.getFormDataModel();
+    switch (fdm.getElementType()) {
+      case STRING:
+      case GEOTRACE:
+      case GEOSHAPE:
+      case INTEGER:
+      case BOOLEAN:
+        return addFieldColumn(candidate, tbl, fdm, Conversion.AS_IS);
+      case DECIMAL:
+        return addFieldColumn(candidate, tbl, fdm, Conversion.DECIMAL);
+      case GEOPOINT: {
+        // the CSV formatter always emits latitude, longitude, altitude and accuracy
+        FormDataModel[] coordinates = new FormDataModel[4];
+        for (FormDataModel child : fdm.getChildren()) {
+          int ordinal = child.getOrdinalNumber().intValue();
+          if (ordinal >= GeoPointConsts.GEOPOINT_LATITUDE_ORDINAL_NUMBER
+              && ordinal <= GeoPointConsts.GEOPOINT_ACCURACY_ORDINAL_NUMBER) {
+            coordinates[ordinal - GeoPointConsts.GEOPOINT_LATITUDE_ORDINAL_NUMBER] = child;
+          }
+        }
+        for (FormDataModel coordinate : coordinates) {
+          if (coordinate == null || !addFieldColumn(candidate, tbl, coordinate, Conversion.DECIMAL)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      case JRDATE:
+      case JRTIME:
+      case JRDATETIME:
+        return addTemporalColumn(candidate, tbl, fdm);
+      default:
+        // repeats, selects and attachments live in tables of their own
+        return false;
+    }
+  }
+
+  private boolean addTemporalColumn(FlatSelect candidate, TopLevelDynamicBase tbl, FormDataModel fdm) {
+    if (fdm.getChildren().isEmpty()) {
+      // old style field: only the parsed value is stored
+      Conversion conversion;
+      if (fdm.getElementType() == ElementType.JRDATE) {
+        conversion = Conversion.LEGACY_JR_DATE;
+      } else if (fdm.getElementType() == ElementType.JRTIME) {
+        conversion = Conversion.LEGACY_JR_TIME;
+      } else {
+        conversion = Conversion.LEGACY_JR_DATETIME;
+      }
+      return addFieldColumn(candidate, tbl, fdm, conversion);
+    }
+    FormDataModel parsed = null;
+    FormDataModel raw = null;
+    for (FormDataModel child : fdm.getChildren()) {
+      switch (child.getOrdinalNumber().intValue()) {
+        case 1:
+          parsed = child;
+          break;
+        case 2:
+          raw = child;
+          break;
+      }
+    }
+    if (parsed == null || raw == null || !join(candidate, tbl, parsed) || !join(candidate, tbl, raw)) {
+      return false;
+    }
+    int parsedIndex = candidate.addColumn(parsed.getBackingObjectPrototype(), parsed.getBackingKey());
+    outputColumns.add(new OutputColumn(Conversion.JR_RAW,
+        candidate.addColumn(raw.getBackingObjectPrototype(), raw.getBackingKey()), parsedIndex));
+    return true;
+  }
+
+  private boolean addFieldColumn(FlatSelect candidate, TopLevelDynamicBase tbl, FormDataModel fdm,
+                                 Conversion conversion) {
+    if (!join(candidate, tbl, fdm)) {
+      return false;
+    }
+    addColumn(conversion, candidate.addColumn(fdm.getBackingObjectPrototype(), fdm.getBackingKey()));
+    return true;
+  }
+
+  private void addColumn(Conversion conversion, int index) {
+    outputColumns.add(new OutputColumn(conversion, index, -1));
+  }
+
+  /**
+   * Phantom tables hold one row per submission and are joined on their
+   * top-level AURI.
+   */
+  private static boolean join(FlatSelect candidate, TopLevelDynamicBase tbl, FormDataModel fdm) {
+    CommonFieldsBase relation = fdm.getBackingObjectPrototype();
+    if (relation == null || fdm.getBackingKey() == null) {
+      return false;
+    }
+    if (relation.getSchemaName().equals(tbl.getSchemaName())
+        && relation.getTableName().equals(tbl.getTableName())) {
+      return true;
+    }
+    if (!(relation instanceof DynamicBase)) {
+      return false;
+    }
+    candidate.addJoin(relation, ((DynamicBase) relation).topLevelAuri);
+    return true;
+  }
+
+  private List<String> convertRow(String[] values) {
+    List<String> formatted = new ArrayList<String>(outputColumns.size());
+    for (OutputColumn column : outputColumns) {
+      String value = values[column.index];
+      if (value == null) {
+        formatted.add(null);
+        continue;
+      }
+      switch (column.conversion) {
+        case AS_IS:
+          formatted.add(value);
+          break;
+        case DECIMAL:
+          formatted.add(new WrappedBigDecimal(value).toString());
+          break;
+        case DATETIME:
+          formatted.add(JRTemporal.dateTime(toDate(value)).getRaw());
+          break;
+        case LEGACY_JR_DATE:
+          formatted.add(JRTemporal.date(toDate(value)).getRaw());
+          break;
+        case LEGACY_JR_TIME:
+          formatted.add(JRTemporal.time(toDate(value)).getRaw());
+          break;
+        case LEGACY_JR_DATETIME:
+          formatted.add(JRTemporal.dateTime(toDate(value)).getRaw());
+          break;
+        case JR_RAW:
+          formatted.add(values[column.parsedIndex] == null ? null : value);
+          break;
+        default:
+          throw new IllegalStateException("unhandled case");
+      }
+    }
+    return formatted;
+  }
+
+  private static Date toDate(String value) {
+    return new Date(Timestamp.valueOf(value).getTime());
+  }
+}
@@ -69,7 +69,7 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
   @Override
   public final void beforeProcessSubmissions(CallingContext cc) {
     // format headers
-    appendCsvRow(headers.iterator());
+    appendCsvRow(output, headers.iterator());
   }
 
   @Override
@@ -78,7 +78,7 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
     // format row elements
     for (Submission sub : submissions) {
       Row row = sub.getFormattedValuesAsRow(namespaces, propertyNames, elemFormatter, false, cc);
-      appendCsvRow(row.getFormattedValues().iterator());
+      appendCsvRow(output, row.getFormattedValues().iterator());
     }
   }
 
@@ -96,9 +96,10 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
   /**
    * Helper function used to append the comma separated value row
    *
-   * @param itr string values to be separated by commas
+   * @param output the writer to append the row to
+   * @param itr    string values to be separated by commas
    */
-  private void appendCsvRow(Iterator<String> itr) {
+  static void appendCsvRow(PrintWriter output, Iterator<String> itr) {
     output.append(BasicConsts.EMPTY_STRING);
     while (itr.hasNext()) {
       String value = itr.next();
@@ -176,7 +176,7 @@ public class BaseFormParserForJavaRosa {
     stringLengths.clear();
     allBindings.forEach(this::storeLengthOfBinding);
 
-    rootJavaRosaFormDef = parseDocumentIntoFormDef(doc);
+    rootJavaRosaFormDef = parseDocumentIntoFormDef(xml, doc);
 
     if (rootJavaRosaFormDef == null) {
       throw new ODKIncompleteSubmissionData(
@@ -310,7 +310,6 @@ public class BaseFormParserForJavaRosa {
       // To address this, we will use the form defined in ENCRYPTED_FORM_DEFINITION instead
       // which follows the structure described above.
       // This is discussed in https://github.com/opendatakit/aggregate/issues/294
-      XFormParser exfp = parseFormDefinition(ENCRYPTED_FORM_DEFINITION);
       // Reset bind element and string length maps since we won't be using the original
       // form parsed and processed at the beginning of this constructor.
       Document encryptedFormDoc = parseXmlToDocument(ENCRYPTED_FORM_DEFINITION);
@@ -321,11 +320,7 @@ public class BaseFormParserForJavaRosa {
 
       stringLengths.clear();
       encryptedFormBindings.forEach(this::storeLengthOfBinding);
-      try {
-        formDef = exfp.parse();
-      } catch (IOException e) {
-        throw new ODKIncompleteSubmissionData("Exception " + e.toString() + " during parsing!", Reason.BAD_JR_PARSE);
-      }
+      formDef = parseDocumentIntoFormDef(ENCRYPTED_FORM_DEFINITION, encryptedFormDoc);
 
       if (formDef == null) {
         throw new ODKIncompleteSubmissionData("Javarosa failed to construct Encrypted FormDef!",
@@ -432,15 +427,6 @@ public class BaseFormParserForJavaRosa {
         + xmlWithoutTimestampComment.substring(idx);
   }
 
-  private static synchronized XFormParser parseFormDefinition(String xml) throws ODKIncompleteSubmissionData {
-    try (StringReader isr = new StringReader(xml)) {
-      Document doc = XFormParser.getXMLDocument(isr);
-      return new XFormParser(doc);
-    } catch (Exception e) {
-      throw new ODKIncompleteSubmissionData(e, Reason.BAD_JR_PARSE);
-    }
-  }
-
   /**
    * Field-level encryption requires an extended Javarosa library that expose an
    * "encrypted" bind attribute that identifies the fields that are to be
@@ -457,14 +443,28 @@ public class BaseFormParserForJavaRosa {
     // return element.getBindAttributeValue(null, name);
   }
 
-  private static FormDef parseDocumentIntoFormDef(Document doc) throws ODKIncompleteSubmissionData {
+  /**
+   * Parsed form definitions are looked up in, and added to, the
+   * {@link FormDefCache}. Each call returns its own FormDef.
+   */
+  private static FormDef parseDocumentIntoFormDef(String xml, Document doc) throws ODKIncompleteSubmissionData {
+    FormDefCache formDefCache = FormDefCache.getFormDefCache();
+    String key = FormDefCache.getKey(xml);
+    FormDef formDef = formDefCache.get(key);
+    if (formDef != null) {
+      return formDef;
+    }
     try {
-      return new XFormParser(doc).parse();
+      formDef = new XFormParser(doc).parse();
     } catch (Exception e) {
       throw new ODKIncompleteSubmissionData(
           "Javarosa failed to construct a FormDef. Is this an XForm definition?", e,
           Reason.BAD_JR_PARSE);
     }
+    if (formDef != null) {
+      formDefCache.put(key, formDef);
+    }
+    return formDef;
   }
 
   private static List<Element> getBindings(Document doc) throws ODKIncompleteSubmissionData {
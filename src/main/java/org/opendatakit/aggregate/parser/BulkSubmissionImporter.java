@@ -0,0 +1,615 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.ServletContext;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
+import org.opendatakit.aggregate.task.PublisherWakeup;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.DynamicAssociationBase;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.datamodel.DynamicDocumentBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.FlatSelect;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WorkQueue;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.security.UserService;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads historical submissions (a Briefcase export, a server migration) into
+ * a form much faster than posting them one at a time to the submission
+ * servlet.
+ * <p>
+ * Each submission is parsed by the regular {@link SubmissionParser}, so the
+ * top-level, phantom, repeat and attachment rows (and their _TOP_LEVEL_AURI
+ * and _PARENT_AURI links) are built exactly as they are for a live upload.
+ * But new rows destined for the form's own tables are held back and written
+ * per table with {@link Datastore#bulkInsertEntities} once a batch of
+ * submissions has been parsed: a COPY per table on PostgreSQL, batched
+ * inserts elsewhere. Reads and writes of any other table go straight to the
+ * datastore.
+ * <p>
+ * Parsing also writes outside the form's tables: the digest of the upload,
+ * the completion watermark, references to shared and external attachment
+ * content, and image previews. When a batch cannot be written, or a
+ * submission cannot be parsed, these are undone for the submissions whose
+ * rows were dropped; a failed batch also clears the watermarks it advanced.
+ * <p>
+ * Only new submissions benefit. A submission whose instanceID is already in
+ * the database (or earlier in the same batch) forces a flush and is then
+ * handled the way the submission servlet would handle it.
+ * <p>
+ * Not thread-safe; use one importer per upload.
+ */
+public class BulkSubmissionImporter {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  // flush early when attachments make a batch unusually large
+  private static final int MAX_BUFFERED_ROWS = 20000;
+  private static final int MAX_REPORTED_FAILURES = 100;
+
+  private static final Logger logger = LoggerFactory.getLogger(BulkSubmissionImporter.class);
+
+  private final CallingContext cc;
+  private final BufferingDatastore datastore;
+  private final CallingContext bufferedCc;
+  private final int batchSize;
+
+  // the submissions parsed since the last flush
+  private final List<String> batch = new ArrayList<String>();
+  // forms with submissions completed since the last flush
+  private final Map<String, IForm> completedForms = new LinkedHashMap<String, IForm>();
+
+  private int importedCount = 0;
+  private int failedCount = 0;
+  private final List<String> failures = new ArrayList<String>();
+
+  public BulkSubmissionImporter(IForm form, CallingContext cc) {
+    this(form, DEFAULT_BATCH_SIZE, cc);
+  }
+
+  public BulkSubmissionImporter(IForm form, int batchSize, CallingContext cc) {
+    this.cc = cc;
+    this.datastore = new BufferingDatastore(cc.getDatastore(), cc.getCurrentUser());
+    this.datastore.bufferRelations(form.getBackingTableSet());
+    this.bufferedCc = new BufferingCallingContext(cc, datastore);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Parse one submission into the current batch, flushing the batch when it
+   * is full. A submission that cannot be parsed is recorded as a failure and
+   * leaves nothing behind in the batch.
+   *
+   * @param name         identifies the submission in the failure report.
+   * @param submission   the instance XML and its attachments, laid out as
+   *                     the submission servlet receives them.
+   * @param isIncomplete true if more attachments will follow in a later upload.
+   */
+  public void importSubmission(String name, MultiPartFormData submission, boolean isIncomplete) {
+    datastore.mark();
+    try {
+      SubmissionParser parser = new SubmissionParser(submission, isIncomplete, bufferedCc);
+      batch.add(name);
+      if (!parser.wasPreexistingComplete() && parser.getSubmission().isComplete()) {
+        completedForms.put(parser.getForm().getFormId(), parser.getForm());
+      }
+    } catch (Exception e) {
+      undoSideEffects(datastore.discardSinceMark());
+      recordFailure(name, e);
+      return;
+    }
+    if (batch.size() >= batchSize || datastore.getBufferedRowCount() >= MAX_BUFFERED_ROWS) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the buffered rows of the current batch. Must be called once the
+   * last submission has been passed to {@link #importSubmission}.
+   */
+  public void flush() {
+    datastore.flush();
+    ODKDatastoreException failure = datastore.takeFlushFailure();
+    if (failure == null) {
+      importedCount += batch.size();
+      for (IForm form : completedForms.values()) {
+        // publication failures should not fail the import...
+        PublisherWakeup.submissionCompleted(form, cc);
+      }
+    } else {
+      for (String name : batch) {
+        recordFailure(name, failure);
+      }
+      undoSideEffects(datastore.takeFailedRows());
+      // the watermarks were advanced past rows that were never written;
+      // fall back to querying the submission tables.
+      for (String formId : completedForms.keySet()) {
+        SubmissionWatermark.clear(formId, cc);
+      }
+    }
+    batch.clear();
+    completedForms.clear();
+  }
+
+  /**
+   * Undo the writes made outside the buffered tables while parsing
+   * submissions whose rows are being dropped: the upload digests, the
+   * previews and the references to shared or external attachment content.
+   * Best effort; a failure here is logged and does not stop the import.
+   */
+  private void undoSideEffects(List<CommonFieldsBase> rows) {
+    if (rows.isEmpty()) {
+      return;
+    }
+    Set<String> topLevelUris = new HashSet<String>();
+    for (CommonFieldsBase row : rows) {
+      if (row instanceof TopLevelDynamicBase) {
+        topLevelUris.add(row.getUri());
+      } else if (row instanceof DynamicBase) {
+        topLevelUris.add(((DynamicBase) row).getTopLevelAuri());
+      } else if (row instanceof DynamicAssociationBase) {
+        topLevelUris.add(((DynamicAssociationBase) row).getTopLevelAuri());
+      } else if (row instanceof DynamicDocumentBase) {
+        DynamicDocumentBase document = (DynamicDocumentBase) row;
+        topLevelUris.add(document.getStringField(document.topLevelAuri));
+      }
+    }
+    topLevelUris.remove(null);
+    try {
+      SubmissionDigest.deleteDigests(topLevelUris, cc);
+      ImagePreview.deletePreviews(topLevelUris, cc);
+      BinaryContentManipulator.gatherStoredContent(rows).release(cc);
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to undo the side effects of " + topLevelUris.size()
+          + " submissions that were not imported", e);
+    }
+  }
+
+  public int getImportedCount() {
+    return importedCount;
+  }
+
+  public int getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * @return a description of each failed submission (at most the first
+   *     {@value #MAX_REPORTED_FAILURES} of them).
+   */
+  public List<String> getFailures() {
+    return failures;
+  }
+
+  private void recordFailure(String name, Exception e) {
+    logger.warn("Bulk import of " + name + " failed", e);
+    ++failedCount;
+    if (failures.size() < MAX_REPORTED_FAILURES) {
+      failures.add(name + ": " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage()));
+    }
+  }
+
+  /**
+   * Datastore that holds back inserts of new rows into a given set of
+   * relations until {@link #flush()}, and delegates everything else.
+   * Buffered rows are keyed by relation and primary key, so a row written
+   * several times while it is being built is inserted once, in its final
+   * state.
+   */
+  private static final class BufferingDatastore implements Datastore {
+
+    private final Datastore ds;
+    private final User user;
+    private final Set<String> bufferedRelations = new HashSet<String>();
+    private final Map<String, Map<String, CommonFieldsBase>> buffer = new LinkedHashMap<String, Map<String, CommonFieldsBase>>();
+    private final List<CommonFieldsBase> bufferedSinceMark = new ArrayList<CommonFieldsBase>();
+    private int bufferedRowCount = 0;
+    // the first failed write since the importer last checked
+    private ODKDatastoreException flushFailure = null;
+    // the rows of the failed writes since the importer last checked
+    private final List<CommonFieldsBase> failedRows = new ArrayList<CommonFieldsBase>();
+
+    BufferingDatastore(Datastore ds, User user) {
+      this.ds = ds;
+      this.user = user;
+    }
+
+    private static String relationName(CommonFieldsBase relation) {
+      return relation.getSchemaName() + "." + relation.getTableName();
+    }
+
+    void bufferRelations(Collection<? extends CommonFieldsBase> relations) {
+      for (CommonFieldsBase relation : relations) {
+        bufferedRelations.add(relationName(relation));
+      }
+    }
+
+    int getBufferedRowCount() {
+      return bufferedRowCount;
+    }
+
+    ODKDatastoreException takeFlushFailure() {
+      ODKDatastoreException e = flushFailure;
+      flushFailure = null;
+      return e;
+    }
+
+    List<CommonFieldsBase> takeFailedRows() {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>(failedRows);
+      failedRows.clear();
+      return rows;
+    }
+
+    void mark() {
+      bufferedSinceMark.clear();
+    }
+
+    /**
+     * @return the rows that were discarded.
+     */
+    List<CommonFieldsBase> discardSinceMark() {
+      List<CommonFieldsBase> discarded = new ArrayList<CommonFieldsBase>();
+      for (CommonFieldsBase entity : bufferedSinceMark) {
+        if (unbuffer(entity, entity.getUri())) {
+          discarded.add(entity);
+        }
+      }
+      bufferedSinceMark.clear();
+      return discarded;
+    }
+
+    /**
+     * @return false if the rows could not be written.
+     */
+    boolean flush() {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>(bufferedRowCount);
+      for (Map<String, CommonFieldsBase> relationRows : buffer.values()) {
+        rows.addAll(relationRows.values());
+      }
+      buffer.clear();
+      bufferedSinceMark.clear();
+      bufferedRowCount = 0;
+      try {
+        ds.bulkInsertEntities(rows, user);
+        return true;
+      } catch (ODKDatastoreException e) {
+        if (flushFailure == null) {
+          flushFailure = e;
+        }
+        failedRows.addAll(rows);
+        return false;
+      }
+    }
+
+    private boolean isBuffered(CommonFieldsBase relation, String uri) {
+      Map<String, CommonFieldsBase> relationRows = buffer.get(relationName(relation));
+      return relationRows != null && relationRows.containsKey(uri);
+    }
+
+    /**
+     * @return true if the entity was buffered rather than written.
+     */
+    private boolean buffer(CommonFieldsBase entity) {
+      String name = relationName(entity);
+      if (!bufferedRelations.contains(name)) {
+        return false;
+      }
+      Map<String, CommonFieldsBase> relationRows = buffer.get(name);
+      if (entity.isFromDatabase() && (relationRows == null || !relationRows.containsKey(entity.getUri()))) {
+        // an update of a row that is already in the database
+        return false;
+      }
+      if (relationRows == null) {
+        relationRows = new LinkedHashMap<String, CommonFieldsBase>();
+        buffer.put(name, relationRows);
+      }
+      if (relationRows.put(entity.getUri(), entity) == null) {
+        ++bufferedRowCount;
+        bufferedSinceMark.add(entity);
+      }
+      return true;
+    }
+
+    private boolean unbuffer(CommonFieldsBase relation, String uri) {
+      Map<String, CommonFieldsBase> relationRows = buffer.get(relationName(relation));
+      if (relationRows == null || relationRows.remove(uri) == null) {
+        return false;
+      }
+      --bufferedRowCount;
+      return true;
+    }
+
+    @Override
+    public String getDefaultSchemaName() {
+      return ds.getDefaultSchemaName();
+    }
+
+    @Override
+    public int getMaxLenTableName() {
+      return ds.getMaxLenTableName();
+    }
+
+    @Override
+    public int getMaxLenColumnName() {
+      return ds.getMaxLenColumnName();
+    }
+
+    @Override
+    public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+      ds.assertRelation(relation, user);
+    }
+
+    @Override
+    public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+      ds.dropRelation(relation, user);
+    }
+
+    @Override
+    public boolean hasRelation(String schema, String tableName, User user) throws ODKDatastoreException {
+      return ds.hasRelation(schema, tableName, user);
+    }
+
+    @Override
+    public <T extends CommonFieldsBase> T createEntityUsingRelation(T relation, User user) {
+      return ds.createEntityUsingRelation(relation, user);
+    }
+
+    @Override
+    public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user) throws ODKDatastoreException {
+      if (isBuffered(relation, uri)) {
+        // e.g., the same instanceID twice in one batch; write what we have
+        // so that the row is read back in its stored form.
+        if (!flush()) {
+          throw new ODKEntityPersistException("Unable to write the current batch", flushFailure);
+        }
+      }
+      return ds.getEntity(relation, uri, user);
+    }
+
+    /**
+     * Queries are not buffered: they run against the datastore and do not
+     * see rows that are still held back. Parsing only queries the tables of
+     * a submission that is being reconstructed from the database, and
+     * {@link #getEntity} writes the batch before reading a buffered
+     * submission back.
+     */
+    @Override
+    public Query createQuery(CommonFieldsBase table, String loggingContextTag, User user) {
+      return ds.createQuery(table, loggingContextTag, user);
+    }
+
+    @Override
+    public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      if (!buffer(entity)) {
+        ds.putEntity(entity, user);
+      }
+    }
+
+    @Override
+    public void putEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      List<CommonFieldsBase> unbuffered = new ArrayList<CommonFieldsBase>();
+      for (CommonFieldsBase entity : entities) {
+        if (!buffer(entity)) {
+          unbuffered.add(entity);
+        }
+      }
+      if (!unbuffered.isEmpty()) {
+        ds.putEntities(unbuffered, user);
+      }
+    }
+
+    @Override
+    public void upsertEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      if (buffer(entity)) {
+        // as the upsert would have done...
+        entity.setDateField(entity.lastUpdateDate, new Date());
+        entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
+      } else {
+        ds.upsertEntity(entity, user);
+      }
+    }
+
+    @Override
+    public void upsertEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      for (CommonFieldsBase entity : entities) {
+        upsertEntity(entity, user);
+      }
+    }
+
+    @Override
+    public void bulkInsertEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+      ds.bulkInsertEntities(entities, user);
+    }
+
+    @Override
+    public boolean streamFlatSelect(FlatSelect select, FlatSelect.RowHandler handler, User user) throws ODKDatastoreException {
+      return ds.streamFlatSelect(select, handler, user);
+    }
+
+    @Override
+    public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
+      if (!unbuffer(key.getRelation(), key.getKey())) {
+        ds.deleteEntity(key, user);
+      }
+    }
+
+    @Override
+    public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
+      List<EntityKey> unbuffered = new ArrayList<EntityKey>();
+      for (EntityKey key : keys) {
+        if (!unbuffer(key.getRelation(), key.getKey())) {
+          unbuffered.add(key);
+        }
+      }
+      if (!unbuffered.isEmpty()) {
+        ds.deleteEntities(unbuffered, user);
+      }
+    }
+
+    @Override
+    public int deleteEntitiesWithFieldValues(CommonFieldsBase relation, DataField field, Collection<String> values, User user) throws ODKDatastoreException {
+      int count = 0;
+      Map<String, CommonFieldsBase> relationRows = buffer.get(relationName(relation));
+      if (relationRows != null) {
+        Set<String> valueSet = new HashSet<String>(values);
+        Iterator<CommonFieldsBase> it = relationRows.values().iterator();
+        while (it.hasNext()) {
+          if (valueSet.contains(it.next().getStringField(field))) {
+            it.remove();
+            --bufferedRowCount;
+            ++count;
+          }
+        }
+      }
+      return count + ds.deleteEntitiesWithFieldValues(relation, field, values, user);
+    }
+
+    @Override
+    public boolean incrementField(EntityKey key, DataField field, long delta, User user) throws ODKDatastoreException {
+      flushIfBuffered(key);
+      return ds.incrementField(key, field, delta, user);
+    }
+
+    @Override
+    public boolean deleteEntityIf(EntityKey key, DataField field, FilterOperation op, Object value, User user) throws ODKDatastoreException {
+      flushIfBuffered(key);
+      return ds.deleteEntityIf(key, field, op, value, user);
+    }
+
+    @Override
+    public boolean updateEntityIfLater(CommonFieldsBase entity, DataField field, DataField tieBreakField, User user) throws ODKDatastoreException {
+      flushIfBuffered(entity.getEntityKey());
+      return ds.updateEntityIfLater(entity, field, tieBreakField, user);
+    }
+
+    /**
+     * The conditional operations act on the stored row, so a buffered row
+     * must be written first.
+     */
+    private void flushIfBuffered(EntityKey key) throws ODKEntityPersistException {
+      if (isBuffered(key.getRelation(), key.getKey()) && !flush()) {
+        throw new ODKEntityPersistException("Unable to write the current batch", flushFailure);
+      }
+    }
+
+    @Override
+    public TaskLock createTaskLock(User user) {
+      return ds.createTaskLock(user);
+    }
+
+    @Override
+    public WorkQueue createWorkQueue(User user) {
+      return ds.createWorkQueue(user);
+    }
+  }
+
+  /**
+   * The caller's context, but writing through the buffering datastore.
+   */
+  private static final class BufferingCallingContext implements CallingContext {
+
+    private final CallingContext cc;
+    private final Datastore datastore;
+
+    BufferingCallingContext(CallingContext cc, Datastore datastore) {
+      this.cc = cc;
+      this.datastore = datastore;
+    }
+
+    @Override
+    public Object getBean(String beanName) {
+      return cc.getBean(beanName);
+    }
+
+    @Override
+    public Datastore getDatastore() {
+      return datastore;
+    }
+
+    @Override
+    public UserService getUserService() {
+      return cc.getUserService();
+    }
+
+    @Override
+    public void setAsDaemon(boolean asDaemon) {
+      cc.setAsDaemon(asDaemon);
+    }
+
+    @Override
+    public boolean getAsDeamon() {
+      return cc.getAsDeamon();
+    }
+
+    @Override
+    public User getCurrentUser() {
+      return cc.getCurrentUser();
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      return cc.getServletContext();
+    }
+
+    @Override
+    public String getWebApplicationURL() {
+      return cc.getWebApplicationURL();
+    }
+
+    @Override
+    public String getWebApplicationURL(String servletAddr) {
+      return cc.getWebApplicationURL(servletAddr);
+    }
+
+    @Override
+    public String getServerURL() {
+      return cc.getServerURL();
+    }
+
+    @Override
+    public String getSecureServerURL() {
+      return cc.getSecureServerURL();
+    }
+  }
+}
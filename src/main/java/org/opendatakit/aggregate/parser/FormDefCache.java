@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.PrototypeManager;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * LRU cache of parsed JavaRosa form definitions, so that re-uploads of a
+ * form and comparisons against the stored definition do not repeat the
+ * JavaRosa parse.
+ * <p>
+ * Definitions are keyed by the MD5 hash of the form XML without its upload
+ * timestamp comment, and are kept in their serialized form: every lookup
+ * returns a new FormDef that the caller is free to modify.
+ * <p>
+ * A cache of the default size is used unless the bean is added to
+ * odk-settings.xml; a maxSize of 0 disables it.
+ */
+public class FormDefCache implements InitializingBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(FormDefCache.class);
+
+  private static FormDefCache classInstance = null;
+
+  private int maxSize = 16;
+
+  private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * @return the configured cache, or one of the default size if none is configured.
+   */
+  public static synchronized FormDefCache getFormDefCache() {
+    if (classInstance == null) {
+      classInstance = new FormDefCache();
+    }
+    return classInstance;
+  }
+
+  private static synchronized void setFormDefCache(FormDefCache formDefCache) {
+    classInstance = formDefCache;
+  }
+
+  /**
+   * @param xml form XML, with or without its upload timestamp comment.
+   * @return the key of the form's entry.
+   */
+  public static String getKey(String xml) {
+    return CommonFieldsBase.newMD5HashUri(BaseFormParserForJavaRosa.xmlWithoutTimestampComment(xml));
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (maxSize < 0)
+      throw new IllegalStateException("maxSize must not be negative");
+    setFormDefCache(this);
+  }
+
+  /**
+   * @return a copy of the cached definition, or null if there is none.
+   */
+  public FormDef get(String key) {
+    byte[] serialized;
+    synchronized (entries) {
+      serialized = entries.get(key);
+    }
+    if (serialized == null) {
+      return null;
+    }
+    try {
+      FormDef formDef = new FormDef();
+      formDef.readExternal(new DataInputStream(new ByteArrayInputStream(serialized)),
+          PrototypeManager.getDefault());
+      return formDef;
+    } catch (Exception e) {
+      logger.warn("Unable to restore cached form definition " + key + ": " + e.toString());
+      synchronized (entries) {
+        entries.remove(key);
+      }
+      return null;
+    }
+  }
+
+  public void put(String key, FormDef formDef) {
+    if (maxSize == 0) {
+      return;
+    }
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(serialized)) {
+      formDef.writeExternal(out);
+    } catch (Exception e) {
+      logger.warn("Unable to cache form definition " + key + ": " + e.toString());
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key, serialized.toByteArray());
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
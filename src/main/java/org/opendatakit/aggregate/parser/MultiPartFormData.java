@@ -52,12 +52,15 @@ public class MultiPartFormData {
 
   private final Map<String, MultiPartFormItem> fileNameWithoutExtensionNameMap;
 
+  private final List<MultiPartFormItem> formItems;
+
   public MultiPartFormData(HttpServletRequest req) throws FileUploadException, IOException {
 
     simpleFieldNameMap = new HashMap<String, String>();
     fieldNameMap = new HashMap<String, MultiPartFormItem>();
     fileNameMap = new HashMap<String, MultiPartFormItem>();
     fileNameWithoutExtensionNameMap = new HashMap<String, MultiPartFormItem>();
+    formItems = new ArrayList<MultiPartFormItem>();
 
     ServletFileUpload upload = new ServletFileUpload(
         new DiskFileItemFactory());
@@ -68,8 +71,6 @@ public class MultiPartFormData {
       upload.setFileSizeMax(ParserConsts.FILE_SIZE_MAX);
     }
 
-    List<MultiPartFormItem> fileNameList = new ArrayList<MultiPartFormItem>();
-
     FileItemIterator items = upload.getItemIterator(req);
     while (items.hasNext()) {
       FileItemStream item = items.next();
@@ -88,17 +89,38 @@ public class MultiPartFormData {
       if (item.isFormField()) {
         simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
       } else {
-        MultiPartFormItem data = new MultiPartFormItem(item.getFieldName(),
-            item.getName(), item.getContentType(), byteStream);
+        formItems.add(new MultiPartFormItem(item.getFieldName(),
+            item.getName(), item.getContentType(), byteStream));
+      }
+    }
 
-        String fieldName = item.getFieldName();
-        if (fieldName != null) {
-          fieldNameMap.put(fieldName, data);
-        }
-        String fileName = item.getName();
-        if (fileName != null && fileName.length() != 0) {
-          fileNameList.add(data);
-        }
+    indexFormItems();
+  }
+
+  /**
+   * Reconstructs the form data from the simple fields and items of an
+   * earlier request (e.g., one that was spooled to disk).
+   */
+  public MultiPartFormData(Map<String, String> simpleFields, List<MultiPartFormItem> items) {
+    simpleFieldNameMap = new HashMap<String, String>(simpleFields);
+    fieldNameMap = new HashMap<String, MultiPartFormItem>();
+    fileNameMap = new HashMap<String, MultiPartFormItem>();
+    fileNameWithoutExtensionNameMap = new HashMap<String, MultiPartFormItem>();
+    formItems = new ArrayList<MultiPartFormItem>(items);
+
+    indexFormItems();
+  }
+
+  private void indexFormItems() {
+    List<MultiPartFormItem> fileNameList = new ArrayList<MultiPartFormItem>();
+    for (MultiPartFormItem data : formItems) {
+      String fieldName = data.getName();
+      if (fieldName != null) {
+        fieldNameMap.put(fieldName, data);
+      }
+      String fileName = data.getFilename();
+      if (fileName != null && fileName.length() != 0) {
+        fileNameList.add(data);
       }
     }
 
@@ -181,4 +203,12 @@ public class MultiPartFormData {
     return Collections.unmodifiableSet(fileNameMap.entrySet());
   }
 
+  public Map<String, String> getSimpleFormFields() {
+    return Collections.unmodifiableMap(simpleFieldNameMap);
+  }
+
+  public List<MultiPartFormItem> getFormItems() {
+    return Collections.unmodifiableList(formItems);
+  }
+
 }
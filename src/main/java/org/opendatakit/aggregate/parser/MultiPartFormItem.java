@@ -39,6 +39,10 @@ public final class MultiPartFormItem {
     this.stream = byteStream;
   }
 
+  public String getName() {
+    return name;
+  }
+
   public String getFilename() {
     return filename;
   }
@@ -19,17 +19,24 @@
 package org.opendatakit.aggregate.parser;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.codec.binary.Base64;
+import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
@@ -39,15 +46,21 @@ import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.exception.ODKFormSubmissionsDisabledException;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
+import org.opendatakit.aggregate.exception.ODKOverloadedException;
 import org.opendatakit.aggregate.exception.ODKParseException;
 import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.FormImagePolicy;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
 import org.opendatakit.aggregate.submission.SubmissionField;
 import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.RepeatSubmissionType;
 import org.opendatakit.aggregate.submission.type.jr.JRTemporal;
+import org.opendatakit.aggregate.task.ImageDownscaler;
+import org.opendatakit.aggregate.util.ImageUtil;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -83,12 +96,22 @@ public class SubmissionParser {
   private boolean preExistingComplete = false;
   private MultiPartFormData submissionFormItems;
   private EntityKey topLevelTableKey = null;
+  private FormImagePolicy imagePolicy = null;
+  private boolean imagePolicyLoaded = false;
 
-  public SubmissionParser(InputStream inputStreamXML, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+  public SubmissionParser(InputStream inputStreamXML, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException, ODKOverloadedException {
     constructorHelper(inputStreamXML, false, cc);
   }
 
-  public SubmissionParser(MultiPartFormData submissionFormParser, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+  public SubmissionParser(MultiPartFormData submissionFormParser, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException, ODKOverloadedException {
+    this(submissionFormParser, null, isIncomplete, cc);
+  }
+
+  /**
+   * @param uploadedInstance the instance of the upload, if the caller has
+   *                         already parsed it; null otherwise.
+   */
+  public SubmissionParser(MultiPartFormData submissionFormParser, UploadedInstance uploadedInstance, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException, ODKOverloadedException {
     if (submissionFormParser == null) {
       // TODO: review best error handling strategy
       throw new IOException("DID NOT GET A MULTIPARTFORMPARSER");
@@ -100,6 +123,10 @@ public class SubmissionParser {
       // TODO: review best error handling strategy
       throw new IOException("DID NOT GET A SUBMISSION");
     }
+    if (uploadedInstance != null) {
+      constructorHelper(uploadedInstance.xmlBytes, uploadedInstance.root, isIncomplete, cc);
+      return;
+    }
 
     InputStream inputStreamXML = new ByteArrayInputStream(submission.getStream().toByteArray());
     try {
@@ -121,7 +148,118 @@ public class SubmissionParser {
     return form;
   }
 
-  private String getOpenRosaInstanceId() {
+  /**
+   * The instance document of a multipart upload, parsed once so that the
+   * servlet can check its form and spool it before it is stored.
+   */
+  public static final class UploadedInstance {
+    private final byte[] xmlBytes;
+    private final Element root;
+
+    private UploadedInstance(byte[] xmlBytes, Element root) {
+      this.xmlBytes = xmlBytes;
+      this.root = root;
+    }
+
+    /**
+     * @return the form id, without checking that the form exists.
+     */
+    public String getFormId() throws ODKIncompleteSubmissionData {
+      return FormFactory.extractWellFormedFormId(extractFormId(root));
+    }
+
+    /**
+     * @return the instance ID, or null if the instance does not carry one.
+     */
+    public String getInstanceId() {
+      String instanceId = getOpenRosaInstanceId(root);
+      if (instanceId == null) {
+        instanceId = root.getAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
+      }
+      return (instanceId == null || instanceId.length() == 0) ? null : instanceId;
+    }
+  }
+
+  /**
+   * @param submissionFormItems
+   * @return the parsed instance of the multipart upload, or null if the
+   *     upload does not contain a submission.
+   */
+  public static UploadedInstance parseUploadedInstance(MultiPartFormData submissionFormItems) throws IOException {
+    MultiPartFormItem submission = submissionFormItems
+        .getFormDataByFieldName(ServletConsts.XML_SUBMISSION_FILE);
+    if (submission == null) {
+      return null;
+    }
+    byte[] xmlBytes = submission.getStream().toByteArray();
+    return new UploadedInstance(xmlBytes, parseInstance(new ByteArrayInputStream(xmlBytes)));
+  }
+
+  /**
+   * Checks, without touching the submission tables, that the instance names
+   * a form that accepts submissions and carries an instance ID, so that the
+   * upload can be acknowledged before it is parsed into the datastore.
+   *
+   * @param uploadedInstance
+   * @param cc
+   * @return the instance ID, or null if the upload may not be spooled for
+   *     asynchronous ingestion.
+   */
+  public static String getSpoolableInstanceId(UploadedInstance uploadedInstance, CallingContext cc) throws ODKFormNotFoundException, ODKIncompleteSubmissionData, ODKDatastoreException, ODKFormSubmissionsDisabledException {
+    retrieveSubmissionForm(extractFormId(uploadedInstance.root), cc);
+    // without an instance ID, a retried upload could not be matched up
+    return uploadedInstance.getInstanceId();
+  }
+
+  private static Element parseInstance(InputStream inputStreamXML) throws IOException {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      factory.setIgnoringComments(true);
+      factory.setCoalescing(true);
+      DocumentBuilder builder = factory.newDocumentBuilder();
+      Document doc = builder.parse(inputStreamXML);
+      // if debugging: printNode(doc.getDocumentElement());
+      return doc.getDocumentElement();
+    } catch (ParserConfigurationException e) {
+      throw new IOException(e);
+    } catch (SAXException e) {
+      e.printStackTrace();
+      throw new IOException(e);
+    }
+  }
+
+  private static String extractFormId(Element root) throws ODKIncompleteSubmissionData {
+    // check for odk id
+    String formId = root.getAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
+
+    // if odk id is not present use namespace
+    if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
+      String schema = root.getAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
+
+      // TODO: move this into FormDefinition?
+      if (schema == null) {
+        throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
+      }
+
+      formId = schema;
+    }
+
+    // need to escape all slashes... for xpath processing...
+    return formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+  }
+
+  private static IForm retrieveSubmissionForm(String formId, CallingContext cc) throws ODKFormNotFoundException, ODKDatastoreException, ODKFormSubmissionsDisabledException {
+    String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
+
+    IForm form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
+    if (!form.getSubmissionEnabled()) {
+      throw new ODKFormSubmissionsDisabledException();
+    }
+    return form;
+  }
+
+  private static String getOpenRosaInstanceId(Element root) {
     Node n = findMetaTag(root);
     if (n != null) {
       NodeList nl = n.getChildNodes();
@@ -157,7 +295,7 @@ public class SubmissionParser {
     return null;
   }
 
-  private Node findMetaTag(Node parent) {
+  private static Node findMetaTag(Node parent) {
     if (parent.getNodeType() != Node.ELEMENT_NODE)
       return null;
     String parentName = parent.getLocalName();
@@ -182,48 +320,55 @@ public class SubmissionParser {
     return null;
   }
 
-  private void constructorHelper(InputStream inputStreamXML, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+  /**
+   * Computes a SHA-256 digest over the instance XML and the attachments of
+   * this upload, used to recognize identical resubmissions.
+   */
+  private String computeUploadDigest(byte[] xmlBytes) {
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
-      factory.setIgnoringComments(true);
-      factory.setCoalescing(true);
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(inputStreamXML);
-      root = doc.getDocumentElement();
-      // if debugging: printNode(root);
-
-      // check for odk id
-      formId = root.getAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
-
-      // if odk id is not present use namespace
-      if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
-        String schema = root.getAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
-
-        // TODO: move this into FormDefinition?
-        if (schema == null) {
-          throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(xmlBytes);
+      if (submissionFormItems != null) {
+        Map<String, MultiPartFormItem> attachments = new TreeMap<String, MultiPartFormItem>();
+        for (Map.Entry<String, MultiPartFormItem> e : submissionFormItems.getFileNameEntrySet()) {
+          attachments.put(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, MultiPartFormItem> e : attachments.entrySet()) {
+          byte[] content = e.getValue().getStream().toByteArray();
+          md.update(e.getKey().getBytes(HtmlConsts.UTF8_ENCODE));
+          md.update((byte) 0);
+          md.update(Long.toString(content.length).getBytes(HtmlConsts.UTF8_ENCODE));
+          md.update((byte) 0);
+          md.update(content);
         }
-
-        formId = schema;
       }
-
-    } catch (ParserConfigurationException e) {
-      throw new IOException(e);
-    } catch (SAXException e) {
-      e.printStackTrace();
-      throw new IOException(e);
+      String sha = new BigInteger(1, md.digest()).toString(16);
+      while (sha.length() < 64)
+        sha = "0" + sha;
+      return "sha256:" + sha;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing SHA-256 hash", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("Unexpected problem computing SHA-256 hash", e);
     }
+  }
 
-    // need to escape all slashes... for xpath processing...
-    formId = formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
-
-    String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
-
-    form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
-    if (!form.getSubmissionEnabled()) {
-      throw new ODKFormSubmissionsDisabledException();
+  private void constructorHelper(InputStream inputStreamXML, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException, ODKOverloadedException {
+    // retain the raw instance XML so that its digest can be computed.
+    ByteArrayOutputStream xmlBuffer = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = inputStreamXML.read(buffer)) != -1) {
+      xmlBuffer.write(buffer, 0, len);
     }
+    byte[] xmlBytes = xmlBuffer.toByteArray();
+    constructorHelper(xmlBytes, parseInstance(new ByteArrayInputStream(xmlBytes)), isIncomplete, cc);
+  }
+
+  private void constructorHelper(byte[] xmlBytes, Element root, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException, ODKOverloadedException {
+    this.root = root;
+    formId = extractFormId(root);
+    form = retrieveSubmissionForm(formId, cc);
 
     String modelVersionString = root.getAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
     String uiVersionString = root.getAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
@@ -236,7 +381,7 @@ public class SubmissionParser {
       uiVersion = Long.valueOf(uiVersionString);
     }
 
-    String instanceId = getOpenRosaInstanceId();
+    String instanceId = getOpenRosaInstanceId(root);
     if (instanceId == null) {
       instanceId = root.getAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
       if (instanceId == null || instanceId.length() == 0) {
@@ -284,7 +429,7 @@ public class SubmissionParser {
               (e instanceof ODKEnumeratedElementException)) {
             // this is a malformed submission...
             // try to clean this up...
-            DeleteHelper.deleteDamagedSubmission(fi, form.getAllBackingObjects(), cc);
+            DeleteHelper.deleteDamagedSubmission(fi, form.getBackingTableSet(), cc);
           }
           throw e;
         }
@@ -296,6 +441,14 @@ public class SubmissionParser {
 
       topLevelTableKey = submission.getKey();
 
+      // fast path: an identical resubmission of a complete submission
+      // (typically a client retrying after a lost response) changes nothing.
+      String uploadDigest = computeUploadDigest(xmlBytes);
+      if (preExistingComplete &&
+          SubmissionDigest.matches(submission.getKey().getKey(), uploadDigest, cc)) {
+        return;
+      }
+
       Map<String, Integer> repeatGroupIndices = new HashMap<String, Integer>();
       FormElementModel formRoot = form.getTopLevelGroupElement();
       // if the submission is pre-existing in the datastore, ONLY update binaries
@@ -319,12 +472,33 @@ public class SubmissionParser {
         }
         throw new ODKDatastoreException("Unable to persist data", e);
       }
+      if (uploadAllBinaries) {
+        try {
+          SubmissionDigest.record(submission.getKey().getKey(), uploadDigest, cc);
+        } catch (ODKDatastoreException e) {
+          // only disables the fast path for this submission
+          Logger logger = LoggerFactory.getLogger(SubmissionParser.class);
+          logger.warn("Unable to record upload digest for " + submission.getKey().getKey(), e);
+        }
+      }
+      if (uploadAllBinaries && !preExistingComplete) {
+        // record the newly completed submission for the Watchdog
+        try {
+          SubmissionWatermark.advance(form.getFormId(), submission.getKey().getKey(),
+              markedAsCompleteDate, cc);
+        } catch (ODKDatastoreException e) {
+          Logger logger = LoggerFactory.getLogger(SubmissionParser.class);
+          logger.error("Unable to advance submission watermark for " + form.getFormId(), e);
+          // fall back to querying the submission table
+          SubmissionWatermark.clear(form.getFormId(), cc);
+        }
+      }
     } finally {
       modificationLock.release();
     }
   }
 
-  private boolean processSubmissionElement(FormElementModel node, Element currentSubmissionElement, SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting, CallingContext cc) throws ODKParseException, ODKConversionException, ODKDatastoreException {
+  private boolean processSubmissionElement(FormElementModel node, Element currentSubmissionElement, SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting, CallingContext cc) throws ODKParseException, ODKConversionException, ODKDatastoreException, ODKOverloadedException {
 
     if (node == null || currentSubmissionElement == null) {
       return true;
@@ -456,7 +630,7 @@ public class SubmissionParser {
     return complete;
   }
 
-  private boolean processBinarySubmission(FormElementModel m, SubmissionField<?> submissionElement, String value, CallingContext cc) throws ODKDatastoreException {
+  private boolean processBinarySubmission(FormElementModel m, SubmissionField<?> submissionElement, String value, CallingContext cc) throws ODKDatastoreException, ODKOverloadedException {
 
     // value will either be a byte array (if not a multipart/form-data
     // submission)
@@ -472,6 +646,7 @@ public class SubmissionParser {
       byte[] receivedBytes = Base64.decodeBase64(value.getBytes());
       // TODO: problem since we don't know how to tell what type of
       // binary without content type, defaulting to JPG
+      receivedBytes = applyImagePolicy(receivedBytes, HtmlConsts.RESP_TYPE_IMAGE_JPEG, cc);
       submissionElement.setValueFromByteArray(receivedBytes, HtmlConsts.RESP_TYPE_IMAGE_JPEG,
           null, false, cc);
     } else {
@@ -489,7 +664,8 @@ public class SubmissionParser {
         if (fileName == null || fileName.length() == 0) {
           fileName = null;
         }
-        byte[] byteArray = binaryData.getStream().toByteArray();
+        byte[] byteArray = applyImagePolicy(binaryData.getStream().toByteArray(),
+            binaryData.getContentType(), cc);
         submissionElement.setValueFromByteArray(byteArray, binaryData.getContentType(),
             fileName, false, cc);
       } else {
@@ -505,6 +681,21 @@ public class SubmissionParser {
     return true;
   }
 
+  private byte[] applyImagePolicy(byte[] content, String contentType, CallingContext cc) throws ODKDatastoreException, ODKOverloadedException {
+    if (!ImageDownscaler.isDownscalable(contentType)) {
+      return content;
+    }
+    if (!imagePolicyLoaded) {
+      imagePolicy = FormImagePolicy.getPolicy(form.getFormId(), cc);
+      imagePolicyLoaded = true;
+    }
+    if (imagePolicy == null) {
+      return content;
+    }
+    ImageUtil imageUtil = (ImageUtil) cc.getBean(BeanDefs.IMAGE_UTIL);
+    return ImageDownscaler.apply(content, contentType, imagePolicy, imageUtil);
+  }
+
   private List<Element> getElements(Element rootNode) {
     List<Element> elements = new ArrayList<Element>();
 
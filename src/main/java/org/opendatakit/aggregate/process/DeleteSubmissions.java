@@ -17,17 +17,22 @@
 package org.opendatakit.aggregate.process;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
+import org.opendatakit.aggregate.submission.ImagePreview;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.DeleteHelper;
-import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
@@ -50,6 +55,10 @@ public class DeleteSubmissions {
 
   public void deleteSubmissions(CallingContext cc) throws ODKOverQuotaException, ODKFormNotFoundException, ODKDatastoreException {
     List<EntityKey> deleteKeys = new ArrayList<EntityKey>();
+    Set<String> formIds = new HashSet<String>();
+    List<String> topLevelAuris = new ArrayList<String>();
+    List<BinaryContentManipulator.StoredContent> storedContents =
+        new ArrayList<BinaryContentManipulator.StoredContent>();
 
     for (SubmissionKey submissionKey : submissionKeys) {
       List<SubmissionKeyPart> parts = submissionKey.splitSubmissionKey();
@@ -69,18 +78,31 @@ public class DeleteSubmissions {
       if (tle != null) {
         // we have the top-level entity. Construct the submission.
         IForm form = FormFactory.retrieveFormByFormId(parts.get(0).getElementName(), cc);
+        formIds.add(form.getFormId());
         try {
           Submission sub = new Submission(tle, form, cc);
           sub.recursivelyAddEntityKeysForDeletion(deleteKeys, cc);
+          deleteKeys.add(SubmissionDigest.getEntityKey(sub.getKey().getKey(), cc));
           deleteKeys.add(sub.getKey());
+          topLevelAuris.add(tle.getUri());
+          // the attachment rows are deleted with the others, but content in
+          // the shared or external store is released once they are gone.
+          storedContents.add(BinaryContentManipulator.gatherStoredContent(
+              form.getBackingTableSet(), Collections.singletonList(tle.getUri()), cc));
         } catch (ODKEntityNotFoundException e) {
           // OK. We have a malformed or incompletely persisted Submission
           // Attempt to delete whatever portion is present.
-          Set<DynamicCommonFieldsBase> backingObjects = form.getAllBackingObjects();
-          DeleteHelper.deleteDamagedSubmission(tle, backingObjects, cc);
+          DeleteHelper.deleteDamagedSubmission(tle, form.getBackingTableSet(), cc);
         }
       }
     }
     DeleteHelper.deleteEntities(deleteKeys, cc);
+    for (BinaryContentManipulator.StoredContent storedContent : storedContents) {
+      storedContent.release(cc);
+    }
+    ImagePreview.deletePreviews(topLevelAuris, cc);
+    for (String formId : formIds) {
+      SubmissionWatermark.clear(formId, cc);
+    }
   }
 }
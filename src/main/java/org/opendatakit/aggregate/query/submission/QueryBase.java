@@ -17,10 +17,13 @@ package org.opendatakit.aggregate.query.submission;
 
 import java.util.List;
 import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
@@ -70,7 +73,7 @@ public abstract class QueryBase {
       }
       query.addFilter(metaField, op, value);
     } else {
-      query.addFilter(attribute.getFormDataModel().getBackingKey(), op, value);
+      addFilter(attribute.getFormDataModel(), op, value);
     }
   }
 
@@ -80,11 +83,66 @@ public abstract class QueryBase {
 
     for (FormDataModel m : children) {
       if (m.getOrdinalNumber().equals(Long.valueOf(ordinal))) {
-        query.addFilter(m.getBackingKey(), op, value);
+        addFilter(m, op, value);
       }
     }
   }
 
+  /**
+   * Fields stored in the top-level table are filtered directly. Fields stored
+   * elsewhere (phantom split tables, repeat groups, select choices) are
+   * filtered with a semi-join on the _TOP_LEVEL_AURI of the owning table, so
+   * a submission matches if any of its rows in that table does. A phantom
+   * table holds one row per submission, so that is the same as filtering the
+   * column directly; repeat and select tables may hold any number of rows.
+   * There, "<> x" and "IS NULL" are taken to mean that no row is "= x" or
+   * "IS NOT NULL", which also matches submissions without any rows, and are
+   * filtered with an anti-join.
+   */
+  private void addFilter(FormDataModel m, FilterOperation op, Object value) {
+    CommonFieldsBase owner = m.getBackingObjectPrototype();
+    CommonFieldsBase topLevel = form.getTopLevelGroupElement().getFormDataModel().getBackingObjectPrototype();
+    if (owner == null || (owner.getSchemaName().equals(topLevel.getSchemaName())
+        && owner.getTableName().equals(topLevel.getTableName()))) {
+      query.addFilter(m.getBackingKey(), op, value);
+    } else if (owner instanceof DynamicBase) {
+      DataField topLevelAuri = ((DynamicBase) owner).topLevelAuri;
+      if (isNegation(op, value) && isMultiValued(m)) {
+        FilterOperation complement = (op == FilterOperation.EQUAL) ? FilterOperation.NOT_EQUAL : FilterOperation.EQUAL;
+        query.addAntiJoinFilter(owner, topLevelAuri, m.getBackingKey(), complement, value);
+      } else {
+        query.addSemiJoinFilter(owner, topLevelAuri, m.getBackingKey(), op, value);
+      }
+    } else {
+      throw new IllegalStateException("unable to filter on " + m.getElementName()
+          + " stored in " + owner.getTableName());
+    }
+  }
+
+  /**
+   * "<> x" and "IS NULL"; "IS NOT NULL" (NOT_EQUAL null) is not a negation.
+   */
+  private static boolean isNegation(FilterOperation op, Object value) {
+    return (op == FilterOperation.NOT_EQUAL && value != null)
+        || (op == FilterOperation.EQUAL && value == null);
+  }
+
+  /**
+   * Whether the element is stored in a select-choice table or within a repeat
+   * group, i.e. in a table that may hold zero or several rows per submission.
+   */
+  private static boolean isMultiValued(FormDataModel m) {
+    if (m.getElementType() == ElementType.SELECT1 || m.getElementType() == ElementType.SELECTN) {
+      return true;
+    }
+    for (FormDataModel p = m; p != null; p = p.getParent()) {
+      if (p.getElementType() == ElementType.REPEAT) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public abstract List<Submission> getResultSubmissions(CallingContext cc) throws ODKDatastoreException;
 
   public final IForm getForm() {
@@ -110,6 +110,20 @@ public class QueryByDateRange extends QueryBase {
     return retrievedSubmissions;
   }
 
+  /**
+   * @return the top-level rows of the submissions in the range, without
+   *     reconstructing the submissions themselves.
+   */
+  public List<TopLevelDynamicBase> getResultEntities() throws ODKDatastoreException {
+    QueryResult result = query.executeQuery(startCursor, fetchLimit);
+    resumeCursor = result.getResumeCursor();
+    List<TopLevelDynamicBase> entities = new ArrayList<TopLevelDynamicBase>();
+    for (CommonFieldsBase subEntity : result.getResultList()) {
+      entities.add((TopLevelDynamicBase) subEntity);
+    }
+    return entities;
+  }
+
   public QueryResumePoint getResumeCursor() {
     return resumeCursor;
   }
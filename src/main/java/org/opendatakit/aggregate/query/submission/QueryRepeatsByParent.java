@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.query.submission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.opendatakit.aggregate.client.submission.SubmissionUI;
+import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
+import org.opendatakit.aggregate.datamodel.FormElementKey;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.FormElementModel.ElementType;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.format.element.ElementFormatter;
+import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.submission.SubmissionSet;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+
+/**
+ * Fetches one page of the instances of a repeat group, in ordinal order,
+ * using a (_PARENT_AURI, _ORDINAL_NUMBER, _URI) cursor. Unlike resolving the
+ * repeat through a {@link org.opendatakit.aggregate.submission.Submission},
+ * neither the other repeats of the submission nor the instances outside the
+ * page are fetched.
+ * <p>
+ * The submission key names the repeat group under a chain of enclosing
+ * groups. Each enclosing repeat instance is looked up by its parent and
+ * ordinal number.
+ */
+public class QueryRepeatsByParent {
+
+  private final IForm form;
+  private final FormElementModel repeatGroup;
+  private final SubmissionSet enclosingSet;
+  private final Query query;
+  private final QueryResumePoint cursor;
+  private final int fetchLimit;
+
+  public QueryRepeatsByParent(IForm form, List<SubmissionKeyPart> parts, UIQueryResumePoint uiCursor, int fetchLimit, CallingContext cc) throws ODKDatastoreException {
+    this.form = form;
+    this.fetchLimit = fetchLimit;
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    if (parts.size() < 3 || parts.get(1).getAuri() == null) {
+      throw new IllegalArgumentException("submission key does not identify a repeat group");
+    }
+
+    FormElementModel group = form.getTopLevelGroupElement();
+    TopLevelDynamicBase tlg = (TopLevelDynamicBase) group.getFormDataModel().getBackingObjectPrototype();
+    SubmissionSet set = SubmissionSet.createEnclosingSet(null,
+        ds.getEntity(tlg, parts.get(1).getAuri(), user), group, form);
+
+    StringBuilder elementKey = new StringBuilder();
+    elementKey.append(form.getFormId());
+    elementKey.append(BasicConsts.FORWARDSLASH);
+    elementKey.append(parts.get(1).getElementName());
+    for (int i = 2; ; ++i) {
+      SubmissionKeyPart p = parts.get(i);
+      elementKey.append(BasicConsts.FORWARDSLASH);
+      elementKey.append(p.getElementName());
+      group = FormElementModel.retrieveFormElementModel(form, new FormElementKey(elementKey.toString()));
+      if (group.getElementType() != ElementType.REPEAT) {
+        throw new IllegalArgumentException("submission key element is not a repeat group: "
+            + p.getElementName());
+      }
+      if (i == parts.size() - 1) {
+        break;
+      }
+      if (p.getOrdinalNumber() == null) {
+        throw new IllegalArgumentException("no ordinal supplied in submission key");
+      }
+      set = SubmissionSet.createEnclosingSet(set,
+          getRepeatInstance(group, set.getKey().getKey(), p.getOrdinalNumber(), cc), group, form);
+    }
+    this.repeatGroup = group;
+    this.enclosingSet = set;
+
+    boolean isForwardCursor = (uiCursor == null) || uiCursor.getIsForwardCursor();
+    this.cursor = (uiCursor == null) ? null : QueryResumePoint.transform(uiCursor);
+
+    DynamicBase relation = (DynamicBase) repeatGroup.getFormDataModel().getBackingObjectPrototype();
+    query = ds.createQuery(relation, "QueryRepeatsByParent.constructor", user);
+    query.addFilter(relation.parentAuri, FilterOperation.EQUAL, enclosingSet.getKey().getKey());
+    Direction direction = isForwardCursor ? Direction.ASCENDING : Direction.DESCENDING;
+    query.addSort(relation.ordinalNumber, direction);
+    // _URI breaks ties between the rows of a duplicated instance, so the
+    // cursor resumes at the row it left off at.
+    query.addSort(relation.primaryKey, direction);
+  }
+
+  /**
+   * @return the most recent row of the given instance of the repeat group.
+   */
+  private static DynamicBase getRepeatInstance(FormElementModel repeat, String uriParent, Long ordinal, CallingContext cc) throws ODKDatastoreException {
+    DynamicBase relation = (DynamicBase) repeat.getFormDataModel().getBackingObjectPrototype();
+    Query q = cc.getDatastore().createQuery(relation, "QueryRepeatsByParent.getRepeatInstance", cc.getCurrentUser());
+    q.addFilter(relation.parentAuri, FilterOperation.EQUAL, uriParent);
+    q.addFilter(relation.ordinalNumber, FilterOperation.EQUAL, ordinal);
+    DynamicBase latest = null;
+    for (CommonFieldsBase cb : q.executeQuery()) {
+      if (latest == null || cb.getCreationDate().compareTo(latest.getCreationDate()) > 0) {
+        latest = (DynamicBase) cb;
+      }
+    }
+    if (latest == null) {
+      throw new ODKEntityNotFoundException("no instance " + ordinal + " of repeat group "
+          + repeat.getElementName());
+    }
+    return latest;
+  }
+
+  public FormElementModel getRepeatGroup() {
+    return repeatGroup;
+  }
+
+  public void populateRepeats(SubmissionUISummary summary, List<FormElementModel> filteredElements, ElementFormatter elemFormatter, CallingContext cc) throws ODKDatastoreException {
+
+    QueryResult results = query.executeQuery(cursor, fetchLimit);
+
+    QueryResumePoint startCursor = results.getStartCursor();
+    QueryResumePoint resumeCursor = results.getResumeCursor();
+    QueryResumePoint backwardCursor = results.getBackwardCursor();
+
+    // as in QueryByUIFilterGroup, paging backward inverts the sense of the
+    // query results w.r.t. the UI.
+    boolean isForwardCursor = (startCursor == null) || startCursor.isForwardCursor();
+    summary.setStartCursor((startCursor == null) ? null : startCursor.transform());
+    if (isForwardCursor) {
+      summary.setHasPriorResults(results.hasPriorResults());
+      summary.setHasMoreResults(results.hasMoreResults());
+      summary.setResumeCursor((resumeCursor == null) ? null : resumeCursor.transform());
+      summary.setBackwardCursor((backwardCursor == null) ? null : backwardCursor.transform());
+    } else {
+      summary.setHasPriorResults(results.hasMoreResults());
+      summary.setHasMoreResults(results.hasPriorResults());
+      summary.setResumeCursor((backwardCursor == null) ? null : backwardCursor.transform());
+      summary.setBackwardCursor((resumeCursor == null) ? null : resumeCursor.transform());
+    }
+
+    // the rows of a duplicated instance may straddle the page boundary.
+    // Those at the start of the page belong to the instance shown on the
+    // adjacent page; the instance at the end of the page is resolved
+    // across all of its rows.
+    Long cursorOrdinal = (cursor == null || cursor.getValue() == null) ? null
+        : Long.valueOf(cursor.getValue());
+    List<DynamicBase> rows = latestInstances(results.getResultList(), cursorOrdinal);
+    if (results.hasMoreResults() && !rows.isEmpty()) {
+      int last = rows.size() - 1;
+      rows.set(last, getRepeatInstance(repeatGroup, enclosingSet.getKey().getKey(),
+          rows.get(last).getOrdinalNumber(), cc));
+    }
+
+    List<SubmissionUI> repeatList = new ArrayList<SubmissionUI>();
+    for (DynamicBase row : rows) {
+      SubmissionSet subSet = new SubmissionSet(enclosingSet, row, repeatGroup, form, cc);
+      Row formatted = subSet.getFormattedValuesAsRow(filteredElements, elemFormatter, false, cc);
+      repeatList.add(new SubmissionUI(formatted.getFormattedValues(), null));
+    }
+    if (!isForwardCursor) {
+      // query has the results in the reverse order.
+      Collections.reverse(repeatList);
+    }
+    summary.getSubmissions().addAll(repeatList);
+  }
+
+  /**
+   * Keeps the most recent row of any duplicated instance, as
+   * RepeatSubmissionType does, and drops the rows of the instance at the
+   * cursor.
+   *
+   * @param results       rows sorted by ordinal number, then _URI
+   * @param cursorOrdinal ordinal number of the row the cursor resumes after,
+   *                      or null on the first page
+   */
+  static List<DynamicBase> latestInstances(List<? extends CommonFieldsBase> results, Long cursorOrdinal) {
+    List<DynamicBase> rows = new ArrayList<DynamicBase>();
+    for (CommonFieldsBase cb : results) {
+      DynamicBase row = (DynamicBase) cb;
+      if (row.getOrdinalNumber().equals(cursorOrdinal)) {
+        continue;
+      }
+      if (!rows.isEmpty()) {
+        DynamicBase prior = rows.get(rows.size() - 1);
+        if (prior.getOrdinalNumber().equals(row.getOrdinalNumber())) {
+          if (row.getCreationDate().compareTo(prior.getCreationDate()) > 0) {
+            rows.set(rows.size() - 1, row);
+          }
+          continue;
+        }
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+}
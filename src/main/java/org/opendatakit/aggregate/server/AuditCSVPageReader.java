@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.opendatakit.aggregate.client.submission.AuditCSVPage;
+import org.opendatakit.aggregate.rest.RFC4180CsvReader;
+
+/**
+ * Reads a window of the rows of an audit CSV attachment.
+ * <p>
+ * Counting the rows takes a pass over the whole file, so the count is only
+ * taken for the first page of a file. Callers hand it back with each later
+ * request, and reading then stops at the end of the requested window.
+ */
+final class AuditCSVPageReader {
+
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * The value of knownTotalRows when the rows have not been counted yet.
+   */
+  static final int UNKNOWN_TOTAL_ROWS = -1;
+
+  private AuditCSVPageReader() {
+  }
+
+  /**
+   * @param reader         the audit CSV, header row included. It is closed.
+   * @param offset         index of the first row of the page.
+   * @param limit          number of rows on the page; at most {@link #MAX_PAGE_SIZE}.
+   * @param knownTotalRows the row count returned with an earlier page, or
+   *                       {@link #UNKNOWN_TOTAL_ROWS} to count the rows.
+   * @throws IllegalStateException if the file is badly formed.
+   */
+  static AuditCSVPage readPage(Reader reader, int offset, int limit, int knownTotalRows) throws IOException {
+    int first = Math.max(0, offset);
+    int end = first + Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+    AuditCSVPage page = new AuditCSVPage(first);
+    int rowCount = 0;
+    RFC4180CsvReader csvReader = new RFC4180CsvReader(reader);
+    try {
+      // skip the header row
+      String[] row = csvReader.readNext();
+      while (row != null && (row = csvReader.readNext()) != null) {
+        if (row.length == 0) {
+          continue;
+        }
+        if (rowCount >= first && rowCount < end) {
+          page.addRow(row);
+        }
+        ++rowCount;
+        if (rowCount >= end && knownTotalRows != UNKNOWN_TOTAL_ROWS) {
+          break;
+        }
+      }
+    } finally {
+      csvReader.close();
+    }
+    page.setTotalRows((knownTotalRows != UNKNOWN_TOTAL_ROWS) ? knownTotalRows : rowCount);
+    return page;
+  }
+}
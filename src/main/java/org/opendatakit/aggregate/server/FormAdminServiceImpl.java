@@ -47,6 +47,7 @@ import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.FormImagePolicy;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.format.Row;
@@ -123,6 +124,34 @@ public class FormAdminServiceImpl extends XsrfProtectedServiceServlet implements
     }
   }
 
+  @Override
+  public void setFormImagePolicy(String formId, Integer maxDimension, Integer jpegQuality, Boolean keepOriginal) throws RequestFailureException, DatastoreFailureException {
+    HttpServletRequest req = getThreadLocalRequest();
+    CallingContext cc = getCallingContext(this, req);
+
+    try {
+      IForm form = retrieveFormByFormId(formId, cc);
+      if (maxDimension == null) {
+        FormImagePolicy.clear(form.getFormId(), cc);
+        return;
+      }
+      FormImagePolicy.setPolicy(form.getFormId(), maxDimension,
+          (jpegQuality == null) ? FormImagePolicy.DEFAULT_JPEG_QUALITY : jpegQuality,
+          (keepOriginal == null) ? false : keepOriginal, cc);
+    } catch (IllegalArgumentException e) {
+      throw new RequestFailureException(e.getMessage());
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException(e);
+    }
+  }
+
   public Date purgePublishedData(String uriExternalService, Date earliest) throws DatastoreFailureException, RequestFailureException {
     HttpServletRequest req = getThreadLocalRequest();
     CallingContext cc = getCallingContext(this, req);
@@ -16,11 +16,14 @@
 
 package org.opendatakit.aggregate.server;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.opendatakit.aggregate.client.preferences.PreferenceSummary;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
@@ -52,8 +55,29 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
   private static final String LAST_KNOWN_REALM_STRING = "LAST_KNOWN_REALM_STRING";
   private static final String FASTER_WATCHDOG_CYCLE_ENABLED = "FASTER_WATCHDOG_CYCLE_ENABLED";
   private static final String SKIP_MALFORMED_SUBMISSIONS = "SKIP_MALFORMED_SUBMISSIONS";
+  private static final String CONTENT_ADDRESSED_ATTACHMENTS = "CONTENT_ADDRESSED_ATTACHMENTS";
+  private static final String GOOGLE_SHEETS_MAX_APPEND_REQUESTS = "GOOGLE_SHEETS_MAX_APPEND_REQUESTS";
+  private static final String CLUSTER_WORK_QUEUE_ENABLED = "CLUSTER_WORK_QUEUE_ENABLED";
+  /**
+   * default cap on the append requests combined into one Sheets batchUpdate call.
+   */
+  private static final int DEFAULT_GOOGLE_SHEETS_MAX_APPEND_REQUESTS = 500;
+
+  /**
+   * delay between re-loads of the cachedProperties HashMap. 30 seconds.
+   */
+  private static final long HASHMAP_LIFETIME_MILLISECONDS = PersistConsts.MAX_SETTLE_MILLISECONDS * 10L;
 
   private static ServerPreferencesProperties relation = null;
+  /**
+   * last time we reloaded the cachedProperties hashMap from the datastore
+   */
+  private static long lastHashmapLoadTimestamp = 0L;
+  /**
+   * the property hashMap<keyName, value> of the most recently updated rows.
+   * null if it must be reloaded from the datastore.
+   */
+  private static Map<String, String> cachedProperties = null;
 
   private ServerPreferencesProperties(String schemaName) {
     super(schemaName, TABLE_NAME);
@@ -151,6 +175,48 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
     setServerPreferencesProperty(cc, SKIP_MALFORMED_SUBMISSIONS, skipMalformedSubmissions.toString());
   }
 
+  public static Boolean getContentAddressedAttachments(CallingContext cc) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, CONTENT_ADDRESSED_ATTACHMENTS);
+    if (value != null) {
+      return Boolean.valueOf(value);
+    }
+    // null value should be treated as false
+    return false;
+  }
+
+  public static void setContentAddressedAttachments(CallingContext cc, Boolean enabled) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, CONTENT_ADDRESSED_ATTACHMENTS, enabled.toString());
+  }
+
+  public static Boolean getClusterWorkQueueEnabled(CallingContext cc) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, CLUSTER_WORK_QUEUE_ENABLED);
+    if (value != null) {
+      return Boolean.valueOf(value);
+    }
+    // null value should be treated as false
+    return false;
+  }
+
+  public static void setClusterWorkQueueEnabled(CallingContext cc, Boolean enabled) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, CLUSTER_WORK_QUEUE_ENABLED, enabled.toString());
+  }
+
+  public static Integer getGoogleSheetsMaxAppendRequests(CallingContext cc) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, GOOGLE_SHEETS_MAX_APPEND_REQUESTS);
+    if (value != null) {
+      try {
+        return Integer.valueOf(value);
+      } catch (NumberFormatException e) {
+        // fall through to the default
+      }
+    }
+    return DEFAULT_GOOGLE_SHEETS_MAX_APPEND_REQUESTS;
+  }
+
+  public static void setGoogleSheetsMaxAppendRequests(CallingContext cc, Integer maxAppendRequests) throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, GOOGLE_SHEETS_MAX_APPEND_REQUESTS, maxAppendRequests.toString());
+  }
+
   public static synchronized final ServerPreferencesProperties assertRelation(CallingContext cc) throws ODKDatastoreException {
     if (relation == null) {
       ServerPreferencesProperties relationPrototype;
@@ -166,26 +232,48 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
 
   public static final String getServerPreferencesProperty(CallingContext cc, String keyName) throws ODKEntityNotFoundException, ODKOverQuotaException {
     try {
+      return getCachedProperties(cc).get(keyName);
+    } catch (ODKOverQuotaException e) {
+      throw e;
+    } catch (ODKDatastoreException e) {
+      throw new ODKEntityNotFoundException(e);
+    }
+  }
+
+  /**
+   * Returns a snapshot of all the server preferences, reloading it from the
+   * datastore if it has been invalidated or is older than
+   * HASHMAP_LIFETIME_MILLISECONDS (changes made through other servers become
+   * visible after that delay).
+   */
+  private static synchronized Map<String, String> getCachedProperties(CallingContext cc) throws ODKDatastoreException {
+    long now = System.currentTimeMillis();
+    if (cachedProperties == null || lastHashmapLoadTimestamp + HASHMAP_LIFETIME_MILLISECONDS < now) {
       ServerPreferencesProperties relation = assertRelation(cc);
       Query query = cc.getDatastore().createQuery(relation,
           "ServerPreferences.getServerPreferences", cc.getCurrentUser());
-      query.addFilter(KEY, Query.FilterOperation.EQUAL, keyName);
-      // don't care about duplicate entries because we always access the most
-      // recent first
+      // don't care about duplicate entries because we always keep the most
+      // recent one
       query.addSort(relation.lastUpdateDate, Query.Direction.DESCENDING);
       List<? extends CommonFieldsBase> results = query.executeQuery();
-      if (!results.isEmpty()) {
-        if (results.get(0) instanceof ServerPreferencesProperties) {
-          ServerPreferencesProperties preferences = (ServerPreferencesProperties) results.get(0);
-          return preferences.getStringField(VALUE);
+      Map<String, String> properties = new HashMap<String, String>();
+      for (CommonFieldsBase cb : results) {
+        if (cb instanceof ServerPreferencesProperties) {
+          ServerPreferencesProperties preferences = (ServerPreferencesProperties) cb;
+          String key = preferences.getStringField(KEY);
+          if (!properties.containsKey(key)) {
+            properties.put(key, preferences.getStringField(VALUE));
+          }
         }
       }
-      return null;
-    } catch (ODKOverQuotaException e) {
-      throw e;
-    } catch (ODKDatastoreException e) {
-      throw new ODKEntityNotFoundException(e);
+      cachedProperties = properties;
+      lastHashmapLoadTimestamp = now;
     }
+    return cachedProperties;
+  }
+
+  private static synchronized void invalidateCachedProperties() {
+    cachedProperties = null;
   }
 
   public static final void setServerPreferencesProperty(CallingContext cc, String keyName, String value) throws ODKEntityNotFoundException, ODKOverQuotaException {
@@ -224,6 +312,9 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
       throw e;
     } catch (ODKDatastoreException e) {
       throw new ODKEntityNotFoundException(e);
+    } finally {
+      // force the next read to fetch the new value
+      invalidateCachedProperties();
     }
   }
 
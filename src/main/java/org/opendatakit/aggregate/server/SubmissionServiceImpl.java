@@ -17,6 +17,10 @@
 package org.opendatakit.aggregate.server;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.codec.DecoderException;
@@ -25,7 +29,7 @@ import org.opendatakit.aggregate.ContextFactory;
 import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
-import org.opendatakit.aggregate.client.submission.SubmissionUI;
+import org.opendatakit.aggregate.client.submission.AuditCSVPage;
 import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
@@ -34,22 +38,22 @@ import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.format.element.UiElementFormatter;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.query.submission.QueryRepeatsByParent;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionElement;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
-import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
-import org.opendatakit.aggregate.submission.type.RepeatSubmissionType;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
 import org.opendatakit.common.persistence.client.exception.DatastoreFailureException;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
 
 public class SubmissionServiceImpl extends RemoteServiceServlet implements
     org.opendatakit.aggregate.client.submission.SubmissionService {
@@ -59,6 +63,8 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
    */
   private static final long serialVersionUID = -7997978505247614945L;
 
+  private static final int MAX_REPEAT_PAGE_SIZE = 500;
+
   @Override
   public SubmissionUISummary getSubmissions(FilterGroup filterGroup)
       throws FormNotAvailableException, RequestFailureException, DatastoreFailureException {
@@ -100,7 +106,7 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
   }
 
   @Override
-  public SubmissionUISummary getRepeatSubmissions(String keyString)
+  public SubmissionUISummary getRepeatSubmissionsPage(String keyString, UIQueryResumePoint cursor, int fetchLimit)
       throws FormNotAvailableException, RequestFailureException, DatastoreFailureException {
     HttpServletRequest req = this.getThreadLocalRequest();
     CallingContext cc = ContextFactory.getCallingContext(this, req);
@@ -117,34 +123,22 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
         throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed
         // definition
       }
-      Submission sub = Submission.fetchSubmission(parts, cc);
-
-      if (sub != null) {
-        SubmissionElement tmp = sub.resolveSubmissionKey(parts);
-        RepeatSubmissionType repeat = (RepeatSubmissionType) tmp;
+      QueryRepeatsByParent query = new QueryRepeatsByParent(form, parts, cursor,
+          Math.max(1, Math.min(fetchLimit, MAX_REPEAT_PAGE_SIZE)), cc);
 
-        SubmissionUISummary summary = new SubmissionUISummary(form.getViewableName());
-        GenerateHeaderInfo headerGenerator = new GenerateHeaderInfo(null, summary, form);
-        headerGenerator.processForHeaderInfo(repeat.getElement());
-        List<FormElementModel> filteredElements = headerGenerator.getIncludedElements();
-        ElementFormatter elemFormatter = new UiElementFormatter(cc.getServerURL(),
-            headerGenerator.getGeopointIncludes());
-
-        // format row elements
-        for (SubmissionSet subSet : repeat.getSubmissionSets()) {
-          Row row = subSet.getFormattedValuesAsRow(filteredElements, elemFormatter, false, cc);
-          try {
-            summary.addSubmission(new SubmissionUI(row.getFormattedValues(), null));
-          } catch (Exception e) {
-            e.printStackTrace();
-          }
-        }
-        return summary;
+      SubmissionUISummary summary = new SubmissionUISummary(form.getViewableName());
+      GenerateHeaderInfo headerGenerator = new GenerateHeaderInfo(null, summary, form);
+      headerGenerator.processForHeaderInfo(query.getRepeatGroup());
+      List<FormElementModel> filteredElements = headerGenerator.getIncludedElements();
+      ElementFormatter elemFormatter = new UiElementFormatter(cc.getServerURL(),
+          headerGenerator.getGeopointIncludes());
 
-      } else {
-        return null;
-      }
+      query.populateRepeats(summary, filteredElements, elemFormatter, cc);
+      return summary;
 
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(e.getMessage());
     } catch (ODKFormNotFoundException e) {
       e.printStackTrace();
       throw new FormNotAvailableException(e);
@@ -158,7 +152,7 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
   }
 
   @Override
-  public String getSubmissionAuditCSV(String keyString) throws RequestFailureException {
+  public AuditCSVPage getSubmissionAuditCSVPage(String keyString, int offset, int limit, int knownTotalRows) throws RequestFailureException {
     HttpServletRequest req = this.getThreadLocalRequest();
     CallingContext cc = ContextFactory.getCallingContext(this, req);
 
@@ -173,12 +167,22 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
     SubmissionKey key = new SubmissionKey(decode);
 
     List<SubmissionKeyPart> parts = key.splitSubmissionKey();
-    if (parts.get(0).getElementName().equals(PersistentResults.FORM_ID_PERSISTENT_RESULT))
-      return new String(getBytes(cc, key));
+    InputStream in;
+    if (parts.get(0).getElementName().equals(PersistentResults.FORM_ID_PERSISTENT_RESULT)) {
+      in = new ByteArrayInputStream(getBytes(cc, key));
+    } else {
+      Submission sub = getSubmission(cc, parts);
+      BlobSubmissionType b = getBlobSubmissionType(parts, sub);
+      in = getBlobStream(cc, parts, b);
+    }
 
-    Submission sub = getSubmission(cc, parts);
-    BlobSubmissionType b = getBlobSubmissionType(parts, sub);
-    return new String(getBytes(cc, parts, b));
+    try {
+      return AuditCSVPageReader.readPage(new InputStreamReader(in, HtmlConsts.UTF8_ENCODE),
+          offset, limit, knownTotalRows);
+    } catch (IOException | IllegalStateException e) {
+      e.printStackTrace();
+      throw new RequestFailureException("Unable to read audit CSV");
+    }
   }
 
   private byte[] getBytes(CallingContext cc, SubmissionKey key) throws RequestFailureException {
@@ -201,8 +205,8 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
     return resultFileContents;
   }
 
-  private byte[] getBytes(CallingContext cc, List<SubmissionKeyPart> parts, BlobSubmissionType b) throws RequestFailureException {
-    byte[] blob;
+  private InputStream getBlobStream(CallingContext cc, List<SubmissionKeyPart> parts, BlobSubmissionType b) throws RequestFailureException {
+    InputStream blob;
     try {
       int ordinal = b.getAttachmentCount(cc);
       if (ordinal != 1) {
@@ -213,7 +217,7 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
         }
         ordinal = ord.intValue();
       }
-      blob = b.getBlob(ordinal, cc);
+      blob = b.getBlobStream(ordinal, cc);
 
     } catch (ODKOverQuotaException e) {
       e.printStackTrace();
@@ -37,11 +37,14 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.form.PersistentResults.ResultFileInfo;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.ImagePreview.Rendition;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionElement;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
+import org.opendatakit.aggregate.task.ImagePreviewGenerator;
 import org.opendatakit.aggregate.util.ImageUtil;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
@@ -156,6 +159,11 @@ public class BinaryDataServlet extends ServletUtilBase {
     String unrootedFileName = null;
     String contentType = null;
     Long contentLength = null;
+    // set when a stored preview can be used or saved
+    boolean storedPreview = false;
+    SubmissionKey attachmentKey = null;
+    String topLevelKey = null;
+    String contentHash = null;
 
     List<SubmissionKeyPart> parts = key.splitSubmissionKey();
     if (parts.get(0).getElementName().equals(PersistentResults.FORM_ID_PERSISTENT_RESULT)) {
@@ -240,11 +248,20 @@ public class BinaryDataServlet extends ServletUtilBase {
             // OK. This is the attachment we want...
             ordinal = ord.intValue();
           }
-          imageBlob = b.getBlob(ordinal, cc);
           lastUpdateDate = b.getLastUpdateDate(ordinal, cc);
           unrootedFileName = b.getUnrootedFilename(ordinal, cc);
           contentType = b.getContentType(ordinal, cc);
           contentLength = b.getContentLength(ordinal, cc);
+          if (previewSize && ImagePreviewGenerator.isPreviewable(contentType)) {
+            attachmentKey = b.generateSubmissionKey(ordinal);
+            topLevelKey = b.getTopLevelKey();
+            contentHash = b.getContentHash(ordinal, cc);
+            imageBlob = ImagePreview.getPreview(attachmentKey, contentHash, Rendition.THUMBNAIL, cc);
+            storedPreview = (imageBlob != null);
+          }
+          if (imageBlob == null) {
+            imageBlob = b.getBlob(ordinal, cc);
+          }
         } catch (ODKOverQuotaException e) {
           e.printStackTrace();
           quotaExceededError(resp);
@@ -268,10 +285,23 @@ public class BinaryDataServlet extends ServletUtilBase {
         resp.setHeader("Expires", OffsetDateTime.now().plus(Duration.ofHours(1)).format(RFC_1123_DATE_TIME));
         resp.setHeader("Last-Modified", OffsetDateTime.ofInstant(lastUpdateDate.toInstant(), systemDefault()).format(RFC_1123_DATE_TIME));
         resp.setContentType(HtmlConsts.RESP_TYPE_IMAGE_JPEG);
-        if (contentType.equals(HtmlConsts.RESP_TYPE_IMAGE_JPEG)) {
+        if (storedPreview) {
+          // computed when the attachment was stored
+        } else if (contentType.equals(HtmlConsts.RESP_TYPE_IMAGE_JPEG)) {
           // resize
           ImageUtil imageUtil = (ImageUtil) cc.getBean(BeanDefs.IMAGE_UTIL);
-          imageBlob = imageUtil.resizeImage(imageBlob, 64, 48);
+          byte[] original = imageBlob;
+          imageBlob = imageUtil.resizeImage(original, Rendition.THUMBNAIL.width,
+              Rendition.THUMBNAIL.height);
+          if (attachmentKey != null && imageBlob != original) {
+            // e.g., an attachment stored before previews were computed on ingest
+            try {
+              ImagePreview.store(attachmentKey, topLevelKey, contentHash, Rendition.THUMBNAIL,
+                  imageBlob, cc);
+            } catch (ODKDatastoreException e) {
+              logger.warn("Unable to store image preview for " + attachmentKey, e);
+            }
+          }
         } else {
           // display not-able-to-resize image...
           imageBlob = playJPG;
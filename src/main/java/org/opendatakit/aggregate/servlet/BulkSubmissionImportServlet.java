@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.ErrorConsts;
+import org.opendatakit.aggregate.constants.HtmlUtil;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.parser.BulkSubmissionImporter;
+import org.opendatakit.aggregate.parser.MultiPartFormData;
+import org.opendatakit.aggregate.parser.MultiPartFormItem;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.util.HtmlUtils;
+
+/**
+ * Servlet for loading historical submissions of a form in bulk, from a .zip
+ * of a Briefcase-style instances directory: one directory per submission
+ * holding its submission.xml and attachments. Used for server migrations,
+ * where posting each submission to the submission servlet is far too slow.
+ */
+public class BulkSubmissionImportServlet extends ServletUtilBase {
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = UIConsts.BULK_SUBMISSION_IMPORT_SERVLET_ADDR;
+  /**
+   * Name of form field that contains the zipped instances directory.
+   */
+  public final static String SUBMISSIONS_ZIP_PARAM = "submissions_zip";
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -2617021848393718532L;
+  /**
+   * Title for generated webpage
+   */
+  private static final String TITLE_INFO = "Bulk Import Submissions via .zip Upload";
+
+  private static final String SUBMISSION_FILE_NAME = "submission.xml";
+  /**
+   * Largest file accepted in the .zip, once decompressed.
+   */
+  private static final long MAX_ENTRY_BYTES = 100L * 1024L * 1024L;
+  /**
+   * Largest total of the files in the .zip, once decompressed. The whole
+   * import is held in memory.
+   */
+  private static final long MAX_TOTAL_BYTES = 512L * 1024L * 1024L;
+
+  private static final String UPLOAD_PAGE_BODY_START =
+
+      "<div class=\"gwt-HTML\"><table class=\"gwt-TabPanel\"><tbody>"
+          + "<tr><td><form id=\"ie_backward_compatible_form\""
+          + " accept-charset=\"UTF-8\" method=\"POST\" encoding=\"multipart/form-data\" enctype=\"multipart/form-data\""
+          + " action=\"";// emit the ADDR
+  private static final String UPLOAD_PAGE_BODY_MIDDLE = "\">"
+      + "     <table id=\"uploadTable\">"
+      + "      <tr>"
+      + "         <td><label for=\"formId\">form id:</label></td>"
+      + "         <td><input id=\"formId\" type=\"text\" size=\"80\" name=\"formId\" /></td>"
+      + "      </tr><tr>"
+      + "         <td><label for=\"submissions_zip\">submissions .zip file:</label></td>"
+      + "         <td><input id=\"submissions_zip\" type=\"file\" size=\"80\" class=\"gwt-Button\""
+      + "            name=\"submissions_zip\" /></td>"
+      + "      </tr><tr>"
+      + "         <td><input id=\"import_submissions\" type=\"submit\" name=\"button\" class=\"gwt-Button\" value=\"Import Submissions\" /></td>"
+      + "         <td />"
+      + "      </tr>"
+      + "     </table>\n"
+      + "     </form>"
+      + "<br><br></td></tr>"
+      + "<tr><td><p id=\"subHeading\"><h2>Usage</h2></p>"
+      + "<p>Zip the <em>instances</em> directory of a form exported by ODK Briefcase and upload it here."
+      + " Each directory in the .zip that holds a submission.xml is imported as one submission;"
+      + " the other files in that directory are its attachments.</p>"
+      + "<p>Submissions are written in batches, which is much faster than pushing them one at a time."
+      + " Submissions already on the server are handled as they would be for a push from Briefcase.</p>"
+      + "<p>The whole .zip is held in memory while it is imported, so split very large exports"
+      + " into several .zip files. At most " + (MAX_TOTAL_BYTES / (1024L * 1024L))
+      + " MB of files can be imported at once, and no single file may exceed "
+      + (MAX_ENTRY_BYTES / (1024L * 1024L)) + " MB.</p>"
+      + "</td></tr></tbody></table></div>\n";
+
+  private static final Logger logger = LoggerFactory.getLogger(BulkSubmissionImportServlet.class);
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    beginBasicHtmlResponse(TITLE_INFO, getHeaderString(cc), resp, cc);
+    PrintWriter out = resp.getWriter();
+    out.write(UPLOAD_PAGE_BODY_START);
+    out.write(cc.getWebApplicationURL(ADDR));
+    out.write(UPLOAD_PAGE_BODY_MIDDLE);
+    finishBasicHtmlResponse(resp);
+  }
+
+  /**
+   * Imports the submissions in the uploaded .zip and reports how many were
+   * imported and which ones failed.
+   */
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    // verify request is multipart
+    if (!ServletFileUpload.isMultipartContent(req)) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ErrorConsts.NO_MULTI_PART_CONTENT);
+      return;
+    }
+
+    MultiPartFormData uploadedItems;
+    try {
+      uploadedItems = new MultiPartFormData(req);
+    } catch (FileUploadException e) {
+      logger.error("bulk submission import upload error: " + e.toString());
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ErrorConsts.UPLOAD_PROBLEM);
+      return;
+    }
+
+    String formId = uploadedItems.getSimpleFormField(ServletConsts.FORM_ID);
+    MultiPartFormItem submissionsZip = uploadedItems.getFormDataByFieldName(SUBMISSIONS_ZIP_PARAM);
+    if (formId == null || formId.trim().length() == 0 || submissionsZip == null) {
+      errorMissingParam(resp);
+      return;
+    }
+    formId = formId.trim().replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+
+    IForm form;
+    try {
+      form = FormFactory.retrieveFormByFormId(formId, cc);
+    } catch (ODKFormNotFoundException e) {
+      odkIdNotFoundError(resp);
+      return;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      datastoreError(resp);
+      return;
+    }
+    if (!form.hasValidFormDefinition()) {
+      errorRetreivingData(resp);
+      return; // ill-formed definition
+    }
+
+    Map<String, List<MultiPartFormItem>> submissions;
+    try {
+      submissions = readSubmissions(submissionsZip.getStream().toByteArray());
+    } catch (ZipTooLargeException e) {
+      logger.error("bulk submission import -- .zip too large: " + e.getMessage());
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+      return;
+    } catch (IOException e) {
+      logger.error("bulk submission import -- unreadable .zip: " + e.toString());
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to read the submissions .zip file");
+      return;
+    }
+
+    BulkSubmissionImporter importer = new BulkSubmissionImporter(form, cc);
+    for (Map.Entry<String, List<MultiPartFormItem>> entry : submissions.entrySet()) {
+      importer.importSubmission(entry.getKey(),
+          new MultiPartFormData(Collections.<String, String>emptyMap(), entry.getValue()), false);
+    }
+    importer.flush();
+    logger.info("bulk submission import into " + formId + ": " + importer.getImportedCount()
+        + " imported, " + importer.getFailedCount() + " failed");
+
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(HtmlConsts.RESP_TYPE_HTML);
+    resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+    beginBasicHtmlResponse(TITLE_INFO, getHeaderString(cc), resp, cc);
+    PrintWriter out = resp.getWriter();
+    out.write("<p>Imported " + importer.getImportedCount() + " submissions.</p>");
+    if (importer.getFailedCount() != 0) {
+      out.write("<p>" + importer.getFailedCount() + " submissions could not be imported:</p><table>");
+      for (String failure : importer.getFailures()) {
+        out.write("<tr><td>" + HtmlUtils.htmlEscape(failure) + "</td></tr>");
+      }
+      out.write("</table>");
+    }
+    out.write("<p>Click ");
+    out.write(HtmlUtil.createHref(cc.getWebApplicationURL(ADDR), "here", false));
+    out.write(" to return to the Bulk Import Submissions page.</p>");
+    finishBasicHtmlResponse(resp);
+  }
+
+  /**
+   * Group the files in the .zip by directory, keeping the directories that
+   * hold a submission.xml. Each group is laid out as the submission servlet
+   * receives a multipart upload.
+   *
+   * @throws ZipTooLargeException if a file, or all of them together,
+   *     decompress to more than the limits.
+   */
+  private static Map<String, List<MultiPartFormItem>> readSubmissions(byte[] zip) throws IOException {
+    Map<String, List<MultiPartFormItem>> directories = new LinkedHashMap<String, List<MultiPartFormItem>>();
+    ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(zip));
+    try {
+      byte[] buffer = new byte[8192];
+      long totalBytes = 0L;
+      ZipEntry entry;
+      while ((entry = zin.getNextEntry()) != null) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        String path = entry.getName();
+        int idx = path.lastIndexOf('/');
+        String directory = (idx == -1) ? "" : path.substring(0, idx);
+        String fileName = path.substring(idx + 1);
+
+        // the sizes recorded in the .zip can't be trusted; count what is read
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        long entryBytes = 0L;
+        int len;
+        while ((len = zin.read(buffer)) != -1) {
+          entryBytes += len;
+          totalBytes += len;
+          if (entryBytes > MAX_ENTRY_BYTES) {
+            throw new ZipTooLargeException(path + " is larger than "
+                + (MAX_ENTRY_BYTES / (1024L * 1024L)) + " MB");
+          }
+          if (totalBytes > MAX_TOTAL_BYTES) {
+            throw new ZipTooLargeException("The .zip holds more than "
+                + (MAX_TOTAL_BYTES / (1024L * 1024L)) + " MB of files");
+          }
+          content.write(buffer, 0, len);
+        }
+
+        MultiPartFormItem item;
+        if (fileName.equals(SUBMISSION_FILE_NAME)) {
+          item = new MultiPartFormItem(ServletConsts.XML_SUBMISSION_FILE, fileName,
+              HtmlConsts.RESP_TYPE_XML, content);
+        } else {
+          String contentType = URLConnection.guessContentTypeFromName(fileName);
+          if (contentType == null) {
+            contentType = "application/octet-stream";
+          }
+          item = new MultiPartFormItem(fileName, fileName, contentType, content);
+        }
+        List<MultiPartFormItem> items = directories.get(directory);
+        if (items == null) {
+          items = new ArrayList<MultiPartFormItem>();
+          directories.put(directory, items);
+        }
+        items.add(item);
+      }
+    } finally {
+      zin.close();
+    }
+
+    Map<String, List<MultiPartFormItem>> submissions = new LinkedHashMap<String, List<MultiPartFormItem>>();
+    for (Map.Entry<String, List<MultiPartFormItem>> e : directories.entrySet()) {
+      for (MultiPartFormItem item : e.getValue()) {
+        if (ServletConsts.XML_SUBMISSION_FILE.equals(item.getName())) {
+          submissions.put(e.getKey(), e.getValue());
+          break;
+        }
+      }
+    }
+    return submissions;
+  }
+
+  private static final class ZipTooLargeException extends IOException {
+    private static final long serialVersionUID = 4215360279573461308L;
+
+    ZipTooLargeException(String message) {
+      super(message);
+    }
+  }
+
+  private static String getHeaderString(CallingContext cc) {
+    StringBuilder headerString = new StringBuilder();
+    headerString.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+    headerString.append(cc.getWebApplicationURL(ServletConsts.AGGREGATE_STYLE));
+    headerString.append("\" />");
+    headerString.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+    headerString.append(cc.getWebApplicationURL(ServletConsts.UPLOAD_BUTTON_STYLE_RESOURCE));
+    headerString.append("\" />");
+    headerString.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+    headerString.append(cc.getWebApplicationURL(ServletConsts.UPLOAD_TABLE_STYLE_RESOURCE));
+    headerString.append("\" />");
+    headerString.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+    headerString.append(cc.getWebApplicationURL(ServletConsts.UPLOAD_NAVIGATION_STYLE_RESOURCE));
+    headerString.append("\" />");
+    return headerString.toString();
+  }
+}
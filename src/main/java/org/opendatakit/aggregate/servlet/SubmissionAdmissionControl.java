@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Optional admission control for the submission servlet.
+ * <p>
+ * Bounds the number of submissions processed concurrently on this server
+ * (and, optionally, for any one form) so that a burst of uploads queues
+ * briefly at the door rather than piling into the submission locks and the
+ * connection pool. Requests that cannot be admitted within the queue wait
+ * are rejected with <code>503 Service Unavailable</code> and a
+ * <code>Retry-After</code> header, which ODK Collect honours.
+ * <p>
+ * Admission control is not configured by default; add the bean to
+ * odk-settings.xml to enable it.
+ */
+public class SubmissionAdmissionControl implements InitializingBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionAdmissionControl.class);
+
+  /**
+   * minimum interval between rejection log entries. 1 minute.
+   */
+  private static final long STATUS_LOG_INTERVAL_MILLISECONDS = 60000L;
+
+  /**
+   * Retry-After sent with rejections, in seconds, unless configured otherwise.
+   */
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 60;
+
+  private static SubmissionAdmissionControl classInstance = null;
+
+  private int maxConcurrentSubmissions = 20;
+  private int maxConcurrentSubmissionsPerForm = 0;
+  private int maxQueuedSubmissions = 50;
+  private long maxQueueWaitMilliseconds = 10000L;
+  private int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+
+  private Semaphore serverPermits;
+  private final ConcurrentHashMap<String, Semaphore> formPermits = new ConcurrentHashMap<String, Semaphore>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong admittedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private long lastStatusLogTime = 0L;
+
+  /**
+   * @return the configured admission control, or null if submissions are not limited.
+   */
+  public static synchronized SubmissionAdmissionControl getAdmissionControl() {
+    return classInstance;
+  }
+
+  private static synchronized void setAdmissionControl(SubmissionAdmissionControl admissionControl) {
+    classInstance = admissionControl;
+  }
+
+  public int getMaxConcurrentSubmissions() {
+    return maxConcurrentSubmissions;
+  }
+
+  public void setMaxConcurrentSubmissions(int maxConcurrentSubmissions) {
+    this.maxConcurrentSubmissions = maxConcurrentSubmissions;
+  }
+
+  /**
+   * @return the per-form limit; 0 if submissions are only limited server-wide.
+   */
+  public int getMaxConcurrentSubmissionsPerForm() {
+    return maxConcurrentSubmissionsPerForm;
+  }
+
+  public void setMaxConcurrentSubmissionsPerForm(int maxConcurrentSubmissionsPerForm) {
+    this.maxConcurrentSubmissionsPerForm = maxConcurrentSubmissionsPerForm;
+  }
+
+  public int getMaxQueuedSubmissions() {
+    return maxQueuedSubmissions;
+  }
+
+  public void setMaxQueuedSubmissions(int maxQueuedSubmissions) {
+    this.maxQueuedSubmissions = maxQueuedSubmissions;
+  }
+
+  public long getMaxQueueWaitMilliseconds() {
+    return maxQueueWaitMilliseconds;
+  }
+
+  public void setMaxQueueWaitMilliseconds(long maxQueueWaitMilliseconds) {
+    this.maxQueueWaitMilliseconds = maxQueueWaitMilliseconds;
+  }
+
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  public void setRetryAfterSeconds(int retryAfterSeconds) {
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (maxConcurrentSubmissions < 1)
+      throw new IllegalStateException("maxConcurrentSubmissions must be at least 1");
+    if (maxConcurrentSubmissionsPerForm < 0)
+      throw new IllegalStateException("maxConcurrentSubmissionsPerForm must not be negative");
+    if (maxQueuedSubmissions < 0)
+      throw new IllegalStateException("maxQueuedSubmissions must not be negative");
+    serverPermits = new Semaphore(maxConcurrentSubmissions, true);
+    setAdmissionControl(this);
+  }
+
+  /**
+   * Waits, up to the queue wait, for one of the server's submission slots.
+   *
+   * @return the permit to release once the submission is processed, or null
+   *     if the server is saturated and the request should be rejected.
+   */
+  public Permit admit() {
+    // shed load outright rather than let the wait queue grow without bounds
+    if (queued.incrementAndGet() > maxQueuedSubmissions + maxConcurrentSubmissions) {
+      queued.decrementAndGet();
+      return reject("server");
+    }
+    boolean acquired = false;
+    try {
+      acquired = serverPermits.tryAcquire(maxQueueWaitMilliseconds, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      queued.decrementAndGet();
+    }
+    if (!acquired) {
+      return reject("server");
+    }
+    admittedCount.incrementAndGet();
+    return new Permit();
+  }
+
+  private boolean admitForm(Permit permit, String formId) {
+    if (maxConcurrentSubmissionsPerForm == 0 || formId == null || permit.formPermit != null) {
+      return true;
+    }
+    Semaphore permits = formPermits.get(formId);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxConcurrentSubmissionsPerForm);
+      permits = formPermits.putIfAbsent(formId, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    if (!permits.tryAcquire()) {
+      reject("form " + formId);
+      return false;
+    }
+    permit.formPermit = permits;
+    return true;
+  }
+
+  /**
+   * @return number of submissions currently being processed.
+   */
+  public int getInFlightCount() {
+    return maxConcurrentSubmissions - serverPermits.availablePermits();
+  }
+
+  /**
+   * @return number of submissions currently within {@link #admit()}, waiting
+   *     for a processing slot.
+   */
+  public int getQueuedCount() {
+    return queued.get();
+  }
+
+  public long getAdmittedCount() {
+    return admittedCount.get();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Records the rejection of an admitted submission because a later stage of
+   * its processing is saturated.
+   *
+   * @param scope the saturated stage, for the log.
+   */
+  public void rejectAdmitted(String scope) {
+    reject(scope);
+  }
+
+  private Permit reject(String scope) {
+    rejectedCount.incrementAndGet();
+    logStatus("Submission rejected; " + scope + " saturated");
+    return null;
+  }
+
+  private synchronized void logStatus(String reason) {
+    long now = System.currentTimeMillis();
+    if (lastStatusLogTime + STATUS_LOG_INTERVAL_MILLISECONDS < now) {
+      lastStatusLogTime = now;
+      logger.warn(reason + ": in-flight " + getInFlightCount() + ", queued " + getQueuedCount()
+          + ", admitted " + getAdmittedCount() + ", rejected " + getRejectedCount());
+    }
+  }
+
+  /**
+   * Processing slots held by an admitted submission.
+   */
+  public final class Permit {
+    private Semaphore formPermit = null;
+    private boolean released = false;
+
+    private Permit() {
+    }
+
+    /**
+     * Claims one of the form's submission slots. This does not wait, as the
+     * holder already occupies a server slot.
+     *
+     * @param formId
+     * @return false if the form is saturated and the request should be rejected.
+     */
+    public boolean admitForm(String formId) {
+      return SubmissionAdmissionControl.this.admitForm(this, formId);
+    }
+
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      if (formPermit != null) {
+        formPermit.release();
+      }
+      serverPermits.release();
+    }
+  }
+}
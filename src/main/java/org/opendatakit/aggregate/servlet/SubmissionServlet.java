@@ -21,36 +21,32 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.opendatakit.aggregate.ContextFactory;
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
-import org.opendatakit.aggregate.constants.common.OperationalStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.exception.ODKConversionException;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.exception.ODKFormSubmissionsDisabledException;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
+import org.opendatakit.aggregate.exception.ODKOverloadedException;
 import org.opendatakit.aggregate.exception.ODKParseException;
-import org.opendatakit.aggregate.externalservice.ExternalService;
-import org.opendatakit.aggregate.externalservice.FormServiceCursor;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.XmlAttributeFormatter;
 import org.opendatakit.aggregate.parser.MultiPartFormData;
 import org.opendatakit.aggregate.parser.SubmissionParser;
 import org.opendatakit.aggregate.submission.Submission;
-import org.opendatakit.aggregate.task.UploadSubmissions;
-import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.aggregate.task.PublisherWakeup;
+import org.opendatakit.aggregate.task.SubmissionSpool;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -208,15 +204,64 @@ public class SubmissionServlet extends ServletUtilBase {
 
     Double openRosaVersion = getOpenRosaVersion(req);
     boolean isIncomplete = false;
+    SubmissionAdmissionControl admissionControl = SubmissionAdmissionControl.getAdmissionControl();
+    SubmissionAdmissionControl.Permit permit = null;
     try {
       SubmissionParser submissionParser = null;
       if (ServletFileUpload.isMultipartContent(req)) {
+        // the body is read before taking a processing slot, so that slow
+        // uploads do not hold one.
         MultiPartFormData uploadedSubmissionItems = new MultiPartFormData(req);
         String isIncompleteFlag = uploadedSubmissionItems
             .getSimpleFormField(ServletConsts.TRANSFER_IS_INCOMPLETE);
         isIncomplete = (isIncompleteFlag != null && isIncompleteFlag.compareToIgnoreCase("YES") == 0);
-        submissionParser = new SubmissionParser(uploadedSubmissionItems, isIncomplete, cc);
+        SubmissionParser.UploadedInstance uploadedInstance =
+            SubmissionParser.parseUploadedInstance(uploadedSubmissionItems);
+        // when asynchronous ingestion is configured, acknowledge OpenRosa
+        // uploads once they are durably spooled. The spool is bounded on its
+        // own and declines when full, in which case the upload is admitted
+        // and processed here.
+        SubmissionSpool spool = SubmissionSpool.getSubmissionSpool();
+        String spoolableInstanceId = (openRosaVersion != null && spool != null && uploadedInstance != null)
+            ? SubmissionParser.getSpoolableInstanceId(uploadedInstance, cc) : null;
+        if (spoolableInstanceId != null &&
+            spool.spool(uploadedSubmissionItems, isIncomplete, spoolableInstanceId,
+                cc.getCurrentUser())) {
+          logger.info("Spooled OpenRosa submission");
+          String url = cc.getServerURL() + BasicConsts.FORWARDSLASH + ADDR;
+          resp.setHeader("Location", url);
+          resp.setStatus(HttpServletResponse.SC_CREATED);
+          addOpenRosaHeaders(resp);
+          resp.setContentType(HtmlConsts.RESP_TYPE_XML);
+          resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+          PrintWriter out = resp.getWriter();
+          out.write("<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">");
+          if (isIncomplete) {
+            out.write("<message>partial submission upload was successful!</message>");
+          } else {
+            out.write("<message>full submission upload was successful!</message>");
+          }
+          out.write("</OpenRosaResponse>");
+          return;
+        }
+        if (admissionControl != null) {
+          permit = admissionControl.admit();
+          if (permit == null || !permit.admitForm(
+              (uploadedInstance == null) ? null : uploadedInstance.getFormId())) {
+            overloadedError(resp, admissionControl);
+            return;
+          }
+        }
+        submissionParser = new SubmissionParser(uploadedSubmissionItems, uploadedInstance,
+            isIncomplete, cc);
       } else {
+        if (admissionControl != null) {
+          permit = admissionControl.admit();
+          if (permit == null) {
+            overloadedError(resp, admissionControl);
+            return;
+          }
+        }
         // TODO: check that it is the proper types we can deal with
         // XML received, we hope...
         submissionParser = new SubmissionParser(req.getInputStream(), cc);
@@ -226,27 +271,15 @@ public class SubmissionServlet extends ServletUtilBase {
 
       // Only trigger uploads if this submission was not already
       // marked as complete before this interaction and if it is
-      // now complete. AND...
-      // Issue a publish request only if we haven't issued one recently.
-      // use BackendActionsTable to mediate that decision.
+      // now complete. PublisherWakeup uses BackendActionsTable to
+      // throttle the publish requests, deferring (rather than dropping)
+      // those that arrive while throttled.
       // This test ONLY OCCURS during submissions, not during Watchdog
       // firings, so we don't have to worry about bugs here affecting Watchdog.
       if (!submissionParser.wasPreexistingComplete() &&
-          submissionParser.getSubmission().isComplete() &&
-          BackendActionsTable.triggerPublisher(form.getUri(), cc)) {
-        // send information to remote servers that need to be notified
-        List<ExternalService> tmp = FormServiceCursor.getExternalServicesForForm(form, cc);
-        UploadSubmissions uploadTask = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
-
+          submissionParser.getSubmission().isComplete()) {
         // publication failures should not fail the submission...
-        CallingContext ccDaemon = ContextFactory.getCallingContext(this, req);
-        ccDaemon.setAsDaemon(true);
-        for (ExternalService rs : tmp) {
-          // only create upload tasks for active publishers
-          if (rs.getFormServiceCursor().getOperationalStatus() == OperationalStatus.ACTIVE) {
-            uploadTask.createFormUploadTask(rs.getFormServiceCursor(), ccDaemon);
-          }
-        }
+        PublisherWakeup.submissionCompleted(form, cc);
       }
 
       // form full url including scheme...
@@ -349,10 +382,28 @@ public class SubmissionServlet extends ServletUtilBase {
       e.printStackTrace();
       resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
           ErrorConsts.FORM_DOES_NOT_ALLOW_SUBMISSIONS);
+    } catch (ODKOverloadedException e) {
+      logger.warn("Overloaded - " + e.getMessage());
+      if (admissionControl != null) {
+        admissionControl.rejectAdmitted("image downscaling");
+      }
+      overloadedError(resp, admissionControl);
     } catch (Exception e) {
       logger.error("Unexpected exception: " + e.getMessage());
       e.printStackTrace();
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unexpected exception");
+    } finally {
+      if (permit != null) {
+        permit.release();
+      }
     }
   }
+
+  private void overloadedError(HttpServletResponse resp, SubmissionAdmissionControl admissionControl) throws IOException {
+    int retryAfterSeconds = (admissionControl == null)
+        ? SubmissionAdmissionControl.DEFAULT_RETRY_AFTER_SECONDS
+        : admissionControl.getRetryAfterSeconds();
+    resp.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ErrorConsts.SUBMISSIONS_OVERLOADED);
+  }
 }
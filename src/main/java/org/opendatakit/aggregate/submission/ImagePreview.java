@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.submission;
+
+import java.util.Collection;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Pre-computed preview renditions of image attachments, keyed by the
+ * attachment's submission key and the rendition. Each preview records the
+ * content hash of the image it was computed from, so a preview of an image
+ * that has since been replaced is never served.
+ */
+public final class ImagePreview extends CommonFieldsBase {
+  private static final String TABLE_NAME = "_image_preview";
+  private static final DataField TOP_LEVEL_AURI = new DataField("_TOP_LEVEL_AURI", DataField.DataType.URI, false, PersistConsts.URI_STRING_LEN).setIndexable(IndexType.HASH);
+  private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH", DataField.DataType.STRING, false, 80L);
+  private static final DataField PREVIEW = new DataField("PREVIEW", DataField.DataType.BINARY, false);
+
+  private static ImagePreview relation = null;
+
+  private ImagePreview(String databaseSchema) {
+    super(databaseSchema, TABLE_NAME);
+
+    fieldList.add(TOP_LEVEL_AURI);
+    fieldList.add(CONTENT_HASH);
+    fieldList.add(PREVIEW);
+  }
+
+  private ImagePreview(ImagePreview ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized final ImagePreview assertRelation(CallingContext cc) throws ODKDatastoreException {
+    if (relation == null) {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      ImagePreview relationPrototype;
+      relationPrototype = new ImagePreview(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      // at this point, the prototype has become fully populated
+      relation = relationPrototype; // set static variable only upon success...
+    }
+    return relation;
+  }
+
+  private static String getPreviewUri(SubmissionKey attachmentKey, Rendition rendition) {
+    return CommonFieldsBase.newMD5HashUri(attachmentKey.toString() + "/" + rendition.name());
+  }
+
+  /**
+   * @return the preview of the attachment, or null if it has not been
+   *     computed for the attachment's current content.
+   */
+  public static final byte[] getPreview(SubmissionKey attachmentKey, String contentHash,
+                                        Rendition rendition, CallingContext cc) throws ODKDatastoreException {
+    ImagePreview prototype = assertRelation(cc);
+    try {
+      ImagePreview p = cc.getDatastore().getEntity(prototype,
+          getPreviewUri(attachmentKey, rendition), cc.getCurrentUser());
+      if (contentHash == null || !contentHash.equals(p.getStringField(CONTENT_HASH))) {
+        return null;
+      }
+      return p.getBlobField(PREVIEW);
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Store the preview, replacing any earlier preview of the attachment.
+   *
+   * @return false if the preview is too large to store.
+   */
+  public static final boolean store(SubmissionKey attachmentKey, String topLevelUri,
+                                    String contentHash, Rendition rendition, byte[] preview,
+                                    CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    ImagePreview prototype = assertRelation(cc);
+    Long maxLength = PREVIEW.getMaxCharLen();
+    if (maxLength != null && preview.length > maxLength) {
+      return false;
+    }
+    ImagePreview p = ds.createEntityUsingRelation(prototype, user);
+    p.setStringField(prototype.primaryKey, getPreviewUri(attachmentKey, rendition));
+    p.setStringField(TOP_LEVEL_AURI, topLevelUri);
+    p.setStringField(CONTENT_HASH, contentHash);
+    p.setBlobField(PREVIEW, preview);
+    ds.upsertEntity(p, user);
+    return true;
+  }
+
+  public static final void deletePreview(SubmissionKey attachmentKey, Rendition rendition,
+                                         CallingContext cc) throws ODKDatastoreException {
+    ImagePreview prototype = assertRelation(cc);
+    cc.getDatastore().deleteEntity(new EntityKey(prototype, getPreviewUri(attachmentKey, rendition)),
+        cc.getCurrentUser());
+  }
+
+  public static final void deletePreviews(Collection<String> topLevelUris, CallingContext cc) throws ODKDatastoreException {
+    ImagePreview prototype = assertRelation(cc);
+    cc.getDatastore().deleteEntitiesWithFieldValues(prototype, TOP_LEVEL_AURI, topLevelUris,
+        cc.getCurrentUser());
+  }
+
+  @Override
+  public ImagePreview getEmptyRow(User user) {
+    return new ImagePreview(this, user);
+  }
+
+  /**
+   * The preview sizes computed for image attachments.
+   */
+  public enum Rendition {
+    // the submissions grid
+    THUMBNAIL(64, 48);
+
+    public final int width;
+    public final int height;
+
+    Rendition(int width, int height) {
+      this.width = width;
+      this.height = height;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.submission;
+
+import java.util.Collection;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Records a digest of the instance XML and attachments of the last upload
+ * that completed a submission, keyed by the submission's top-level URI.
+ * The SubmissionParser compares it against incoming uploads so that an
+ * identical resubmission (e.g., a retry after a lost response) is
+ * acknowledged without re-processing the submission.
+ */
+public final class SubmissionDigest extends CommonFieldsBase {
+  private static final String TABLE_NAME = "_submission_digest";
+  private static final DataField DIGEST = new DataField("DIGEST", DataField.DataType.STRING, false, 80L);
+
+  private static SubmissionDigest relation = null;
+
+  private SubmissionDigest(String databaseSchema) {
+    super(databaseSchema, TABLE_NAME);
+
+    fieldList.add(DIGEST);
+  }
+
+  private SubmissionDigest(SubmissionDigest ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized final SubmissionDigest assertRelation(CallingContext cc) throws ODKDatastoreException {
+    if (relation == null) {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      SubmissionDigest relationPrototype;
+      relationPrototype = new SubmissionDigest(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      // at this point, the prototype has become fully populated
+      relation = relationPrototype; // set static variable only upon success...
+    }
+    return relation;
+  }
+
+  /**
+   * @param topLevelUri
+   * @param digest
+   * @param cc
+   * @return true if the digest recorded for the submission equals the given digest.
+   * @throws ODKDatastoreException
+   */
+  public static final boolean matches(String topLevelUri, String digest, CallingContext cc) throws ODKDatastoreException {
+    SubmissionDigest prototype = assertRelation(cc);
+    try {
+      SubmissionDigest d = cc.getDatastore().getEntity(prototype, topLevelUri, cc.getCurrentUser());
+      return digest.equals(d.getDigest());
+    } catch (ODKEntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  public static final void record(String topLevelUri, String digest, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    SubmissionDigest prototype = assertRelation(cc);
+    SubmissionDigest d = ds.createEntityUsingRelation(prototype, user);
+    d.setStringField(prototype.primaryKey, topLevelUri);
+    d.setDigest(digest);
+    ds.upsertEntity(d, user);
+  }
+
+  public static final EntityKey getEntityKey(String topLevelUri, CallingContext cc) throws ODKDatastoreException {
+    return new EntityKey(assertRelation(cc), topLevelUri);
+  }
+
+  public static final void deleteDigests(Collection<String> topLevelUris, CallingContext cc) throws ODKDatastoreException {
+    SubmissionDigest prototype = assertRelation(cc);
+    cc.getDatastore().deleteEntitiesWithFieldValues(prototype, prototype.primaryKey, topLevelUris,
+        cc.getCurrentUser());
+  }
+
+  @Override
+  public SubmissionDigest getEmptyRow(User user) {
+    return new SubmissionDigest(this, user);
+  }
+
+  public String getDigest() {
+    return getStringField(DIGEST);
+  }
+
+  public void setDigest(String value) {
+    if (!setStringField(DIGEST, value)) {
+      throw new IllegalStateException("overflow digest");
+    }
+  }
+}
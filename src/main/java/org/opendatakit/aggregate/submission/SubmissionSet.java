@@ -165,6 +165,33 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     buildSubmissionFields(group, cc);
   }
 
+  /**
+   * Holds only the row of the group, without any of its values.
+   */
+  private SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row, FormElementModel group, IForm form) {
+    this.form = form;
+    this.group = group;
+    this.enclosingSet = enclosingSet;
+    this.key = row.getEntityKey();
+    if (row instanceof TopLevelDynamicBase) {
+      this.topLevelTableKey = key;
+    } else {
+      this.topLevelTableKey = new EntityKey(form.getTopLevelGroupElement().getFormDataModel()
+          .getBackingObjectPrototype(), ((DynamicBase) row).getTopLevelAuri());
+    }
+    dbEntities.put(group.getFormDataModel().getDDRelationName(), row);
+  }
+
+  /**
+   * Constructs a SubmissionSet for the given row without fetching any of its
+   * values or nested repeats. It can only serve as the enclosing set of
+   * repeat rows that are fetched on their own, so that their submission keys
+   * can be constructed.
+   */
+  public static SubmissionSet createEnclosingSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row, FormElementModel group, IForm form) {
+    return new SubmissionSet(enclosingSet, row, group, form);
+  }
+
   private boolean isPhantomOfSubmissionSet(FormDataModel m) {
     return (m.getPersistAsColumn() == null) && (
         (m.getElementType() == ElementType.PHANTOM) ||
@@ -777,10 +804,12 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     others.remove(getGroupBackingObject());
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
-    ds.putEntities(others, user);
+    // upsert so that reprocessing a submission whose rows were partially
+    // written (e.g., a retried spooled upload) overwrites rather than fails.
+    ds.upsertEntities(others, user);
 
     // and finally, persist us...
-    ds.putEntity(getGroupBackingObject(), user);
+    ds.upsertEntity(getGroupBackingObject(), user);
   }
 
   public int compareTo(SubmissionSet obj) {
@@ -17,6 +17,7 @@
 
 package org.opendatakit.aggregate.submission.type;
 
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 import org.opendatakit.aggregate.constants.ErrorConsts;
@@ -29,6 +30,7 @@ import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.aggregate.submission.SubmissionValue;
+import org.opendatakit.aggregate.task.ImagePreviewGenerator;
 import org.opendatakit.common.datamodel.BinaryContent;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentRefBlob;
@@ -49,6 +51,7 @@ import org.opendatakit.common.web.constants.BasicConsts;
 public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
 
   private final String parentKey;
+  private final String topLevelKey;
   private final SubmissionKey submissionKey;
   private final BinaryContentManipulator bcm;
 
@@ -56,6 +59,7 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
                             SubmissionKey submissionKey) {
     super(element);
     this.parentKey = parentKey;
+    this.topLevelKey = topLevelTableKey.getKey();
     this.submissionKey = submissionKey;
 
     FormDataModel bnDataModel = element.getFormDataModel();
@@ -96,6 +100,10 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.getBlob(ordinal, cc);
   }
 
+  public InputStream getBlobStream(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    return bcm.getBlobStream(ordinal, cc);
+  }
+
   /**
    * Convert value from byte array to data store blob type. Store blob in blob
    * storage and save the key of the blob storage into submission set. There can
@@ -111,7 +119,26 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
                                                                               String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
       throws ODKDatastoreException {
 
-    return bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
+    BinaryContentManipulator.BlobSubmissionOutcome outcome =
+        bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
+    if (byteArray != null && outcome != BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED
+        && ImagePreviewGenerator.isPreviewable(contentType)) {
+      // compute the previews in the background, off the request path
+      int count = bcm.getAttachmentCount(cc);
+      for (int ordinal = 1; ordinal <= count; ++ordinal) {
+        String filename = bcm.getUnrootedFilename(ordinal, cc);
+        if ((filename == null) ? (unrootedFilePath == null) : filename.equals(unrootedFilePath)) {
+          ImagePreviewGenerator.enqueue(generateSubmissionKey(ordinal), topLevelKey, bcm,
+              ordinal, bcm.getContentHash(ordinal, cc), contentType, byteArray, cc);
+          break;
+        }
+      }
+    }
+    return outcome;
+  }
+
+  public String getTopLevelKey() {
+    return topLevelKey;
   }
 
   @Override
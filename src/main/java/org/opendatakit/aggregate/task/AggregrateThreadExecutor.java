@@ -50,6 +50,17 @@ public class AggregrateThreadExecutor {
     exec.schedule(task, new Date(System.currentTimeMillis() + 100));
   }
 
+  /**
+   * Executes the task once, after the given delay.
+   *
+   * @param task                - the task to execute.
+   * @param delayInMilliseconds - the delay before the execution.
+   * @return object that can be used to cancel the task in the executor
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delayInMilliseconds) {
+    return exec.schedule(task, new Date(System.currentTimeMillis() + delayInMilliseconds));
+  }
+
   /**
    * Creates and executes a periodic action whose executions will commence every
    * period milliseconds.  I.e., at t, t+period, t+2*period, and so on. If any
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.FormElementModel.ElementType;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.parser.SubmissionLockTemplate;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.BinaryContentRefBlob;
+import org.opendatakit.common.datamodel.BlobStore;
+import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background move of submission attachments held in the database to the
+ * configured {@link BlobStore}. Started by the watchdog; a single server in
+ * the cluster moves attachments at a time, a batch at a time, until none are
+ * left in the database.
+ */
+public class BlobStoreMigration implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(BlobStoreMigration.class);
+
+  private static final String LOCK_FORM_ID = "aggregate.opendatakit.org:BlobStoreMigration";
+
+  private static final int BATCH_SIZE = 50;
+
+  // stop well short of the lock expiration; the next watchdog sweep resumes.
+  private static final long TIME_BUDGET_MILLISECONDS = TaskLockType.BLOB_STORE_MIGRATION
+      .getLockExpirationTimeout() / 2;
+
+  private static boolean running = false;
+
+  // no new attachments are written to the database while a BlobStore is configured.
+  private static boolean complete = false;
+
+  private final Watchdog watchdog;
+
+  private BlobStoreMigration(Watchdog watchdog) {
+    this.watchdog = watchdog;
+  }
+
+  /**
+   * Start moving attachments if a BlobStore is configured and there may be
+   * attachments left in the database.
+   */
+  public static synchronized void startIfNeeded(Watchdog watchdog) {
+    if (running || complete || BlobStore.getBlobStore() == null) {
+      return;
+    }
+    running = true;
+    try {
+      AggregrateThreadExecutor.getAggregateThreadExecutor().execute(new BlobStoreMigration(watchdog));
+    } catch (RuntimeException e) {
+      running = false;
+      throw e;
+    }
+  }
+
+  private static synchronized void finished(boolean allMoved) {
+    running = false;
+    complete = complete || allMoved;
+  }
+
+  @Override
+  public void run() {
+    boolean allMoved = false;
+    try {
+      CallingContext cc = watchdog.getCallingContext();
+      Datastore ds = cc.getDatastore();
+      String lockId = CommonFieldsBase.newUri();
+      TaskLock taskLock = ds.createTaskLock(cc.getCurrentUser());
+      if (!taskLock.obtainLock(lockId, LOCK_FORM_ID, TaskLockType.BLOB_STORE_MIGRATION)) {
+        return;
+      }
+      try {
+        allMoved = moveAttachments(lockId, cc);
+      } finally {
+        taskLock = ds.createTaskLock(cc.getCurrentUser());
+        taskLock.releaseLock(lockId, LOCK_FORM_ID, TaskLockType.BLOB_STORE_MIGRATION);
+      }
+    } catch (ODKDatastoreException | ODKTaskLockException e) {
+      logger.warn("Moving attachments to the blob store failed -- will retry", e);
+    } catch (RuntimeException e) {
+      logger.error("Moving attachments to the blob store failed -- will retry", e);
+    } finally {
+      finished(allMoved);
+    }
+  }
+
+  /**
+   * @return true if every attachment was visited and none remain in the database.
+   */
+  private boolean moveAttachments(String lockId, CallingContext cc)
+      throws ODKDatastoreException, ODKTaskLockException {
+    long deadline = System.currentTimeMillis() + TIME_BUDGET_MILLISECONDS;
+    Datastore ds = cc.getDatastore();
+    boolean allMoved = true;
+    int total = 0;
+    for (IForm form : FormFactory.getForms(false, cc)) {
+      List<FormElementModel> binaryElements = new ArrayList<FormElementModel>();
+      findBinaryElements(form.getTopLevelGroupElement(), binaryElements);
+      for (FormElementModel element : binaryElements) {
+        FormDataModel ctntRefDataModel = element.getFormDataModel().getChildren().get(0);
+        BinaryContentRefBlob ref = (BinaryContentRefBlob) ctntRefDataModel.getBackingObjectPrototype();
+        RefBlob blb = (RefBlob) ctntRefDataModel.getChildren().get(0).getBackingObjectPrototype();
+        QueryResumePoint cursor = null;
+        QueryResult page;
+        do {
+          if (System.currentTimeMillis() > deadline) {
+            logger.info("Moved " + total + " attachments to the blob store -- continuing later");
+            return false;
+          }
+          page = BinaryContentManipulator.queryDatabaseAttachments(ref, cursor, BATCH_SIZE, cc);
+          for (CommonFieldsBase cb : page.getResultList()) {
+            if (moveAttachment(form, (BinaryContentRefBlob) cb, ref, blb, cc)) {
+              ++total;
+            }
+          }
+          // attachments that could not be moved are left behind the cursor
+          cursor = page.getResumeCursor();
+          ds.createTaskLock(cc.getCurrentUser())
+              .renewLock(lockId, LOCK_FORM_ID, TaskLockType.BLOB_STORE_MIGRATION);
+        } while (page.hasMoreResults());
+        // anything left could not be moved; it is retried on the next run.
+        allMoved = allMoved && !BinaryContentManipulator.hasDatabaseAttachments(ref, cc);
+      }
+    }
+    logger.info("Moved " + total + " attachments to the blob store");
+    return allMoved;
+  }
+
+  /**
+   * Move one attachment while holding the lock that serializes changes to
+   * its submission, so that it is not moved while the submission is being
+   * updated or deleted.
+   */
+  private static boolean moveAttachment(IForm form, BinaryContentRefBlob firstPart,
+                                        BinaryContentRefBlob ref, RefBlob blb, CallingContext cc) {
+    SubmissionLockTemplate submissionLock = new SubmissionLockTemplate(form.getFormId(),
+        firstPart.getTopLevelAuri(), cc);
+    try {
+      submissionLock.acquire();
+    } catch (ODKTaskLockException e) {
+      logger.info("Submission " + firstPart.getTopLevelAuri() + " is busy -- moving its attachment later");
+      return false;
+    }
+    try {
+      return BinaryContentManipulator.migrateToBlobStore(firstPart, ref, blb, cc);
+    } finally {
+      try {
+        submissionLock.release();
+      } catch (ODKTaskLockException e) {
+        logger.warn("Unable to release the lock on submission " + firstPart.getTopLevelAuri(), e);
+      }
+    }
+  }
+
+  private static void findBinaryElements(FormElementModel element, List<FormElementModel> binaryElements) {
+    if (element.getElementType() == ElementType.BINARY) {
+      binaryElements.add(element);
+      return;
+    }
+    for (FormElementModel child : element.getChildren()) {
+      findBinaryElements(child, binaryElements);
+    }
+  }
+}
@@ -23,8 +23,23 @@ import org.opendatakit.common.web.CallingContext;
 
 public class CsvGenerator {
   public void createCsvTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
+    createCsvTask(form, persistentResultsKey, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public void createCsvTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, Runnable onFinished, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     CsvWorkerImpl worker = new CsvWorkerImpl(form, persistentResultsKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateCsv);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+      try {
+        worker.generateCsv();
+      } finally {
+        onFinished.run();
+      }
+    });
   }
 }
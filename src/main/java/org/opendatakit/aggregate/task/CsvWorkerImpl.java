@@ -28,6 +28,7 @@ import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.table.CsvFlatExporter;
 import org.opendatakit.aggregate.format.table.CsvFormatterWithFilters;
 import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
@@ -92,23 +93,29 @@ public class CsvWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
-      query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
-      formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), pw, filterGroup);
+      // flat forms on engines with a bulk export path skip the per-submission query loop
+      CsvFlatExporter flatExporter = new CsvFlatExporter(form, pw, filterGroup);
+      if (flatExporter.export(cc)) {
+        logger.info("streamed csv with a single select for " + form.getFormId());
+      } else {
+        query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+        formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), pw, filterGroup);
 
-      logger.info("after setup of CSV file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (; ; ) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if (submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+        logger.info("after setup of CSV file generation for " + form.getFormId());
+        formatter.beforeProcessSubmissions(cc);
+        List<Submission> submissions;
+        int count = 0;
+        for (; ; ) {
+          count++;
+          logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
+          submissions = query.getResultSubmissions(cc);
+          if (submissions.isEmpty()) break;
+          logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
+          formatter.processSubmissionSegment(submissions, cc);
+        }
+        logger.info("wrapping up csv generation for " + form.getFormId());
+        formatter.afterProcessSubmissions(cc);
       }
-      logger.info("wrapping up csv generation for " + form.getFormId());
-      formatter.afterProcessSubmissions(cc);
 
       // output file
       pw.close();
@@ -28,6 +28,15 @@ public class FormDelete {
   private static final Logger logger = LoggerFactory.getLogger(FormDelete.class);
 
   public void createFormDeleteTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, CallingContext cc) {
+    createFormDeleteTask(form, miscTasksKey, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public void createFormDeleteTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, Runnable onFinished, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     FormDeleteWorkerImpl worker = new FormDeleteWorkerImpl(form, miscTasksKey, attemptCount, wd.getCallingContext());
     AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
@@ -35,6 +44,8 @@ public class FormDelete {
         worker.deleteForm();
       } catch (ODKDatastoreException e) {
         logger.error("Error deleting form", e);
+      } finally {
+        onFinished.run();
       }
     });
   }
@@ -26,18 +26,21 @@ import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.externalservice.ExternalService;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
+import org.opendatakit.aggregate.form.FormImagePolicy;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.MiscTasks.TaskType;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.process.DeleteSubmissions;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.QueryResult;
-import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -56,7 +59,7 @@ import org.slf4j.LoggerFactory;
  */
 public class FormDeleteWorkerImpl {
 
-  public static final int FORM_DELETE_RECORD_QUERY_LIMIT = 50;
+  public static final int FORM_DELETE_RECORD_QUERY_LIMIT = 500;
 
   private final IForm form;
   private final SubmissionKey miscTasksKey;
@@ -300,28 +303,27 @@ public class FormDeleteWorkerImpl {
     }
 
     if (relation != null) {
-      QueryResumePoint startCursor = null;
       for (; ; ) {
         // retrieve submissions
+        // each pass removes the rows it retrieved, so always fetch the first page.
         Query surveyQuery = ds.createQuery(relation, "FormDeleteWorkerImpl.doDeletion", user);
         surveyQuery.addSort(relation.lastUpdateDate, Query.Direction.DESCENDING);
         surveyQuery.addSort(relation.primaryKey, Query.Direction.DESCENDING);
 
-        QueryResult result = surveyQuery.executeQuery(startCursor, FORM_DELETE_RECORD_QUERY_LIMIT);
-        startCursor = result.getResumeCursor();
+        QueryResult result = surveyQuery.executeQuery(null, FORM_DELETE_RECORD_QUERY_LIMIT);
 
         if (result.getResultList().size() == 0)
           break;
 
-        List<SubmissionKey> keys = new ArrayList<SubmissionKey>();
-        String topLevelGroupName = form.getTopLevelGroupElement().getElementName();
+        List<String> topLevelAuris = new ArrayList<String>();
         for (CommonFieldsBase en : result.getResultList()) {
           TopLevelDynamicBase tl = (TopLevelDynamicBase) en;
-          keys.add(new SubmissionKey(form.getFormId(), topLevelGroupName, tl.getUri()));
+          topLevelAuris.add(tl.getUri());
         }
-        DeleteSubmissions delete;
-        delete = new DeleteSubmissions(keys);
-        delete.deleteSubmissions(cc);
+        DeleteHelper.deleteSubmissionsByTopLevelAuri(topLevelAuris, relation,
+            form.getBackingTableSet(), cc);
+        SubmissionDigest.deleteDigests(topLevelAuris, cc);
+        ImagePreview.deletePreviews(topLevelAuris, cc);
 
         t.setLastActivityDate(new Date());
         t.persist(cc);
@@ -332,6 +334,8 @@ public class FormDeleteWorkerImpl {
         taskLock.renewLock(pFormIdLockId, t.getMiscTaskLockName(), t.getTaskType().getLockType());
         taskLock = null;
       }
+      SubmissionWatermark.clear(form.getFormId(), cc);
+      FormImagePolicy.clear(form.getFormId(), cc);
     }
 
     // we are avoiding strong locking, so some services might
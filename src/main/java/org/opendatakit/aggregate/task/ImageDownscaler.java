@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opendatakit.aggregate.exception.ODKOverloadedException;
+import org.opendatakit.aggregate.form.FormImagePolicy;
+import org.opendatakit.aggregate.util.ImageUtil;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a {@link FormImagePolicy} to image attachments as they are
+ * received. The work is done on a small fixed pool so that a burst of
+ * media-heavy submissions cannot occupy every request thread decoding
+ * photos; the submitting request waits for its own image.
+ * <p>
+ * The stored image must depend only on the uploaded bytes, so that a
+ * retried upload matches what was stored the first time. When the pool's
+ * queue is full or the image is not done in time, the submission is
+ * therefore rejected as overloaded rather than stored with the image as
+ * uploaded, and the client retries it later.
+ */
+public final class ImageDownscaler {
+
+  private static final Logger logger = LoggerFactory.getLogger(ImageDownscaler.class);
+
+  private static final int THREAD_COUNT = Math.max(1,
+      Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  private static final int MAX_QUEUED_IMAGES = 16;
+  private static final long MAX_WAIT_MILLISECONDS = 30000L;
+
+  private static ThreadPoolExecutor executor = null;
+
+  private ImageDownscaler() {
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      final AtomicInteger threadNumber = new AtomicInteger(1);
+      executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(MAX_QUEUED_IMAGES), r -> {
+        Thread t = new Thread(r, "image-downscale-" + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  public static boolean isDownscalable(String contentType) {
+    return HtmlConsts.RESP_TYPE_IMAGE_JPEG.equals(contentType);
+  }
+
+  /**
+   * @param image
+   * @param contentType
+   * @param policy      the form's policy; may be null.
+   * @param imageUtil
+   * @return the image to store; the given bytes if the policy does not apply
+   *     or could not be applied.
+   * @throws ODKOverloadedException if the pool is too busy to downscale the
+   *     image in time.
+   */
+  public static byte[] apply(final byte[] image, String contentType, final FormImagePolicy policy,
+                             final ImageUtil imageUtil) throws ODKOverloadedException {
+    if (policy == null || image == null || !isDownscalable(contentType)) {
+      return image;
+    }
+    final int maxDimension = policy.getMaxDimension();
+    final int jpegQuality = policy.getJpegQuality();
+    final boolean keepOriginal = policy.isKeepOriginal();
+    ThreadPoolExecutor pool = getExecutor();
+    Future<byte[]> result;
+    try {
+      result = pool.submit(
+          () -> imageUtil.downscaleImage(image, maxDimension, jpegQuality, keepOriginal));
+    } catch (RejectedExecutionException e) {
+      if (pool.isShutdown()) {
+        logger.debug("Image downscaling pool is unavailable; downscaling on the request thread");
+        return imageUtil.downscaleImage(image, maxDimension, jpegQuality, keepOriginal);
+      }
+      logger.warn("Image downscaling queue is full; rejecting the submission");
+      throw new ODKOverloadedException("Image downscaling queue is full");
+    }
+    try {
+      return result.get(MAX_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      result.cancel(true);
+      logger.warn("Image downscaling timed out; rejecting the submission");
+      throw new ODKOverloadedException("Image downscaling timed out");
+    } catch (ExecutionException e) {
+      logger.warn("Image downscaling failed; storing the original image", e.getCause());
+      return image;
+    } catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      return image;
+    }
+  }
+}
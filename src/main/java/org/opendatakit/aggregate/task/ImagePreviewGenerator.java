@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.ImagePreview.Rendition;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.util.ImageUtil;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the {@link ImagePreview} renditions of newly stored image
+ * attachments on a small dedicated pool, so that the submissions grid can
+ * serve previews without any image processing on the request path.
+ * <p>
+ * The queue holds the attachment bytes and is bounded both in entries and in
+ * bytes; when it is full, the preview is skipped and computed on first view
+ * instead.
+ */
+public final class ImagePreviewGenerator implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ImagePreviewGenerator.class);
+
+  private static final int THREAD_COUNT = 2;
+  private static final int MAX_QUEUED_IMAGES = 16;
+  private static final long MAX_QUEUED_BYTES = 32L * 1024L * 1024L;
+
+  // bytes of the images queued or being processed
+  private static final AtomicLong queuedBytes = new AtomicLong();
+
+  private static ThreadPoolExecutor executor = null;
+
+  private final Watchdog watchdog;
+  private final SubmissionKey attachmentKey;
+  private final String topLevelUri;
+  private final BinaryContentManipulator content;
+  private final int ordinal;
+  private final String contentHash;
+  private final byte[] image;
+
+  private ImagePreviewGenerator(Watchdog watchdog, SubmissionKey attachmentKey, String topLevelUri,
+                                BinaryContentManipulator content, int ordinal, String contentHash,
+                                byte[] image) {
+    this.watchdog = watchdog;
+    this.attachmentKey = attachmentKey;
+    this.topLevelUri = topLevelUri;
+    this.content = content;
+    this.ordinal = ordinal;
+    this.contentHash = contentHash;
+    this.image = image;
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      final AtomicInteger threadNumber = new AtomicInteger(1);
+      executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(MAX_QUEUED_IMAGES), r -> {
+        Thread t = new Thread(r, "image-preview-" + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  public static boolean isPreviewable(String contentType) {
+    return HtmlConsts.RESP_TYPE_IMAGE_JPEG.equals(contentType);
+  }
+
+  /**
+   * Queue the computation of the previews of an image attachment.
+   *
+   * @param content the manipulator holding the attachment, used to check
+   *                that it is still stored before a preview is saved.
+   * @param ordinal the ordinal of the attachment within content.
+   * @return false if the image is not previewable or the queue is full.
+   */
+  public static boolean enqueue(SubmissionKey attachmentKey, String topLevelUri,
+                                BinaryContentManipulator content, int ordinal, String contentHash,
+                                String contentType, byte[] image, CallingContext cc) {
+    if (!isPreviewable(contentType) || contentHash == null) {
+      return false;
+    }
+    if (queuedBytes.addAndGet(image.length) > MAX_QUEUED_BYTES) {
+      queuedBytes.addAndGet(-image.length);
+      logger.debug("Image preview queue is full; skipping " + attachmentKey);
+      return false;
+    }
+    Watchdog watchdog = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
+    try {
+      getExecutor().execute(new ImagePreviewGenerator(watchdog, attachmentKey, topLevelUri,
+          content, ordinal, contentHash, image));
+      return true;
+    } catch (RejectedExecutionException e) {
+      queuedBytes.addAndGet(-image.length);
+      logger.debug("Image preview queue is full; skipping " + attachmentKey);
+      return false;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      CallingContext cc = watchdog.getCallingContext();
+      ImageUtil imageUtil = watchdog.getImageUtil();
+      for (Rendition rendition : Rendition.values()) {
+        byte[] preview = imageUtil.resizeImage(image, rendition.width, rendition.height);
+        if (preview == image) {
+          // not decodable, or already small enough to be its own preview
+          continue;
+        }
+        // the submission may have been deleted, or the attachment replaced,
+        // while the image was queued. Check again once the preview is
+        // stored, as a delete may have cleared the previews in between.
+        if (!content.isStoredContent(ordinal, contentHash, cc)) {
+          return;
+        }
+        ImagePreview.store(attachmentKey, topLevelUri, contentHash, rendition, preview, cc);
+        if (!content.isStoredContent(ordinal, contentHash, cc)) {
+          ImagePreview.deletePreview(attachmentKey, rendition, cc);
+          return;
+        }
+      }
+    } catch (ODKDatastoreException | RuntimeException e) {
+      logger.warn("Unable to store image preview for " + attachmentKey, e);
+    } finally {
+      queuedBytes.addAndGet(-image.length);
+    }
+  }
+}
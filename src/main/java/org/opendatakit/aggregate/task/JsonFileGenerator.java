@@ -24,8 +24,23 @@ import org.opendatakit.common.web.CallingContext;
 
 public class JsonFileGenerator {
   public void createJsonFileTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
+    createJsonFileTask(form, persistentResultsKey, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public void createJsonFileTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, Runnable onFinished, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     JsonFileWorkerImpl worker = new JsonFileWorkerImpl(form, persistentResultsKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateJsonFile);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+      try {
+        worker.generateJsonFile();
+      } finally {
+        onFinished.run();
+      }
+    });
   }
 }
@@ -16,8 +16,6 @@
 package org.opendatakit.aggregate.task;
 
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
@@ -71,7 +69,6 @@ public class JsonFileWorkerImpl {
 
     try {
       ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
 
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
@@ -94,7 +91,7 @@ public class JsonFileWorkerImpl {
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
       query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
-      formatter = new JsonFormatterWithFilters(pw, form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
+      formatter = new JsonFormatterWithFilters(stream, form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
 
       logger.info("after setup of JSON file generation for " + form.getFormId());
       formatter.beforeProcessSubmissions(cc);
@@ -112,7 +109,6 @@ public class JsonFileWorkerImpl {
       formatter.afterProcessSubmissions(cc);
 
       // output file
-      pw.close();
       byte[] outputFile = stream.toByteArray();
 
       // refetch because this might have taken a while...
@@ -33,9 +33,24 @@ import org.opendatakit.common.web.CallingContext;
 public class KmlGenerator {
 
   public void createKmlTask(IForm form, PersistentResults persistentResults, long attemptCount, CallingContext cc) throws ODKDatastoreException {
+    createKmlTask(form, persistentResults, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public void createKmlTask(IForm form, PersistentResults persistentResults, long attemptCount, Runnable onFinished, CallingContext cc) throws ODKDatastoreException {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     KmlWorkerImpl worker = new KmlWorkerImpl(form, persistentResults.getSubmissionKey(), attemptCount, getKmlElementsToInclude(persistentResults), wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateKml);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+      try {
+        worker.generateKml();
+      } finally {
+        onFinished.run();
+      }
+    });
   }
 
   private static List<KmlSelection> getKmlElementsToInclude(PersistentResults persistentResults) throws ODKDatastoreException {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.common.OperationalStatus;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wakes up the streaming publishers of a form when one of its submissions
+ * becomes complete, so that new submissions are published without waiting
+ * for the next Watchdog cycle.
+ * <p>
+ * Publishing is still throttled through BackendActionsTable. When a
+ * completed submission arrives within the throttling window, a single
+ * wake-up is scheduled for the end of that window rather than leaving the
+ * submission to the Watchdog. Further completions for the same form while
+ * that wake-up is pending are folded into it.
+ */
+public final class PublisherWakeup {
+
+  private static final Logger logger = LoggerFactory.getLogger(PublisherWakeup.class);
+
+  /**
+   * formIds that have a wake-up scheduled and not yet run.
+   */
+  private static final Set<String> pendingWakeups = new HashSet<String>();
+
+  private PublisherWakeup() {
+  }
+
+  /**
+   * Called when a submission to the form has been marked as complete.
+   * Publication failures are logged and never propagated to the caller.
+   *
+   * @param form
+   * @param cc
+   */
+  public static void submissionCompleted(IForm form, CallingContext cc) {
+    Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
+    CallingContext ccDaemon = wd.getCallingContext();
+    try {
+      if (BackendActionsTable.triggerPublisher(form.getUri(), ccDaemon)) {
+        createUploadTasks(form, ccDaemon);
+      } else {
+        scheduleWakeup(form.getFormId(), wd);
+      }
+    } catch (Exception e) {
+      logger.error("Unable to wake up publishers for form " + form.getFormId(), e);
+    }
+  }
+
+  private static synchronized void scheduleWakeup(final String formId, final Watchdog wd) {
+    if (!pendingWakeups.add(formId)) {
+      // an earlier wake-up will also pick up this submission
+      return;
+    }
+    logger.debug("Scheduling publisher wake-up for form {}", formId);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        wakeup(formId, wd);
+      }
+    }, BackendActionsTable.PUBLISHING_DELAY_MILLISECONDS);
+  }
+
+  private static void wakeup(String formId, Watchdog wd) {
+    synchronized (PublisherWakeup.class) {
+      pendingWakeups.remove(formId);
+    }
+    CallingContext cc = wd.getCallingContext();
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(formId, cc);
+      if (BackendActionsTable.triggerPublisher(form.getUri(), cc)) {
+        createUploadTasks(form, cc);
+      } else {
+        // another trigger fired inside the window -- try again at its end
+        scheduleWakeup(formId, wd);
+      }
+    } catch (ODKFormNotFoundException e) {
+      // form was deleted; nothing to publish
+    } catch (Exception e) {
+      logger.error("Publisher wake-up failed for form " + formId, e);
+    }
+  }
+
+  private static void createUploadTasks(IForm form, CallingContext cc) throws ODKDatastoreException {
+    // a page read before the submission completed would hide it from the publishers
+    SharedStreamingPages.invalidate(form.getFormId());
+    UploadSubmissions uploadTask = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
+    for (FormServiceCursor fsc : FormServiceCursor.getFormServiceCursorsForForm(form, cc)) {
+      // only create upload tasks for active publishers
+      if (fsc.getOperationalStatus() == OperationalStatus.ACTIVE) {
+        uploadTask.createFormUploadTask(fsc, cc);
+      }
+    }
+  }
+}
@@ -63,8 +63,23 @@ public class PurgeOlderSubmissions {
   }
 
   public final void createPurgeOlderSubmissionsTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, CallingContext cc) {
+    createPurgeOlderSubmissionsTask(form, miscTasksKey, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public final void createPurgeOlderSubmissionsTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, Runnable onFinished, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     PurgeOlderSubmissionsWorkerImpl worker = new PurgeOlderSubmissionsWorkerImpl(form, miscTasksKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::purgeOlderSubmissions);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+      try {
+        worker.purgeOlderSubmissions();
+      } finally {
+        onFinished.run();
+      }
+    });
   }
 }
@@ -30,10 +30,13 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
-import org.opendatakit.aggregate.process.DeleteSubmissions;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.Query.FilterOperation;
@@ -53,7 +56,7 @@ import org.slf4j.LoggerFactory;
  * older than a given date.
  */
 public class PurgeOlderSubmissionsWorkerImpl {
-  private static final int MAX_QUERY_LIMIT = 100;
+  private static final int MAX_QUERY_LIMIT = 500;
 
   private final IForm form;
   private final SubmissionKey miscTasksKey;
@@ -191,14 +194,15 @@ public class PurgeOlderSubmissionsWorkerImpl {
         if (topLevelEntities.size() == 0)
           break;
 
-        List<SubmissionKey> keys = new ArrayList<SubmissionKey>();
+        List<String> topLevelAuris = new ArrayList<String>();
         for (TopLevelDynamicBase tld : topLevelEntities) {
-          keys.add(new SubmissionKey(form.getFormId(), form.getTopLevelGroupElement().getElementName(), tld.getEntityKey().getKey()));
+          topLevelAuris.add(tld.getUri());
         }
 
-        DeleteSubmissions delete;
-        delete = new DeleteSubmissions(keys);
-        delete.deleteSubmissions(cc);
+        DeleteHelper.deleteSubmissionsByTopLevelAuri(topLevelAuris, relation,
+            form.getBackingTableSet(), cc);
+        SubmissionDigest.deleteDigests(topLevelAuris, cc);
+        ImagePreview.deletePreviews(topLevelAuris, cc);
 
         logger.info("successfully deleted " + topLevelEntities.size() + " submissions");
         t.setLastActivityDate(new Date());
@@ -210,6 +214,7 @@ public class PurgeOlderSubmissionsWorkerImpl {
         taskLock.renewLock(pFormIdLockId, t.getMiscTaskLockName(), t.getTaskType().getLockType());
         taskLock = null;
       }
+      SubmissionWatermark.clear(form.getFormId(), cc);
     }
     doMarkAsComplete(t);
     return true;
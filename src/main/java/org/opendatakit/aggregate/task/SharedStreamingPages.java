@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.task;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
+import org.opendatakit.aggregate.constants.common.OperationalStatus;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.query.submission.QueryByDateRange;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the pages of newly completed submissions read for streaming
+ * publishers, so that a form with several publishers runs one range query
+ * for each page of new submissions rather than one per publisher.
+ * <p>
+ * A page is read starting from the minimum streaming cursor across the
+ * form's active publishers and is kept for a short time. The submissions of
+ * the page are reconstructed once, when it is read, and are shared by the
+ * publishers; each publisher takes the portion of the page that follows its
+ * own cursor and advances its cursor independently. The shared submissions
+ * are only read by the publishers. Their attachments are loaded on first
+ * use, and {@link org.opendatakit.common.datamodel.BinaryContentManipulator}
+ * does that under its own lock.
+ * <p>
+ * {@link PublisherWakeup} drops a form's page when one of its submissions
+ * completes, so the woken publishers read the new submission.
+ */
+final class SharedStreamingPages {
+
+  private static final Logger logger = LoggerFactory.getLogger(SharedStreamingPages.class);
+
+  /**
+   * lifetime of a shared page. 30 seconds.
+   */
+  private static final long PAGE_LIFETIME_MILLISECONDS = PersistConsts.MAX_SETTLE_MILLISECONDS * 10L;
+
+  /**
+   * lifetime of a page that reached the end of the submissions. The range
+   * query stops this far short of the current time, so newer submissions
+   * become visible to a new query after it.
+   */
+  private static final long COMPLETE_PAGE_LIFETIME_MILLISECONDS = PersistConsts.MAX_SETTLE_MILLISECONDS;
+
+  /**
+   * the most recently read page for each formId.
+   */
+  private static final Map<String, Page> pages = new ConcurrentHashMap<String, Page>();
+
+  /**
+   * serializes the reading of pages for each formId; other forms are not held up.
+   */
+  private static final ConcurrentHashMap<String, Object> formLocks = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * numbers the page reads and invalidations, so that a page whose read
+   * started before the latest invalidation of its form is not used.
+   */
+  private static final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * the sequence number of the latest invalidation of each formId.
+   */
+  private static final Map<String, Long> invalidations = new ConcurrentHashMap<String, Long>();
+
+  private SharedStreamingPages() {
+  }
+
+  /**
+   * Drop the page of the given form, e.g. because one of its submissions
+   * has just completed. A page being read at the same time is not kept.
+   */
+  static void invalidate(String formId) {
+    invalidations.put(formId, sequence.incrementAndGet());
+    pages.remove(formId);
+  }
+
+  /**
+   * @return the sequence number to give a page that is about to be read.
+   */
+  static long startRead() {
+    return sequence.incrementAndGet();
+  }
+
+  /**
+   * Keep the page as the form's current page unless the form was
+   * invalidated after its read started.
+   */
+  static void cachePage(String formId, Page page) {
+    if (isCurrent(formId, page)) {
+      pages.put(formId, page);
+    }
+  }
+
+  /**
+   * @return up to fetchLimit submissions following the cursor from the
+   *     form's current page, or null if there is no page or it does not cover
+   *     the cursor.
+   */
+  static List<Submission> getCachedSubmissionsAfter(String formId, Date date, String key, int fetchLimit) {
+    Page page = pages.get(formId);
+    if (page == null || !isCurrent(formId, page)) {
+      return null;
+    }
+    return page.getSubmissionsAfter(date, key, fetchLimit);
+  }
+
+  private static boolean isCurrent(String formId, Page page) {
+    Long invalidation = invalidations.get(formId);
+    return invalidation == null || page.readSequence > invalidation;
+  }
+
+  /**
+   * Return up to fetchLimit submissions that follow the streaming cursor of
+   * the given publisher, reading a new shared page if the current one does
+   * not cover that cursor.
+   */
+  static List<Submission> getSubmissionsAfterCursor(IForm form, FormServiceCursor fsc,
+                                                    int fetchLimit, CallingContext cc) throws ODKDatastoreException {
+    long now = System.currentTimeMillis();
+    Iterator<Page> it = pages.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().isExpired(now)) {
+        it.remove();
+      }
+    }
+
+    Date startDate = getStreamingCursorDate(fsc);
+    String lastStreamedKey = fsc.getLastStreamingKey();
+
+    List<Submission> submissions;
+    Object formLock = formLocks.computeIfAbsent(form.getFormId(), k -> new Object());
+    synchronized (formLock) {
+      submissions = getSubmissionsAfterCursor(form, startDate, lastStreamedKey, fetchLimit, now, cc);
+    }
+    if (submissions == null) {
+      // this publisher is ahead of the page read for the slowest publisher.
+      QueryByDateRange query = new QueryByDateRange(form, fetchLimit, startDate, lastStreamedKey, cc);
+      return query.getResultSubmissions(cc);
+    }
+    return submissions;
+  }
+
+  /**
+   * @return up to fetchLimit submissions following the cursor, or null if
+   *     neither the current page nor a newly read one covers it.
+   */
+  private static List<Submission> getSubmissionsAfterCursor(IForm form, Date startDate, String lastStreamedKey,
+                                                            int fetchLimit, long now, CallingContext cc) throws ODKDatastoreException {
+    List<Submission> submissions = getCachedSubmissionsAfter(form.getFormId(), startDate, lastStreamedKey, fetchLimit);
+    if (submissions != null) {
+      return submissions;
+    }
+
+    // read a new page from the minimum cursor across the form's publishers
+    Date minDate = startDate;
+    String minKey = lastStreamedKey;
+    for (FormServiceCursor other : FormServiceCursor.getFormServiceCursorsForForm(form, cc)) {
+      if (!isStreaming(other)) {
+        continue;
+      }
+      Date otherDate = getStreamingCursorDate(other);
+      String otherKey = other.getLastStreamingKey();
+      if (otherDate.before(minDate) || (otherDate.equals(minDate) && otherKey == null)) {
+        // cursors with the same date but different keys cannot be ordered
+        // here (that is the database's collation); either will do.
+        minDate = otherDate;
+        minKey = otherKey;
+      }
+    }
+
+    long readSequence = startRead();
+    QueryByDateRange query = new QueryByDateRange(form, fetchLimit, minDate, minKey, cc);
+    List<String> pageUris = new ArrayList<String>();
+    List<Date> pageDates = new ArrayList<Date>();
+    List<Submission> pageSubmissions = new ArrayList<Submission>();
+    for (TopLevelDynamicBase tle : query.getResultEntities()) {
+      pageUris.add(tle.getUri());
+      pageDates.add(tle.getMarkedAsCompleteDate());
+      pageSubmissions.add(reconstruct(tle, form, cc));
+    }
+    Page page = new Page(minDate, minKey, pageUris, pageDates, pageSubmissions, fetchLimit, now, readSequence);
+    cachePage(form.getFormId(), page);
+    return page.getSubmissionsAfter(startDate, lastStreamedKey, fetchLimit);
+  }
+
+  /**
+   * Reconstruct the submission from the top-level row the range query read.
+   *
+   * @return the submission, or null if it is malformed and those are skipped.
+   */
+  private static Submission reconstruct(TopLevelDynamicBase tle, IForm form, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      return new Submission(tle, form, cc);
+    } catch (ODKEntityNotFoundException | ODKEnumeratedElementException e) {
+      // as QueryByDateRange does
+      logger.error("Unable to reconstruct submission for " + tle.getSchemaName() + "."
+          + tle.getTableName() + " uri " + tle.getUri(), e);
+      if (!ServerPreferencesProperties.getSkipMalformedSubmissions(cc)) {
+        throw e;
+      }
+      return null;
+    }
+  }
+
+  private static boolean isStreaming(FormServiceCursor fsc) {
+    OperationalStatus status = fsc.getOperationalStatus();
+    if (status != OperationalStatus.ACTIVE && status != OperationalStatus.ACTIVE_RETRY) {
+      return false;
+    }
+    if (!Boolean.TRUE.equals(fsc.isExternalServicePrepared())) {
+      return false;
+    }
+    ExternalServicePublicationOption option = fsc.getExternalServicePublicationOption();
+    return option == ExternalServicePublicationOption.STREAM_ONLY
+        || (option == ExternalServicePublicationOption.UPLOAD_N_STREAM
+        && Boolean.TRUE.equals(fsc.getUploadCompleted()));
+  }
+
+  private static Date getStreamingCursorDate(FormServiceCursor fsc) {
+    Date startDate = fsc.getLastStreamingCursorDate();
+    if (startDate == null) {
+      startDate = fsc.getEstablishmentDateTime();
+    }
+    return startDate;
+  }
+
+  static final class Page {
+    final long startDate;
+    final String startKey;
+    // in the order of the range query: by markedAsCompleteDate, then _URI
+    final List<String> uris = new ArrayList<String>();
+    final List<Long> dates = new ArrayList<Long>();
+    // null where a malformed submission is skipped
+    final List<Submission> submissions = new ArrayList<Submission>();
+    final boolean complete;
+    final long loadTimestamp;
+    final long readSequence;
+
+    /**
+     * @param uris  the URIs of the submissions read, in query order.
+     * @param dates their markedAsCompleteDate values.
+     * @param submissions the submissions reconstructed from them.
+     */
+    Page(Date startDate, String startKey, List<String> uris, List<Date> dates,
+         List<Submission> submissions, int fetchLimit, long loadTimestamp, long readSequence) {
+      this.startDate = startDate.getTime();
+      this.startKey = startKey;
+      this.uris.addAll(uris);
+      this.submissions.addAll(submissions);
+      for (Date date : dates) {
+        this.dates.add(date.getTime());
+      }
+      this.complete = uris.size() < fetchLimit;
+      this.loadTimestamp = loadTimestamp;
+      this.readSequence = readSequence;
+    }
+
+    boolean isExpired(long now) {
+      long lifetime = complete ? COMPLETE_PAGE_LIFETIME_MILLISECONDS : PAGE_LIFETIME_MILLISECONDS;
+      return loadTimestamp + lifetime < now;
+    }
+
+    /**
+     * @return the submissions following the cursor, or null if this page does
+     *     not cover the cursor.
+     */
+    List<Submission> getSubmissionsAfter(Date date, String key, int fetchLimit) {
+      int start = findStart(date.getTime(), key);
+      if (start == -1) {
+        return null;
+      }
+      int end = Math.min(uris.size(), start + fetchLimit);
+      if (start == end && !complete) {
+        // the cursor is at or beyond the end of a full page
+        return null;
+      }
+      List<Submission> after = new ArrayList<Submission>();
+      for (Submission submission : submissions.subList(start, end)) {
+        if (submission != null) {
+          after.add(submission);
+        }
+      }
+      return after;
+    }
+
+    /**
+     * Locate the cursor by its position in the page rather than by comparing
+     * keys here, since String ordering need not match the collation the
+     * database sorted the keys with.
+     *
+     * @return the index of the first submission following the cursor, or -1
+     *     if the page does not determine it.
+     */
+    private int findStart(long date, String key) {
+      if (date == startDate && (key == null ? startKey == null : key.equals(startKey))) {
+        return 0;
+      }
+      if (date < startDate) {
+        return -1;
+      }
+      if (key == null) {
+        // a null key precedes every key of the same date
+        if (date == startDate) {
+          return -1;
+        }
+        int start = 0;
+        while (start < dates.size() && dates.get(start) < date) {
+          ++start;
+        }
+        return start;
+      }
+      int idx = uris.indexOf(key);
+      if (idx != -1 && dates.get(idx) == date) {
+        return idx + 1;
+      }
+      if (date == startDate || dates.contains(date)) {
+        // a submission of the same date that is not in the page
+        return -1;
+      }
+      int start = 0;
+      while (start < dates.size() && dates.get(start) < date) {
+        ++start;
+      }
+      return start;
+    }
+  }
+}
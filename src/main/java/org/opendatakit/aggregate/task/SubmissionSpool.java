@@ -0,0 +1,680 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.servlet.ServletContext;
+import org.opendatakit.aggregate.exception.ODKOverloadedException;
+import org.opendatakit.aggregate.parser.MultiPartFormData;
+import org.opendatakit.aggregate.parser.MultiPartFormItem;
+import org.opendatakit.aggregate.parser.SubmissionParser;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.security.UserService;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Optional asynchronous ingestion of multipart submissions.
+ * <p>
+ * When configured with a spool directory, the SubmissionServlet writes the
+ * raw upload to a checksummed, fsync'd spool file and acknowledges it right
+ * away. A bounded pool of ingest workers then drains the spool through the
+ * SubmissionParser. Each worker has its own queue, and uploads are routed by
+ * instance ID, so that the uploads of one submission (e.g., the parts of a
+ * partial upload) are ingested one at a time and in the order they arrived.
+ * They are stored as the user who uploaded them. Spool files left over from
+ * a previous run are ingested on startup. Uploads that fail to ingest are
+ * moved into the <code>failed</code> sub-directory of the spool for
+ * inspection.
+ * <p>
+ * The spool is not configured by default; add the bean to odk-settings.xml
+ * to enable it.
+ */
+public class SubmissionSpool implements InitializingBean, DisposableBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionSpool.class);
+
+  private static final int SPOOL_FILE_MAGIC = 0x4F444B53; // "ODKS"
+  /**
+   * version 2 adds the instance ID and the uploading user.
+   */
+  private static final int SPOOL_FILE_VERSION = 2;
+  private static final int SPOOL_FILE_VERSION_1 = 1;
+  private static final String SPOOL_FILE_SUFFIX = ".spool";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final String FAILED_DIRECTORY = "failed";
+  /**
+   * attempts made to ingest a spool file that hits datastore or lock failures.
+   */
+  private static final int MAX_INGEST_ATTEMPTS = 5;
+  /**
+   * delay before re-attempting such a spool file. 30 seconds. The worker
+   * waits rather than moving on, so that later uploads of the same
+   * submission are not ingested ahead of it.
+   */
+  private static final long RETRY_DELAY_MILLISECONDS = 30000L;
+  /**
+   * minimum interval between spool status log entries. 1 minute.
+   */
+  private static final long STATUS_LOG_INTERVAL_MILLISECONDS = 60000L;
+  /**
+   * age of the oldest queued upload beyond which the status is logged as a
+   * warning. 5 minutes.
+   */
+  private static final long BACKLOG_WARNING_MILLISECONDS = 300000L;
+
+  private static SubmissionSpool classInstance = null;
+
+  private String spoolDirectory = null;
+  private int workerCount = 2;
+  private int maxQueueDepth = 1000;
+  private Watchdog watchdog = null;
+
+  private File spoolDir;
+  private File failedDir;
+  private final List<BlockingQueue<File>> queues = new ArrayList<BlockingQueue<File>>();
+  private ExecutorService workers = null;
+  private final AtomicLong spooledCount = new AtomicLong();
+  private final AtomicLong ingestedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private long lastStatusLogTime = 0L;
+
+  /**
+   * @return the configured spool, or null if asynchronous ingestion is not enabled.
+   */
+  public static synchronized SubmissionSpool getSubmissionSpool() {
+    return classInstance;
+  }
+
+  private static synchronized void setSubmissionSpool(SubmissionSpool spool) {
+    classInstance = spool;
+  }
+
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  public void setSpoolDirectory(String spoolDirectory) {
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  public int getWorkerCount() {
+    return workerCount;
+  }
+
+  public void setWorkerCount(int workerCount) {
+    this.workerCount = workerCount;
+  }
+
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  public void setMaxQueueDepth(int maxQueueDepth) {
+    this.maxQueueDepth = maxQueueDepth;
+  }
+
+  public Watchdog getWatchdog() {
+    return watchdog;
+  }
+
+  public void setWatchdog(Watchdog watchdog) {
+    this.watchdog = watchdog;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (spoolDirectory == null || spoolDirectory.trim().length() == 0) {
+      logger.info("No spool directory specified; submissions are ingested synchronously");
+      return;
+    }
+    if (watchdog == null)
+      throw new IllegalStateException("no watchdog specified");
+    if (workerCount < 1)
+      throw new IllegalStateException("workerCount must be at least 1");
+
+    spoolDir = new File(spoolDirectory.trim());
+    failedDir = new File(spoolDir, FAILED_DIRECTORY);
+    if (!failedDir.isDirectory() && !failedDir.mkdirs()) {
+      throw new IOException("Unable to create spool directory " + failedDir.getAbsolutePath());
+    }
+    for (int i = 0; i < workerCount; ++i) {
+      queues.add(new LinkedBlockingQueue<File>());
+    }
+
+    // discard partially-written files; their uploads were never acknowledged.
+    // then queue anything spooled but not ingested before the last shutdown.
+    File[] files = spoolDir.listFiles();
+    int resumed = 0;
+    if (files != null) {
+      Arrays.sort(files);
+      for (File f : files) {
+        if (f.getName().endsWith(TEMP_FILE_SUFFIX)) {
+          if (!f.delete()) {
+            logger.warn("Unable to delete partial spool file " + f.getName());
+          }
+        } else if (f.getName().endsWith(SPOOL_FILE_SUFFIX)) {
+          String instanceId = null;
+          try {
+            instanceId = readSpoolFileInstanceId(f);
+          } catch (IOException e) {
+            // the worker moves it to the failed directory
+          }
+          queues.get(getWorkerIndex(instanceId, workerCount)).add(f);
+          ++resumed;
+        }
+      }
+    }
+    if (resumed != 0) {
+      logger.info("Resuming ingestion of " + resumed + " spooled submissions");
+    }
+
+    workers = Executors.newFixedThreadPool(workerCount);
+    for (BlockingQueue<File> queue : queues) {
+      workers.execute(new IngestWorker(queue));
+    }
+    setSubmissionSpool(this);
+  }
+
+  @Override
+  public void destroy() {
+    setSubmissionSpool(null);
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Durably writes the upload to the spool and queues it for ingestion.
+   *
+   * @param data
+   * @param isIncomplete
+   * @param instanceId   the instance ID of the submission.
+   * @param user         the user who uploaded it; it is stored as this user.
+   * @return false if the spool is full; the caller should then ingest the
+   *     upload synchronously.
+   * @throws IOException if the upload could not be written to disk.
+   */
+  public boolean spool(MultiPartFormData data, boolean isIncomplete, String instanceId, User user) throws IOException {
+    logStatus();
+    if (getQueueDepth() >= maxQueueDepth) {
+      return false;
+    }
+    // name files by spool time so that leftover files resume in order
+    String name = String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID());
+    File temp = new File(spoolDir, name + TEMP_FILE_SUFFIX);
+    File ready = new File(spoolDir, name + SPOOL_FILE_SUFFIX);
+    try {
+      writeSpoolFile(temp, data, isIncomplete, instanceId, user);
+      Files.move(temp.toPath(), ready.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (temp.exists() && !temp.delete()) {
+        logger.warn("Unable to delete partial spool file " + temp.getName());
+      }
+    }
+    syncDirectory(spoolDir);
+    queues.get(getWorkerIndex(instanceId, workerCount)).add(ready);
+    spooledCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return the index of the worker that ingests the uploads of the given
+   *     instance.
+   */
+  static int getWorkerIndex(String instanceId, int workerCount) {
+    return (instanceId == null) ? 0 : Math.floorMod(instanceId.hashCode(), workerCount);
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<File> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return age, in milliseconds, of the oldest queued upload, or 0 if the
+   *     queue is empty.
+   */
+  public long getOldestSpooledAgeMillis() {
+    long oldest = Long.MAX_VALUE;
+    for (BlockingQueue<File> queue : queues) {
+      // each queue is in spool order
+      File f = queue.peek();
+      if (f != null) {
+        oldest = Math.min(oldest, getSpoolTime(f));
+      }
+    }
+    return (oldest == Long.MAX_VALUE) ? 0L : Math.max(0L, System.currentTimeMillis() - oldest);
+  }
+
+  public long getSpooledCount() {
+    return spooledCount.get();
+  }
+
+  public long getIngestedCount() {
+    return ingestedCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  private static long getSpoolTime(File f) {
+    String name = f.getName();
+    int idx = name.indexOf('-');
+    try {
+      return Long.parseLong(name.substring(0, idx));
+    } catch (RuntimeException e) {
+      return f.lastModified();
+    }
+  }
+
+  private void ingest(File f) throws InterruptedException {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        SpooledUpload upload = readSpoolFile(f);
+        CallingContext cc = watchdog.getCallingContext();
+        if (upload.uriUser != null) {
+          cc = new UploaderCallingContext(cc,
+              new SpoolUser(upload.uriUser, upload.isAnonymous, upload.isRegistered));
+        }
+        SubmissionParser submissionParser = new SubmissionParser(upload.data, upload.isIncomplete, cc);
+        if (!submissionParser.wasPreexistingComplete() &&
+            submissionParser.getSubmission().isComplete()) {
+          PublisherWakeup.submissionCompleted(submissionParser.getForm(), cc);
+        }
+        if (!f.delete()) {
+          logger.warn("Unable to delete ingested spool file " + f.getName());
+        }
+        ingestedCount.incrementAndGet();
+        return;
+      } catch (ODKDatastoreException | ODKTaskLockException | ODKOverloadedException e) {
+        if (attempt >= MAX_INGEST_ATTEMPTS) {
+          fail(f, e);
+          return;
+        }
+        logger.warn("Ingestion of spool file " + f.getName() + " failed (attempt " + attempt
+            + "); retrying - " + e.getMessage());
+        Thread.sleep(RETRY_DELAY_MILLISECONDS);
+      } catch (Exception e) {
+        fail(f, e);
+        return;
+      }
+    }
+  }
+
+  private void fail(File f, Exception e) {
+    failedCount.incrementAndGet();
+    logger.error("Ingestion of spool file " + f.getName() + " failed; moving it to "
+        + failedDir.getAbsolutePath(), e);
+    try {
+      Files.move(f.toPath(), new File(failedDir, f.getName()).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      logger.error("Unable to move spool file " + f.getName(), ex);
+    }
+  }
+
+  /**
+   * Logged from both the upload and the ingest side, so that a spool whose
+   * workers are stuck is still reported while uploads keep arriving.
+   */
+  private synchronized void logStatus() {
+    long now = System.currentTimeMillis();
+    if (lastStatusLogTime + STATUS_LOG_INTERVAL_MILLISECONDS < now) {
+      lastStatusLogTime = now;
+      long oldest = getOldestSpooledAgeMillis();
+      String status = "Submission spool: depth " + getQueueDepth() + ", oldest " + oldest
+          + "ms, spooled " + getSpooledCount() + ", ingested " + getIngestedCount()
+          + ", failed " + getFailedCount();
+      if (oldest > BACKLOG_WARNING_MILLISECONDS) {
+        logger.warn(status + "; ingestion is falling behind");
+      } else {
+        logger.info(status);
+      }
+    }
+  }
+
+  private class IngestWorker implements Runnable {
+    private final BlockingQueue<File> queue;
+
+    IngestWorker(BlockingQueue<File> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (; ; ) {
+          File f = queue.take();
+          ingest(f);
+          logStatus();
+        }
+      } catch (InterruptedException e) {
+        // shutting down
+      }
+    }
+  }
+
+  static final class SpooledUpload {
+    final MultiPartFormData data;
+    final boolean isIncomplete;
+    final String instanceId;
+    final String uriUser;
+    final boolean isAnonymous;
+    final boolean isRegistered;
+
+    SpooledUpload(MultiPartFormData data, boolean isIncomplete, String instanceId, String uriUser,
+                  boolean isAnonymous, boolean isRegistered) {
+      this.data = data;
+      this.isIncomplete = isIncomplete;
+      this.instanceId = instanceId;
+      this.uriUser = uriUser;
+      this.isAnonymous = isAnonymous;
+      this.isRegistered = isRegistered;
+    }
+  }
+
+  static void writeSpoolFile(File f, MultiPartFormData data, boolean isIncomplete, String instanceId, User user) throws IOException {
+    FileOutputStream fos = new FileOutputStream(f);
+    try {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new CheckedOutputStream(fos, crc)));
+      out.writeInt(SPOOL_FILE_MAGIC);
+      out.writeInt(SPOOL_FILE_VERSION);
+      out.writeBoolean(isIncomplete);
+      writeString(out, instanceId);
+      writeString(out, user.getUriUser());
+      out.writeBoolean(user.isAnonymous());
+      out.writeBoolean(user.isRegistered());
+      Map<String, String> simpleFields = data.getSimpleFormFields();
+      out.writeInt(simpleFields.size());
+      for (Map.Entry<String, String> e : simpleFields.entrySet()) {
+        writeString(out, e.getKey());
+        writeString(out, e.getValue());
+      }
+      List<MultiPartFormItem> items = data.getFormItems();
+      out.writeInt(items.size());
+      for (MultiPartFormItem item : items) {
+        writeString(out, item.getName());
+        writeString(out, item.getFilename());
+        writeString(out, item.getContentType());
+        out.writeInt(item.getStream().size());
+        item.getStream().writeTo(out);
+      }
+      out.flush();
+      // the checksum trails the content it covers
+      new DataOutputStream(fos).writeLong(crc.getValue());
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Streams the spool file; the checksum is verified once the content has
+   * been read.
+   */
+  static SpooledUpload readSpoolFile(File f) throws IOException {
+    long contentLength = f.length() - 8;
+    if (contentLength < 0) {
+      throw new IOException("Not a spool file: " + f.getName());
+    }
+    try (BufferedInputStream file = new BufferedInputStream(new FileInputStream(f))) {
+      CRC32 crc = new CRC32();
+      // only the bytes read through the checked stream are checksummed, so
+      // the buffering underneath it cannot pull the trailer into the sum.
+      DataInputStream in = new DataInputStream(new CheckedInputStream(file, crc));
+      if (in.readInt() != SPOOL_FILE_MAGIC) {
+        throw new IOException("Not a spool file: " + f.getName());
+      }
+      int version = in.readInt();
+      if (version != SPOOL_FILE_VERSION && version != SPOOL_FILE_VERSION_1) {
+        throw new IOException("Unrecognized spool file version: " + f.getName());
+      }
+      boolean isIncomplete = in.readBoolean();
+      String instanceId = null;
+      String uriUser = null;
+      boolean isAnonymous = false;
+      boolean isRegistered = false;
+      if (version != SPOOL_FILE_VERSION_1) {
+        instanceId = readString(in, contentLength);
+        uriUser = readString(in, contentLength);
+        isAnonymous = in.readBoolean();
+        isRegistered = in.readBoolean();
+      }
+      int simpleFieldCount = in.readInt();
+      Map<String, String> simpleFields = new HashMap<String, String>();
+      for (int i = 0; i < simpleFieldCount; ++i) {
+        String key = readString(in, contentLength);
+        simpleFields.put(key, readString(in, contentLength));
+      }
+      int itemCount = in.readInt();
+      List<MultiPartFormItem> items = new ArrayList<MultiPartFormItem>();
+      byte[] buffer = new byte[8192];
+      for (int i = 0; i < itemCount; ++i) {
+        String fieldName = readString(in, contentLength);
+        String fileName = readString(in, contentLength);
+        String contentType = readString(in, contentLength);
+        int len = in.readInt();
+        if (len < 0 || len > contentLength) {
+          throw new IOException("Corrupt spool file: " + f.getName());
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(len);
+        for (int remaining = len; remaining > 0; ) {
+          int n = Math.min(remaining, buffer.length);
+          in.readFully(buffer, 0, n);
+          stream.write(buffer, 0, n);
+          remaining -= n;
+        }
+        items.add(new MultiPartFormItem(fieldName, fileName, contentType, stream));
+      }
+      // the checksum trails the content it covers
+      if (new DataInputStream(file).readLong() != crc.getValue()) {
+        throw new IOException("Checksum mismatch in spool file: " + f.getName());
+      }
+      return new SpooledUpload(new MultiPartFormData(simpleFields, items), isIncomplete,
+          instanceId, uriUser, isAnonymous, isRegistered);
+    }
+  }
+
+  /**
+   * @return the instance ID recorded in the spool file, without reading its
+   *     content; null for files written before it was recorded.
+   */
+  static String readSpoolFileInstanceId(File f) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+      if (in.readInt() != SPOOL_FILE_MAGIC) {
+        throw new IOException("Not a spool file: " + f.getName());
+      }
+      if (in.readInt() == SPOOL_FILE_VERSION_1) {
+        return null;
+      }
+      in.readBoolean();
+      return readString(in, f.length());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in, long maxLength) throws IOException {
+    int len = in.readInt();
+    if (len < 0) {
+      return null;
+    }
+    if (len > maxLength) {
+      throw new IOException("Corrupt spool file");
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void syncDirectory(File dir) {
+    // make the rename durable; not supported on all platforms.
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * The user recorded in a spool file. Only its identity is needed to
+   * attribute the stored submission.
+   */
+  static final class SpoolUser implements User {
+    private final String uriUser;
+    private final boolean isAnonymous;
+    private final boolean isRegistered;
+
+    SpoolUser(String uriUser, boolean isAnonymous, boolean isRegistered) {
+      this.uriUser = uriUser;
+      this.isAnonymous = isAnonymous;
+      this.isRegistered = isRegistered;
+    }
+
+    @Override
+    public String getUriUser() {
+      return uriUser;
+    }
+
+    @Override
+    public boolean isAnonymous() {
+      return isAnonymous;
+    }
+
+    @Override
+    public boolean isRegistered() {
+      return isRegistered;
+    }
+  }
+
+  /**
+   * The Watchdog's context, acting as the user who uploaded the submission.
+   */
+  private static final class UploaderCallingContext implements CallingContext {
+
+    private final CallingContext cc;
+    private final User user;
+
+    UploaderCallingContext(CallingContext cc, User user) {
+      this.cc = cc;
+      this.user = user;
+    }
+
+    @Override
+    public Object getBean(String beanName) {
+      return cc.getBean(beanName);
+    }
+
+    @Override
+    public Datastore getDatastore() {
+      return cc.getDatastore();
+    }
+
+    @Override
+    public UserService getUserService() {
+      return cc.getUserService();
+    }
+
+    @Override
+    public void setAsDaemon(boolean asDaemon) {
+      cc.setAsDaemon(asDaemon);
+    }
+
+    @Override
+    public boolean getAsDeamon() {
+      return cc.getAsDeamon();
+    }
+
+    @Override
+    public User getCurrentUser() {
+      return user;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      return cc.getServletContext();
+    }
+
+    @Override
+    public String getWebApplicationURL() {
+      return cc.getWebApplicationURL();
+    }
+
+    @Override
+    public String getWebApplicationURL(String servletAddr) {
+      return cc.getWebApplicationURL(servletAddr);
+    }
+
+    @Override
+    public String getServerURL() {
+      return cc.getServerURL();
+    }
+
+    @Override
+    public String getSecureServerURL() {
+      return cc.getSecureServerURL();
+    }
+  }
+}
@@ -28,6 +28,15 @@ public class UploadSubmissions {
   private static final Logger logger = LoggerFactory.getLogger(UploadSubmissions.class);
 
   public void createFormUploadTask(FormServiceCursor fsc, CallingContext cc) {
+    createFormUploadTask(fsc, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public void createFormUploadTask(FormServiceCursor fsc, Runnable onFinished, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     UploadSubmissionsWorkerImpl worker = new UploadSubmissionsWorkerImpl(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext());
     AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
@@ -35,6 +44,8 @@ public class UploadSubmissions {
         worker.uploadAllSubmissions();
       } catch (ODKEntityNotFoundException | ODKExternalServiceException e) {
         logger.error("Error uploading all submissions", e);
+      } finally {
+        onFinished.run();
       }
     });
   }
@@ -244,13 +244,9 @@ public class UploadSubmissionsWorkerImpl {
 
   private boolean streamSubmissions() throws ODKDatastoreException, ODKExternalServiceException {
 
-    Date startDate = formServiceCursor.getLastStreamingCursorDate();
-    if (startDate == null) {
-      startDate = formServiceCursor.getEstablishmentDateTime();
-    }
-
-    String lastStreamedKey = formServiceCursor.getLastStreamingKey();
-    List<Submission> submissions = querySubmissionsStartDate(startDate, lastStreamedKey);
+    // the page of new submissions is shared with the form's other streaming publishers
+    List<Submission> submissions = SharedStreamingPages.getSubmissionsAfterCursor(form,
+        formServiceCursor, getQueryLimit(), cc);
 
     if (submissions.isEmpty()) {
       logger.info("There are no submissions available for streaming");
@@ -269,7 +265,9 @@ public class UploadSubmissionsWorkerImpl {
     try {
       // check if publisher is capable of batching transmission
       if (externalService.canBatchSubmissions()) {
-        externalService.sendSubmissions(submissionsToSend, streaming, cc);
+        // the lock must also outlast a long run of batched calls
+        externalService.sendSubmissions(submissionsToSend, streaming,
+            submissionCount -> renewTaskLock(submissionCount), cc);
 
       } else { // publisher not capable of batching
         int counter = 0;
@@ -349,11 +347,4 @@ public class UploadSubmissionsWorkerImpl {
     QueryByDateRange query = new QueryByDateRange(form, getQueryLimit(), startDate, endDate, uriLast, cc);
     return query.getResultSubmissions(cc);
   }
-
-  private List<Submission> querySubmissionsStartDate(Date startDate, String uriLast) throws ODKDatastoreException {
-    // query for next set of submissions
-    // (excluding the very recent submissions that haven't settled yet).
-    QueryByDateRange query = new QueryByDateRange(form, getQueryLimit(), startDate, uriLast, cc);
-    return query.getResultSubmissions(cc);
-  }
 }
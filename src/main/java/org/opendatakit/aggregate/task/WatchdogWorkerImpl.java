@@ -24,8 +24,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.aggregate.constants.common.ExternalServiceType;
 import org.opendatakit.aggregate.constants.common.OperationalStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
@@ -39,12 +41,19 @@ import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.form.SubmissionWatermark;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WorkItem;
+import org.opendatakit.common.persistence.WorkQueue;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 import org.slf4j.Logger;
@@ -52,8 +61,51 @@ import org.slf4j.LoggerFactory;
 
 public class WatchdogWorkerImpl {
 
+  /**
+   * task lock formId under which one server per sweep interval scans the
+   * task tables when the cluster work queue is enabled.
+   */
+  private static final String WORK_QUEUE_SWEEP_FORM_ID = "aggregate.opendatakit.org:WatchdogSweep";
+  /**
+   * identifies this server when claiming items from the cluster work queue.
+   */
+  private static final String WORK_QUEUE_LEASE_OWNER = CommonFieldsBase.newUri();
+  /**
+   * maximum number of work queue items claimed by a server per sweep.
+   */
+  private static final int WORK_QUEUE_CLAIM_LIMIT = 20;
+  /**
+   * lease taken on a claimed work queue item. The lease is renewed while the
+   * item's task runs, so it only bounds how long the item of a server that
+   * died stays unavailable.
+   */
+  private static final long WORK_QUEUE_LEASE_MILLISECONDS =
+      TaskLockType.UPLOAD_SUBMISSION.getLockExpirationTimeout();
+  private static final long WORK_QUEUE_LEASE_RENEWAL_MILLISECONDS =
+      WORK_QUEUE_LEASE_MILLISECONDS / 3;
+  private static final String WORK_UPLOAD_SUBMISSIONS = "UPLOAD_SUBMISSIONS";
+  private static final String WORK_PERSISTENT_RESULT = "PERSISTENT_RESULT";
+  private static final String WORK_MISC_TASK = "MISC_TASK";
+  private static final Runnable NOTHING = () -> {
+  };
+
   private Logger logger = LoggerFactory.getLogger(WatchdogWorkerImpl.class);
   private Map<String, SubmissionMetadata> formSubmissionsMap = new HashMap<String, SubmissionMetadata>();
+  /**
+   * watermarks of all forms, fetched once per Watchdog sweep.
+   */
+  private Map<String, SubmissionWatermark> watermarks = null;
+  /**
+   * the cluster work queue while this server is sweeping on behalf of the
+   * cluster; tasks are then queued rather than started. Null otherwise.
+   */
+  private WorkQueue workQueue = null;
+  /**
+   * run by the task being started once it has finished. While a claimed
+   * work queue item is being started, this removes the item from the queue,
+   * so that the item stays leased for as long as its task runs.
+   */
+  private Runnable taskFinished = NOTHING;
 
   private synchronized SubmissionMetadata getLastSubmissionMetadata(IForm form, CallingContext cc) throws ODKDatastoreException {
 
@@ -66,6 +118,21 @@ public class WatchdogWorkerImpl {
     // compute the upper limit for data we want to process
     // limitDate is the datastore's settle time into the past.
     Date limitDate = new Date(System.currentTimeMillis() - PersistConsts.MAX_SETTLE_MILLISECONDS);
+
+    // use the watermark maintained by the SubmissionParser when available.
+    // A watermark within the settle time may name a submission the upload
+    // queries do not return yet; query for the latest settled one instead.
+    if (watermarks == null) {
+      watermarks = SubmissionWatermark.getWatermarks(cc);
+    }
+    SubmissionWatermark watermark = watermarks.get(form.getFormId());
+    if (watermark != null && !watermark.getLastMarkedAsCompleteDate().after(limitDate)) {
+      metadata = new SubmissionMetadata(watermark.getLastSubmissionUri(),
+          watermark.getLastMarkedAsCompleteDate());
+      formSubmissionsMap.put(form.getUri(), metadata);
+      return metadata;
+    }
+
     QueryResumePoint qrp = new QueryResumePoint(
         TopLevelDynamicBase.FIELD_NAME_MARKED_AS_COMPLETE_DATE, OffsetDateTime.ofInstant(limitDate.toInstant(), systemDefault()).format(ISO_OFFSET_DATE_TIME),
         null, false);
@@ -85,6 +152,9 @@ public class WatchdogWorkerImpl {
       metadata = new SubmissionMetadata(lastSubmission.getKey().getKey(),
           lastSubmission.getMarkedAsCompleteDate());
       formSubmissionsMap.put(form.getUri(), metadata);
+      // establish the watermark so later sweeps need not query the form
+      SubmissionWatermark.advance(form.getFormId(), metadata.uri,
+          metadata.markedAsCompleteDate, cc);
       return metadata;
     }
     return null;
@@ -99,6 +169,7 @@ public class WatchdogWorkerImpl {
       wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
       cullThisWatchdog = BackendActionsTable.updateWatchdogStart(cc);
       formSubmissionsMap.clear();
+      watermarks = null;
 
       UploadSubmissions uploadSubmissions = (UploadSubmissions) cc
           .getBean(BeanDefs.UPLOAD_TASK_BEAN);
@@ -110,13 +181,19 @@ public class WatchdogWorkerImpl {
           .getBean(BeanDefs.PURGE_OLDER_SUBMISSIONS_BEAN);
       JsonFileGenerator jsonGenerator = (JsonFileGenerator) cc.getBean(BeanDefs.JSON_FILE_BEAN);
       boolean foundActiveTasks = false;
-      // NOTE: do not short-circuit these check actions...
-      foundActiveTasks = foundActiveTasks | checkFormServiceCursors(uploadSubmissions, cc);
-      foundActiveTasks = foundActiveTasks
-          | checkPersistentResults(csvGenerator, kmlGenerator, jsonGenerator, cc);
-      foundActiveTasks = foundActiveTasks
-          | checkMiscTasks(worksheetCreator, formDelete, purgeSubmissions, cc);
+      if (ServerPreferencesProperties.getClusterWorkQueueEnabled(cc)) {
+        foundActiveTasks = checkClusterWorkQueue(uploadSubmissions, csvGenerator, kmlGenerator,
+            jsonGenerator, worksheetCreator, formDelete, purgeSubmissions, cc);
+      } else {
+        // NOTE: do not short-circuit these check actions...
+        foundActiveTasks = foundActiveTasks | checkFormServiceCursors(uploadSubmissions, cc);
+        foundActiveTasks = foundActiveTasks
+            | checkPersistentResults(csvGenerator, kmlGenerator, jsonGenerator, cc);
+        foundActiveTasks = foundActiveTasks
+            | checkMiscTasks(worksheetCreator, formDelete, purgeSubmissions, cc);
+      }
       activeTasks = foundActiveTasks;
+      BlobStoreMigration.startIfNeeded(wd);
     } finally {
       // NOTE: if the above threw an exception, we re-start the watchdog.
       // otherwise, we restart it only if there is work to be done.
@@ -125,6 +202,166 @@ public class WatchdogWorkerImpl {
     }
   }
 
+  /**
+   * Cluster mode: one server per sweep interval scans the task tables and
+   * queues the work it finds; every server then claims and starts a share of
+   * the queued work.
+   */
+  private boolean checkClusterWorkQueue(UploadSubmissions uploadSubmissions, CsvGenerator csvGenerator, KmlGenerator kmlGenerator, JsonFileGenerator jsonGenerator, WorksheetCreator wsCreator, FormDelete formDelete, PurgeOlderSubmissions purgeSubmissions, CallingContext cc) throws ODKExternalServiceException, ODKFormNotFoundException, ODKDatastoreException {
+    WorkQueue queue = cc.getDatastore().createWorkQueue(cc.getCurrentUser());
+    boolean activeTasks = false;
+
+    // the sweep lock is never released; it expires just before the next
+    // fast watchdog sweep.
+    TaskLock sweepLock = cc.getDatastore().createTaskLock(cc.getCurrentUser());
+    if (sweepLock.obtainLock(CommonFieldsBase.newUri(), WORK_QUEUE_SWEEP_FORM_ID,
+        TaskLockType.WATCHDOG_SWEEP)) {
+      logger.info("Sweeping task tables for the cluster work queue");
+      workQueue = queue;
+      try {
+        // NOTE: do not short-circuit these check actions...
+        activeTasks = activeTasks | checkFormServiceCursors(uploadSubmissions, cc);
+        activeTasks = activeTasks
+            | checkPersistentResults(csvGenerator, kmlGenerator, jsonGenerator, cc);
+        activeTasks = activeTasks
+            | checkMiscTasks(wsCreator, formDelete, purgeSubmissions, cc);
+      } finally {
+        workQueue = null;
+      }
+    }
+
+    List<WorkItem> items = queue.claim(WORK_QUEUE_LEASE_OWNER, WORK_QUEUE_CLAIM_LIMIT,
+        WORK_QUEUE_LEASE_MILLISECONDS);
+    for (WorkItem item : items) {
+      activeTasks = true;
+      // heartbeat: keep the item leased until its task has finished
+      ScheduledFuture<?> leaseRenewal = AggregrateThreadExecutor.getAggregateThreadExecutor()
+          .scheduleAtFixedRate(() -> renewWorkItem(queue, item),
+              WORK_QUEUE_LEASE_RENEWAL_MILLISECONDS);
+      taskFinished = () -> {
+        leaseRenewal.cancel(false);
+        completeWorkItem(queue, item);
+      };
+      try {
+        startWorkItem(item, uploadSubmissions, csvGenerator, kmlGenerator, jsonGenerator,
+            wsCreator, formDelete, purgeSubmissions, cc);
+      } catch (Exception e) {
+        // the item stays leased; once the lease expires, it is claimed again
+        leaseRenewal.cancel(false);
+        logger.error("Unable to start work queue item " + item.getTaskType() + " "
+            + item.getTaskKey(), e);
+      } finally {
+        taskFinished = NOTHING;
+      }
+    }
+    return activeTasks;
+  }
+
+  private void renewWorkItem(WorkQueue queue, WorkItem item) {
+    try {
+      if (!queue.renew(WORK_QUEUE_LEASE_OWNER, item, WORK_QUEUE_LEASE_MILLISECONDS)) {
+        logger.warn("Lost the lease on work queue item " + item.getTaskType() + " "
+            + item.getTaskKey());
+      }
+    } catch (ODKDatastoreException e) {
+      // try again at the next renewal, before the lease expires
+      logger.warn("Unable to renew work queue item " + item.getTaskType() + " "
+          + item.getTaskKey(), e);
+    }
+  }
+
+  private void completeWorkItem(WorkQueue queue, WorkItem item) {
+    try {
+      queue.complete(item);
+    } catch (ODKDatastoreException e) {
+      // the lease expires and the item is claimed again
+      logger.error("Unable to complete work queue item " + item.getTaskType() + " "
+          + item.getTaskKey(), e);
+    }
+  }
+
+  private void startWorkItem(WorkItem item, UploadSubmissions uploadSubmissions, CsvGenerator csvGenerator, KmlGenerator kmlGenerator, JsonFileGenerator jsonGenerator, WorksheetCreator wsCreator, FormDelete formDelete, PurgeOlderSubmissions purgeSubmissions, CallingContext cc) throws ODKExternalServiceException, ODKFormNotFoundException, ODKDatastoreException {
+    if (WORK_UPLOAD_SUBMISSIONS.equals(item.getTaskType())) {
+      FormServiceCursor fsc = FormServiceCursor.getFormServiceCursor(item.getTaskKey(), cc);
+      startUpload(fsc, uploadSubmissions, cc);
+    } else if (WORK_PERSISTENT_RESULT.equals(item.getTaskType())) {
+      PersistentResults persistentResult = new PersistentResults(
+          new SubmissionKey(item.getTaskKey()), cc);
+      IForm form = FormFactory.retrieveFormByFormId(persistentResult.getFormId(), cc);
+      startPersistentResult(form, persistentResult, persistentResult.getAttemptCount(),
+          csvGenerator, kmlGenerator, jsonGenerator, cc);
+    } else if (WORK_MISC_TASK.equals(item.getTaskType())) {
+      MiscTasks aTask = new MiscTasks(new SubmissionKey(item.getTaskKey()), cc);
+      IForm form = FormFactory.retrieveFormByFormId(aTask.getFormId(), cc);
+      startMiscTask(form, aTask, aTask.getAttemptCount(), wsCreator, formDelete,
+          purgeSubmissions, cc);
+    } else {
+      logger.warn("Unrecognized work queue item type: " + item.getTaskType());
+      taskFinished.run();
+    }
+  }
+
+  private void startUpload(FormServiceCursor fsc, UploadSubmissions uploadSubmissions, CallingContext cc) throws ODKExternalServiceException {
+    if (workQueue != null) {
+      try {
+        workQueue.enqueue(WORK_UPLOAD_SUBMISSIONS, fsc.getUri(), fsc.getFormId());
+      } catch (ODKDatastoreException e) {
+        throw new ODKExternalServiceException("Unable to queue upload task", e);
+      }
+    } else {
+      uploadSubmissions.createFormUploadTask(fsc, taskFinished, cc);
+    }
+  }
+
+  private void startPersistentResult(IForm form, PersistentResults persistentResult, long attemptCount, CsvGenerator csvGenerator, KmlGenerator kmlGenerator, JsonFileGenerator jsonGenerator, CallingContext cc) throws ODKDatastoreException {
+    if (workQueue != null) {
+      workQueue.enqueue(WORK_PERSISTENT_RESULT, persistentResult.getSubmissionKey().toString(),
+          persistentResult.getFormId());
+      return;
+    }
+    switch (persistentResult.getResultType()) {
+      case CSV:
+        csvGenerator.createCsvTask(form, persistentResult.getSubmissionKey(), attemptCount,
+            taskFinished, cc);
+        break;
+      case KML:
+        kmlGenerator.createKmlTask(form, persistentResult, attemptCount, taskFinished, cc);
+        break;
+      case JSONFILE:
+        jsonGenerator.createJsonFileTask(form, persistentResult.getSubmissionKey(), attemptCount,
+            taskFinished, cc);
+        break;
+      default:
+        this.logger.equals("No generator defined for Persisted Result Type: "
+            + persistentResult.getResultType().name());
+        taskFinished.run();
+        break;
+    }
+  }
+
+  private void startMiscTask(IForm form, MiscTasks aTask, long attemptCount, WorksheetCreator wsCreator, FormDelete formDelete, PurgeOlderSubmissions purgeSubmissions, CallingContext cc) throws ODKDatastoreException {
+    if (workQueue != null) {
+      workQueue.enqueue(WORK_MISC_TASK, aTask.getSubmissionKey().toString(), aTask.getFormId());
+      return;
+    }
+    switch (aTask.getTaskType()) {
+      case WORKSHEET_CREATE:
+        wsCreator.createWorksheetTask(form, aTask, attemptCount, taskFinished, cc);
+        break;
+      case DELETE_FORM:
+        formDelete.createFormDeleteTask(form, aTask.getSubmissionKey(), attemptCount, taskFinished,
+            cc);
+        break;
+      case PURGE_OLDER_SUBMISSIONS:
+        purgeSubmissions.createPurgeOlderSubmissionsTask(form, aTask.getSubmissionKey(),
+            attemptCount, taskFinished, cc);
+        break;
+      default:
+        taskFinished.run();
+        break;
+    }
+  }
+
   private boolean checkFormServiceCursors(UploadSubmissions uploadSubmissions, CallingContext cc) throws ODKExternalServiceException, ODKFormNotFoundException, ODKDatastoreException {
 
     Date olderThanDate = new Date(System.currentTimeMillis()
@@ -215,7 +452,7 @@ public class WatchdogWorkerImpl {
           || lastUploadDate.compareTo(establishmentDate) < 0) {
         // there is still work to do
         activeTask = true;
-        uploadSubmissions.createFormUploadTask(fsc, cc);
+        startUpload(fsc, uploadSubmissions, cc);
       }
     }
     return activeTask;
@@ -264,7 +501,7 @@ public class WatchdogWorkerImpl {
 
     if (makeActive) {
       // there is work to do
-      uploadSubmissions.createFormUploadTask(fsc, cc);
+      startUpload(fsc, uploadSubmissions, cc);
       return true;
     }
 
@@ -289,22 +526,8 @@ public class WatchdogWorkerImpl {
           continue; // skip this and move on...
         }
         activeTasks = true;
-        switch (persistentResult.getResultType()) {
-          case CSV:
-            csvGenerator.createCsvTask(form, persistentResult.getSubmissionKey(), attemptCount, cc);
-            break;
-          case KML:
-            kmlGenerator.createKmlTask(form, persistentResult, attemptCount, cc);
-            break;
-          case JSONFILE:
-            jsonGenerator.createJsonFileTask(form, persistentResult.getSubmissionKey(), attemptCount,
-                cc);
-            break;
-          default:
-            this.logger.equals("No generator defined for Persisted Result Type: "
-                + persistentResult.getResultType().name());
-            break;
-        }
+        startPersistentResult(form, persistentResult, attemptCount, csvGenerator, kmlGenerator,
+            jsonGenerator, cc);
       }
       return activeTasks;
     } finally {
@@ -331,18 +554,17 @@ public class WatchdogWorkerImpl {
           case WORKSHEET_CREATE:
             if (form.hasValidFormDefinition()) {
               activeTasks = true;
-              wsCreator.createWorksheetTask(form, aTask, attemptCount, cc);
+              startMiscTask(form, aTask, attemptCount, wsCreator, formDelete, purgeSubmissions, cc);
             }
             break;
           case DELETE_FORM:
             activeTasks = true;
-            formDelete.createFormDeleteTask(form, aTask.getSubmissionKey(), attemptCount, cc);
+            startMiscTask(form, aTask, attemptCount, wsCreator, formDelete, purgeSubmissions, cc);
             break;
           case PURGE_OLDER_SUBMISSIONS:
             if (form.hasValidFormDefinition()) {
               activeTasks = true;
-              purgeSubmissions.createPurgeOlderSubmissionsTask(form, aTask.getSubmissionKey(),
-                  attemptCount, cc);
+              startMiscTask(form, aTask, attemptCount, wsCreator, formDelete, purgeSubmissions, cc);
             }
             break;
         }
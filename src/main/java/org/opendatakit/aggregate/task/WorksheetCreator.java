@@ -31,6 +31,15 @@ import org.opendatakit.common.web.CallingContext;
 public class WorksheetCreator {
 
   public final void createWorksheetTask(IForm form, MiscTasks miscTasks, long attemptCount, CallingContext cc) throws ODKDatastoreException {
+    createWorksheetTask(form, miscTasks, attemptCount, () -> {
+    }, cc);
+  }
+
+  /**
+   * @param onFinished run once the task has finished, whether or not it
+   *                   succeeded.
+   */
+  public final void createWorksheetTask(IForm form, MiscTasks miscTasks, long attemptCount, Runnable onFinished, CallingContext cc) throws ODKDatastoreException {
     Map<String, String> params = miscTasks.getRequestParameters();
     String spreadsheetName = Objects.requireNonNull(
         params.get(EXT_SERV_ADDRESS),
@@ -49,7 +58,13 @@ public class WorksheetCreator {
         publicationOption,
         wd.getCallingContext()
     );
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::worksheetCreator);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+      try {
+        worker.worksheetCreator();
+      } finally {
+        onFinished.run();
+      }
+    });
   }
 
 }
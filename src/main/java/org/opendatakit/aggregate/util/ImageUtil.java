@@ -16,31 +16,65 @@
 
 package org.opendatakit.aggregate.util;
 
-import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 public class ImageUtil {
 
+  private static final String JDK_JPEG_PLUGIN_PACKAGE = "com.sun.imageio.plugins.jpeg.";
+  private static final int JPEG_SOI = 0xD8;
+  private static final int JPEG_SOS = 0xDA;
+  private static final int JPEG_EOI = 0xD9;
+  private static final int JPEG_APP0 = 0xE0;
+  private static final int JPEG_APP1 = 0xE1;
+  private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+  // marker (2), length (2) and the EXIF header precede the TIFF structure
+  private static final int TIFF_OFFSET = 4 + EXIF_HEADER.length;
+  private static final int ORIENTATION_TAG = 0x0112;
+
+  /**
+   * Shrink the image by a whole-number factor so that it fits within the
+   * given width and height, and encode it as a JPEG. The image is decoded
+   * with source subsampling, so only a fraction of the pixels of a large
+   * photo are ever decoded, and the remaining reduction is a single bilinear
+   * scaling pass.
+   *
+   * @return the resized image, or the original bytes if the image cannot be
+   *     decoded or is already smaller than the given size.
+   */
   public byte[] resizeImage(byte[] imageBlob, int width, int height) {
-    BufferedImage image;
-    try {
-      image = ImageIO.read(new ByteArrayInputStream(imageBlob));
-    } catch (IOException var18) {
-      var18.printStackTrace();
+    if (width <= 0 || height <= 0) {
       return imageBlob;
     }
-
-    int imgWidth = image.getWidth();
-    int imgHeight = image.getHeight();
-    if (width > 0 && height > 0) {
-      int reductionWidth = imgWidth / width;
-      int reductionHeight = imgHeight / height;
-      if (reductionWidth > 0 && reductionHeight > 0) {
+    try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBlob))) {
+      Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+      if (readers == null || !readers.hasNext()) {
+        return imageBlob;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int imgWidth = reader.getWidth(0);
+        int imgHeight = reader.getHeight(0);
+        int reductionWidth = imgWidth / width;
+        int reductionHeight = imgHeight / height;
+        if (reductionWidth <= 0 || reductionHeight <= 0) {
+          return imageBlob;
+        }
         int reducer;
         if (reductionWidth > reductionHeight) {
           reducer = reductionWidth;
@@ -53,30 +87,292 @@ public class ImageUtil {
             reducer = reductionHeight + 1;
           }
         }
-
         int resizeWidth = imgWidth / reducer;
         int resizeHeight = imgHeight / reducer;
-        Image resized = image.getScaledInstance(resizeWidth, resizeHeight, 2);
-        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
-        BufferedImage bi = new BufferedImage(resized.getWidth(null), resized.getHeight(null), 1);
-        Graphics bg = bi.getGraphics();
-        bg.drawImage(resized, 0, 0, null);
+
+        // decode every n-th pixel, leaving at least a 2x reduction for the
+        // filtered scaling pass so that the result is not aliased.
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, reducer / 2);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(0, param);
+
+        BufferedImage bi = new BufferedImage(resizeWidth, resizeHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D bg = bi.createGraphics();
+        bg.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        bg.drawImage(image, 0, 0, resizeWidth, resizeHeight, null);
         bg.dispose();
 
-        try {
-          ImageIO.write(bi, "jpg", fileStream);
-        } catch (IOException var17) {
-          var17.printStackTrace();
+        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
+        ImageIO.write(bi, "jpg", fileStream);
+        return fileStream.toByteArray();
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return imageBlob;
+    }
+  }
+
+  /**
+   * Scale the image down so that neither side exceeds the given dimension,
+   * and re-encode it as a JPEG at the given quality. The EXIF orientation is
+   * applied to the pixels, and the EXIF (APP1) segment is carried over with
+   * its orientation reset, so the image still displays the right way up and
+   * keeps its metadata.
+   * <p>
+   * The result depends only on the given bytes and arguments: the JDK's own
+   * JPEG reader and writer are used whenever they are available, rather than
+   * whichever plugin happens to be registered first, so a retried upload is
+   * stored with the same content hash.
+   *
+   * @param keepOriginalIfFits return the original bytes rather than
+   *     re-encoding an image that already fits.
+   * @return the downscaled image, or the original bytes if the image cannot
+   *     be decoded or the result would not be smaller.
+   */
+  public byte[] downscaleImage(byte[] imageBlob, int maxDimension, int jpegQuality,
+                               boolean keepOriginalIfFits) {
+    if (maxDimension <= 0) {
+      return imageBlob;
+    }
+    try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBlob))) {
+      ImageReader reader = (in == null) ? null : getJpegPlugin(ImageIO.getImageReaders(in));
+      if (reader == null) {
+        return imageBlob;
+      }
+      BufferedImage bi;
+      try {
+        reader.setInput(in, true, true);
+        int imgWidth = reader.getWidth(0);
+        int imgHeight = reader.getHeight(0);
+        int longerSide = Math.max(imgWidth, imgHeight);
+        if (longerSide <= maxDimension && keepOriginalIfFits) {
           return imageBlob;
         }
+        double scale = Math.min(1.0, ((double) maxDimension) / longerSide);
+        int resizeWidth = Math.max(1, (int) Math.round(imgWidth * scale));
+        int resizeHeight = Math.max(1, (int) Math.round(imgHeight * scale));
 
-        return fileStream.toByteArray();
-      } else {
-        return imageBlob;
+        // as above, subsample the decode but leave a 2x filtered reduction
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, (longerSide / maxDimension) / 2);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(0, param);
+
+        bi = new BufferedImage(resizeWidth, resizeHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D bg = bi.createGraphics();
+        bg.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        bg.drawImage(image, 0, 0, resizeWidth, resizeHeight, null);
+        bg.dispose();
+      } finally {
+        reader.dispose();
       }
-    } else {
+
+      byte[] exif = getExifSegment(imageBlob);
+      if (exif != null) {
+        int orientationOffset = getOrientationOffset(exif);
+        if (orientationOffset != -1) {
+          bi = orient(bi, readShort(exif, orientationOffset, isLittleEndian(exif)));
+          writeShort(exif, orientationOffset, isLittleEndian(exif), 1);
+        }
+      }
+
+      ImageWriter writer = getJpegPlugin(ImageIO.getImageWritersByFormatName("jpg"));
+      ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
+      try (ImageOutputStream out = ImageIO.createImageOutputStream(fileStream)) {
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        writeParam.setCompressionQuality(Math.max(1, Math.min(100, jpegQuality)) / 100.0f);
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(bi, null, null), writeParam);
+      } finally {
+        writer.dispose();
+      }
+      byte[] downscaled = insertExifSegment(fileStream.toByteArray(), exif);
+      return (downscaled.length < imageBlob.length) ? downscaled : imageBlob;
+    } catch (IOException e) {
+      e.printStackTrace();
       return imageBlob;
     }
   }
 
+  /**
+   * @return the JDK's own plugin if it is among the given ones, otherwise
+   *     the first; null if there are none.
+   */
+  private static <T> T getJpegPlugin(Iterator<T> plugins) {
+    T first = null;
+    while (plugins.hasNext()) {
+      T plugin = plugins.next();
+      if (plugin.getClass().getName().startsWith(JDK_JPEG_PLUGIN_PACKAGE)) {
+        return plugin;
+      }
+      if (first == null) {
+        first = plugin;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * @return a copy of the first EXIF APP1 segment of the JPEG, including its
+   *     marker, or null if there is none.
+   */
+  static byte[] getExifSegment(byte[] jpeg) {
+    if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != JPEG_SOI) {
+      return null;
+    }
+    int p = 2;
+    while (p + 4 <= jpeg.length && (jpeg[p] & 0xFF) == 0xFF) {
+      int marker = jpeg[p + 1] & 0xFF;
+      if (marker == 0xFF) {
+        // fill byte
+        ++p;
+        continue;
+      }
+      if (marker == JPEG_SOS || marker == JPEG_EOI) {
+        break;
+      }
+      int length = ((jpeg[p + 2] & 0xFF) << 8) | (jpeg[p + 3] & 0xFF);
+      if (length < 2 || p + 2 + length > jpeg.length) {
+        break;
+      }
+      if (marker == JPEG_APP1 && length >= 2 + EXIF_HEADER.length
+          && Arrays.equals(EXIF_HEADER, Arrays.copyOfRange(jpeg, p + 4, p + 4 + EXIF_HEADER.length))) {
+        return Arrays.copyOfRange(jpeg, p, p + 2 + length);
+      }
+      p += 2 + length;
+    }
+    return null;
+  }
+
+  /**
+   * @return the JPEG with the segment inserted after its SOI marker and any
+   *     JFIF (APP0) segment, which must come first.
+   */
+  static byte[] insertExifSegment(byte[] jpeg, byte[] exif) {
+    if (exif == null) {
+      return jpeg;
+    }
+    int p = 2;
+    if (jpeg.length >= 4 && (jpeg[p] & 0xFF) == 0xFF && (jpeg[p + 1] & 0xFF) == JPEG_APP0) {
+      p += 2 + (((jpeg[p + 2] & 0xFF) << 8) | (jpeg[p + 3] & 0xFF));
+    }
+    byte[] result = new byte[jpeg.length + exif.length];
+    System.arraycopy(jpeg, 0, result, 0, p);
+    System.arraycopy(exif, 0, result, p, exif.length);
+    System.arraycopy(jpeg, p, result, p + exif.length, jpeg.length - p);
+    return result;
+  }
+
+  private static boolean isLittleEndian(byte[] exif) {
+    return exif[TIFF_OFFSET] == 'I';
+  }
+
+  /**
+   * @return the offset within the segment of the value of the orientation
+   *     tag of the first image directory, or -1 if it has none.
+   */
+  static int getOrientationOffset(byte[] exif) {
+    if (exif.length < TIFF_OFFSET + 8) {
+      return -1;
+    }
+    boolean littleEndian = isLittleEndian(exif);
+    if (littleEndian ? exif[TIFF_OFFSET + 1] != 'I'
+        : (exif[TIFF_OFFSET] != 'M' || exif[TIFF_OFFSET + 1] != 'M')) {
+      return -1;
+    }
+    long ifdOffset = readInt(exif, TIFF_OFFSET + 4, littleEndian);
+    if (ifdOffset < 8 || TIFF_OFFSET + ifdOffset + 2 > exif.length) {
+      return -1;
+    }
+    int p = TIFF_OFFSET + (int) ifdOffset;
+    int entryCount = readShort(exif, p, littleEndian);
+    p += 2;
+    for (int i = 0; i < entryCount && p + 12 <= exif.length; ++i, p += 12) {
+      if (readShort(exif, p, littleEndian) == ORIENTATION_TAG) {
+        // a SHORT value is held in the first two bytes of the value field
+        return p + 8;
+      }
+    }
+    return -1;
+  }
+
+  private static int readShort(byte[] b, int p, boolean littleEndian) {
+    return littleEndian ? ((b[p + 1] & 0xFF) << 8) | (b[p] & 0xFF)
+        : ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+  }
+
+  private static long readInt(byte[] b, int p, boolean littleEndian) {
+    long high = readShort(b, littleEndian ? p + 2 : p, littleEndian);
+    long low = readShort(b, littleEndian ? p : p + 2, littleEndian);
+    return (high << 16) | low;
+  }
+
+  private static void writeShort(byte[] b, int p, boolean littleEndian, int value) {
+    b[littleEndian ? p : p + 1] = (byte) (value & 0xFF);
+    b[littleEndian ? p + 1 : p] = (byte) ((value >> 8) & 0xFF);
+  }
+
+  /**
+   * @return the image as it is meant to be displayed, given its EXIF
+   *     orientation (1 to 8).
+   */
+  static BufferedImage orient(BufferedImage src, int orientation) {
+    if (orientation < 2 || orientation > 8) {
+      return src;
+    }
+    int w = src.getWidth();
+    int h = src.getHeight();
+    boolean transposed = orientation >= 5;
+    int dw = transposed ? h : w;
+    int dh = transposed ? w : h;
+    int[] pixels = src.getRGB(0, 0, w, h, null, 0, w);
+    int[] oriented = new int[pixels.length];
+    for (int dy = 0; dy < dh; ++dy) {
+      for (int dx = 0; dx < dw; ++dx) {
+        int sx;
+        int sy;
+        switch (orientation) {
+          case 2: // mirrored
+            sx = w - 1 - dx;
+            sy = dy;
+            break;
+          case 3: // rotated 180
+            sx = w - 1 - dx;
+            sy = h - 1 - dy;
+            break;
+          case 4: // flipped
+            sx = dx;
+            sy = h - 1 - dy;
+            break;
+          case 5: // transposed
+            sx = dy;
+            sy = dx;
+            break;
+          case 6: // rotated 90 clockwise
+            sx = dy;
+            sy = h - 1 - dx;
+            break;
+          case 7: // transversed
+            sx = w - 1 - dy;
+            sy = h - 1 - dx;
+            break;
+          default: // rotated 90 counter-clockwise
+            sx = w - 1 - dy;
+            sy = dx;
+            break;
+        }
+        oriented[dy * dw + dx] = pixels[sy * w + sx];
+      }
+    }
+    BufferedImage dst = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_RGB);
+    dst.setRGB(0, 0, dw, dh, oriented, 0, dw);
+    return dst;
+  }
+
 }
@@ -13,24 +13,35 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manipulator class for handling binary attachments. To use, create an instance
@@ -51,6 +62,11 @@ import org.opendatakit.common.web.CallingContext;
  */
 public class BinaryContentManipulator {
 
+  private static final Logger logger = LoggerFactory.getLogger(BinaryContentManipulator.class);
+  // submissions per reference table query when gathering stored content;
+  // well under the smallest engine bind parameter limit
+  private static final int GATHER_BATCH_SIZE = 1000;
+
   private final String parentKey;
   private final String topLevelKey;
   // these relations have already been asserted on the datastore...
@@ -123,6 +139,21 @@ public class BinaryContentManipulator {
     return b.getContentHash();
   }
 
+  /**
+   * Reads the attachment declarations afresh rather than using the ones held
+   * by this manipulator, so that background work can confirm that content
+   * has not been replaced or deleted in the meantime.
+   *
+   * @return true if the attachment is stored with the given content hash.
+   */
+  public boolean isStoredContent(int ordinal, String contentHash, CallingContext cc) throws ODKDatastoreException {
+    BinaryContentManipulator stored = new BinaryContentManipulator(parentKey, topLevelKey,
+        ctntRelation, vrefRelation, blbRelation);
+    stored.updateAttachments(cc);
+    BinaryContent b = stored.attachments.get(Long.valueOf(ordinal));
+    return b != null && contentHash.equals(b.getContentHash());
+  }
+
   public Long getContentLength(int ordinal, CallingContext cc) throws ODKDatastoreException {
     updateAttachments(cc);
     BinaryContent b = attachments.get(Long.valueOf(ordinal));
@@ -141,9 +172,124 @@ public class BinaryContentManipulator {
       throw new IllegalStateException("missing attachment declaration");
     }
     BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
+    if (blbManipulator.getSharedBlobKey() != null) {
+      return SharedBlobStore.getBlob(blbManipulator.getSharedBlobKey(), cc);
+    }
+    if (blbManipulator.getExternalLocation() != null) {
+      return getExternalBlob(blbManipulator.getExternalLocation());
+    }
     return blbManipulator.getBlob();
   }
 
+  /**
+   * Opens the attachment for reading. Content held in the database is read
+   * one part at a time as the stream is consumed, rather than assembling the
+   * whole attachment in memory.
+   */
+  public InputStream getBlobStream(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, false, cc);
+    if (blbManipulator.getSharedBlobKey() != null) {
+      return new ByteArrayInputStream(SharedBlobStore.getBlob(blbManipulator.getSharedBlobKey(), cc));
+    }
+    if (blbManipulator.getExternalLocation() != null) {
+      return new ByteArrayInputStream(getExternalBlob(blbManipulator.getExternalLocation()));
+    }
+    return blbManipulator.getBlobStream(blbRelation, cc);
+  }
+
+  private static byte[] getExternalBlob(String location) throws ODKDatastoreException {
+    BlobStore blobStore = BlobStore.getBlobStore();
+    if (blobStore == null) {
+      throw new IllegalStateException("attachment is held in a blob store but none is configured");
+    }
+    try {
+      return blobStore.get(location);
+    } catch (IOException e) {
+      throw new ODKDatastoreException("Unable to read attachment from blob store: " + location, e);
+    }
+  }
+
+  private static void deleteExternalBlobs(List<String> locations) {
+    BlobStore blobStore = BlobStore.getBlobStore();
+    if (blobStore == null) {
+      return;
+    }
+    for (String location : locations) {
+      try {
+        blobStore.delete(location);
+      } catch (IOException e) {
+        // the database no longer references it -- leave it behind
+        logger.warn("Unable to delete blob store object " + location, e);
+      }
+    }
+  }
+
+  /**
+   * Gather the content referenced by the attachments of the given submissions
+   * that is held outside the form's own tables: keys into the
+   * {@link SharedBlobStore} and locations in the {@link BlobStore}. Set-based
+   * deletes remove the reference rows without visiting the attachments, so
+   * gather this first and release it once the rows are gone. Each reference
+   * table is queried once per batch of submissions.
+   *
+   * @param backingTables  the form's tables; only its {@link BinaryContentRefBlob}
+   *                       tables are consulted.
+   * @param topLevelAuris  the submissions being deleted.
+   */
+  public static StoredContent gatherStoredContent(Collection<? extends CommonFieldsBase> backingTables,
+                                                  Collection<String> topLevelAuris, CallingContext cc)
+      throws ODKDatastoreException {
+    StoredContent content = new StoredContent();
+    if (topLevelAuris.isEmpty()) {
+      return content;
+    }
+    List<String> auris = new ArrayList<String>(topLevelAuris);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    for (CommonFieldsBase table : backingTables) {
+      if (!(table instanceof BinaryContentRefBlob)) {
+        continue;
+      }
+      BinaryContentRefBlob vrefRelation = (BinaryContentRefBlob) table;
+      for (int i = 0; i < auris.size(); i += GATHER_BATCH_SIZE) {
+        List<String> batch = auris.subList(i, Math.min(i + GATHER_BATCH_SIZE, auris.size()));
+        // shared and external references are the only rows with a part number below 1
+        Query q = ds.createQuery(vrefRelation, "BinaryContentManipulator.gatherStoredContent", user);
+        q.addValueSetFilter(vrefRelation.topLevelAuri, batch);
+        q.addFilter(vrefRelation.part, FilterOperation.LESS_THAN_OR_EQUAL,
+            SharedBlobStore.SHARED_REFERENCE_PART);
+        for (CommonFieldsBase cb : q.executeQuery()) {
+          content.add((BinaryContentRefBlob) cb);
+        }
+      }
+    }
+    return content;
+  }
+
+  /**
+   * Gather the content referenced by attachment rows that were never
+   * written, e.g. the rows of a failed bulk insert, so that it can be
+   * released.
+   *
+   * @param rows rows of any of a form's tables; only the
+   *             {@link BinaryContentRefBlob} rows are consulted.
+   */
+  public static StoredContent gatherStoredContent(Collection<? extends CommonFieldsBase> rows) {
+    StoredContent content = new StoredContent();
+    for (CommonFieldsBase row : rows) {
+      if (row instanceof BinaryContentRefBlob) {
+        content.add((BinaryContentRefBlob) row);
+      }
+    }
+    return content;
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -289,11 +435,16 @@ public class BinaryContentManipulator {
         List<EntityKey> keyList = new ArrayList<EntityKey>();
         b.recursivelyAddEntityKeysForDeletion(keyList);
         DeleteHelper.deleteEntities(keyList, cc);
+        if (b.getSharedBlobKey() != null) {
+          SharedBlobStore.release(b.getSharedBlobKey(), cc);
+        }
+        if (b.getExternalLocation() != null) {
+          deleteExternalBlobs(Collections.singletonList(b.getExternalLocation()));
+        }
 
         // Step (3)
         // persist the binary data
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistBlob(byteArray, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -324,11 +475,16 @@ public class BinaryContentManipulator {
         List<EntityKey> keyList = new ArrayList<EntityKey>();
         b.recursivelyAddEntityKeysForDeletion(keyList);
         DeleteHelper.deleteEntities(keyList, cc);
+        if (b.getSharedBlobKey() != null) {
+          SharedBlobStore.release(b.getSharedBlobKey(), cc);
+        }
+        if (b.getExternalLocation() != null) {
+          deleteExternalBlobs(Collections.singletonList(b.getExternalLocation()));
+        }
 
         // Step (3)
         // persist the binary data
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistBlob(byteArray, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -341,6 +497,117 @@ public class BinaryContentManipulator {
     }
   }
 
+  /**
+   * Store the bytes of an attachment: in the configured {@link BlobStore} if
+   * there is one, otherwise either as its own sequence of blob parts or, when
+   * content-addressed attachments are enabled, as a reference into the
+   * {@link SharedBlobStore}.
+   */
+  private void persistBlob(byte[] byteArray, String uriVersionedContent, CallingContext cc)
+      throws ODKDatastoreException {
+    if (BlobStore.getBlobStore() != null) {
+      persistExternalBlob(byteArray, uriVersionedContent, topLevelKey, vrefRelation, cc);
+      return;
+    }
+    if (!ServerPreferencesProperties.getContentAddressedAttachments(cc)) {
+      new BlobManipulator(byteArray, uriVersionedContent, vrefRelation, blbRelation, topLevelKey, cc);
+      return;
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String sharedBlobKey = SharedBlobStore.acquire(byteArray, cc);
+    BinaryContentRefBlob bcb = ds.createEntityUsingRelation(vrefRelation, user);
+    bcb.setTopLevelAuri(topLevelKey);
+    bcb.setDomAuri(uriVersionedContent);
+    bcb.setSubAuri(sharedBlobKey);
+    bcb.setPart(SharedBlobStore.SHARED_REFERENCE_PART);
+    ds.putEntity(bcb, user);
+  }
+
+  private static void persistExternalBlob(byte[] byteArray, String uriVersionedContent,
+                                          String topLevelKey, BinaryContentRefBlob vrefRelation,
+                                          CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String location;
+    try {
+      location = BlobStore.getBlobStore().put(byteArray);
+    } catch (IOException e) {
+      throw new ODKEntityPersistException("Unable to write attachment to blob store", e);
+    }
+    BinaryContentRefBlob bcb = ds.createEntityUsingRelation(vrefRelation, user);
+    bcb.setTopLevelAuri(topLevelKey);
+    bcb.setDomAuri(uriVersionedContent);
+    bcb.setSubAuri(location);
+    bcb.setPart(BlobStore.EXTERNAL_REFERENCE_PART);
+    try {
+      ds.putEntity(bcb, user);
+    } catch (ODKDatastoreException e) {
+      deleteExternalBlobs(Collections.singletonList(location));
+      throw e;
+    }
+  }
+
+  /**
+   * Move an attachment held as blob parts in the database to the configured
+   * {@link BlobStore}. The attachment is copied to the store and referenced
+   * from the database before its blob parts are deleted, so an interrupted
+   * move leaves the attachment readable and is finished by the next call.
+   *
+   * @param firstPart the first part reference of the attachment, as returned
+   *                  by {@link #queryDatabaseAttachments}.
+   * @return true if the attachment was moved.
+   */
+  public static boolean migrateToBlobStore(BinaryContentRefBlob firstPart,
+                                           BinaryContentRefBlob vrefRelation, RefBlob blbRelation, CallingContext cc) {
+    if (BlobStore.getBlobStore() == null) {
+      return false;
+    }
+    String uriVersionedContent = firstPart.getDomAuri();
+    try {
+      BlobManipulator b = new BlobManipulator(uriVersionedContent, vrefRelation, blbRelation, cc);
+      if (b.getExternalLocation() == null) {
+        persistExternalBlob(b.getBlob(), uriVersionedContent, firstPart.getTopLevelAuri(),
+            vrefRelation, cc);
+        // reload so that the deletion keys cover only the database copy
+        b = new BlobManipulator(uriVersionedContent, vrefRelation, blbRelation, cc);
+      }
+      List<EntityKey> keyList = new ArrayList<EntityKey>();
+      b.addEntityKeysForDatabaseCopy(keyList);
+      DeleteHelper.deleteEntities(keyList, cc);
+      return true;
+    } catch (ODKDatastoreException | IllegalStateException e) {
+      logger.warn("Unable to move attachment " + uriVersionedContent + " to the blob store", e);
+      return false;
+    }
+  }
+
+  /**
+   * @return true if any attachments are held as blob parts in the database.
+   */
+  public static boolean hasDatabaseAttachments(BinaryContentRefBlob vrefRelation, CallingContext cc)
+      throws ODKDatastoreException {
+    return !queryDatabaseAttachments(vrefRelation, null, 1, cc).getResultList().isEmpty();
+  }
+
+  /**
+   * Page through the attachments held as blob parts in the database, in URI
+   * order of their first part reference. Attachments that cannot be moved
+   * stay in the database, so callers resume from the cursor of the previous
+   * page rather than from the start.
+   */
+  public static QueryResult queryDatabaseAttachments(BinaryContentRefBlob vrefRelation,
+                                                     QueryResumePoint startCursor, int fetchLimit, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    // every attachment held in the database has a first part...
+    Query q = ds.createQuery(vrefRelation, "BinaryContentManipulator.queryDatabaseAttachments",
+        cc.getCurrentUser());
+    q.addFilter(vrefRelation.part, FilterOperation.EQUAL, 1L);
+    q.addSort(vrefRelation.primaryKey, Direction.ASCENDING);
+    return q.executeQuery(startCursor, fetchLimit);
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if (refreshBeforeUse) {
       // clear our mutable state.
@@ -400,9 +667,15 @@ public class BinaryContentManipulator {
     }
     boolean success = false;
     List<EntityKey> keys = new ArrayList<EntityKey>();
+    List<String> sharedBlobKeys = new ArrayList<String>();
+    List<String> externalLocations = new ArrayList<String>();
     try {
-      recursivelyAddEntityKeysForDeletion(keys, cc);
+      addEntityKeysForDeletion(keys, sharedBlobKeys, externalLocations, cc);
       DeleteHelper.deleteEntities(keys, cc);
+      for (String sharedBlobKey : sharedBlobKeys) {
+        SharedBlobStore.release(sharedBlobKey, cc);
+      }
+      deleteExternalBlobs(externalLocations);
       success = true;
     } catch (ODKDatastoreException e) {
       e.printStackTrace();
@@ -434,15 +707,30 @@ public class BinaryContentManipulator {
    * Build up the list of entity keys for the attachments and their
    * references and blobs. This is done so that if we delete these in
    * reverse order, we don't get into a bad state.
+   * <p>
+   * Content held in the {@link SharedBlobStore} or an external
+   * {@link BlobStore} is not released by deleting these keys.
    */
   public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc)
       throws ODKDatastoreException {
+    addEntityKeysForDeletion(keyList, null, null, cc);
+  }
+
+  private void addEntityKeysForDeletion(List<EntityKey> keyList, List<String> sharedBlobKeys,
+                                        List<String> externalLocations, CallingContext cc)
+      throws ODKDatastoreException {
 
     updateAttachments(cc);
     for (BinaryContent bc : attachments.values()) {
       if (bc.getContentHash() != null) {
         BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
         b.recursivelyAddEntityKeysForDeletion(keyList);
+        if (sharedBlobKeys != null && b.getSharedBlobKey() != null) {
+          sharedBlobKeys.add(b.getSharedBlobKey());
+        }
+        if (externalLocations != null && b.getExternalLocation() != null) {
+          externalLocations.add(b.getExternalLocation());
+        }
       }
       keyList.add(bc.getEntityKey());
     }
@@ -453,6 +741,47 @@ public class BinaryContentManipulator {
     return super.hashCode() + parentKey.hashCode() + 3 * topLevelKey.hashCode();
   }
 
+  /**
+   * Content held outside a form's tables by attachments that are being
+   * deleted. See {@link #gatherStoredContent(Collection, Collection, CallingContext)}.
+   */
+  public static final class StoredContent {
+    private final List<String> sharedBlobKeys = new ArrayList<String>();
+    private final List<String> externalLocations = new ArrayList<String>();
+
+    private StoredContent() {
+    }
+
+    private void add(BinaryContentRefBlob bcref) {
+      Long part = bcref.getPart();
+      if (part == null) {
+        return;
+      }
+      if (part.longValue() == SharedBlobStore.SHARED_REFERENCE_PART
+          && SharedBlobStore.isSharedBlobKey(bcref.getSubAuri())) {
+        sharedBlobKeys.add(bcref.getSubAuri());
+      } else if (part.longValue() == BlobStore.EXTERNAL_REFERENCE_PART
+          && BlobStore.isBlobStoreLocation(bcref.getSubAuri())) {
+        externalLocations.add(bcref.getSubAuri());
+      }
+    }
+
+    public boolean isEmpty() {
+      return sharedBlobKeys.isEmpty() && externalLocations.isEmpty();
+    }
+
+    /**
+     * Drop the references to the gathered content. Call this only after the
+     * rows referencing it have been deleted.
+     */
+    public void release(CallingContext cc) throws ODKDatastoreException {
+      for (String sharedBlobKey : sharedBlobKeys) {
+        SharedBlobStore.release(sharedBlobKey, cc);
+      }
+      deleteExternalBlobs(externalLocations);
+    }
+  }
+
   public static enum BlobSubmissionOutcome {
     FILE_UNCHANGED, NEW_FILE_VERSION, COMPLETELY_NEW_FILE
   }
@@ -461,6 +790,10 @@ public class BinaryContentManipulator {
 
     private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
     private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
+    private String sharedBlobKey = null;
+    private String externalLocation = null;
+    // keys of blob parts left over from before the content moved to the BlobStore
+    private List<EntityKey> dbRefBlobKeyList = new ArrayList<EntityKey>();
 
     /**
      * Construct an blob entity and persist it into the data store
@@ -496,6 +829,15 @@ public class BinaryContentManipulator {
 
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
                            CallingContext cc) throws ODKDatastoreException {
+      this(uriVersionedContent, bcbRef, ref, true, cc);
+    }
+
+    /**
+     * @param fetchParts false to only gather the part references, for use with
+     *                   {@link #getBlobStream(RefBlob, CallingContext)}.
+     */
+    public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
+                           boolean fetchParts, CallingContext cc) throws ODKDatastoreException {
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
@@ -505,6 +847,35 @@ public class BinaryContentManipulator {
       q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
       q.addSort(bcbRef.part, Direction.ASCENDING);
       List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+      if (bcbList.size() == 1) {
+        BinaryContentRefBlob bcref = (BinaryContentRefBlob) bcbList.get(0);
+        Long part = bcref.getPart();
+        if (part != null && part.longValue() == SharedBlobStore.SHARED_REFERENCE_PART
+            && SharedBlobStore.isSharedBlobKey(bcref.getSubAuri())) {
+          // the content is held in the shared blob store
+          sharedBlobKey = bcref.getSubAuri();
+          dbBcbEntityList.add(bcref);
+          return;
+        }
+      }
+      if (!bcbList.isEmpty()) {
+        BinaryContentRefBlob bcref = (BinaryContentRefBlob) bcbList.get(0);
+        Long part = bcref.getPart();
+        if (part != null && part.longValue() == BlobStore.EXTERNAL_REFERENCE_PART
+            && BlobStore.isBlobStoreLocation(bcref.getSubAuri())) {
+          // the content is held in the BlobStore. Any other parts are the
+          // remains of an interrupted move out of the database.
+          externalLocation = bcref.getSubAuri();
+          for (CommonFieldsBase cb : bcbList) {
+            BinaryContentRefBlob b = (BinaryContentRefBlob) cb;
+            dbBcbEntityList.add(b);
+            if (b != bcref) {
+              dbRefBlobKeyList.add(new EntityKey(ref, b.getSubAuri()));
+            }
+          }
+          return;
+        }
+      }
       long expectedPart = 1L;
       for (CommonFieldsBase cb : bcbList) {
         BinaryContentRefBlob bcref = (BinaryContentRefBlob) cb;
@@ -518,6 +889,9 @@ public class BinaryContentManipulator {
         ++expectedPart;
         dbBcbEntityList.add(bcref);
       }
+      if (!fetchParts) {
+        return;
+      }
 
       // and gather the blob parts themselves...
       for (BinaryContentRefBlob b : dbBcbEntityList) {
@@ -529,6 +903,20 @@ public class BinaryContentManipulator {
       }
     }
 
+    /**
+     * @return the {@link SharedBlobStore} key if the content is held there, otherwise null.
+     */
+    public String getSharedBlobKey() {
+      return sharedBlobKey;
+    }
+
+    /**
+     * @return the {@link BlobStore} location if the content is held there, otherwise null.
+     */
+    public String getExternalLocation() {
+      return externalLocation;
+    }
+
     public byte[] getBlob() {
       ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
       for (RefBlob partialBlob : dbRefBlobList) {
@@ -538,6 +926,56 @@ public class BinaryContentManipulator {
       return reconstructedBlob.toByteArray();
     }
 
+    /**
+     * @return a stream that fetches the blob parts one at a time as it is read.
+     */
+    public InputStream getBlobStream(final RefBlob ref, final CallingContext cc) {
+      final Iterator<BinaryContentRefBlob> parts = dbBcbEntityList.iterator();
+      return new InputStream() {
+        private byte[] current = new byte[0];
+        private int pos = 0;
+
+        private boolean nextPart() throws IOException {
+          while (pos == current.length) {
+            if (!parts.hasNext()) {
+              return false;
+            }
+            try {
+              RefBlob eBlob = cc.getDatastore().getEntity(ref, parts.next().getSubAuri(),
+                  cc.getCurrentUser());
+              current = eBlob.getValue();
+            } catch (ODKDatastoreException e) {
+              throw new IOException("Unable to read blob part", e);
+            }
+            pos = 0;
+          }
+          return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+          if (!nextPart()) {
+            return -1;
+          }
+          return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          if (!nextPart()) {
+            return -1;
+          }
+          int n = Math.min(len, current.length - pos);
+          System.arraycopy(current, pos, b, off, n);
+          pos += n;
+          return n;
+        }
+      };
+    }
+
     /**
      * Recursively add the keys for this entry to keyList.
      * Pay attention to the order of insertion so that if
@@ -546,6 +984,7 @@ public class BinaryContentManipulator {
      * state.
      */
     public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList) {
+      keyList.addAll(dbRefBlobKeyList);
       HashMap<String, RefBlob> blobs = new HashMap<String, RefBlob>();
       for (RefBlob r : dbRefBlobList) {
         blobs.put(r.getUri(), r);
@@ -566,5 +1005,19 @@ public class BinaryContentManipulator {
       }
     }
 
+    /**
+     * Add the keys of the blob parts, and their references, that hold a copy
+     * of content which has been moved to the {@link BlobStore}.
+     */
+    void addEntityKeysForDatabaseCopy(List<EntityKey> keyList) {
+      keyList.addAll(dbRefBlobKeyList);
+      for (BinaryContentRefBlob e : dbBcbEntityList) {
+        Long part = e.getPart();
+        if (part == null || part.longValue() != BlobStore.EXTERNAL_REFERENCE_PART) {
+          keyList.add(e.getEntityKey());
+        }
+      }
+    }
+
   }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.datamodel;
+
+import java.io.IOException;
+import java.util.UUID;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * External storage for attachment bytes.
+ * <p>
+ * When a BlobStore bean is configured, {@link BinaryContentManipulator}
+ * writes the bytes of new attachments to it rather than chunking them into
+ * {@link RefBlob} rows. The database then only holds the attachment's
+ * content hash and length (in its {@link BinaryContent} row) and a single
+ * {@link BinaryContentRefBlob} row, with part number
+ * {@link #EXTERNAL_REFERENCE_PART}, whose sub-AURI is the location of the
+ * bytes in the store. Attachments already held in the database remain
+ * readable, and are moved to the store by the BlobStoreMigration task.
+ * <p>
+ * Locations are opaque to the store's callers. A deployment must keep using
+ * the same store (and the same root or bucket) once attachments have been
+ * written to it.
+ */
+public abstract class BlobStore implements InitializingBean, DisposableBean {
+
+  /**
+   * part number of the reference row linking an attachment to its location
+   * in the store. Sorts ahead of any part left over from the database copy
+   * of the attachment.
+   */
+  public static final long EXTERNAL_REFERENCE_PART = -1L;
+
+  private static final String LOCATION_PREFIX = "blob:";
+
+  private static BlobStore classInstance = null;
+
+  /**
+   * @return the configured store, or null if attachments are held in the database.
+   */
+  public static synchronized BlobStore getBlobStore() {
+    return classInstance;
+  }
+
+  private static synchronized void setBlobStore(BlobStore blobStore) {
+    classInstance = blobStore;
+  }
+
+  public static boolean isBlobStoreLocation(String location) {
+    return location != null && location.startsWith(LOCATION_PREFIX);
+  }
+
+  /**
+   * @return a new, unique, location. Its name (after the prefix) is safe to
+   *     use as a file name or object key.
+   */
+  protected static String newLocation() {
+    return LOCATION_PREFIX + UUID.randomUUID().toString();
+  }
+
+  /**
+   * @return the name of the location, without its prefix.
+   */
+  protected static String getLocationName(String location) {
+    if (!isBlobStoreLocation(location)) {
+      throw new IllegalArgumentException("not a blob store location: " + location);
+    }
+    return location.substring(LOCATION_PREFIX.length());
+  }
+
+  /**
+   * Verify the configuration of the store.
+   */
+  protected abstract void initialize() throws IOException;
+
+  /**
+   * Durably store the bytes at a new location.
+   *
+   * @return the location of the bytes.
+   */
+  public abstract String put(byte[] content) throws IOException;
+
+  public abstract byte[] get(String location) throws IOException;
+
+  /**
+   * Remove the bytes at the location. Removing an absent location is not an error.
+   */
+  public abstract void delete(String location) throws IOException;
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    initialize();
+    setBlobStore(this);
+  }
+
+  @Override
+  public void destroy() {
+    setBlobStore(null);
+  }
+}
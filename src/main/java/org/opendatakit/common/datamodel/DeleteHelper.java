@@ -15,18 +15,23 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.submission.ImagePreview;
+import org.opendatakit.aggregate.submission.SubmissionDigest;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -112,7 +117,7 @@ public class DeleteHelper {
   }
 
   public static void deleteDamagedSubmission(TopLevelDynamicBase tle,
-                                             Set<DynamicCommonFieldsBase> backingObjects, CallingContext cc) throws ODKDatastoreException {
+                                             Collection<? extends CommonFieldsBase> backingTables, CallingContext cc) throws ODKDatastoreException {
 
     Logger logger = LoggerFactory.getLogger(DeleteHelper.class);
 
@@ -122,19 +127,23 @@ public class DeleteHelper {
         DynamicCommonFieldsBase.sameTableName);
     Set<DynamicBase> groups = new TreeSet<DynamicBase>(DynamicCommonFieldsBase.sameTableName);
 
-    for (DynamicCommonFieldsBase dcb : backingObjects) {
-      if (dcb instanceof DynamicDocumentBase) {
-        documents.add((DynamicDocumentBase) dcb);
-      } else if (dcb instanceof DynamicAssociationBase) {
-        associations.add((DynamicAssociationBase) dcb);
-      } else if (!(dcb instanceof TopLevelDynamicBase)) {
-        groups.add((DynamicBase) dcb);
+    for (CommonFieldsBase b : backingTables) {
+      if (b instanceof DynamicDocumentBase) {
+        documents.add((DynamicDocumentBase) b);
+      } else if (b instanceof DynamicAssociationBase) {
+        associations.add((DynamicAssociationBase) b);
+      } else if (b instanceof DynamicBase && !(b instanceof TopLevelDynamicBase)) {
+        groups.add((DynamicBase) b);
       }
     }
 
     logger.info("deleteDamagedSubmissions begin purging records for badTopLevelEntity: "
         + tle.getUri());
 
+    BinaryContentManipulator.StoredContent storedContent =
+        BinaryContentManipulator.gatherStoredContent(associations,
+            Collections.singletonList(tle.getUri()), cc);
+
     // delete documents
     for (DynamicDocumentBase dd : documents) {
       Query q = cc.getDatastore().createQuery(dd, "purge(damaged) - documents",
@@ -167,9 +176,77 @@ public class DeleteHelper {
       }
     }
 
-    // delete top level entity
+    // delete top level entity, the digest of the upload that stored it and
+    // the previews of its images
     cc.getDatastore().deleteEntity(tle.getEntityKey(), cc.getCurrentUser());
+    cc.getDatastore().deleteEntity(SubmissionDigest.getEntityKey(tle.getUri(), cc),
+        cc.getCurrentUser());
+    ImagePreview.deletePreviews(Collections.singletonList(tle.getUri()), cc);
+    storedContent.release(cc);
     logger.info("deleteDamagedSubmissions end purging records for badTopLevelEntity: "
         + tle.getUri());
   }
+
+  /**
+   * Set-based delete of a batch of submissions. Rather than fetching each
+   * submission and deleting its rows one key at a time, issue one bulk delete
+   * per backing table, keyed by the _TOP_LEVEL_AURI of the batch.
+   * <p>
+   * Tables are cleared in the same order as {@link #deleteDamagedSubmission}:
+   * documents, associations, groups and choices, and the top-level rows last.
+   * If the deletion is interrupted, the top-level rows are still present and
+   * the batch will be selected again and retried.
+   * <p>
+   * Attachment content held in the {@link SharedBlobStore} or an external
+   * {@link BlobStore} is gathered before the rows are deleted and released
+   * after, so it is not left behind.
+   */
+  public static void deleteSubmissionsByTopLevelAuri(List<String> topLevelAuris,
+                                                     CommonFieldsBase topLevelRelation,
+                                                     Collection<? extends CommonFieldsBase> backingTables,
+                                                     CallingContext cc) throws ODKDatastoreException {
+    if (topLevelAuris.isEmpty()) {
+      return;
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    Set<DynamicDocumentBase> documents = new TreeSet<DynamicDocumentBase>(
+        DynamicCommonFieldsBase.sameTableName);
+    Set<DynamicAssociationBase> associations = new TreeSet<DynamicAssociationBase>(
+        DynamicCommonFieldsBase.sameTableName);
+    Set<DynamicBase> groups = new TreeSet<DynamicBase>(DynamicCommonFieldsBase.sameTableName);
+
+    for (CommonFieldsBase b : backingTables) {
+      if (b instanceof DynamicDocumentBase) {
+        documents.add((DynamicDocumentBase) b);
+      } else if (b instanceof DynamicAssociationBase) {
+        associations.add((DynamicAssociationBase) b);
+      } else if (b instanceof DynamicBase) {
+        groups.add((DynamicBase) b);
+      }
+    }
+
+    BinaryContentManipulator.StoredContent storedContent =
+        BinaryContentManipulator.gatherStoredContent(backingTables, topLevelAuris, cc);
+
+    int count = 0;
+    for (DynamicDocumentBase dd : documents) {
+      count += ds.deleteEntitiesWithFieldValues(dd, dd.topLevelAuri, topLevelAuris, user);
+    }
+    for (DynamicAssociationBase dd : associations) {
+      count += ds.deleteEntitiesWithFieldValues(dd, dd.topLevelAuri, topLevelAuris, user);
+    }
+    for (DynamicBase dd : groups) {
+      count += ds.deleteEntitiesWithFieldValues(dd, dd.topLevelAuri, topLevelAuris, user);
+    }
+    count += ds.deleteEntitiesWithFieldValues(topLevelRelation, topLevelRelation.primaryKey,
+        topLevelAuris, user);
+
+    storedContent.release(cc);
+
+    logger.info("deleteSubmissionsByTopLevelAuri removed " + count + " rows for "
+        + topLevelAuris.size() + " submissions of " + topLevelRelation.getTableName());
+  }
 }
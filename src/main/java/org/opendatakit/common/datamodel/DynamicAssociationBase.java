@@ -47,7 +47,7 @@ public abstract class DynamicAssociationBase extends DynamicCommonFieldsBase {
   /**
    * key into the top level dynamic table that is our ancestor
    */
-  private static final DataField TOP_LEVEL_AURI = new DataField("_TOP_LEVEL_AURI", DataField.DataType.URI, true, PersistConsts.URI_STRING_LEN);
+  private static final DataField TOP_LEVEL_AURI = new DataField("_TOP_LEVEL_AURI", DataField.DataType.URI, true, PersistConsts.URI_STRING_LEN).setIndexable(IndexType.HASH);
 
   public final DataField domAuri;
   public final DataField subAuri;
@@ -16,6 +16,7 @@
 package org.opendatakit.common.datamodel;
 
 import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.security.User;
 
@@ -28,7 +29,7 @@ public abstract class DynamicDocumentBase extends DynamicCommonFieldsBase {
   /**
    * key into the top level dynamic table that is our ancestor
    */
-  private static final DataField TOP_LEVEL_AURI = new DataField("_TOP_LEVEL_AURI", DataField.DataType.URI, true, PersistConsts.URI_STRING_LEN);
+  private static final DataField TOP_LEVEL_AURI = new DataField("_TOP_LEVEL_AURI", DataField.DataType.URI, true, PersistConsts.URI_STRING_LEN).setIndexable(IndexType.HASH);
 
   public final DataField topLevelAuri;
 
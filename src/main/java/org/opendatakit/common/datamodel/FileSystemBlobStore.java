@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.datamodel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * {@link BlobStore} that keeps each attachment in its own file under a root
+ * directory. Files are spread over sub-directories named by the leading
+ * characters of the location, and are fsync'd before they are referenced.
+ */
+public class FileSystemBlobStore extends BlobStore {
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private String rootDirectory = null;
+
+  private File root;
+
+  public String getRootDirectory() {
+    return rootDirectory;
+  }
+
+  public void setRootDirectory(String rootDirectory) {
+    this.rootDirectory = rootDirectory;
+  }
+
+  @Override
+  protected void initialize() throws IOException {
+    if (rootDirectory == null || rootDirectory.trim().length() == 0)
+      throw new IllegalStateException("no rootDirectory specified");
+    root = new File(rootDirectory.trim());
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IOException("Unable to create blob store directory " + root.getAbsolutePath());
+    }
+  }
+
+  private File getFile(String location) {
+    String name = getLocationName(location);
+    if (name.length() < 4 || name.contains("/") || name.contains("\\") || name.contains("..")) {
+      throw new IllegalArgumentException("malformed blob store location: " + location);
+    }
+    File dir = new File(new File(root, name.substring(0, 2)), name.substring(2, 4));
+    return new File(dir, name);
+  }
+
+  @Override
+  public String put(byte[] content) throws IOException {
+    String location = newLocation();
+    File f = getFile(location);
+    File dir = f.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Unable to create blob store directory " + dir.getAbsolutePath());
+    }
+    File temp = new File(dir, f.getName() + TEMP_FILE_SUFFIX);
+    try {
+      try (FileOutputStream out = new FileOutputStream(temp)) {
+        out.write(content);
+        out.getFD().sync();
+      }
+      Files.move(temp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+    return location;
+  }
+
+  @Override
+  public byte[] get(String location) throws IOException {
+    try {
+      return Files.readAllBytes(getFile(location).toPath());
+    } catch (NoSuchFileException e) {
+      throw new IOException("Missing blob store file for " + location, e);
+    }
+  }
+
+  @Override
+  public void delete(String location) throws IOException {
+    Files.deleteIfExists(getFile(location).toPath());
+  }
+}
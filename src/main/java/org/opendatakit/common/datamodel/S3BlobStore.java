@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.datamodel;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * {@link BlobStore} that keeps each attachment as an object in a bucket of an
+ * S3-compatible object store (Amazon S3, MinIO, Ceph, ...). Objects are
+ * addressed path-style (endpoint/bucket/key) and requests are signed with
+ * AWS Signature Version 4.
+ */
+public class S3BlobStore extends BlobStore {
+
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final String SERVICE = "s3";
+  private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+  private static final DateTimeFormatter DATE_STAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+  private static final int TIMEOUT_MILLISECONDS = 60000;
+  private static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+  private String endpoint = null;
+  private String region = "us-east-1";
+  private String bucket = null;
+  private String keyPrefix = "";
+  private String accessKey = null;
+  private String secretKey = null;
+  // every request goes to the one endpoint, so this is also the per-route limit
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+  private URI endpointUri;
+  private CloseableHttpClient client;
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public void setEndpoint(String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  public String getRegion() {
+    return region;
+  }
+
+  public void setRegion(String region) {
+    this.region = region;
+  }
+
+  public String getBucket() {
+    return bucket;
+  }
+
+  public void setBucket(String bucket) {
+    this.bucket = bucket;
+  }
+
+  public String getKeyPrefix() {
+    return keyPrefix;
+  }
+
+  public void setKeyPrefix(String keyPrefix) {
+    this.keyPrefix = keyPrefix;
+  }
+
+  public String getAccessKey() {
+    return accessKey;
+  }
+
+  public void setAccessKey(String accessKey) {
+    this.accessKey = accessKey;
+  }
+
+  public String getSecretKey() {
+    return secretKey;
+  }
+
+  public void setSecretKey(String secretKey) {
+    this.secretKey = secretKey;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  @Override
+  protected void initialize() {
+    if (endpoint == null || endpoint.trim().length() == 0)
+      throw new IllegalStateException("no endpoint specified");
+    if (bucket == null || bucket.trim().length() == 0)
+      throw new IllegalStateException("no bucket specified");
+    if (accessKey == null || secretKey == null)
+      throw new IllegalStateException("accessKey and secretKey must be specified");
+    if (maxConnections < 1)
+      throw new IllegalStateException("maxConnections must be at least 1");
+    String trimmed = endpoint.trim();
+    endpointUri = URI.create(trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed);
+    if (keyPrefix == null) {
+      keyPrefix = "";
+    }
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(TIMEOUT_MILLISECONDS)
+        .setSocketTimeout(TIMEOUT_MILLISECONDS)
+        .build();
+    client = HttpClientBuilder.create()
+        .setDefaultRequestConfig(requestConfig)
+        .setMaxConnTotal(maxConnections)
+        .setMaxConnPerRoute(maxConnections)
+        .build();
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    if (client != null) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  @Override
+  public String put(byte[] content) throws IOException {
+    String location = newLocation();
+    HttpPut put = new HttpPut(getObjectUri(location));
+    put.setEntity(new ByteArrayEntity(content));
+    execute(put, content, false);
+    return location;
+  }
+
+  @Override
+  public byte[] get(String location) throws IOException {
+    return execute(new HttpGet(getObjectUri(location)), new byte[0], false);
+  }
+
+  @Override
+  public void delete(String location) throws IOException {
+    execute(new HttpDelete(getObjectUri(location)), new byte[0], true);
+  }
+
+  private URI getObjectUri(String location) {
+    return URI.create(endpointUri.toString() + getCanonicalPath(getLocationName(location)));
+  }
+
+  private String getCanonicalPath(String name) {
+    StringBuilder b = new StringBuilder();
+    b.append("/").append(uriEncode(bucket.trim()));
+    for (String segment : (keyPrefix + name).split("/")) {
+      if (segment.length() != 0) {
+        b.append("/").append(uriEncode(segment));
+      }
+    }
+    return b.toString();
+  }
+
+  private byte[] execute(HttpRequestBase request, byte[] payload, boolean allowNotFound) throws IOException {
+    sign(request, payload, ZonedDateTime.now(ZoneOffset.UTC));
+    HttpResponse response = client.execute(request);
+    try {
+      int statusCode = response.getStatusLine().getStatusCode();
+      byte[] body = (response.getEntity() == null) ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+      if (statusCode / 100 == 2 || (allowNotFound && statusCode == 404)) {
+        return body;
+      }
+      throw new IOException(request.getMethod() + " " + request.getURI().getPath() + " failed: "
+          + response.getStatusLine());
+    } finally {
+      request.releaseConnection();
+    }
+  }
+
+  /**
+   * Add the AWS Signature Version 4 headers to the request.
+   */
+  void sign(HttpRequestBase request, byte[] payload, ZonedDateTime now) {
+    String amzDate = AMZ_DATE_FORMAT.format(now);
+    String dateStamp = DATE_STAMP_FORMAT.format(now);
+    String payloadHash = Hex.encodeHexString(sha256(payload));
+    URI uri = request.getURI();
+    String host = uri.getHost() + ((uri.getPort() == -1) ? "" : ":" + uri.getPort());
+
+    String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+    String canonicalRequest = request.getMethod() + "\n"
+        + uri.getRawPath() + "\n"
+        + getCanonicalQueryString(uri) + "\n"
+        + "host:" + host + "\n"
+        + "x-amz-content-sha256:" + payloadHash + "\n"
+        + "x-amz-date:" + amzDate + "\n"
+        + "\n"
+        + signedHeaders + "\n"
+        + payloadHash;
+    String scope = dateStamp + "/" + region + "/" + SERVICE + "/aws4_request";
+    String stringToSign = ALGORITHM + "\n"
+        + amzDate + "\n"
+        + scope + "\n"
+        + Hex.encodeHexString(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+    byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp);
+    signingKey = hmac(signingKey, region);
+    signingKey = hmac(signingKey, SERVICE);
+    signingKey = hmac(signingKey, "aws4_request");
+    String signature = Hex.encodeHexString(hmac(signingKey, stringToSign));
+
+    request.setHeader("x-amz-date", amzDate);
+    request.setHeader("x-amz-content-sha256", payloadHash);
+    request.setHeader("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+        + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+  }
+
+  private static String getCanonicalQueryString(URI uri) {
+    String query = uri.getRawQuery();
+    if (query == null || query.length() == 0) {
+      return "";
+    }
+    // parameters sorted by name, each with an (possibly empty) encoded value
+    TreeMap<String, String> parameters = new TreeMap<String, String>();
+    for (String parameter : query.split("&")) {
+      int idx = parameter.indexOf('=');
+      String name = (idx == -1) ? parameter : parameter.substring(0, idx);
+      String value = (idx == -1) ? "" : parameter.substring(idx + 1);
+      parameters.put(uriEncode(uriDecode(name)), uriEncode(uriDecode(value)));
+    }
+    StringBuilder b = new StringBuilder();
+    for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+      if (b.length() != 0) {
+        b.append("&");
+      }
+      b.append(parameter.getKey()).append("=").append(parameter.getValue());
+    }
+    return b.toString();
+  }
+
+  private static String uriDecode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String uriEncode(String segment) {
+    try {
+      return URLEncoder.encode(segment, "UTF-8").replace("+", "%20").replace("*", "%2A")
+          .replace("%7E", "~");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unexpected problem computing SHA-256 hash", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unexpected problem computing HMAC-SHA256", e);
+    }
+  }
+}
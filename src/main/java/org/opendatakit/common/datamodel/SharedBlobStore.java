@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.datamodel;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Content-addressed store for attachment bytes shared between
+ * {@link BinaryContentManipulator} instances. Each distinct content is held
+ * once, keyed by its SHA-256 hash, and carries a count of the attachments
+ * that reference it. The bytes themselves are chunked into a
+ * {@link BinaryContentRefBlob} / {@link RefBlob} pair of tables exactly as
+ * per-form attachments are.
+ * <p>
+ * An attachment that uses the store records a single
+ * {@link BinaryContentRefBlob} row with part number
+ * {@link #SHARED_REFERENCE_PART} whose sub-AURI is the store key, instead of
+ * its own sequence of blob parts.
+ * <p>
+ * Reference counts are changed by single-statement updates rather than by
+ * reading and rewriting the entry, so that servers sharing the database do
+ * not lose updates. The parts of each content are stored under a URI of
+ * their own: when two servers store the same new content at once, both
+ * write their parts but only one entry can be inserted, and the other
+ * server discards its copy and references the stored one.
+ */
+public final class SharedBlobStore extends CommonFieldsBase {
+
+  /**
+   * part number of the reference row linking an attachment to the store.
+   */
+  public static final long SHARED_REFERENCE_PART = 0L;
+
+  private static final String TABLE_NAME = "_shared_blob";
+  private static final String SHARED_BLOB_REF_TABLE_NAME = "_shared_blob_ref";
+  private static final String SHARED_BLOB_BLB_TABLE_NAME = "_shared_blob_blb";
+  private static final String KEY_PREFIX = "sha256:";
+
+  private static final DataField CONTENT_LENGTH = new DataField("CONTENT_LENGTH",
+      DataField.DataType.INTEGER, false);
+  private static final DataField REF_COUNT = new DataField("REF_COUNT",
+      DataField.DataType.INTEGER, false);
+  private static final DataField PARTS_URI = new DataField("PARTS_URI",
+      DataField.DataType.URI, false, PersistConsts.URI_STRING_LEN);
+
+  // inserting the entry can only keep failing if it is being deleted and
+  // re-created underneath us.
+  private static final int MAX_ACQUIRE_ATTEMPTS = 3;
+
+  private static SharedBlobStore relation = null;
+  private static BinaryContentRefBlob refRelation = null;
+  private static RefBlob blbRelation = null;
+
+  private SharedBlobStore(String schemaName) {
+    super(schemaName, TABLE_NAME);
+    fieldList.add(CONTENT_LENGTH);
+    fieldList.add(REF_COUNT);
+    fieldList.add(PARTS_URI);
+  }
+
+  private SharedBlobStore(SharedBlobStore ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized SharedBlobStore assertRelation(CallingContext cc) throws ODKDatastoreException {
+    if (relation == null) {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      SharedBlobStore relationPrototype = new SharedBlobStore(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      BinaryContentRefBlob ref = new BinaryContentRefBlob(ds.getDefaultSchemaName(), SHARED_BLOB_REF_TABLE_NAME);
+      ds.assertRelation(ref, user);
+      RefBlob blb = new RefBlob(ds.getDefaultSchemaName(), SHARED_BLOB_BLB_TABLE_NAME);
+      ds.assertRelation(blb, user);
+      // set static variables only upon success...
+      refRelation = ref;
+      blbRelation = blb;
+      relation = relationPrototype;
+    }
+    return relation;
+  }
+
+  public static boolean isSharedBlobKey(String key) {
+    return key != null && key.startsWith(KEY_PREFIX);
+  }
+
+  /**
+   * Add a reference to the given content, storing the bytes if this is the
+   * first reference to them.
+   *
+   * @return the store key of the content.
+   */
+  public static String acquire(byte[] blob, CallingContext cc) throws ODKDatastoreException {
+    SharedBlobStore prototype = assertRelation(cc);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String key = newSha256Key(blob);
+    EntityKey entityKey = new EntityKey(prototype, key);
+
+    ODKEntityPersistException failure = null;
+    for (int attempt = 0; attempt < MAX_ACQUIRE_ATTEMPTS; ++attempt) {
+      if (ds.incrementField(entityKey, REF_COUNT, 1L, user)) {
+        return key;
+      }
+      String partsUri = CommonFieldsBase.newUri();
+      try {
+        new BinaryContentManipulator.BlobManipulator(blob, partsUri, refRelation, blbRelation, partsUri, cc);
+        // the entry is written last so that it is only visible once all parts are stored.
+        SharedBlobStore entry = ds.createEntityUsingRelation(prototype, user);
+        entry.setStringField(prototype.primaryKey, key);
+        entry.setContentLength(Long.valueOf(blob.length));
+        entry.setPartsUri(partsUri);
+        entry.setRefCount(1L);
+        ds.putEntity(entry, user);
+        return key;
+      } catch (ODKEntityPersistException e) {
+        // most likely another server inserted the entry first; drop our copy
+        // of the parts and reference theirs.
+        failure = e;
+        deleteParts(partsUri, cc);
+      }
+    }
+    throw failure;
+  }
+
+  public static byte[] getBlob(String key, CallingContext cc) throws ODKDatastoreException {
+    SharedBlobStore prototype = assertRelation(cc);
+    SharedBlobStore entry = cc.getDatastore().getEntity(prototype, key, cc.getCurrentUser());
+    return new BinaryContentManipulator.BlobManipulator(entry.getPartsUri(), refRelation, blbRelation, cc).getBlob();
+  }
+
+  /**
+   * Remove a reference to the given content, deleting the bytes once no
+   * references remain.
+   */
+  public static void release(String key, CallingContext cc) throws ODKDatastoreException {
+    SharedBlobStore prototype = assertRelation(cc);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    EntityKey entityKey = new EntityKey(prototype, key);
+
+    SharedBlobStore entry;
+    try {
+      // our reference keeps the entry, and so its parts URI, in place until
+      // the count is decremented.
+      entry = ds.getEntity(prototype, key, user);
+    } catch (ODKEntityNotFoundException e) {
+      // already gone
+      return;
+    }
+    if (!ds.incrementField(entityKey, REF_COUNT, -1L, user)) {
+      return;
+    }
+    // an acquire that increments the count before this delete keeps the
+    // content; only one release can delete the entry.
+    if (ds.deleteEntityIf(entityKey, REF_COUNT, FilterOperation.LESS_THAN_OR_EQUAL, 0L, user)) {
+      deleteParts(entry.getPartsUri(), cc);
+    }
+  }
+
+  private static void deleteParts(String partsUri, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    ds.deleteEntitiesWithFieldValues(refRelation, refRelation.topLevelAuri,
+        Collections.singletonList(partsUri), user);
+    ds.deleteEntitiesWithFieldValues(blbRelation, blbRelation.topLevelAuri,
+        Collections.singletonList(partsUri), user);
+  }
+
+  private static String newSha256Key(byte[] blob) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(blob);
+      String sha = new BigInteger(1, md.digest()).toString(16);
+      while (sha.length() < 64)
+        sha = "0" + sha;
+      return KEY_PREFIX + sha;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing SHA-256 hash", e);
+    }
+  }
+
+  @Override
+  public SharedBlobStore getEmptyRow(User user) {
+    return new SharedBlobStore(this, user);
+  }
+
+  public Long getContentLength() {
+    return getLongField(CONTENT_LENGTH);
+  }
+
+  public void setContentLength(Long value) {
+    setLongField(CONTENT_LENGTH, value);
+  }
+
+  public Long getRefCount() {
+    return getLongField(REF_COUNT);
+  }
+
+  public void setRefCount(Long value) {
+    setLongField(REF_COUNT, value);
+  }
+
+  public String getPartsUri() {
+    return getStringField(PARTS_URI);
+  }
+
+  public void setPartsUri(String value) {
+    setStringField(PARTS_URI, value);
+  }
+}
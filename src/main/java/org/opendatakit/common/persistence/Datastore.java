@@ -51,9 +51,77 @@ public interface Datastore {
 
   void putEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException;
 
+  /**
+   * Write the entity whether or not a row with its primary key is already in
+   * the database, in a single statement. An existing row keeps its creation
+   * date and creator; every other field is overwritten. Unlike
+   * {@link #putEntity(CommonFieldsBase, User)}, the entity does not need to
+   * have been read from the database first.
+   */
+  void upsertEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException, ODKOverQuotaException;
+
+  void upsertEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException;
+
+  /**
+   * Insert rows that are known not to be in the database yet, using the
+   * fastest bulk load path the engine offers. The entities may belong to
+   * several relations; they are grouped per relation and written within a
+   * single transaction, so either all of them are stored or none are.
+   */
+  void bulkInsertEntities(Collection<? extends CommonFieldsBase> entities, User user) throws ODKEntityPersistException, ODKOverQuotaException;
+
+  /**
+   * Stream the rows of the select to the handler using the engine's bulk
+   * export path, without materializing entities.
+   *
+   * @return false if the engine has no such path, in which case the handler
+   *     has not been called and the caller should fall back to
+   *     {@link #createQuery(CommonFieldsBase, String, User)}.
+   */
+  boolean streamFlatSelect(FlatSelect select, FlatSelect.RowHandler handler, User user) throws ODKDatastoreException;
+
   void deleteEntity(EntityKey key, User user) throws ODKDatastoreException;
 
   void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException;
 
+  /**
+   * Set-based delete of every row of the relation whose value in the given
+   * (string or URI) field is one of the supplied values. Large value lists
+   * are split into several statements to respect the bind parameter limits
+   * of the database.
+   *
+   * @return the number of rows deleted.
+   */
+  int deleteEntitiesWithFieldValues(CommonFieldsBase relation, DataField field, Collection<String> values, User user) throws ODKDatastoreException;
+
+  /**
+   * Add delta to the integer field of the row with the given key in a single
+   * statement, so that concurrent updates from any server are not lost.
+   *
+   * @return false if there is no row with that key.
+   */
+  boolean incrementField(EntityKey key, DataField field, long delta, User user) throws ODKDatastoreException;
+
+  /**
+   * Delete the row with the given key only if its value in the given field
+   * satisfies the condition, in a single statement.
+   *
+   * @return true if the row was deleted.
+   */
+  boolean deleteEntityIf(EntityKey key, DataField field, Query.FilterOperation op, Object value, User user) throws ODKDatastoreException;
+
+  /**
+   * Overwrite the row with the entity's primary key only if the row sorts
+   * before the entity on the given field, with ties broken by the
+   * tieBreakField, in a single statement. Concurrent writers can thus only
+   * move the row forward. The row keeps its creation date and creator.
+   *
+   * @return false if there is no row with that key or it does not sort
+   *     before the entity.
+   */
+  boolean updateEntityIfLater(CommonFieldsBase entity, DataField field, DataField tieBreakField, User user) throws ODKDatastoreException;
+
   TaskLock createTaskLock(User user);
+
+  WorkQueue createWorkQueue(User user);
 }
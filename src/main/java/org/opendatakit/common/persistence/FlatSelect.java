@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+
+/**
+ * Describes a read-only SELECT over a driving relation and any number of side
+ * relations holding at most one row per driving row. Each side relation is
+ * LEFT JOINed on its join field equal to the primary key of the driving row.
+ * Filters and sorts apply to fields of the driving relation only.
+ *
+ * <p>
+ * Engines that support it stream the result with their bulk export path (see
+ * {@link Datastore#streamFlatSelect(FlatSelect, RowHandler, User)}); the
+ * values are handed back as the text the database renders for each column,
+ * or null for a NULL.
+ */
+public class FlatSelect {
+
+  public interface RowHandler {
+    void handleRow(String[] values) throws IOException;
+  }
+
+  public static final class Column {
+    private final CommonFieldsBase relation;
+    private final DataField field;
+
+    private Column(CommonFieldsBase relation, DataField field) {
+      this.relation = relation;
+      this.field = field;
+    }
+
+    public CommonFieldsBase getRelation() {
+      return relation;
+    }
+
+    public DataField getField() {
+      return field;
+    }
+  }
+
+  public static final class Join {
+    private final CommonFieldsBase relation;
+    private final DataField joinField;
+
+    private Join(CommonFieldsBase relation, DataField joinField) {
+      this.relation = relation;
+      this.joinField = joinField;
+    }
+
+    public CommonFieldsBase getRelation() {
+      return relation;
+    }
+
+    public DataField getJoinField() {
+      return joinField;
+    }
+  }
+
+  public static final class Filter {
+    private final DataField field;
+    private final FilterOperation operation;
+    private final Object value;
+
+    private Filter(DataField field, FilterOperation operation, Object value) {
+      this.field = field;
+      this.operation = operation;
+      this.value = value;
+    }
+
+    public DataField getField() {
+      return field;
+    }
+
+    public FilterOperation getOperation() {
+      return operation;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+  }
+
+  public static final class Sort {
+    private final DataField field;
+    private final Direction direction;
+
+    private Sort(DataField field, Direction direction) {
+      this.field = field;
+      this.direction = direction;
+    }
+
+    public DataField getField() {
+      return field;
+    }
+
+    public Direction getDirection() {
+      return direction;
+    }
+  }
+
+  private final CommonFieldsBase relation;
+  private final List<Join> joins = new ArrayList<Join>();
+  private final List<Column> columns = new ArrayList<Column>();
+  private final List<Filter> filters = new ArrayList<Filter>();
+  private final List<Sort> sorts = new ArrayList<Sort>();
+
+  public FlatSelect(CommonFieldsBase relation) {
+    this.relation = relation;
+  }
+
+  /**
+   * LEFT JOIN the side relation on {@code joinField = relation._URI}. Joining
+   * the same relation twice is a no-op.
+   */
+  public void addJoin(CommonFieldsBase sideRelation, DataField joinField) {
+    if (isSameRelation(relation, sideRelation) || getJoin(sideRelation) != null) {
+      return;
+    }
+    joins.add(new Join(sideRelation, joinField));
+  }
+
+  /**
+   * Append a column to the result. The relation must be the driving relation
+   * or one already added with {@link #addJoin(CommonFieldsBase, DataField)}.
+   *
+   * @return the index of the column within each result row.
+   */
+  public int addColumn(CommonFieldsBase columnRelation, DataField field) {
+    if (!isSameRelation(relation, columnRelation) && getJoin(columnRelation) == null) {
+      throw new IllegalArgumentException("relation " + columnRelation.getTableName()
+          + " is not part of the select");
+    }
+    columns.add(new Column(columnRelation, field));
+    return columns.size() - 1;
+  }
+
+  /**
+   * Filter on a field of the driving relation. The value must be a Boolean,
+   * Long, Date or String, since some engines inline it into the statement.
+   */
+  public void addFilter(DataField field, FilterOperation operation, Object value) {
+    filters.add(new Filter(field, operation, value));
+  }
+
+  public void addSort(DataField field, Direction direction) {
+    sorts.add(new Sort(field, direction));
+  }
+
+  public CommonFieldsBase getRelation() {
+    return relation;
+  }
+
+  public List<Join> getJoins() {
+    return Collections.unmodifiableList(joins);
+  }
+
+  public List<Column> getColumns() {
+    return Collections.unmodifiableList(columns);
+  }
+
+  public List<Filter> getFilters() {
+    return Collections.unmodifiableList(filters);
+  }
+
+  public List<Sort> getSorts() {
+    return Collections.unmodifiableList(sorts);
+  }
+
+  /**
+   * @return the index of the relation in the FROM clause: 0 for the driving
+   *     relation, 1 + the join index for a side relation.
+   */
+  public int getRelationIndex(CommonFieldsBase columnRelation) {
+    if (isSameRelation(relation, columnRelation)) {
+      return 0;
+    }
+    for (int i = 0; i < joins.size(); ++i) {
+      if (isSameRelation(joins.get(i).relation, columnRelation)) {
+        return i + 1;
+      }
+    }
+    throw new IllegalArgumentException("relation " + columnRelation.getTableName()
+        + " is not part of the select");
+  }
+
+  private Join getJoin(CommonFieldsBase sideRelation) {
+    for (Join join : joins) {
+      if (isSameRelation(join.relation, sideRelation)) {
+        return join;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isSameRelation(CommonFieldsBase a, CommonFieldsBase b) {
+    return a.getSchemaName().equals(b.getSchemaName())
+        && a.getTableName().equals(b.getTableName());
+  }
+}
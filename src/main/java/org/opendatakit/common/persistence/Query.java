@@ -13,6 +13,7 @@
  */
 package org.opendatakit.common.persistence;
 
+import java.util.Collection;
 import java.util.List;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 
@@ -28,6 +29,30 @@ public interface Query {
 
   void addFilter(DataField attributeName, FilterOperation op, Object value);
 
+  /**
+   * Keep only the rows whose {@code attributeName} is one of the values in
+   * {@code valueSet}. Each value is a bind parameter, so callers must keep the
+   * set well under the engine's bind parameter limit.
+   */
+  void addValueSetFilter(DataField attributeName, Collection<?> valueSet);
+
+  /**
+   * Keep only the rows referenced by at least one row of {@code relation}
+   * whose {@code attributeName} satisfies the filter. The {@code joinField}
+   * of that relation holds the primary key of the row being queried (e.g.,
+   * the _TOP_LEVEL_AURI of a phantom or repeat table). The condition is a
+   * semi-join subquery, so the result still has one row per queried row and
+   * resumable queries page the same way.
+   */
+  void addSemiJoinFilter(CommonFieldsBase relation, DataField joinField, DataField attributeName, FilterOperation op, Object value);
+
+  /**
+   * The complement of {@link #addSemiJoinFilter}: keep only the rows referenced
+   * by no row of {@code relation} whose {@code attributeName} satisfies the
+   * filter, including rows not referenced by {@code relation} at all.
+   */
+  void addAntiJoinFilter(CommonFieldsBase relation, DataField joinField, DataField attributeName, FilterOperation op, Object value);
+
   List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException;
 
   QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit) throws ODKDatastoreException;
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.persistence;
+
+/**
+ * An item claimed from a {@link WorkQueue}.
+ */
+public final class WorkItem {
+  private final String uri;
+  private final String taskType;
+  private final String taskKey;
+  private final String formId;
+
+  public WorkItem(String uri, String taskType, String taskKey, String formId) {
+    this.uri = uri;
+    this.taskType = taskType;
+    this.taskKey = taskKey;
+    this.formId = formId;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public String getTaskType() {
+    return taskType;
+  }
+
+  public String getTaskKey() {
+    return taskKey;
+  }
+
+  public String getFormId() {
+    return formId;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.persistence;
+
+import java.util.List;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+
+/**
+ * A queue of background work shared by all the servers using a datastore.
+ * Items are identified by their task type and task key; a server claims
+ * items by taking a time-limited lease on them, so that an item claimed by
+ * a server that dies becomes available again once its lease expires.
+ */
+public interface WorkQueue {
+
+  /**
+   * Adds an item to the queue unless an item with the same task type and
+   * task key is already queued.
+   */
+  void enqueue(String taskType, String taskKey, String formId) throws ODKDatastoreException;
+
+  /**
+   * Leases up to limit items that are not leased by another server.
+   *
+   * @param leaseOwner          identifies the claiming server.
+   * @param limit               maximum number of items to claim.
+   * @param leaseMilliseconds   duration of the lease.
+   * @return the claimed items.
+   */
+  List<WorkItem> claim(String leaseOwner, int limit, long leaseMilliseconds) throws ODKDatastoreException;
+
+  /**
+   * Extends the lease on a claimed item, so that it is not claimed again
+   * while its task is still running.
+   *
+   * @return false if the lease has already expired and the item was claimed
+   *     by another server, or was completed.
+   */
+  boolean renew(String leaseOwner, WorkItem item, long leaseMilliseconds) throws ODKDatastoreException;
+
+  /**
+   * Removes a claimed item from the queue.
+   */
+  void complete(WorkItem item) throws ODKDatastoreException;
+
+}
@@ -133,6 +133,10 @@ public final class DatastoreAccessMetrics {
     recordUsage(key.getRelation(), countDeleteArray);
   }
 
+  public void recordDeleteUsage(CommonFieldsBase relation, int deleteCount) {
+    recordUsage(relation, countDeleteArray, deleteCount);
+  }
+
   /**
    * Maintain a tally of which tables those actions were against.
    * <p>
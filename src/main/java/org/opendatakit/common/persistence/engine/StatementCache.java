@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.engine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+
+/**
+ * Caches the generated text of the per-relation SQL statements used by the
+ * datastore layer (INSERT, UPDATE, SELECT and DELETE by primary key) so that
+ * the entity read and write paths do not rebuild and re-quote the column
+ * list on every call.
+ * <p>
+ * Entries are keyed by schema, table, statement shape and column count. The
+ * owning datastore must call {@link #invalidate(String, String)} whenever a
+ * relation is asserted or dropped.
+ */
+public final class StatementCache {
+
+  public enum Shape {
+    INSERT,
+    UPDATE,
+    UPSERT,
+    SELECT,
+    DELETE,
+    COPY_IN
+  }
+
+  private final Map<Key, String> statements = new ConcurrentHashMap<Key, String>();
+
+  public StatementCache() {
+  }
+
+  /**
+   * Return the cached statement text for the relation, generating and caching
+   * it if it is not yet known.
+   */
+  public String get(CommonFieldsBase relation, Shape shape,
+                    Function<CommonFieldsBase, String> generator) {
+    Key key = new Key(relation.getSchemaName(), relation.getTableName(), shape,
+        relation.getFieldList().size());
+    String sql = statements.get(key);
+    if (sql == null) {
+      sql = generator.apply(relation);
+      statements.put(key, sql);
+    }
+    return sql;
+  }
+
+  /**
+   * Discard all statements generated for the given table.
+   */
+  public void invalidate(String schemaName, String tableName) {
+    statements.keySet().removeIf(k -> k.schemaName.equals(schemaName)
+        && k.tableName.equals(tableName));
+  }
+
+  private static final class Key {
+    final String schemaName;
+    final String tableName;
+    final Shape shape;
+    final int columnCount;
+
+    Key(String schemaName, String tableName, Shape shape, int columnCount) {
+      this.schemaName = schemaName;
+      this.tableName = tableName;
+      this.shape = shape;
+      this.columnCount = columnCount;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return shape == other.shape && columnCount == other.columnCount
+          && tableName.equals(other.tableName) && schemaName.equals(other.schemaName);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((schemaName.hashCode() * 31 + tableName.hashCode()) * 31 + shape.hashCode()) * 31
+          + columnCount;
+    }
+  }
+}
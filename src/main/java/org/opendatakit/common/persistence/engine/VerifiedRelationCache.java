@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Remembers which relations have already been verified against (or created
+ * in) the database, together with the column dimensions read back from the
+ * catalog, so that repeated calls to assertRelation do not have to query
+ * information_schema again for the lifetime of the datastore.
+ * <p>
+ * Entries are keyed by schema, table and the column signature of the
+ * relation (name, type, nullability and requested length of every field),
+ * so a relation whose definition differs from the verified one is always
+ * re-checked. The owning datastore must call
+ * {@link #invalidate(String, String)} when a relation is dropped or a write
+ * to it fails.
+ */
+public final class VerifiedRelationCache {
+
+  private final Map<String, List<Dimensions>> verified = new ConcurrentHashMap<String, List<Dimensions>>();
+
+  public VerifiedRelationCache() {
+  }
+
+  /**
+   * If the relation has already been verified, update its fields with the
+   * dimensions of the database columns. Otherwise the caller must verify the
+   * relation and then call {@link #recordVerified(String, CommonFieldsBase)}.
+   *
+   * @return the signature of the relation (to be handed to recordVerified) if
+   *     it has not been verified yet, or null if the dimensions were applied.
+   */
+  public String applyIfVerified(CommonFieldsBase relation) {
+    String signature = signature(relation);
+    List<Dimensions> dims = verified.get(signature);
+    if (dims == null) {
+      return signature;
+    }
+    List<DataField> fields = relation.getFieldList();
+    for (int i = 0; i < fields.size(); ++i) {
+      dims.get(i).applyTo(fields.get(i));
+    }
+    return null;
+  }
+
+  /**
+   * Record the dimensions of a relation that has just been verified.
+   *
+   * @param signature the value returned by {@link #applyIfVerified(CommonFieldsBase)}
+   *     before the relation was verified.
+   */
+  public void recordVerified(String signature, CommonFieldsBase relation) {
+    List<Dimensions> dims = new ArrayList<Dimensions>();
+    for (DataField f : relation.getFieldList()) {
+      dims.add(new Dimensions(f));
+    }
+    verified.put(signature, dims);
+  }
+
+  /**
+   * Forget all verified definitions of the given table.
+   */
+  public void invalidate(String schemaName, String tableName) {
+    String prefix = tablePrefix(schemaName, tableName);
+    verified.keySet().removeIf(k -> k.startsWith(prefix));
+  }
+
+  private static String tablePrefix(String schemaName, String tableName) {
+    return schemaName + "." + tableName + "(";
+  }
+
+  private static String signature(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(tablePrefix(relation.getSchemaName(), relation.getTableName()));
+    for (DataField f : relation.getFieldList()) {
+      b.append(f.getName()).append(' ').append(f.getDataType().name());
+      b.append(f.getNullable() ? " NULL" : " NOT NULL");
+      if (f.getMaxCharLen() != null) {
+        b.append(' ').append(f.getMaxCharLen());
+      }
+      b.append(',');
+    }
+    b.append(')');
+    return b.toString();
+  }
+
+  private static final class Dimensions {
+    final Long maxCharLen;
+    final Integer numericPrecision;
+    final Integer numericScale;
+    final boolean isDoublePrecision;
+
+    Dimensions(DataField f) {
+      maxCharLen = f.getMaxCharLen();
+      numericPrecision = f.getNumericPrecision();
+      numericScale = f.getNumericScale();
+      isDoublePrecision = f.isDoublePrecision();
+    }
+
+    void applyTo(DataField f) {
+      f.setMaxCharLen(maxCharLen);
+      f.setNumericPrecision(numericPrecision);
+      f.setNumericScale(numericScale);
+      f.asDoublePrecision(isDoublePrecision);
+    }
+  }
+}
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.sql.DataSource;
@@ -28,19 +29,26 @@ import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.FlatSelect;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WorkQueue;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.StatementCache;
+import org.opendatakit.common.persistence.engine.StatementCache.Shape;
+import org.opendatakit.common.persistence.engine.VerifiedRelationCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.security.User;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -77,6 +85,14 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+
+  /**
+   * the columns that lead an index of the given schema and table.
+   */
+  private static final String INDEXED_COLUMNS_QUERY =
+      "SELECT COLUMN_NAME FROM information_schema.STATISTICS"
+          + " WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND SEQ_IN_INDEX = 1";
+
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
   public static final Integer DEFAULT_INT_NUMERIC_PRECISION = 9;
@@ -85,6 +101,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final int MAX_TABLE_NAME_LEN = 64;
   // unknown what the limit is MySQL capacity; I suspect 64k.
   private static final int MAX_BIND_PARAMS = 65000;
+  // rows per JDBC batch when bulk inserting
+  private static final int BULK_INSERT_BATCH_SIZE = 500;
   private static RowMapper<TableDefinition> tableDef = new RowMapper<TableDefinition>() {
     @Override
     public TableDefinition mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -92,6 +110,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   };
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final StatementCache statementCache = new StatementCache();
+  private final VerifiedRelationCache verifiedRelations = new VerifiedRelationCache();
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
   private String schemaName = null;
@@ -250,6 +270,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return new JdbcTemplate(dataSource);
   }
 
+  StatementCache getStatementCache() {
+    return statementCache;
+  }
+
   @Override
   public int getMaxLenColumnName() {
     return MAX_COLUMN_NAME_LEN;
@@ -346,6 +370,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
    */
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    String signature = verifiedRelations.applyIfVerified(relation);
+    if (signature == null) {
+      // already verified against the database -- dimensions were restored
+      return;
+    }
+    // any cached statements are regenerated from the asserted definition
+    statementCache.invalidate(relation.getSchemaName(), relation.getTableName());
     JdbcTemplate jc = getJdbcConnection();
     // TODO: transactions are questionable here, as MySQL (and Oracle) do
     // TODO: not evaluate DDL statements under transactional semantics.
@@ -367,6 +398,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        createMissingIndexes(jc, relation);
+        verifiedRelations.recordVerified(signature, relation);
         return;
       } else {
         tm.commit(status);
@@ -520,6 +553,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
         tm.commit(status);
+        status = null;
+        verifiedRelations.recordVerified(signature, relation);
       }
     } catch (Exception e) {
       if (status != null) {
@@ -531,6 +566,49 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
+  /**
+   * Indexes are otherwise only created along with the table, so a table
+   * created before one of its fields was declared indexable (e.g., the
+   * _TOP_LEVEL_AURI of the form tables) would never get that index. This runs
+   * once per relation, when it is first asserted; building the index on a
+   * large table holds up writes to it until it is done. A failure is logged
+   * and the relation is used without the index.
+   */
+  private void createMissingIndexes(JdbcTemplate jc, CommonFieldsBase relation) {
+    try {
+      List<String> indexed = jc.queryForList(INDEXED_COLUMNS_QUERY,
+          new Object[]{relation.getSchemaName(), relation.getTableName()}, String.class);
+      for (DataField f : relation.getFieldList()) {
+        if ((f.getIndexable() != IndexType.NONE) && (f != relation.primaryKey)
+            && !indexed.contains(f.getName())) {
+          // named as the INDEX() clauses of CREATE TABLE name them
+          StringBuilder b = new StringBuilder();
+          b.append("ALTER TABLE ");
+          b.append(K_BQ);
+          b.append(relation.getSchemaName());
+          b.append(K_BQ);
+          b.append(".");
+          b.append(K_BQ);
+          b.append(relation.getTableName());
+          b.append(K_BQ);
+          b.append(" ADD INDEX(");
+          b.append(K_BQ);
+          b.append(f.getName());
+          b.append(K_BQ);
+          b.append(K_CLOSE_PAREN);
+          if (f.getIndexable() == IndexType.HASH) {
+            b.append(K_USING_HASH);
+          }
+          LoggerFactory.getLogger(DatastoreImpl.class).info("Attempting: " + b.toString());
+          jc.execute(b.toString());
+        }
+      }
+    } catch (DataAccessException e) {
+      LoggerFactory.getLogger(DatastoreImpl.class)
+          .warn("Unable to create missing indexes on " + relation.getTableName(), e);
+    }
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
     // Query for the create table string.
@@ -561,6 +639,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    statementCache.invalidate(relation.getSchemaName(), relation.getTableName());
+    verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
     try {
       StringBuilder b = new StringBuilder();
       b.append(K_DROP_TABLE);
@@ -632,106 +712,123 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
     dam.recordPutUsage(entity);
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
         // fields...
         for (DataField f : entity.getFieldList()) {
           // primary key goes in the where clause...
           if (f == entity.primaryKey)
             continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
         buildArgumentList(pv, entity, entity.primaryKey);
 
         // update...
-        String sql = b.toString();
+        String sql = statementCache.get(entity, Shape.UPDATE, DatastoreImpl::generateUpdate);
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
         // fields...
         for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_CLOSE_PAREN);
 
         // insert...
-        String sql = b.toString();
+        String sql = statementCache.get(entity, Shape.INSERT, DatastoreImpl::generateInsert);
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
+      // the table may have been altered or dropped underneath us;
+      // make the next assertRelation re-check it against the database.
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
       throw new ODKEntityPersistException(e);
     }
   }
 
+  private static String generateUpdate(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_UPDATE);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    b.append(K_SET);
+
+    boolean first = true;
+    // fields...
+    for (DataField f : relation.getFieldList()) {
+      // primary key goes in the where clause...
+      if (f == relation.primaryKey)
+        continue;
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
+  private static String generateInsert(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_INSERT_INTO);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    boolean first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (DataField f : relation.getFieldList()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+    }
+    b.append(K_CLOSE_PAREN);
+    b.append(K_VALUES);
+
+    first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (int i = 0; i < relation.getFieldList().size(); ++i) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_CLOSE_PAREN);
+    return b.toString();
+  }
+
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
@@ -741,36 +838,183 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   }
 
   @Override
-  public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
-
-    dam.recordDeleteUsage(key);
+  public void upsertEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
+    dam.recordPutUsage(entity);
     try {
-      CommonFieldsBase d = key.getRelation();
+      entity.setDateField(entity.lastUpdateDate, new Date());
+      entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
-      b.append(K_BQ);
-      b.append(d.getSchemaName());
-      b.append(K_BQ);
-      b.append(".");
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      // fields...
+      for (DataField f : entity.getFieldList()) {
+        buildArgumentList(pv, entity, f);
+      }
+
+      // upsert...
+      String sql = statementCache.get(entity, Shape.UPSERT, DatastoreImpl::generateUpsert);
+      ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
+      getJdbcConnection().update(sql, setter);
+      entity.setFromDatabase(true); // now it is in the database...
+    } catch (Exception e) {
+      // the table may have been altered or dropped underneath us;
+      // make the next assertRelation re-check it against the database.
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+  /**
+   * Fields overwritten when the row already exists: everything except the
+   * primary key and the creation audit fields.
+   */
+  private static boolean isUpsertUpdateField(CommonFieldsBase relation, DataField f) {
+    return f != relation.primaryKey && f != relation.creationDate && f != relation.creatorUriUser;
+  }
+
+  private static String generateUpsert(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(generateInsert(relation));
+    b.append(" ON DUPLICATE KEY UPDATE ");
+    boolean first = true;
+    for (DataField f : relation.getFieldList()) {
+      if (!isUpsertUpdateField(relation, f))
+        continue;
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
       b.append(K_BQ);
-      b.append(d.getTableName());
+      b.append(f.getName());
       b.append(K_BQ);
-      b.append(K_WHERE);
+      b.append(K_EQ);
+      b.append("VALUES(");
       b.append(K_BQ);
-      b.append(d.primaryKey.getName());
+      b.append(f.getName());
       b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
+      b.append(")");
+    }
+    return b.toString();
+  }
+
+  @Override
+  public void upsertEntities(Collection<? extends CommonFieldsBase> entityList, User user)
+      throws ODKEntityPersistException {
+    for (CommonFieldsBase d : entityList) {
+      upsertEntity(d, user);
+    }
+  }
+
+  /**
+   * Insert the rows of each relation with JDBC batches of the cached INSERT
+   * statement, all within one transaction.
+   */
+  @Override
+  public void bulkInsertEntities(Collection<? extends CommonFieldsBase> entityList, User user)
+      throws ODKEntityPersistException {
+    if (entityList.isEmpty()) {
+      return;
+    }
+    // group by relation, preserving the order in which relations were first seen
+    Map<String, List<CommonFieldsBase>> byRelation = new LinkedHashMap<String, List<CommonFieldsBase>>();
+    for (CommonFieldsBase entity : entityList) {
+      String name = entity.getSchemaName() + "." + entity.getTableName();
+      List<CommonFieldsBase> rows = byRelation.get(name);
+      if (rows == null) {
+        rows = new ArrayList<CommonFieldsBase>();
+        byRelation.put(name, rows);
+      }
+      rows.add(entity);
+    }
+
+    TransactionStatus status = tm.getTransaction(new DefaultTransactionDefinition());
+    try {
+      JdbcTemplate jc = getJdbcConnection();
+      for (List<CommonFieldsBase> rows : byRelation.values()) {
+        String sql = statementCache.get(rows.get(0), Shape.INSERT, DatastoreImpl::generateInsert);
+        for (int start = 0; start < rows.size(); start += BULK_INSERT_BATCH_SIZE) {
+          final List<CommonFieldsBase> batch =
+              rows.subList(start, Math.min(rows.size(), start + BULK_INSERT_BATCH_SIZE));
+          jc.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+              CommonFieldsBase entity = batch.get(i);
+              dam.recordPutUsage(entity);
+              ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+              // fields...
+              for (DataField f : entity.getFieldList()) {
+                buildArgumentList(pv, entity, f);
+              }
+              new ReusableStatementSetter(sql, pv).setValues(ps);
+            }
+
+            @Override
+            public int getBatchSize() {
+              return batch.size();
+            }
+          });
+        }
+      }
+      tm.commit(status);
+    } catch (Exception e) {
+      if (!status.isCompleted()) {
+        tm.rollback(status);
+      }
+      for (List<CommonFieldsBase> rows : byRelation.values()) {
+        CommonFieldsBase relation = rows.get(0);
+        verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
+      }
+      throw new ODKEntityPersistException(e);
+    }
+    for (CommonFieldsBase entity : entityList) {
+      entity.setFromDatabase(true); // now it is in the database...
+    }
+  }
 
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+  /**
+   * There is no streaming export path wired up for MySQL; callers fall back
+   * to a regular query.
+   */
+  @Override
+  public boolean streamFlatSelect(FlatSelect select, FlatSelect.RowHandler handler, User user) {
+    return false;
+  }
+
+  @Override
+  public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
+
+    dam.recordDeleteUsage(key);
+    try {
+      CommonFieldsBase d = key.getRelation();
+
+      String sql = statementCache.get(d, Shape.DELETE, DatastoreImpl::generateDelete);
+
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[]{key.getKey()});
+      getJdbcConnection().update(sql, new Object[]{key.getKey()});
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
   }
 
+  private static String generateDelete(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DELETE_FROM);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
     ODKDatastoreException e = null;
@@ -788,11 +1032,263 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  @Override
+  public int deleteEntitiesWithFieldValues(CommonFieldsBase relation, DataField field,
+                                           Collection<String> values, User user) throws ODKDatastoreException {
+    List<String> valueList = new ArrayList<String>(values);
+    int deleteCount = 0;
+    try {
+      JdbcTemplate jc = getJdbcConnection();
+      for (int start = 0; start < valueList.size(); start += MAX_BIND_PARAMS) {
+        List<String> batch = valueList.subList(start,
+            Math.min(valueList.size(), start + MAX_BIND_PARAMS));
+
+        StringBuilder b = new StringBuilder();
+        b.append(K_DELETE_FROM);
+        b.append(K_BQ);
+        b.append(relation.getSchemaName());
+        b.append(K_BQ);
+        b.append(".");
+        b.append(K_BQ);
+        b.append(relation.getTableName());
+        b.append(K_BQ);
+        b.append(K_WHERE);
+        b.append(K_BQ);
+        b.append(field.getName());
+        b.append(K_BQ);
+        b.append(" IN ");
+        b.append(K_OPEN_PAREN);
+        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+        boolean first = true;
+        for (String value : batch) {
+          if (!first) {
+            b.append(K_CS);
+          }
+          first = false;
+          b.append(K_BIND_VALUE);
+          pv.add(getBindValue(field, value));
+        }
+        b.append(K_CLOSE_PAREN);
+
+        String sql = b.toString();
+        LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + K_DELETE_FROM
+            + relation.getTableName() + " for " + batch.size() + " values of " + field.getName()
+            + " by user " + user.getUriUser());
+        deleteCount += jc.update(sql, new ReusableStatementSetter(sql, pv));
+      }
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    } finally {
+      dam.recordDeleteUsage(relation, deleteCount);
+    }
+    return deleteCount;
+  }
+
+  @Override
+  public boolean incrementField(EntityKey key, DataField field, long delta, User user)
+      throws ODKDatastoreException {
+    CommonFieldsBase relation = key.getRelation();
+    dam.recordPutUsage(relation);
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_UPDATE);
+      b.append(K_BQ);
+      b.append(relation.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(relation.getTableName());
+      b.append(K_BQ);
+      b.append(K_SET);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(" + ");
+      b.append(K_BIND_VALUE);
+      b.append(K_CS);
+      b.append(K_BQ);
+      b.append(relation.lastUpdateDate.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_CS);
+      b.append(K_BQ);
+      b.append(relation.lastUpdateUriUser.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      pv.add(getBindValue(field, Long.valueOf(delta)));
+      pv.add(getBindValue(relation.lastUpdateDate, new Date()));
+      pv.add(getBindValue(relation.lastUpdateUriUser, user.getUriUser()));
+      pv.add(getBindValue(relation.primaryKey, key.getKey()));
+
+      String sql = b.toString();
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+  @Override
+  public boolean deleteEntityIf(EntityKey key, DataField field, FilterOperation op, Object value,
+                                User user) throws ODKDatastoreException {
+    CommonFieldsBase relation = key.getRelation();
+    dam.recordDeleteUsage(key);
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      b.append(K_BQ);
+      b.append(relation.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(relation.getTableName());
+      b.append(K_BQ);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_AND);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(getOperator(op));
+      b.append(K_BIND_VALUE);
+
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      pv.add(getBindValue(relation.primaryKey, key.getKey()));
+      pv.add(getBindValue(field, value));
+
+      String sql = b.toString();
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
+          + key.getKey() + " by user " + user.getUriUser());
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+  @Override
+  public boolean updateEntityIfLater(CommonFieldsBase entity, DataField field,
+                                     DataField tieBreakField, User user) throws ODKDatastoreException {
+    dam.recordPutUsage(entity);
+    try {
+      entity.setDateField(entity.lastUpdateDate, new Date());
+      entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
+
+      StringBuilder b = new StringBuilder();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      b.append(K_UPDATE);
+      b.append(K_BQ);
+      b.append(entity.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(entity.getTableName());
+      b.append(K_BQ);
+      b.append(K_SET);
+      boolean first = true;
+      for (DataField f : entity.getFieldList()) {
+        // the existing row keeps its primary key, creation date and creator
+        if (f == entity.primaryKey || f == entity.creationDate || f == entity.creatorUriUser) {
+          continue;
+        }
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BQ);
+        b.append(f.getName());
+        b.append(K_BQ);
+        b.append(K_EQ);
+        b.append(K_BIND_VALUE);
+        buildArgumentList(pv, entity, f);
+      }
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(entity.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, entity.primaryKey);
+      // (field, tieBreakField) < (?, ?)
+      b.append(K_AND);
+      b.append(K_OPEN_PAREN);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(" < ");
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, field);
+      b.append(" OR (");
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, field);
+      b.append(K_AND);
+      b.append(K_BQ);
+      b.append(tieBreakField.getName());
+      b.append(K_BQ);
+      b.append(" < ");
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, tieBreakField);
+      b.append(")");
+      b.append(K_CLOSE_PAREN);
+
+      String sql = b.toString();
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+
+  private static String getOperator(FilterOperation op) {
+    switch (op) {
+      case EQUAL:
+        return " = ";
+      case NOT_EQUAL:
+        return " <> ";
+      case GREATER_THAN:
+        return " > ";
+      case GREATER_THAN_OR_EQUAL:
+        return " >= ";
+      case LESS_THAN:
+        return " < ";
+      case LESS_THAN_OR_EQUAL:
+        return " <= ";
+      default:
+        throw new IllegalStateException("unhandled case");
+    }
+  }
+
   @Override
   public TaskLock createTaskLock(User user) {
     return new TaskLockImpl(this, dam, user);
   }
 
+  @Override
+  public WorkQueue createWorkQueue(User user) {
+    return new WorkQueueImpl(this, dam, user);
+  }
+
   private static final class TableDefinition {
 
     private static final String K_SHOW = "SHOW COLUMNS FROM ";
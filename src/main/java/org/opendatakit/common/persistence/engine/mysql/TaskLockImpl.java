@@ -16,6 +16,7 @@
 package org.opendatakit.common.persistence.engine.mysql;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -45,6 +46,7 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String PERSISTENCE_LAYER_PROBLEM = "Persistence layer failure";
   private static final String K_BQ = "`";
+  private static final int APPLICATION_LOCK_TIMEOUT_SECONDS = 10;
   final DatastoreAccessMetrics dam;
   final DatastoreImpl datastore;
   final User user;
@@ -66,13 +68,13 @@ public class TaskLockImpl implements TaskLock {
     String tableName = K_BQ + datastore.getDefaultSchemaName() + K_BQ + "." + K_BQ
         + TaskLockTable.TABLE_NAME + K_BQ;
     // String tableName= TaskLockTable.TABLE_NAME;
+    final String lockName = getApplicationLockName(entity);
 
-    b.append("SET SESSION TRANSACTION ISOLATION LEVEL SERIALIZABLE");
-    stmts.add(b.toString());
-    b.setLength(0);
-    b.append("START TRANSACTION WITH CONSISTENT SNAPSHOT");
-    stmts.add(b.toString());
-    b.setLength(0);
+    // The statements below are serialized by a GET_LOCK() application lock
+    // on the formId and task type, rather than by locking the whole table,
+    // so that locks on different resources do not contend. They run in a
+    // READ COMMITTED transaction so that a failure part way through, on an
+    // obtain or a renew, leaves the lock table as it was.
     b.append("SET @present := NOW(),");
     b.append(" @uriUser := '");
     b.append(user.getUriUser().replaceAll("'", "''"));
@@ -90,11 +92,6 @@ public class TaskLockImpl implements TaskLock {
     b.append(1000L * l);
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("LOCK TABLES ");
-    b.append(tableName);
-    b.append(" WRITE ");
-    stmts.add(b.toString());
-    b.setLength(0);
 
     dam.recordPutUsage(TaskLockTable.TABLE_NAME);
     if (!entity.isFromDatabase()) {
@@ -180,12 +177,20 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks on this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ");
     b.append(tableName);
     b.append(" WHERE ");
     b.append(K_BQ);
+    b.append(entity.formId.getName());
+    b.append(K_BQ);
+    b.append(" = @formId AND ");
+    b.append(K_BQ);
+    b.append(entity.taskType.getName());
+    b.append(K_BQ);
+    b.append(" = @taskType AND ");
+    b.append(K_BQ);
     b.append(entity.expirationDateTime.getName());
     b.append(K_BQ);
     b.append(" <= CAST(@present AS DATETIME)");
@@ -303,12 +308,6 @@ public class TaskLockImpl implements TaskLock {
     b.append(" = CAST(@minExpiration AS DATETIME)");
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("UNLOCK TABLES");
-    stmts.add(b.toString());
-    b.setLength(0);
-    b.append("COMMIT");
-    stmts.add(b.toString());
-    b.setLength(0);
 
     TaskLockTable relation;
     try {
@@ -325,11 +324,15 @@ public class TaskLockImpl implements TaskLock {
 
         @Override
         public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
+          if (!getApplicationLock(conn, lockName)) {
+            return null;
+          }
           boolean success = false;
-          boolean oldValue = conn.getAutoCommit();
+          boolean oldAutoCommitValue = conn.getAutoCommit();
+          int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             String lastResult = null;
             for (String s : stmts) {
               Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.CLOSE_CURSORS_AT_COMMIT);
@@ -350,14 +353,14 @@ public class TaskLockImpl implements TaskLock {
             e.printStackTrace();
             conn.rollback();
           } finally {
-            if (!success) {
-              Statement stmt = conn.createStatement();
-              LoggerFactory.getLogger(TaskLockImpl.class).info("UNLOCK TABLES");
-              stmt.execute("UNLOCK TABLES");
-              conn.commit();
+            try {
+              releaseApplicationLock(conn, lockName);
+            } finally {
+              // the pooled connection must go back in the state it was handed out in
+              conn.setTransactionIsolation(oldTransactionValue);
+              conn.setAutoCommit(oldAutoCommitValue);
             }
           }
-          conn.setAutoCommit(oldValue);
           return success ? uri : null;
         }
 
@@ -375,6 +378,42 @@ public class TaskLockImpl implements TaskLock {
     }
   }
 
+  /**
+   * @return the name of the GET_LOCK() application lock serializing changes
+   *     to the locks on the entity's resource and task type. Names are
+   *     server-wide and limited to 64 characters, so hash the schema,
+   *     formId and task type.
+   */
+  private String getApplicationLockName(TaskLockTable entity) {
+    return "odk_task_lock:" + CommonFieldsBase.newMD5HashUri(datastore.getDefaultSchemaName()
+        + "\n" + entity.getFormId() + "\n" + entity.getTaskType());
+  }
+
+  private static boolean getApplicationLock(Connection conn, String lockName) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement("SELECT GET_LOCK(?, ?)");
+    try {
+      stmt.setString(1, lockName);
+      stmt.setInt(2, APPLICATION_LOCK_TIMEOUT_SECONDS);
+      ResultSet rs = stmt.executeQuery();
+      // 1 if obtained; 0 on timeout; NULL on error
+      boolean obtained = rs.next() && rs.getInt(1) == 1;
+      rs.close();
+      return obtained;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  private static void releaseApplicationLock(Connection conn, String lockName) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)");
+    try {
+      stmt.setString(1, lockName);
+      stmt.executeQuery().close();
+    } finally {
+      stmt.close();
+    }
+  }
+
   @Override
   public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.persistence.engine.mysql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.WorkItem;
+import org.opendatakit.common.persistence.WorkQueue;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.security.User;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * MySQL implementation of the WorkQueue. Each candidate item is leased with
+ * an update that only succeeds if the item is still available, so that
+ * concurrent claims from several servers never lease the same item.
+ */
+public class WorkQueueImpl implements WorkQueue {
+
+  private static final String K_BQ = "`";
+
+  private static final RowMapper<WorkItem> WORK_ITEM_MAPPER = new RowMapper<WorkItem>() {
+    @Override
+    public WorkItem mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return new WorkItem(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
+    }
+  };
+
+  final DatastoreAccessMetrics dam;
+  final DatastoreImpl datastore;
+  final User user;
+
+  WorkQueueImpl(DatastoreImpl datastore, DatastoreAccessMetrics dam, User user) {
+    this.datastore = datastore;
+    this.dam = dam;
+    this.user = user;
+  }
+
+  private static String quote(DataField f) {
+    return K_BQ + f.getName() + K_BQ;
+  }
+
+  @Override
+  public void enqueue(String taskType, String taskKey, String formId) throws ODKDatastoreException {
+    WorkQueueTable relation = WorkQueueTable.assertRelation(datastore, user);
+    String uri = CommonFieldsBase.newMD5HashUri(taskType + ":" + taskKey);
+    try {
+      datastore.getEntity(relation, uri, user);
+      // already queued
+      return;
+    } catch (ODKEntityNotFoundException e) {
+      // not yet queued
+    }
+    WorkQueueTable entity = datastore.createEntityUsingRelation(relation, user);
+    entity.setStringField(entity.primaryKey, uri);
+    entity.setTaskType(taskType);
+    entity.setTaskKey(taskKey);
+    entity.setFormId(formId);
+    try {
+      datastore.putEntity(entity, user);
+    } catch (ODKEntityPersistException e) {
+      // succeeds only if another server queued the same item concurrently
+      datastore.getEntity(relation, uri, user);
+    }
+  }
+
+  @Override
+  public List<WorkItem> claim(String leaseOwner, int limit, long leaseMilliseconds) throws ODKDatastoreException {
+    WorkQueueTable relation = WorkQueueTable.assertRelation(datastore, user);
+    String tableName = K_BQ + datastore.getDefaultSchemaName() + K_BQ + "." + K_BQ
+        + WorkQueueTable.TABLE_NAME + K_BQ;
+    String available = "(" + quote(relation.leaseExpiration) + " IS NULL OR "
+        + quote(relation.leaseExpiration) + " <= NOW())";
+    String columns = quote(relation.primaryKey) + "," + quote(relation.taskType) + ","
+        + quote(relation.taskKey) + "," + quote(relation.formId);
+
+    // read the oldest available rows, then lease each one with a guarded
+    // update; a row leased by another server in between is skipped.
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(columns).append(" FROM ").append(tableName);
+    b.append(" WHERE ").append(available);
+    b.append(" ORDER BY ").append(quote(relation.creationDate));
+    b.append(" LIMIT ").append(limit);
+    String candidateQuery = b.toString();
+    b.setLength(0);
+    b.append("UPDATE ").append(tableName).append(" SET ");
+    b.append(quote(relation.leaseOwner)).append(" = ?, ");
+    b.append(quote(relation.leaseExpiration)).append(" = DATE_ADD(NOW(), INTERVAL ")
+        .append(1000L * leaseMilliseconds).append(" MICROSECOND)");
+    b.append(" WHERE ").append(quote(relation.primaryKey)).append(" = ? AND ").append(available);
+    String leaseUpdate = b.toString();
+
+    try {
+      JdbcTemplate jdbc = datastore.getJdbcConnection();
+      List<WorkItem> candidates = jdbc.query(candidateQuery, WORK_ITEM_MAPPER);
+      dam.recordQueryUsage(WorkQueueTable.TABLE_NAME, candidates.size());
+      List<WorkItem> items = new ArrayList<WorkItem>();
+      for (WorkItem candidate : candidates) {
+        dam.recordPutUsage(WorkQueueTable.TABLE_NAME);
+        if (jdbc.update(leaseUpdate, leaseOwner, candidate.getUri()) == 1) {
+          items.add(candidate);
+        }
+      }
+      return items;
+    } catch (DataAccessException e) {
+      throw new ODKDatastoreException("claim failed", e);
+    }
+  }
+
+  @Override
+  public boolean renew(String leaseOwner, WorkItem item, long leaseMilliseconds) throws ODKDatastoreException {
+    WorkQueueTable relation = WorkQueueTable.assertRelation(datastore, user);
+    String tableName = K_BQ + datastore.getDefaultSchemaName() + K_BQ + "." + K_BQ
+        + WorkQueueTable.TABLE_NAME + K_BQ;
+
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(tableName).append(" SET ");
+    b.append(quote(relation.leaseExpiration)).append(" = DATE_ADD(NOW(), INTERVAL ")
+        .append(1000L * leaseMilliseconds).append(" MICROSECOND)");
+    b.append(" WHERE ").append(quote(relation.primaryKey)).append(" = ? AND ");
+    b.append(quote(relation.leaseOwner)).append(" = ?");
+
+    try {
+      dam.recordPutUsage(WorkQueueTable.TABLE_NAME);
+      return datastore.getJdbcConnection().update(b.toString(), item.getUri(), leaseOwner) == 1;
+    } catch (DataAccessException e) {
+      throw new ODKDatastoreException("renew failed", e);
+    }
+  }
+
+  @Override
+  public void complete(WorkItem item) throws ODKDatastoreException {
+    WorkQueueTable relation = WorkQueueTable.assertRelation(datastore, user);
+    datastore.deleteEntity(new EntityKey(relation, item.getUri()), user);
+  }
+
+  private static class WorkQueueTable extends CommonFieldsBase {
+    static final String TABLE_NAME = "_work_queue";
+
+    private static final DataField TASK_TYPE = new DataField("TASK_TYPE",
+        DataField.DataType.STRING, false, 80L);
+    private static final DataField TASK_KEY = new DataField("TASK_KEY",
+        DataField.DataType.STRING, false, 4096L);
+    private static final DataField FORM_ID = new DataField("FORM_ID", DataField.DataType.STRING,
+        false, 4096L);
+    private static final DataField LEASE_OWNER = new DataField("LEASE_OWNER",
+        DataField.DataType.STRING, true, 80L);
+    private static final DataField LEASE_EXPIRATION = new DataField("LEASE_EXPIRATION",
+        DataField.DataType.DATETIME, true);
+    static WorkQueueTable relation = null;
+    DataField taskType;
+    DataField taskKey;
+    DataField formId;
+    DataField leaseOwner;
+    DataField leaseExpiration;
+
+    WorkQueueTable(String schema) {
+      super(schema, TABLE_NAME);
+      fieldList.add(taskType = new DataField(TASK_TYPE));
+      fieldList.add(taskKey = new DataField(TASK_KEY));
+      fieldList.add(formId = new DataField(FORM_ID));
+      fieldList.add(leaseOwner = new DataField(LEASE_OWNER));
+      fieldList.add(leaseExpiration = new DataField(LEASE_EXPIRATION));
+    }
+
+    WorkQueueTable(WorkQueueTable ref, User user) {
+      super(ref, user);
+      taskType = ref.taskType;
+      taskKey = ref.taskKey;
+      formId = ref.formId;
+      leaseOwner = ref.leaseOwner;
+      leaseExpiration = ref.leaseExpiration;
+    }
+
+    static synchronized final WorkQueueTable assertRelation(Datastore datastore, User user)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        WorkQueueTable relationPrototype;
+        relationPrototype = new WorkQueueTable(datastore.getDefaultSchemaName());
+        datastore.assertRelation(relationPrototype, user);
+        relation = relationPrototype;
+      }
+      return relation;
+    }
+
+    void setTaskType(String value) {
+      if (!setStringField(taskType, value)) {
+        throw new IllegalStateException("overflow taskType");
+      }
+    }
+
+    void setTaskKey(String value) {
+      if (!setStringField(taskKey, value)) {
+        throw new IllegalStateException("overflow taskKey");
+      }
+    }
+
+    void setFormId(String value) {
+      if (!setStringField(formId, value)) {
+        throw new IllegalStateException("overflow formId");
+      }
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new WorkQueueTable(this, user);
+    }
+  }
+}
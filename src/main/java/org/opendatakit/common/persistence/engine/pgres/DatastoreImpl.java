@@ -13,14 +13,19 @@
  */
 package org.opendatakit.common.persistence.engine.pgres;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.sql.DataSource;
@@ -29,18 +34,29 @@ import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.FlatSelect;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WorkQueue;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.StatementCache;
+import org.opendatakit.common.persistence.engine.StatementCache.Shape;
+import org.opendatakit.common.persistence.engine.VerifiedRelationCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.security.User;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -78,6 +94,17 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+
+  /**
+   * the columns that lead an index of the given schema and table.
+   */
+  private static final String INDEXED_COLUMNS_QUERY =
+      "SELECT a.attname FROM pg_index i"
+          + " JOIN pg_class c ON c.oid = i.indrelid"
+          + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+          + " JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = i.indkey[0]"
+          + " WHERE n.nspname = ? AND c.relname = ?";
+
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
   public static final Integer DEFAULT_INT_NUMERIC_PRECISION = 9;
@@ -90,6 +117,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   // limit on postgresql capacity (minus about 100 for where clause filters)
   private static final int MAX_BIND_PARAMS = 34300;
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
   private static RowMapper<TableDefinition> tableDef = new RowMapper<TableDefinition>() {
     @Override
     public TableDefinition mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -97,6 +125,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   };
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final StatementCache statementCache = new StatementCache();
+  private final VerifiedRelationCache verifiedRelations = new VerifiedRelationCache();
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
   private String schemaName = null;
@@ -243,6 +273,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return new JdbcTemplate(dataSource);
   }
 
+  StatementCache getStatementCache() {
+    return statementCache;
+  }
+
   @Override
   public int getMaxLenColumnName() {
     return MAX_COLUMN_NAME_LEN;
@@ -344,6 +378,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    String signature = verifiedRelations.applyIfVerified(relation);
+    if (signature == null) {
+      // already verified against the database -- dimensions were restored
+      return;
+    }
+    // any cached statements are regenerated from the asserted definition
+    statementCache.invalidate(relation.getSchemaName(), relation.getTableName());
     JdbcTemplate jc = getJdbcConnection();
     TransactionStatus status = null;
     try {
@@ -360,6 +401,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        createMissingIndexes(jc, relation);
+        verifiedRelations.recordVerified(signature, relation);
         return;
       } else {
         tm.commit(status);
@@ -492,6 +535,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
         tm.commit(status);
+        status = null;
+        verifiedRelations.recordVerified(signature, relation);
       }
     } catch (Exception e) {
       if (status != null) {
@@ -545,6 +590,32 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     jc.execute(b.toString());
   }
 
+  /**
+   * Indexes are otherwise only created along with the table, so a table
+   * created before one of its fields was declared indexable (e.g., the
+   * _TOP_LEVEL_AURI of the form tables) would never get that index. This runs
+   * once per relation, when it is first asserted; building the index on a
+   * large table holds up writes to it until it is done. A failure is logged
+   * and the relation is used without the index.
+   */
+  private void createMissingIndexes(JdbcTemplate jc, CommonFieldsBase relation) {
+    try {
+      List<String> indexed = jc.queryForList(INDEXED_COLUMNS_QUERY,
+          new Object[]{relation.getSchemaName(), relation.getTableName()}, String.class);
+      for (DataField f : relation.getFieldList()) {
+        if ((f.getIndexable() != IndexType.NONE) && (f != relation.primaryKey)
+            && !indexed.contains(f.getName())) {
+          String idx = relation.getTableName() + "_" + shortPrefix(f.getName());
+          LoggerFactory.getLogger(DatastoreImpl.class).info("Creating missing index " + idx);
+          createIndex(jc, relation, idx, f);
+        }
+      }
+    } catch (DataAccessException e) {
+      LoggerFactory.getLogger(DatastoreImpl.class)
+          .warn("Unable to create missing indexes on " + relation.getTableName(), e);
+    }
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
     dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_COLUMNS, 1);
@@ -556,6 +627,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    statementCache.invalidate(relation.getSchemaName(), relation.getTableName());
+    verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
     try {
       StringBuilder b = new StringBuilder();
       b.append(K_DROP_TABLE);
@@ -622,106 +695,123 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
     dam.recordPutUsage(entity);
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
         // fields...
         for (DataField f : entity.getFieldList()) {
           // primary key goes in the where clause...
           if (f == entity.primaryKey)
             continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
         buildArgumentList(pv, entity, entity.primaryKey);
 
         // update...
-        String sql = b.toString();
+        String sql = statementCache.get(entity, Shape.UPDATE, DatastoreImpl::generateUpdate);
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        b.append(K_OPEN_PAREN);
         // fields...
         for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_CLOSE_PAREN);
 
         // insert...
-        String sql = b.toString();
+        String sql = statementCache.get(entity, Shape.INSERT, DatastoreImpl::generateInsert);
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
+      // the table may have been altered or dropped underneath us;
+      // make the next assertRelation re-check it against the database.
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
       throw new ODKEntityPersistException(e);
     }
   }
 
+  private static String generateUpdate(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_UPDATE);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    b.append(K_SET);
+
+    boolean first = true;
+    // fields...
+    for (DataField f : relation.getFieldList()) {
+      // primary key goes in the where clause...
+      if (f == relation.primaryKey)
+        continue;
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
+  private static String generateInsert(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_INSERT_INTO);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    boolean first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (DataField f : relation.getFieldList()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+    }
+    b.append(K_CLOSE_PAREN);
+    b.append(K_VALUES);
+
+    first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (int i = 0; i < relation.getFieldList().size(); ++i) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_CLOSE_PAREN);
+    return b.toString();
+  }
+
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
@@ -731,36 +821,487 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   }
 
   @Override
-  public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
-
-    dam.recordDeleteUsage(key);
+  public void upsertEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
+    dam.recordPutUsage(entity);
     try {
-      CommonFieldsBase d = key.getRelation();
+      entity.setDateField(entity.lastUpdateDate, new Date());
+      entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      // fields...
+      for (DataField f : entity.getFieldList()) {
+        buildArgumentList(pv, entity, f);
+      }
+
+      // upsert...
+      String sql = statementCache.get(entity, Shape.UPSERT, DatastoreImpl::generateUpsert);
+      ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
+      getJdbcConnection().update(sql, setter);
+      entity.setFromDatabase(true); // now it is in the database...
+    } catch (Exception e) {
+      // the table may have been altered or dropped underneath us;
+      // make the next assertRelation re-check it against the database.
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+  /**
+   * Fields overwritten when the row already exists: everything except the
+   * primary key and the creation audit fields.
+   */
+  private static boolean isUpsertUpdateField(CommonFieldsBase relation, DataField f) {
+    return f != relation.primaryKey && f != relation.creationDate && f != relation.creatorUriUser;
+  }
+
+  private static String generateUpsert(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(generateInsert(relation));
+    b.append(" ON CONFLICT ");
+    b.append(K_OPEN_PAREN);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_CLOSE_PAREN);
+    b.append("DO UPDATE");
+    b.append(K_SET);
+    boolean first = true;
+    for (DataField f : relation.getFieldList()) {
+      if (!isUpsertUpdateField(relation, f))
+        continue;
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
       b.append(K_BQ);
-      b.append(d.getSchemaName());
+      b.append(f.getName());
       b.append(K_BQ);
-      b.append(".");
+      b.append(K_EQ);
+      b.append("EXCLUDED.");
       b.append(K_BQ);
-      b.append(d.getTableName());
+      b.append(f.getName());
       b.append(K_BQ);
-      b.append(K_WHERE);
+    }
+    return b.toString();
+  }
+
+  @Override
+  public void upsertEntities(Collection<? extends CommonFieldsBase> entityList, User user)
+      throws ODKEntityPersistException {
+    for (CommonFieldsBase d : entityList) {
+      upsertEntity(d, user);
+    }
+  }
+
+  /**
+   * Stream the rows of each relation into the database with a single
+   * {@code COPY ... FROM STDIN} per relation, all within one transaction.
+   */
+  @Override
+  public void bulkInsertEntities(Collection<? extends CommonFieldsBase> entityList, User user)
+      throws ODKEntityPersistException {
+    if (entityList.isEmpty()) {
+      return;
+    }
+    // group by relation, preserving the order in which relations were first seen
+    final Map<String, List<CommonFieldsBase>> byRelation = new LinkedHashMap<String, List<CommonFieldsBase>>();
+    for (CommonFieldsBase entity : entityList) {
+      String name = entity.getSchemaName() + "." + entity.getTableName();
+      List<CommonFieldsBase> rows = byRelation.get(name);
+      if (rows == null) {
+        rows = new ArrayList<CommonFieldsBase>();
+        byRelation.put(name, rows);
+      }
+      rows.add(entity);
+    }
+
+    TransactionStatus status = tm.getTransaction(new DefaultTransactionDefinition());
+    try {
+      getJdbcConnection().execute(new ConnectionCallback<Object>() {
+        @Override
+        public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
+          CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+          StringBuilder b = new StringBuilder();
+          for (List<CommonFieldsBase> rows : byRelation.values()) {
+            String sql = statementCache.get(rows.get(0), Shape.COPY_IN, DatastoreImpl::generateCopyIn);
+            CopyIn copyIn = copyManager.copyIn(sql);
+            try {
+              for (CommonFieldsBase entity : rows) {
+                dam.recordPutUsage(entity);
+                b.setLength(0);
+                appendCopyRow(b, entity);
+                byte[] row = b.toString().getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(row, 0, row.length);
+              }
+              copyIn.endCopy();
+            } finally {
+              if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+              }
+            }
+          }
+          return null;
+        }
+      });
+      tm.commit(status);
+    } catch (Exception e) {
+      if (!status.isCompleted()) {
+        tm.rollback(status);
+      }
+      for (List<CommonFieldsBase> rows : byRelation.values()) {
+        CommonFieldsBase relation = rows.get(0);
+        verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
+      }
+      throw new ODKEntityPersistException(e);
+    }
+    for (CommonFieldsBase entity : entityList) {
+      entity.setFromDatabase(true); // now it is in the database...
+    }
+  }
+
+  private static String generateCopyIn(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append("COPY ");
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    boolean first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (DataField f : relation.getFieldList()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
       b.append(K_BQ);
-      b.append(d.primaryKey.getName());
+      b.append(f.getName());
       b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
+    }
+    b.append(K_CLOSE_PAREN);
+    b.append("FROM STDIN WITH (FORMAT csv)");
+    return b.toString();
+  }
+
+  /**
+   * Append one CSV-format COPY line for the entity. A NULL is an empty
+   * unquoted field; strings are always quoted so that an empty string stays
+   * distinct from NULL. Values are rendered the way the JDBC driver renders
+   * the corresponding bind parameters in {@link #getBindValue}.
+   */
+  private static void appendCopyRow(StringBuilder b, CommonFieldsBase entity) {
+    boolean first = true;
+    for (DataField f : entity.getFieldList()) {
+      if (!first) {
+        b.append(',');
+      }
+      first = false;
+      if (entity.isNull(f)) {
+        continue;
+      }
+      switch (f.getDataType()) {
+        case BOOLEAN:
+          b.append(entity.getBooleanField(f).booleanValue() ? "true" : "false");
+          break;
+        case STRING:
+        case URI:
+        case LONG_STRING: {
+          String value = entity.getStringField(f);
+          b.append('"');
+          for (int i = 0; i < value.length(); ++i) {
+            char ch = value.charAt(i);
+            if (ch == '"') {
+              b.append('"');
+            }
+            b.append(ch);
+          }
+          b.append('"');
+          break;
+        }
+        case INTEGER:
+          b.append(entity.getLongField(f).longValue());
+          break;
+        case DECIMAL: {
+          WrappedBigDecimal wbd = entity.getNumericField(f);
+          if (wbd.isSpecialValue()) {
+            b.append(Double.toString(wbd.d));
+          } else {
+            b.append(wbd.bd.toPlainString());
+          }
+          break;
+        }
+        case DATETIME:
+          // TIMESTAMP WITHOUT TIME ZONE as the JVM-zone wall clock, as the driver binds it
+          b.append(new Timestamp(entity.getDateField(f).getTime()).toString());
+          break;
+        case BINARY: {
+          byte[] value = entity.getBlobField(f);
+          b.append("\\x");
+          for (byte v : value) {
+            b.append(HEX_DIGITS[(v >> 4) & 0x0f]);
+            b.append(HEX_DIGITS[v & 0x0f]);
+          }
+          break;
+        }
+        default:
+          throw new IllegalStateException("Unexpected data type");
+      }
+    }
+    b.append('\n');
+  }
+
+  /**
+   * Run the select as {@code COPY (SELECT ...) TO STDOUT WITH (FORMAT csv)}
+   * and hand each row to the handler as it arrives. Values are rendered the
+   * way {@link RelationRowMapper} reads them: booleans as true/false and
+   * timestamps in {@link Timestamp#valueOf(String)} form.
+   */
+  @Override
+  public boolean streamFlatSelect(final FlatSelect select, final FlatSelect.RowHandler handler, User user)
+      throws ODKDatastoreException {
+    final String sql = generateCopyOut(select);
+    LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " by user " + user.getUriUser());
+    try {
+      getJdbcConnection().execute(new ConnectionCallback<Object>() {
+        @Override
+        public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
+          CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+          CopyOut copyOut = copyManager.copyOut(sql);
+          try {
+            int columnCount = select.getColumns().size();
+            byte[] row;
+            while ((row = copyOut.readFromCopy()) != null) {
+              handler.handleRow(parseCopyRow(new String(row, StandardCharsets.UTF_8), columnCount));
+            }
+          } catch (IOException e) {
+            throw new SQLException("row handler failed", e);
+          } finally {
+            if (copyOut.isActive()) {
+              copyOut.cancelCopy();
+            }
+          }
+          return null;
+        }
+      });
+    } catch (Exception e) {
+      verifiedRelations.invalidate(select.getRelation().getSchemaName(), select.getRelation().getTableName());
+      for (FlatSelect.Join join : select.getJoins()) {
+        verifiedRelations.invalidate(join.getRelation().getSchemaName(), join.getRelation().getTableName());
+      }
+      throw new ODKDatastoreException("streaming select failed", e);
+    }
+    return true;
+  }
+
+  private static String generateCopyOut(FlatSelect select) {
+    StringBuilder b = new StringBuilder();
+    b.append("COPY (SELECT ");
+    boolean first = true;
+    for (FlatSelect.Column column : select.getColumns()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      String name = "t" + select.getRelationIndex(column.getRelation()) + "." + K_BQ
+          + column.getField().getName() + K_BQ;
+      switch (column.getField().getDataType()) {
+        case BOOLEAN:
+          b.append(name).append("::text");
+          break;
+        case DATETIME:
+          b.append("to_char(").append(name).append(", 'YYYY-MM-DD HH24:MI:SS.US')");
+          break;
+        case BINARY:
+          throw new IllegalArgumentException("binary columns cannot be streamed");
+        default:
+          b.append(name);
+          break;
+      }
+    }
+    b.append(" FROM ");
+    appendRelationName(b, select.getRelation());
+    b.append(" t0");
+    for (int i = 0; i < select.getJoins().size(); ++i) {
+      FlatSelect.Join join = select.getJoins().get(i);
+      String alias = "t" + (i + 1);
+      b.append(" LEFT JOIN ");
+      appendRelationName(b, join.getRelation());
+      b.append(" ").append(alias);
+      b.append(" ON ").append(alias).append(".").append(K_BQ).append(join.getJoinField().getName()).append(K_BQ);
+      b.append(" = t0.").append(K_BQ).append(select.getRelation().primaryKey.getName()).append(K_BQ);
+    }
+    first = true;
+    for (FlatSelect.Filter filter : select.getFilters()) {
+      b.append(first ? " WHERE " : " AND ");
+      first = false;
+      b.append("t0.").append(K_BQ).append(filter.getField().getName()).append(K_BQ);
+      Object value = filter.getValue();
+      if (value == null && filter.getOperation() == FilterOperation.EQUAL) {
+        b.append(" IS NULL");
+      } else if (value == null && filter.getOperation() == FilterOperation.NOT_EQUAL) {
+        b.append(" IS NOT NULL");
+      } else {
+        b.append(getOperator(filter.getOperation()));
+        appendLiteral(b, getBindValue(filter.getField(), value));
+      }
+    }
+    first = true;
+    for (FlatSelect.Sort sort : select.getSorts()) {
+      b.append(first ? " ORDER BY " : K_CS);
+      first = false;
+      b.append("t0.").append(K_BQ).append(sort.getField().getName()).append(K_BQ);
+      b.append(sort.getDirection() == Query.Direction.ASCENDING ? " ASC" : " DESC");
+    }
+    b.append(") TO STDOUT WITH (FORMAT csv, FORCE_QUOTE *)");
+    return b.toString();
+  }
+
+  private static void appendRelationName(StringBuilder b, CommonFieldsBase relation) {
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+  }
+
+  private static String getOperator(FilterOperation op) {
+    switch (op) {
+      case EQUAL:
+        return " = ";
+      case NOT_EQUAL:
+        return " <> ";
+      case GREATER_THAN:
+        return " > ";
+      case GREATER_THAN_OR_EQUAL:
+        return " >= ";
+      case LESS_THAN:
+        return " < ";
+      case LESS_THAN_OR_EQUAL:
+        return " <= ";
+      default:
+        throw new IllegalStateException("unhandled case");
+    }
+  }
+
+  /**
+   * COPY does not accept bind parameters, so filter values are inlined. They
+   * are rendered from the value {@link #getBindValue} produces so that the
+   * comparison matches the one a bound query would make. The driver binds a
+   * DATETIME with the JVM's default calendar, so the literal is the JVM-zone
+   * wall clock, which is what the TIMESTAMP WITHOUT TIME ZONE column holds.
+   */
+  private static void appendLiteral(StringBuilder b, SqlParameterValue bind) {
+    Object value = bind.getValue();
+    if (value == null) {
+      throw new IllegalArgumentException("unsupported null filter value");
+    }
+    switch (bind.getSqlType()) {
+      case java.sql.Types.BOOLEAN:
+        b.append(((Boolean) value) ? "TRUE" : "FALSE");
+        break;
+      case java.sql.Types.BIGINT:
+        b.append(value.toString());
+        break;
+      case java.sql.Types.DECIMAL:
+        b.append(((BigDecimal) value).toPlainString());
+        break;
+      case java.sql.Types.DOUBLE:
+        // NaN and the infinities are only accepted as quoted literals
+        b.append("'").append(value.toString()).append("'::DOUBLE PRECISION");
+        break;
+      case java.sql.Types.TIMESTAMP:
+        b.append("TIMESTAMP '").append(new Timestamp(((Date) value).getTime()).toString()).append("'");
+        break;
+      case java.sql.Types.VARCHAR:
+      case java.sql.Types.LONGVARCHAR:
+        b.append("'").append(value.toString().replace("'", "''")).append("'");
+        break;
+      default:
+        throw new IllegalArgumentException("unsupported filter value " + value);
+    }
+  }
+
+  /**
+   * Split one CSV-format COPY line into its values. With FORCE_QUOTE every
+   * non-NULL value is quoted, so an unquoted empty field is a NULL.
+   */
+  private static String[] parseCopyRow(String line, int columnCount) {
+    String[] values = new String[columnCount];
+    StringBuilder value = new StringBuilder();
+    int pos = 0;
+    for (int i = 0; i < columnCount; ++i) {
+      if (pos < line.length() && line.charAt(pos) == '"') {
+        value.setLength(0);
+        ++pos;
+        for (; ; ) {
+          char ch = line.charAt(pos++);
+          if (ch == '"') {
+            if (pos < line.length() && line.charAt(pos) == '"') {
+              value.append('"');
+              ++pos;
+            } else {
+              break;
+            }
+          } else {
+            value.append(ch);
+          }
+        }
+        values[i] = value.toString();
+      } else {
+        int end = pos;
+        while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '\n') {
+          ++end;
+        }
+        values[i] = (end == pos) ? null : line.substring(pos, end);
+        pos = end;
+      }
+      // skip the delimiter (or the line terminator after the last value)
+      ++pos;
+    }
+    return values;
+  }
+
+  @Override
+  public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
 
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+    dam.recordDeleteUsage(key);
+    try {
+      CommonFieldsBase d = key.getRelation();
+
+      String sql = statementCache.get(d, Shape.DELETE, DatastoreImpl::generateDelete);
+
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[]{key.getKey()});
+      getJdbcConnection().update(sql, new Object[]{key.getKey()});
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
   }
 
+  private static String generateDelete(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DELETE_FROM);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
     ODKDatastoreException e = null;
@@ -778,11 +1319,244 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  @Override
+  public int deleteEntitiesWithFieldValues(CommonFieldsBase relation, DataField field,
+                                           Collection<String> values, User user) throws ODKDatastoreException {
+    List<String> valueList = new ArrayList<String>(values);
+    int deleteCount = 0;
+    try {
+      JdbcTemplate jc = getJdbcConnection();
+      for (int start = 0; start < valueList.size(); start += MAX_BIND_PARAMS) {
+        List<String> batch = valueList.subList(start,
+            Math.min(valueList.size(), start + MAX_BIND_PARAMS));
+
+        StringBuilder b = new StringBuilder();
+        b.append(K_DELETE_FROM);
+        b.append(K_BQ);
+        b.append(relation.getSchemaName());
+        b.append(K_BQ);
+        b.append(".");
+        b.append(K_BQ);
+        b.append(relation.getTableName());
+        b.append(K_BQ);
+        b.append(K_WHERE);
+        b.append(K_BQ);
+        b.append(field.getName());
+        b.append(K_BQ);
+        b.append(" IN ");
+        b.append(K_OPEN_PAREN);
+        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+        boolean first = true;
+        for (String value : batch) {
+          if (!first) {
+            b.append(K_CS);
+          }
+          first = false;
+          b.append(K_BIND_VALUE);
+          pv.add(getBindValue(field, value));
+        }
+        b.append(K_CLOSE_PAREN);
+
+        String sql = b.toString();
+        LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + K_DELETE_FROM
+            + relation.getTableName() + " for " + batch.size() + " values of " + field.getName()
+            + " by user " + user.getUriUser());
+        deleteCount += jc.update(sql, new ReusableStatementSetter(sql, pv));
+      }
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    } finally {
+      dam.recordDeleteUsage(relation, deleteCount);
+    }
+    return deleteCount;
+  }
+
+  @Override
+  public boolean incrementField(EntityKey key, DataField field, long delta, User user)
+      throws ODKDatastoreException {
+    CommonFieldsBase relation = key.getRelation();
+    dam.recordPutUsage(relation);
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_UPDATE);
+      b.append(K_BQ);
+      b.append(relation.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(relation.getTableName());
+      b.append(K_BQ);
+      b.append(K_SET);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(" + ");
+      b.append(K_BIND_VALUE);
+      b.append(K_CS);
+      b.append(K_BQ);
+      b.append(relation.lastUpdateDate.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_CS);
+      b.append(K_BQ);
+      b.append(relation.lastUpdateUriUser.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      pv.add(getBindValue(field, Long.valueOf(delta)));
+      pv.add(getBindValue(relation.lastUpdateDate, new Date()));
+      pv.add(getBindValue(relation.lastUpdateUriUser, user.getUriUser()));
+      pv.add(getBindValue(relation.primaryKey, key.getKey()));
+
+      String sql = b.toString();
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      verifiedRelations.invalidate(relation.getSchemaName(), relation.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+  @Override
+  public boolean deleteEntityIf(EntityKey key, DataField field, FilterOperation op, Object value,
+                                User user) throws ODKDatastoreException {
+    CommonFieldsBase relation = key.getRelation();
+    dam.recordDeleteUsage(key);
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      b.append(K_BQ);
+      b.append(relation.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(relation.getTableName());
+      b.append(K_BQ);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      b.append(K_AND);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(getOperator(op));
+      b.append(K_BIND_VALUE);
+
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      pv.add(getBindValue(relation.primaryKey, key.getKey()));
+      pv.add(getBindValue(field, value));
+
+      String sql = b.toString();
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
+          + key.getKey() + " by user " + user.getUriUser());
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+  @Override
+  public boolean updateEntityIfLater(CommonFieldsBase entity, DataField field,
+                                     DataField tieBreakField, User user) throws ODKDatastoreException {
+    dam.recordPutUsage(entity);
+    try {
+      entity.setDateField(entity.lastUpdateDate, new Date());
+      entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
+
+      StringBuilder b = new StringBuilder();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+      b.append(K_UPDATE);
+      b.append(K_BQ);
+      b.append(entity.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(entity.getTableName());
+      b.append(K_BQ);
+      b.append(K_SET);
+      boolean first = true;
+      for (DataField f : entity.getFieldList()) {
+        // the existing row keeps its primary key, creation date and creator
+        if (f == entity.primaryKey || f == entity.creationDate || f == entity.creatorUriUser) {
+          continue;
+        }
+        if (!first) {
+          b.append(K_CS);
+        }
+        first = false;
+        b.append(K_BQ);
+        b.append(f.getName());
+        b.append(K_BQ);
+        b.append(K_EQ);
+        b.append(K_BIND_VALUE);
+        buildArgumentList(pv, entity, f);
+      }
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(entity.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, entity.primaryKey);
+      // (field, tieBreakField) < (?, ?)
+      b.append(K_AND);
+      b.append(K_OPEN_PAREN);
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(" < ");
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, field);
+      b.append(" OR (");
+      b.append(K_BQ);
+      b.append(field.getName());
+      b.append(K_BQ);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, field);
+      b.append(K_AND);
+      b.append(K_BQ);
+      b.append(tieBreakField.getName());
+      b.append(K_BQ);
+      b.append(" < ");
+      b.append(K_BIND_VALUE);
+      buildArgumentList(pv, entity, tieBreakField);
+      b.append(")");
+      b.append(K_CLOSE_PAREN);
+
+      String sql = b.toString();
+      return getJdbcConnection().update(sql, new ReusableStatementSetter(sql, pv)) != 0;
+    } catch (Exception e) {
+      verifiedRelations.invalidate(entity.getSchemaName(), entity.getTableName());
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+
   @Override
   public TaskLock createTaskLock(User user) {
     return new TaskLockImpl(this, dam, user);
   }
 
+  @Override
+  public WorkQueue createWorkQueue(User user) {
+    return new WorkQueueImpl(this, dam, user);
+  }
+
   private static final class TableDefinition {
 
     public static final String COLUMN_NAME = "column_name";
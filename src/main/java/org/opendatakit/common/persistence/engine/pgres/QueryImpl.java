@@ -16,6 +16,7 @@ package org.opendatakit.common.persistence.engine.pgres;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +26,7 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.engine.StatementCache.Shape;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
 import org.slf4j.Logger;
@@ -49,6 +51,10 @@ public class QueryImpl implements Query {
   private static final String K_AND = " AND ";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_IN = " IN ( ";
+  private static final String K_NOT_EXISTS = " NOT EXISTS ( ";
+  private static final String K_ONE = "1";
+  private static final String K_CLOSE_PAREN = " ) ";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -84,6 +90,10 @@ public class QueryImpl implements Query {
   }
 
   private String generateQuery() {
+    return dataStoreImpl.getStatementCache().get(relation, Shape.SELECT, QueryImpl::generateSelect);
+  }
+
+  private static String generateSelect(CommonFieldsBase relation) {
     // generate the query
     StringBuilder baseQueryBuilder = new StringBuilder();
 
@@ -157,6 +167,112 @@ public class QueryImpl implements Query {
     }
   }
 
+  @Override
+  public void addValueSetFilter(DataField attributeName, Collection<?> valueSet) {
+    if (valueSet.isEmpty()) {
+      throw new IllegalArgumentException("empty value set for " + attributeName.getName());
+    }
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(attributeName.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_IN);
+    boolean first = true;
+    for (Object value : valueSet) {
+      if (!first) {
+        queryBindBuilder.append(K_CS);
+      }
+      first = false;
+      queryBindBuilder.append(K_BIND_VALUE);
+      bindValues.add(DatastoreImpl.getBindValue(attributeName, value));
+    }
+    queryBindBuilder.append(K_CLOSE_PAREN);
+  }
+
+  @Override
+  public void addSemiJoinFilter(CommonFieldsBase joinRelation, DataField joinField, DataField attributeName,
+                                FilterOperation op, Object value) {
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(relation.primaryKey.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_IN);
+    queryBindBuilder.append(K_SELECT);
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(joinField.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_FROM);
+    appendTableName(joinRelation);
+    queryBindBuilder.append(K_WHERE);
+    appendJoinCondition(attributeName, op, value);
+    queryBindBuilder.append(K_CLOSE_PAREN);
+  }
+
+  @Override
+  public void addAntiJoinFilter(CommonFieldsBase joinRelation, DataField joinField, DataField attributeName,
+                                FilterOperation op, Object value) {
+    // correlated NOT EXISTS rather than NOT IN: the join field is nullable, and
+    // a single null in a NOT IN subquery would exclude every row
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(K_NOT_EXISTS);
+    queryBindBuilder.append(K_SELECT);
+    queryBindBuilder.append(K_ONE);
+    queryBindBuilder.append(K_FROM);
+    appendTableName(joinRelation);
+    queryBindBuilder.append(K_WHERE);
+    appendTableName(joinRelation);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(joinField.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(operationMap.get(FilterOperation.EQUAL));
+    appendTableName(relation);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(relation.primaryKey.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_AND);
+    appendJoinCondition(attributeName, op, value);
+    queryBindBuilder.append(K_CLOSE_PAREN);
+  }
+
+  private void appendTableName(CommonFieldsBase table) {
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(table.getSchemaName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(table.getTableName());
+    queryBindBuilder.append(K_BQ);
+  }
+
+  private void appendJoinCondition(DataField attributeName, FilterOperation op, Object value) {
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(attributeName.getName());
+    queryBindBuilder.append(K_BQ);
+    if (op.equals(FilterOperation.EQUAL) && value == null) {
+      queryBindBuilder.append(K_IS_NULL);
+    } else if (op.equals(FilterOperation.NOT_EQUAL) && value == null) {
+      queryBindBuilder.append(K_IS_NOT_NULL);
+    } else {
+      queryBindBuilder.append(operationMap.get(op));
+      queryBindBuilder.append(K_BIND_VALUE);
+      bindValues.add(DatastoreImpl.getBindValue(attributeName, value));
+    }
+  }
+
   private ArrayList<Object> addContinuationFilter(StringBuilder queryContinuationBindBuilder, Object continuationValue) {
     if (dominantSortAttr == null) {
       throw new IllegalStateException("unexpected state");
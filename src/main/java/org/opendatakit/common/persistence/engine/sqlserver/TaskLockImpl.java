@@ -15,9 +15,11 @@
  */
 package org.opendatakit.common.persistence.engine.sqlserver;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -44,6 +46,7 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String PERSISTENCE_LAYER_PROBLEM = "Persistence layer failure";
   private static final String K_BQ = "\"";
+  private static final int APPLICATION_LOCK_TIMEOUT_MILLISECONDS = 10000;
   final DatastoreAccessMetrics dam;
   final DatastoreImpl datastore;
   final User user;
@@ -82,9 +85,10 @@ public class TaskLockImpl implements TaskLock {
     String nowPlusLifetimeIntervalMilliseconds = b.toString();
     b.setLength(0);
 
-    b.append("SELECT  COUNT(1) FROM ").append(tableName).append(" WITH (TABLOCKX, HOLDLOCK)");
-    stmts.add(b.toString());
-    b.setLength(0);
+    // The statements below are serialized by an sp_getapplock application
+    // lock on the formId and task type, rather than by locking the whole
+    // table, so that locks on different resources do not contend.
+    final String lockName = getApplicationLockName(entity);
 
     dam.recordPutUsage(TaskLockTable.TABLE_NAME);
     if (!entity.isFromDatabase()) {
@@ -170,9 +174,13 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks on this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ").append(tableName).append(" WHERE ");
+    b.append(K_BQ).append(entity.formId.getName()).append(K_BQ).append(" = ")
+        .append(formIdInline).append(" AND ");
+    b.append(K_BQ).append(entity.taskType.getName()).append(K_BQ).append(" = ")
+        .append(taskTypeInline).append(" AND ");
     b.append(K_BQ).append(entity.expirationDateTime.getName()).append(K_BQ).append(" <= SYSUTCDATETIME()");
     stmts.add(b.toString());
     b.setLength(0);
@@ -218,39 +226,81 @@ public class TaskLockImpl implements TaskLock {
     try {
 
       JdbcTemplate jdbc = datastore.getJdbcConnection();
-      jdbc.execute(new ConnectionCallback<Object>() {
+      Boolean success = jdbc.execute(new ConnectionCallback<Boolean>() {
 
         @Override
-        public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
+        public Boolean doInConnection(Connection conn) throws SQLException, DataAccessException {
+          boolean success = false;
           boolean oldAutoCommitValue = conn.getAutoCommit();
           int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-            Statement stmt = conn.createStatement();
-            for (String s : stmts) {
-              // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
-              stmt.execute(s);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            // held until the transaction commits or rolls back
+            if (getApplicationLock(conn, lockName)) {
+              Statement stmt = conn.createStatement();
+              for (String s : stmts) {
+                // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
+                stmt.execute(s);
+              }
+              conn.commit();
+              success = true;
+            } else {
+              conn.rollback();
             }
-            conn.commit();
           } catch (Exception e) {
             e.printStackTrace();
             conn.rollback();
+          } finally {
+            // the pooled connection must go back in the state it was handed out in
+            conn.setTransactionIsolation(oldTransactionValue);
+            conn.setAutoCommit(oldAutoCommitValue);
           }
-          conn.setTransactionIsolation(oldTransactionValue);
-          conn.setAutoCommit(oldAutoCommitValue);
-          return null;
+          return success;
         }
 
       });
+      if (!Boolean.TRUE.equals(success)) {
+        // timed out waiting for the other users of this resource, or failed.
+        throw new ODKEntityNotFoundException();
+      }
 
       relation = TaskLockTable.assertRelation(datastore, user);
+    } catch (ODKEntityNotFoundException e) {
+      throw e;
     } catch (Exception e) {
       throw new ODKTaskLockException(PERSISTENCE_LAYER_PROBLEM, e);
     }
     return (TaskLockTable) datastore.getEntity(relation, entity.getUri(), user);
   }
 
+  /**
+   * @return the name of the sp_getapplock application lock serializing
+   *     changes to the locks on the entity's resource and task type. Names
+   *     are limited to 255 characters, so hash the schema, formId and task
+   *     type.
+   */
+  private String getApplicationLockName(TaskLockTable entity) {
+    return "odk_task_lock:" + CommonFieldsBase.newMD5HashUri(datastore.getDefaultSchemaName()
+        + "\n" + entity.getFormId() + "\n" + entity.getTaskType());
+  }
+
+  private static boolean getApplicationLock(Connection conn, String lockName) throws SQLException {
+    CallableStatement stmt = conn.prepareCall("{? = call sp_getapplock(?, ?, ?, ?)}");
+    try {
+      stmt.registerOutParameter(1, Types.INTEGER);
+      stmt.setString(2, lockName);
+      stmt.setString(3, "Exclusive");
+      stmt.setString(4, "Transaction");
+      stmt.setInt(5, APPLICATION_LOCK_TIMEOUT_MILLISECONDS);
+      stmt.execute();
+      // 0 or 1 if granted; negative on timeout, deadlock or error
+      return stmt.getInt(1) >= 0;
+    } finally {
+      stmt.close();
+    }
+  }
+
   @Override
   public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.datamodel;
+
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Builds {@link FormDataModel} trees for tests outside this package, without
+ * a datastore.
+ */
+public class TestFormDataModel {
+
+  public static FormDataModel newElement(ElementType type, String name, CommonFieldsBase backingObject, DataField backingKey) {
+    FormDataModel fdm = new FormDataModel(backingObject.getSchemaName());
+    fdm.setElementType(type);
+    fdm.setElementName(name);
+    fdm.setBackingObject(backingObject);
+    fdm.setBackingKey(backingKey);
+    return fdm;
+  }
+
+  /**
+   * Adds the child at the next ordinal number of the parent.
+   */
+  public static FormDataModel addChild(FormDataModel parent, FormDataModel child) {
+    Long ordinal = Long.valueOf(parent.getChildren().size() + 1);
+    child.setOrdinalNumber(ordinal);
+    child.setParent(parent);
+    parent.setChild(ordinal, child);
+    return child;
+  }
+}
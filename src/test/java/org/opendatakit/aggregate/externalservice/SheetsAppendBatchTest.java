@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.externalservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.AppendCellsRequest;
+import com.google.api.services.sheets.v4.model.Request;
+import com.sun.net.httpserver.HttpServer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises {@link SheetsAppendBatch} against a local HTTP stand-in for the
+ * Sheets API that records the number of requests in each batchUpdate call.
+ */
+public class SheetsAppendBatchTest {
+
+  private HttpServer server;
+  private Sheets sheets;
+  private final List<Integer> requestsPerCall = Collections.synchronizedList(new ArrayList<Integer>());
+
+  @Before
+  public void setUp() throws Exception {
+    final ObjectMapper mapper = new ObjectMapper();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      InputStream body = exchange.getRequestBody();
+      if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        body = new GZIPInputStream(body);
+      }
+      try (InputStream in = body) {
+        JsonNode request = mapper.readTree(in);
+        requestsPerCall.add(request.get("requests").size());
+      }
+      byte[] rsp = "{\"spreadsheetId\":\"key\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, rsp.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(rsp);
+      }
+    });
+    server.start();
+    sheets = new Sheets.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/")
+        .setApplicationName("test")
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private static List<Request> submissionRequests(int count) {
+    List<Request> requests = new ArrayList<Request>();
+    for (int i = 0; i < count; ++i) {
+      requests.add(new Request().setAppendCells(new AppendCellsRequest().setSheetId(i)));
+    }
+    return requests;
+  }
+
+  @Test
+  public void testSubmissionsAreCombinedUpToTheCap() throws Exception {
+    SheetsAppendBatch batch = new SheetsAppendBatch(sheets, "key", 10);
+    int flushes = 0;
+    for (int i = 0; i < 7; ++i) {
+      // one top-level row and two repeat instances
+      if (batch.add(submissionRequests(3))) {
+        ++flushes;
+      }
+    }
+    assertTrue(batch.flush());
+    assertFalse(batch.flush());
+
+    assertEquals(2, flushes);
+    assertEquals(3, batch.getBatchUpdateCount());
+    assertEquals(3, requestsPerCall.size());
+    assertEquals(Integer.valueOf(9), requestsPerCall.get(0));
+    assertEquals(Integer.valueOf(9), requestsPerCall.get(1));
+    assertEquals(Integer.valueOf(3), requestsPerCall.get(2));
+  }
+
+  @Test
+  public void testOversizedSubmissionIsSentAlone() throws Exception {
+    SheetsAppendBatch batch = new SheetsAppendBatch(sheets, "key", 4);
+    assertFalse(batch.add(submissionRequests(2)));
+    assertTrue(batch.add(submissionRequests(6)));
+    assertTrue(batch.add(submissionRequests(1)));
+    assertTrue(batch.flush());
+
+    assertEquals(3, requestsPerCall.size());
+    assertEquals(Integer.valueOf(2), requestsPerCall.get(0));
+    assertEquals(Integer.valueOf(6), requestsPerCall.get(1));
+    assertEquals(Integer.valueOf(1), requestsPerCall.get(2));
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.format.structure;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.common.BinaryOption;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TestFormDataModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.format.element.ElementFormatter;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.submission.SubmissionRepeat;
+import org.opendatakit.aggregate.submission.SubmissionSet;
+import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
+import org.opendatakit.aggregate.submission.type.GeoPoint;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Tests that the streamed JSON output matches, byte for byte, the output of
+ * the formatter that built a string per value, for a fixture form with an
+ * embedded or linked binary, a geopoint with missing parts, a select-multiple
+ * and a nested repeat.
+ */
+public class JsonFormatterWithFiltersTest {
+
+  // output of the string-building formatter for the same two submissions
+  private static final String CHOICES_AS_STRINGS =
+      "[{\"name\":\"Ana \\\"Ani\\\" L\u00f3pez\\n\",\"photo\":{\"filename\":\"photo.jpg\","
+      + "\"bytes\":\"w7/DmCBwaG90byBieXRlcw==\",\"type\":\"image/jpeg\"},"
+      + "\"location:Latitude\":-1.5,\"location:Longitude\":36.25,"
+      + "\"location:Altitude\":null,\"location:Accuracy\":null,"
+      + "\"colors\":\"red light blue\",\"count\":3,\"amount\":12.5,"
+      + "\"visits\":[{\"visit\":\"first\","
+      + "\"samples\":[{\"sample\":1},{\"sample\":2}]},{\"visit\":\"second\","
+      + "\"samples\":[]}]},{\"name\":null,\"photo\":null,\"location:Latitude\":null,"
+      + "\"location:Longitude\":null,\"location:Altitude\":null,"
+      + "\"location:Accuracy\":null,\"colors\":null,\"count\":null,\"amount\":null,"
+      + "\"visits\":[]}]";
+  private static final String CHOICES_AS_ARRAYS =
+      "[{\"name\":\"Ana \\\"Ani\\\" L\u00f3pez\\n\",\"photo\":{\"filename\":\"photo.jpg\","
+      + "\"bytes\":\"w7/DmCBwaG90byBieXRlcw==\",\"type\":\"image/jpeg\"},"
+      + "\"location:Latitude\":-1.5,\"location:Longitude\":36.25,"
+      + "\"location:Altitude\":null,\"location:Accuracy\":null,\"colors\":[\"red\","
+      + "\"light blue\"],\"count\":3,\"amount\":12.5,\"visits\":[{\"visit\":\"first\","
+      + "\"samples\":[{\"sample\":1},{\"sample\":2}]},{\"visit\":\"second\","
+      + "\"samples\":[]}]},{\"name\":null,\"photo\":null,\"location:Latitude\":null,"
+      + "\"location:Longitude\":null,\"location:Altitude\":null,"
+      + "\"location:Accuracy\":null,\"colors\":null,\"count\":null,\"amount\":null,"
+      + "\"visits\":[]}]";
+  private static final String LINKS_TO_BINARIES =
+      "[{\"name\":\"Ana \\\"Ani\\\" L\u00f3pez\\n\",\"photo\":{\"filename\":\"photo.jpg\","
+      + "\"type\":\"image/jpeg\","
+      + "\"url\":\"http://localhost:8080/view/binaryData?blobKey=fixture%5B%40version%3Dnull+and+%40uiVersion%3Dnull%5D%2Fdata%5B%40key%3Duuid%3A1%5D%2Fphoto\"},"
+      + "\"location:Latitude\":-1.5,\"location:Longitude\":36.25,"
+      + "\"location:Altitude\":null,\"location:Accuracy\":null,\"colors\":[\"red\","
+      + "\"light blue\"],\"count\":3,\"amount\":12.5,\"visits\":[{\"visit\":\"first\","
+      + "\"samples\":[{\"sample\":1},{\"sample\":2}]},{\"visit\":\"second\","
+      + "\"samples\":[]}]},{\"name\":null,\"photo\":null,\"location:Latitude\":null,"
+      + "\"location:Longitude\":null,\"location:Altitude\":null,"
+      + "\"location:Accuracy\":null,\"colors\":null,\"count\":null,\"amount\":null,"
+      + "\"visits\":[]}]";
+
+  private final CallingContext cc = mock(CallingContext.class);
+  private IForm form;
+  private FormElementModel name;
+  private FormElementModel photo;
+  private FormElementModel location;
+  private FormElementModel colors;
+  private FormElementModel count;
+  private FormElementModel amount;
+  private FormElementModel visits;
+  private FormElementModel visit;
+  private FormElementModel samples;
+  private FormElementModel sample;
+
+  @Before
+  public void setUp() {
+    MyRelation relation = new MyRelation();
+    FormDataModel root = TestFormDataModel.newElement(ElementType.GROUP, "data", relation, null);
+    for (Object[] field : new Object[][]{{ElementType.STRING, "name"},
+        {ElementType.BINARY, "photo"}, {ElementType.GEOPOINT, "location"},
+        {ElementType.SELECTN, "colors"}, {ElementType.INTEGER, "count"},
+        {ElementType.DECIMAL, "amount"}}) {
+      TestFormDataModel.addChild(root,
+          TestFormDataModel.newElement((ElementType) field[0], (String) field[1], relation, null));
+    }
+    FormDataModel visitGroup = TestFormDataModel.addChild(root,
+        TestFormDataModel.newElement(ElementType.REPEAT, "visits", relation, null));
+    TestFormDataModel.addChild(visitGroup,
+        TestFormDataModel.newElement(ElementType.STRING, "visit", relation, null));
+    FormDataModel sampleGroup = TestFormDataModel.addChild(visitGroup,
+        TestFormDataModel.newElement(ElementType.REPEAT, "samples", relation, null));
+    TestFormDataModel.addChild(sampleGroup,
+        TestFormDataModel.newElement(ElementType.INTEGER, "sample", relation, null));
+
+    FormElementModel rootElement = FormElementModel.buildFormElementModelTree(root);
+    name = rootElement.findElementByName("name");
+    photo = rootElement.findElementByName("photo");
+    location = rootElement.findElementByName("location");
+    colors = rootElement.findElementByName("colors");
+    count = rootElement.findElementByName("count");
+    amount = rootElement.findElementByName("amount");
+    visits = rootElement.findElementByName("visits");
+    visit = visits.findElementByName("visit");
+    samples = visits.findElementByName("samples");
+    sample = samples.findElementByName("sample");
+
+    form = mock(IForm.class);
+    when(form.getViewableName()).thenReturn("Fixture");
+    when(form.getTopLevelGroupElement()).thenReturn(rootElement);
+  }
+
+  @Test
+  public void matches_the_previous_format_with_choices_as_strings() throws Exception {
+    assertThat(format(BinaryOption.EMBED_BINARY, false), is(CHOICES_AS_STRINGS));
+  }
+
+  @Test
+  public void matches_the_previous_format_with_choices_as_arrays() throws Exception {
+    assertThat(format(BinaryOption.EMBED_BINARY, true), is(CHOICES_AS_ARRAYS));
+  }
+
+  @Test
+  public void matches_the_previous_format_with_links_to_binaries() throws Exception {
+    assertThat(format(BinaryOption.PROVIDE_LINKS, true), is(LINKS_TO_BINARIES));
+  }
+
+  private String format(BinaryOption binaryOption, boolean choicesAsArrays) throws IOException, ODKDatastoreException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonFormatterWithFilters formatter = new JsonFormatterWithFilters(out, form, null,
+        binaryOption, choicesAsArrays, "http://localhost:8080");
+    formatter.processSubmissions(Arrays.asList(filledIn(), leftBlank()), cc);
+    return new String(out.toByteArray(), UTF_8);
+  }
+
+  private Submission filledIn() throws ODKDatastoreException {
+    BlobSubmissionType blob = mock(BlobSubmissionType.class);
+    when(blob.getAttachmentCount(cc)).thenReturn(1);
+    when(blob.getContentHash(1, cc)).thenReturn("md5:0123456789abcdef");
+    when(blob.getBlob(1, cc)).thenReturn("\u00ff\u00d8 photo bytes".getBytes(UTF_8));
+    when(blob.getUnrootedFilename(1, cc)).thenReturn("photo.jpg");
+    when(blob.getContentType(1, cc)).thenReturn("image/jpeg");
+    when(blob.getValue()).thenReturn(new SubmissionKey("fixture[@version=null and @uiVersion=null]/data[@key=uuid:1]/photo"));
+
+    SubmissionRepeat firstSamples = repeat(
+        set((f, row) -> f.formatLong(1L, sample, "1", row)),
+        set((f, row) -> f.formatLong(2L, sample, "2", row)));
+    SubmissionRepeat noSamples = repeat();
+    SubmissionRepeat visitRepeat = repeat(
+        set((f, row) -> {
+          f.formatString("first", visit, "1", row);
+          f.formatRepeats(firstSamples, samples, row, cc);
+        }),
+        set((f, row) -> {
+          f.formatString("second", visit, "2", row);
+          f.formatRepeats(noSamples, samples, row, cc);
+        }));
+
+    return submission((f, row) -> {
+      f.formatString("Ana \"Ani\" L\u00f3pez\n", name, "", row);
+      f.formatBinary(blob, photo, "", row, cc);
+      f.formatGeoPoint(new GeoPoint(WrappedBigDecimal.fromDouble(-1.5),
+          WrappedBigDecimal.fromDouble(36.25), null, null), location, "", row);
+      f.formatChoices(Arrays.asList("red", "light blue"), colors, "", row);
+      f.formatLong(3L, count, "", row);
+      f.formatDecimal(WrappedBigDecimal.fromDouble(12.5), amount, "", row);
+      f.formatRepeats(visitRepeat, visits, row, cc);
+    });
+  }
+
+  private Submission leftBlank() throws ODKDatastoreException {
+    SubmissionRepeat noVisits = repeat();
+    return submission((f, row) -> {
+      f.formatString(null, name, "", row);
+      f.formatBinary(null, photo, "", row, cc);
+      f.formatGeoPoint(new GeoPoint(), location, "", row);
+      f.formatChoices(Collections.emptyList(), colors, "", row);
+      f.formatLong(null, count, "", row);
+      f.formatDecimal(null, amount, "", row);
+      f.formatRepeats(noVisits, visits, row, cc);
+    });
+  }
+
+  private Submission submission(Values values) throws ODKDatastoreException {
+    Submission submission = mock(Submission.class);
+    when(submission.getFormattedValuesAsRow(any(), any(ElementFormatter.class), anyBoolean(),
+        any())).thenAnswer(invocation -> {
+      Row row = new Row(new SubmissionKey("submission"));
+      values.format(invocation.getArgument(1), row);
+      return row;
+    });
+    return submission;
+  }
+
+  private SubmissionSet set(Values values) throws ODKDatastoreException {
+    SubmissionSet set = mock(SubmissionSet.class);
+    when(set.getFormattedValuesAsRow(any(), any(ElementFormatter.class), anyBoolean(), any()))
+        .thenAnswer(invocation -> {
+          Row row = new Row(new SubmissionKey("repeat"));
+          values.format(invocation.getArgument(1), row);
+          return row;
+        });
+    return set;
+  }
+
+  private static SubmissionRepeat repeat(SubmissionSet... sets) {
+    SubmissionRepeat repeat = mock(SubmissionRepeat.class);
+    when(repeat.getSubmissionSets()).thenReturn(Arrays.asList(sets));
+    return repeat;
+  }
+
+  /**
+   * The values a submission or repeat group passes to the formatter.
+   */
+  private interface Values {
+    void format(ElementFormatter formatter, Row row) throws ODKDatastoreException;
+  }
+
+  @Ignore
+  static class MyRelation extends CommonFieldsBase {
+
+    private MyRelation() {
+      super("fixture", "MY_JSON_FIXTURE");
+    }
+
+    private MyRelation(MyRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyRelation(this, user);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package org.opendatakit.aggregate.format.table;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.constants.common.FormElementNamespace;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TestFormDataModel;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.format.element.ElementFormatter;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionValue;
+import org.opendatakit.aggregate.submission.type.DecimalSubmissionType;
+import org.opendatakit.aggregate.submission.type.GeoPointSubmissionType;
+import org.opendatakit.aggregate.submission.type.StringSubmissionType;
+import org.opendatakit.aggregate.submission.type.jr.JRDateTimeType;
+import org.opendatakit.aggregate.submission.type.jr.JRDateType;
+import org.opendatakit.aggregate.submission.type.jr.JRTimeType;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.FlatSelect;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Exports the same stored submission through {@link CsvFlatExporter}, fed the
+ * text the database returns for each column, and through
+ * {@link CsvFormatterWithFilters}, fed the submission values built from the
+ * row, and expects identical CSV.
+ */
+public class CsvFlatExporterTest {
+
+  private static final String FORM_ID = "form";
+  // 2019-01-02T03:04:05.123Z
+  private static final Date INSTANT = new Date(1546398245123L);
+
+  private final User user = mock(User.class);
+  private final CallingContext cc = mock(CallingContext.class);
+  private final Datastore ds = mock(Datastore.class);
+  private final IForm form = mock(IForm.class);
+  private final FilterGroup filterGroup = new FilterGroup("all", FORM_ID, null);
+  private TestTopLevel row;
+
+  @Before
+  public void setup() throws ODKDatastoreException {
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(cc.getDatastore()).thenReturn(ds);
+
+    TestTopLevel table = new TestTopLevel();
+    FormDataModel root = TestFormDataModel.newElement(ElementType.GROUP, "data", table, null);
+    addElement(root, ElementType.STRING, "text", table, TestTopLevel.text);
+    addElement(root, ElementType.DECIMAL, "amount", table, TestTopLevel.amount);
+    FormDataModel location = addElement(root, ElementType.GEOPOINT, "location", table, null);
+    addElement(location, ElementType.DECIMAL, "latitude", table, TestTopLevel.latitude);
+    addElement(location, ElementType.DECIMAL, "longitude", table, TestTopLevel.longitude);
+    addElement(location, ElementType.DECIMAL, "altitude", table, TestTopLevel.altitude);
+    addElement(location, ElementType.DECIMAL, "accuracy", table, TestTopLevel.accuracy);
+    addElement(root, ElementType.JRDATE, "legacy_date", table, TestTopLevel.legacyDate);
+    addElement(root, ElementType.JRTIME, "legacy_time", table, TestTopLevel.legacyTime);
+    addElement(root, ElementType.JRDATETIME, "legacy_datetime", table, TestTopLevel.legacyDateTime);
+    addTemporal(root, ElementType.JRDATE, "visit_date", table, TestTopLevel.dateParsed, TestTopLevel.dateRaw);
+    addTemporal(root, ElementType.JRTIME, "visit_time", table, TestTopLevel.timeParsed, TestTopLevel.timeRaw);
+    addTemporal(root, ElementType.JRDATETIME, "visit_datetime", table, TestTopLevel.dateTimeParsed, TestTopLevel.dateTimeRaw);
+
+    when(form.getFormId()).thenReturn(FORM_ID);
+    when(form.getViewableName()).thenReturn("Form");
+    when(form.getTopLevelGroupElement()).thenReturn(FormElementModel.buildFormElementModelTree(root));
+
+    row = (TestTopLevel) table.getEmptyRow(user);
+  }
+
+  @Test
+  public void decimals_geopoints_and_temporals_match() throws ODKDatastoreException {
+    row.setStringField(TestTopLevel.text, "a \"quoted\", text");
+    row.setNumericField(TestTopLevel.amount, new WrappedBigDecimal("1234.5000"));
+    row.setNumericField(TestTopLevel.latitude, new WrappedBigDecimal("-1.2345678"));
+    row.setNumericField(TestTopLevel.longitude, new WrappedBigDecimal("36.8"));
+    row.setNumericField(TestTopLevel.altitude, new WrappedBigDecimal("0.0000001"));
+    row.setNumericField(TestTopLevel.accuracy, new WrappedBigDecimal("5.0"));
+    row.setDateField(TestTopLevel.legacyDate, INSTANT);
+    row.setDateField(TestTopLevel.legacyTime, INSTANT);
+    row.setDateField(TestTopLevel.legacyDateTime, INSTANT);
+    row.setDateField(TestTopLevel.dateParsed, INSTANT);
+    row.setStringField(TestTopLevel.dateRaw, "2019-01-02");
+    row.setDateField(TestTopLevel.timeParsed, INSTANT);
+    row.setStringField(TestTopLevel.timeRaw, "04:04:05.123+01:00");
+    row.setDateField(TestTopLevel.dateTimeParsed, INSTANT);
+    row.setStringField(TestTopLevel.dateTimeRaw, "2019-01-02T04:04:05.123+01:00");
+
+    assertSameExport();
+  }
+
+  @Test
+  public void null_and_empty_values_match() throws ODKDatastoreException {
+    row.setStringField(TestTopLevel.text, "");
+    // no parsed value: the raw value is not shown
+    row.setStringField(TestTopLevel.dateRaw, "2019-01-02");
+    // no raw value: nothing is shown
+    row.setDateField(TestTopLevel.dateTimeParsed, INSTANT);
+
+    assertSameExport();
+  }
+
+  private void assertSameExport() throws ODKDatastoreException {
+    // the flat export reads the row first; building the submission values
+    // normalizes the row's temporal columns.
+    String flat = exportFlat();
+    assertEquals(exportSubmissions(), flat);
+  }
+
+  private String exportFlat() throws ODKDatastoreException {
+    when(ds.streamFlatSelect(any(FlatSelect.class), any(FlatSelect.RowHandler.class), any(User.class)))
+        .thenAnswer(invocation -> {
+          FlatSelect select = invocation.getArgument(0);
+          FlatSelect.RowHandler handler = invocation.getArgument(1);
+          List<FlatSelect.Column> columns = select.getColumns();
+          String[] values = new String[columns.size()];
+          for (int i = 0; i < values.length; ++i) {
+            values[i] = databaseText(row, columns.get(i).getField());
+          }
+          handler.handleRow(values);
+          return true;
+        });
+
+    StringWriter actual = new StringWriter();
+    CsvFlatExporter exporter = new CsvFlatExporter(form, new PrintWriter(actual), filterGroup);
+    assertEquals(true, exporter.export(cc));
+    return actual.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private String exportSubmissions() throws ODKDatastoreException {
+    Submission s = mock(Submission.class);
+    when(s.getFormattedValuesAsRow((List<FormElementNamespace>) any(),
+        (List<FormElementModel>) any(),
+        (ElementFormatter) any(),
+        anyBoolean(),
+        (CallingContext) any())).thenAnswer(invocation -> {
+          List<FormElementModel> elements = invocation.getArgument(1);
+          ElementFormatter formatter = invocation.getArgument(2);
+          Row formatted = new Row(null);
+          for (FormElementModel element : elements) {
+            SubmissionValue value = submissionValue(element);
+            value.getValueFromEntity(cc);
+            value.formatValue(formatter, formatted, null, cc);
+          }
+          return formatted;
+        });
+
+    StringWriter actual = new StringWriter();
+    CsvFormatterWithFilters csv = new CsvFormatterWithFilters(form, "http://opendatakit.org",
+        new PrintWriter(actual), filterGroup);
+    csv.processSubmissions(Collections.singletonList(s), cc);
+    return actual.toString();
+  }
+
+  private SubmissionValue submissionValue(FormElementModel element) {
+    switch (element.getElementType()) {
+      case STRING:
+        return new StringSubmissionType(row, element);
+      case DECIMAL:
+        return new DecimalSubmissionType(row, element);
+      case GEOPOINT:
+        return new GeoPointSubmissionType(row, element);
+      case JRDATE:
+        return new JRDateType(row, element);
+      case JRTIME:
+        return new JRTimeType(row, element);
+      case JRDATETIME:
+        return new JRDateTimeType(row, element);
+      default:
+        throw new IllegalStateException("unexpected element type");
+    }
+  }
+
+  /**
+   * The text the database's bulk export returns for a stored value.
+   */
+  private static String databaseText(CommonFieldsBase entity, DataField field) {
+    if (entity.isNull(field)) {
+      return null;
+    }
+    switch (field.getDataType()) {
+      case DECIMAL: {
+        WrappedBigDecimal value = entity.getNumericField(field);
+        return value.isSpecialValue() ? value.toString() : value.bd.toPlainString();
+      }
+      case DATETIME:
+        return new Timestamp(entity.getDateField(field).getTime()).toString();
+      default:
+        return entity.getStringField(field);
+    }
+  }
+
+  private static FormDataModel addElement(FormDataModel parent, ElementType type, String name,
+                                          CommonFieldsBase table, DataField field) {
+    return TestFormDataModel.addChild(parent, TestFormDataModel.newElement(type, name, table, field));
+  }
+
+  private static void addTemporal(FormDataModel parent, ElementType type, String name,
+                                  CommonFieldsBase table, DataField parsed, DataField raw) {
+    FormDataModel temporal = addElement(parent, type, name, table, null);
+    addElement(temporal, type, name + "_parsed", table, parsed);
+    addElement(temporal, ElementType.STRING, name + "_raw", table, raw);
+  }
+
+  private static class TestTopLevel extends TopLevelDynamicBase {
+    static final DataField text = new DataField("TEXT", DataField.DataType.STRING, true, 255L);
+    static final DataField amount = new DataField("AMOUNT", DataField.DataType.DECIMAL, true).asDoublePrecision(true);
+    static final DataField latitude = new DataField("LOCATION_LAT", DataField.DataType.DECIMAL, true).asDoublePrecision(true);
+    static final DataField longitude = new DataField("LOCATION_LNG", DataField.DataType.DECIMAL, true).asDoublePrecision(true);
+    static final DataField altitude = new DataField("LOCATION_ALT", DataField.DataType.DECIMAL, true).asDoublePrecision(true);
+    static final DataField accuracy = new DataField("LOCATION_ACC", DataField.DataType.DECIMAL, true).asDoublePrecision(true);
+    static final DataField legacyDate = new DataField("LEGACY_DATE", DataField.DataType.DATETIME, true);
+    static final DataField legacyTime = new DataField("LEGACY_TIME", DataField.DataType.DATETIME, true);
+    static final DataField legacyDateTime = new DataField("LEGACY_DATETIME", DataField.DataType.DATETIME, true);
+    static final DataField dateParsed = new DataField("VISIT_DATE", DataField.DataType.DATETIME, true);
+    static final DataField dateRaw = new DataField("VISIT_DATE_RAW", DataField.DataType.STRING, true, 255L);
+    static final DataField timeParsed = new DataField("VISIT_TIME", DataField.DataType.DATETIME, true);
+    static final DataField timeRaw = new DataField("VISIT_TIME_RAW", DataField.DataType.STRING, true, 255L);
+    static final DataField dateTimeParsed = new DataField("VISIT_DATETIME", DataField.DataType.DATETIME, true);
+    static final DataField dateTimeRaw = new DataField("VISIT_DATETIME_RAW", DataField.DataType.STRING, true, 255L);
+
+    TestTopLevel() {
+      super("schema", "TEST_FORM_CORE");
+      fieldList.add(text);
+      fieldList.add(amount);
+      fieldList.add(latitude);
+      fieldList.add(longitude);
+      fieldList.add(altitude);
+      fieldList.add(accuracy);
+      fieldList.add(legacyDate);
+      fieldList.add(legacyTime);
+      fieldList.add(legacyDateTime);
+      fieldList.add(dateParsed);
+      fieldList.add(dateRaw);
+      fieldList.add(timeParsed);
+      fieldList.add(timeRaw);
+      fieldList.add(dateTimeParsed);
+      fieldList.add(dateTimeRaw);
+    }
+
+    private TestTopLevel(TestTopLevel ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new TestTopLevel(this, user);
+    }
+  }
+}
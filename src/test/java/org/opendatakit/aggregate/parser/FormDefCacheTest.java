@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.parser;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.javarosa.core.model.FormDef;
+import org.junit.Test;
+
+public class FormDefCacheTest {
+
+  private static final String FORM_XML = "<?xml version=\"1.0\"?>"
+      + "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+      + "<h:head><h:title>Cache test</h:title><model>"
+      + "<instance><data id=\"cache_test\"><name/></data></instance>"
+      + "<bind nodeset=\"/data/name\" type=\"string\"/>"
+      + "</model></h:head>"
+      + "<h:body><input ref=\"/data/name\"><label>Name</label></input></h:body>"
+      + "</h:html>";
+
+  private static final String OTHER_FORM_XML = FORM_XML.replace("cache_test", "other_cache_test");
+
+  @Test
+  public void the_upload_timestamp_does_not_change_the_key() {
+    String uploadedXml = BaseFormParserForJavaRosa.xmlWithTimestampComment(FORM_XML, "http://localhost");
+
+    assertThat(uploadedXml, not(is(FORM_XML)));
+    assertThat(FormDefCache.getKey(uploadedXml), is(FormDefCache.getKey(FORM_XML)));
+  }
+
+  @Test
+  public void every_parse_gets_its_own_form_definition() throws Exception {
+    BaseFormParserForJavaRosa first = new BaseFormParserForJavaRosa(FORM_XML, null, true);
+    BaseFormParserForJavaRosa second = new BaseFormParserForJavaRosa(FORM_XML, null, true);
+
+    assertThat(FormDefCache.getFormDefCache().get(FormDefCache.getKey(FORM_XML)), notNullValue());
+    assertThat(second.rootJavaRosaFormDef, not(sameInstance(first.rootJavaRosaFormDef)));
+
+    first.rootJavaRosaFormDef.setTitle("Changed");
+    assertThat(second.rootJavaRosaFormDef.getTitle(), is("Cache test"));
+    assertThat(FormDefCache.getFormDefCache().get(FormDefCache.getKey(FORM_XML)).getTitle(), is("Cache test"));
+  }
+
+  @Test
+  public void least_recently_used_definitions_are_evicted() throws Exception {
+    FormDef formDef = new BaseFormParserForJavaRosa(FORM_XML, null, true).rootJavaRosaFormDef;
+    FormDef otherFormDef = new BaseFormParserForJavaRosa(OTHER_FORM_XML, null, true).rootJavaRosaFormDef;
+    FormDefCache cache = new FormDefCache();
+    cache.setMaxSize(1);
+
+    cache.put("first", formDef);
+    cache.put("second", otherFormDef);
+
+    assertThat(cache.size(), is(1));
+    assertThat(cache.get("first"), nullValue());
+    assertThat(cache.get("second").getInstance().getRoot().getName(), is("data"));
+  }
+
+  @Test
+  public void a_cache_of_size_zero_keeps_nothing() throws Exception {
+    FormDef formDef = new BaseFormParserForJavaRosa(FORM_XML, null, true).rootJavaRosaFormDef;
+    FormDefCache cache = new FormDefCache();
+    cache.setMaxSize(0);
+
+    cache.put("first", formDef);
+
+    assertThat(cache.get("first"), nullValue());
+  }
+}
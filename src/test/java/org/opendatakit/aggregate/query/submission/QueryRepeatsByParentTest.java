@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.query.submission;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.security.User;
+
+public class QueryRepeatsByParentTest {
+  private static final User USER = mock(User.class);
+  private static final RepeatRow PROTOTYPE = new RepeatRow();
+
+  @Test
+  public void keeps_the_most_recent_row_of_a_duplicated_instance() {
+    DynamicBase one = row(1, 10);
+    DynamicBase twoOlder = row(2, 10);
+    DynamicBase twoNewer = row(2, 20);
+    DynamicBase three = row(3, 10);
+
+    assertThat(QueryRepeatsByParent.latestInstances(Arrays.asList(one, twoNewer, twoOlder, three), null),
+        contains(one, twoNewer, three));
+  }
+
+  @Test
+  public void drops_the_rows_of_the_instance_at_the_cursor() {
+    // the rest of instance 2 after the page boundary
+    DynamicBase twoNewer = row(2, 20);
+    DynamicBase three = row(3, 10);
+
+    assertThat(QueryRepeatsByParent.latestInstances(Arrays.asList(twoNewer, three), 2L),
+        contains(three));
+  }
+
+  @Test
+  public void a_page_holding_only_the_instance_at_the_cursor_is_empty() {
+    List<DynamicBase> rows = QueryRepeatsByParent.latestInstances(
+        Arrays.asList(row(2, 20), row(2, 30)), 2L);
+
+    assertThat(rows, empty());
+  }
+
+  private static DynamicBase row(long ordinal, long creationMillis) {
+    RepeatRow row = (RepeatRow) PROTOTYPE.getEmptyRow(USER);
+    row.setOrdinalNumber(ordinal);
+    row.setDateField(row.creationDate, new Date(creationMillis));
+    return row;
+  }
+
+  private static class RepeatRow extends DynamicBase {
+    RepeatRow() {
+      super("schema", "REPEAT_ROW");
+    }
+
+    private RepeatRow(RepeatRow ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new RepeatRow(this, user);
+    }
+  }
+}
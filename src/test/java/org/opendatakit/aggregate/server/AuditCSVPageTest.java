@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.server;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringReader;
+import org.junit.Test;
+import org.opendatakit.aggregate.client.submission.AuditCSVPage;
+
+public class AuditCSVPageTest {
+
+  private static final String AUDIT_CSV = "event,node,start,end\n"
+      + "form start,,1,\n"
+      + "question,/data/name,2,3\n"
+      + "\n"
+      + "question,\"/data/a,b\",4,5\n"
+      + "form exit,,6,\n";
+
+  private static AuditCSVPage read(String csv, int offset, int limit, int knownTotalRows) throws Exception {
+    return AuditCSVPageReader.readPage(new StringReader(csv), offset, limit, knownTotalRows);
+  }
+
+  @Test
+  public void the_first_page_counts_the_rows() throws Exception {
+    AuditCSVPage page = read(AUDIT_CSV, 0, 2, AuditCSVPageReader.UNKNOWN_TOTAL_ROWS);
+
+    assertThat(page.getRows().size(), is(2));
+    assertThat(page.getRows().get(0), arrayContaining("form start", null, "1", null));
+    assertThat(page.getTotalRows(), is(4));
+    assertThat(page.hasPriorRows(), is(false));
+    assertThat(page.hasMoreRows(), is(true));
+  }
+
+  @Test
+  public void blank_lines_are_skipped_and_quoted_commas_kept() throws Exception {
+    AuditCSVPage page = read(AUDIT_CSV, 2, 2, AuditCSVPageReader.UNKNOWN_TOTAL_ROWS);
+
+    assertThat(page.getOffset(), is(2));
+    assertThat(page.getRows().get(0), arrayContaining("question", "/data/a,b", "4", "5"));
+    assertThat(page.getRows().get(1), arrayContaining("form exit", null, "6", null));
+    assertThat(page.hasPriorRows(), is(true));
+    assertThat(page.hasMoreRows(), is(false));
+  }
+
+  @Test
+  public void a_known_total_stops_reading_at_the_end_of_the_page() throws Exception {
+    // the file is malformed past the page, which is only noticed if it is read
+    AuditCSVPage page = read(AUDIT_CSV + "\"unterminated", 0, 2, 4);
+
+    assertThat(page.getRows().size(), is(2));
+    assertThat(page.getTotalRows(), is(4));
+    assertThat(page.hasMoreRows(), is(true));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void an_unknown_total_reads_the_whole_file() throws Exception {
+    read(AUDIT_CSV + "\"unterminated", 0, 2, AuditCSVPageReader.UNKNOWN_TOTAL_ROWS);
+  }
+
+  @Test
+  public void pages_are_capped() throws Exception {
+    StringBuilder csv = new StringBuilder("event,node,start,end\n");
+    for (int i = 0; i < AuditCSVPageReader.MAX_PAGE_SIZE + 10; ++i) {
+      csv.append("question,/data/q,").append(i).append(",\n");
+    }
+
+    AuditCSVPage page = read(csv.toString(), 0, Integer.MAX_VALUE, AuditCSVPageReader.UNKNOWN_TOTAL_ROWS);
+
+    assertThat(page.getRows().size(), is(AuditCSVPageReader.MAX_PAGE_SIZE));
+    assertThat(page.getTotalRows(), is(AuditCSVPageReader.MAX_PAGE_SIZE + 10));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.aggregate.task;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Date;
+import org.junit.Test;
+import org.opendatakit.aggregate.submission.Submission;
+
+public class SharedStreamingPagesTest {
+
+  private static final Date START = new Date(0);
+  private static final Submission A = mock(Submission.class);
+  private static final Submission B = mock(Submission.class);
+  private static final Submission C = mock(Submission.class);
+
+  @Test
+  public void a_cached_page_serves_the_submissions_after_the_cursor() {
+    SharedStreamingPages.cachePage("served", page(SharedStreamingPages.startRead()));
+
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("served", new Date(1000), "uuid:a", 10),
+        is(Arrays.asList(B, C)));
+  }
+
+  @Test
+  public void a_skipped_submission_still_holds_its_place_in_the_page() {
+    SharedStreamingPages.cachePage("skipped", new SharedStreamingPages.Page(START, "",
+        Arrays.asList("uuid:a", "uuid:b", "uuid:c"),
+        Arrays.asList(new Date(1000), new Date(1000), new Date(2000)),
+        Arrays.asList(A, null, C),
+        10, System.currentTimeMillis(), SharedStreamingPages.startRead()));
+
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("skipped", START, "", 10),
+        is(Arrays.asList(A, C)));
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("skipped", new Date(1000), "uuid:b", 10),
+        is(Arrays.asList(C)));
+  }
+
+  @Test
+  public void invalidating_the_form_drops_its_page() {
+    SharedStreamingPages.cachePage("invalidated", page(SharedStreamingPages.startRead()));
+
+    SharedStreamingPages.invalidate("invalidated");
+
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("invalidated", START, "", 10), is(nullValue()));
+  }
+
+  @Test
+  public void a_page_read_before_the_invalidation_is_not_cached() {
+    long readSequence = SharedStreamingPages.startRead();
+    SharedStreamingPages.invalidate("racing");
+
+    SharedStreamingPages.cachePage("racing", page(readSequence));
+
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("racing", START, "", 10), is(nullValue()));
+  }
+
+  @Test
+  public void a_page_read_after_the_invalidation_is_cached() {
+    SharedStreamingPages.invalidate("reloaded");
+
+    SharedStreamingPages.cachePage("reloaded", page(SharedStreamingPages.startRead()));
+
+    assertThat(SharedStreamingPages.getCachedSubmissionsAfter("reloaded", START, "", 10),
+        is(Arrays.asList(A, B, C)));
+  }
+
+  private static SharedStreamingPages.Page page(long readSequence) {
+    return new SharedStreamingPages.Page(START, "",
+        Arrays.asList("uuid:a", "uuid:b", "uuid:c"),
+        Arrays.asList(new Date(1000), new Date(1000), new Date(2000)),
+        Arrays.asList(A, B, C),
+        10, System.currentTimeMillis(), readSequence);
+  }
+}
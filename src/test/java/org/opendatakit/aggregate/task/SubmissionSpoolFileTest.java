@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.task;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendatakit.aggregate.parser.MultiPartFormData;
+import org.opendatakit.aggregate.parser.MultiPartFormItem;
+
+public class SubmissionSpoolFileTest {
+
+  private static final SubmissionSpool.SpoolUser USER = new SubmissionSpool.SpoolUser(
+      "uid:collect|2019-01-01T00:00:00.000+0000", false, true);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void spool_files_round_trip() throws IOException {
+    File f = folder.newFile();
+    SubmissionSpool.writeSpoolFile(f, buildUpload(), true, "uuid:instance", USER);
+
+    SubmissionSpool.SpooledUpload upload = SubmissionSpool.readSpoolFile(f);
+
+    assertThat(upload.isIncomplete, is(true));
+    assertThat(upload.instanceId, is("uuid:instance"));
+    assertThat(upload.uriUser, is("uid:collect|2019-01-01T00:00:00.000+0000"));
+    assertThat(upload.isAnonymous, is(false));
+    assertThat(upload.isRegistered, is(true));
+    assertThat(SubmissionSpool.readSpoolFileInstanceId(f), is("uuid:instance"));
+    assertThat(upload.data.getSimpleFormField("*isIncomplete*"), is("yes"));
+    MultiPartFormItem xml = upload.data.getFormDataByFieldName("xml_submission_file");
+    assertThat(xml.getFilename(), is("submission.xml"));
+    assertThat(xml.getContentType(), is("text/xml"));
+    assertThat(xml.getStream().toString("UTF-8"), is("<data id=\"form\"/>"));
+    MultiPartFormItem image = upload.data.getFormDataByFileName("image.jpg");
+    assertThat(image.getStream().toByteArray(), is(new byte[]{1, 2, 3}));
+  }
+
+  @Test(expected = IOException.class)
+  public void corrupt_spool_files_are_rejected() throws IOException {
+    File f = folder.newFile();
+    SubmissionSpool.writeSpoolFile(f, buildUpload(), false, "uuid:instance", USER);
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.seek(20);
+      int b = raf.read();
+      raf.seek(20);
+      raf.write(b ^ 0xFF);
+    }
+
+    SubmissionSpool.readSpoolFile(f);
+  }
+
+  @Test
+  public void uploads_of_one_instance_go_to_one_worker() {
+    assertThat(SubmissionSpool.getWorkerIndex("uuid:instance", 4),
+        is(SubmissionSpool.getWorkerIndex("uuid:instance", 4)));
+    // hashes to Integer.MIN_VALUE
+    assertThat(SubmissionSpool.getWorkerIndex("polygenelubricants", 4), is(0));
+    assertThat(SubmissionSpool.getWorkerIndex(null, 4), is(0));
+  }
+
+  private static MultiPartFormData buildUpload() throws IOException {
+    return new MultiPartFormData(
+        Collections.singletonMap("*isIncomplete*", "yes"),
+        Arrays.asList(
+            item("xml_submission_file", "submission.xml", "text/xml", "<data id=\"form\"/>".getBytes("UTF-8")),
+            item("image.jpg", "image.jpg", "image/jpeg", new byte[]{1, 2, 3})
+        ));
+  }
+
+  private static MultiPartFormItem item(String fieldName, String fileName, String contentType, byte[] content) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(content);
+    return new MultiPartFormItem(fieldName, fileName, contentType, stream);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.aggregate.util;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/**
+ * Tests that downscaled photos keep their EXIF segment, are turned the way
+ * their EXIF orientation says and come out the same every time.
+ */
+public class ImageUtilTest {
+
+  private static final int ROTATED_90_CLOCKWISE = 6;
+
+  private final ImageUtil imageUtil = new ImageUtil();
+
+  @Test
+  public void orientation_is_applied_to_the_pixels_and_reset() throws IOException {
+    byte[] photo = photo(false, ROTATED_90_CLOCKWISE);
+
+    byte[] downscaled = imageUtil.downscaleImage(photo, 100, 80, true);
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(downscaled));
+    assertThat(image.getWidth(), is(50));
+    assertThat(image.getHeight(), is(100));
+    // the left (red) half of the stored pixels is the top when displayed
+    assertThat(red(image.getRGB(25, 10)), greaterThan(200));
+    assertThat(blue(image.getRGB(25, 10)), lessThan(50));
+    assertThat(blue(image.getRGB(25, 90)), greaterThan(200));
+    assertThat(red(image.getRGB(25, 90)), lessThan(50));
+
+    byte[] exif = ImageUtil.getExifSegment(downscaled);
+    assertThat(exif, notNullValue());
+    assertThat(orientation(exif, false), is(1));
+  }
+
+  @Test
+  public void exif_segment_follows_the_jfif_segment() throws IOException {
+    byte[] downscaled = imageUtil.downscaleImage(photo(false, ROTATED_90_CLOCKWISE), 100, 80, true);
+
+    // SOI, then APP0 (JFIF), then APP1 (EXIF)
+    assertThat(downscaled[3] & 0xFF, is(0xE0));
+    int app1 = 4 + (((downscaled[4] & 0xFF) << 8) | (downscaled[5] & 0xFF));
+    assertThat(downscaled[app1] & 0xFF, is(0xFF));
+    assertThat(downscaled[app1 + 1] & 0xFF, is(0xE1));
+  }
+
+  @Test
+  public void orientation_is_read_in_either_byte_order() throws IOException {
+    byte[] littleEndian = ImageUtil.getExifSegment(photo(true, ROTATED_90_CLOCKWISE));
+    byte[] bigEndian = ImageUtil.getExifSegment(photo(false, ROTATED_90_CLOCKWISE));
+
+    assertThat(orientation(littleEndian, true), is(ROTATED_90_CLOCKWISE));
+    assertThat(orientation(bigEndian, false), is(ROTATED_90_CLOCKWISE));
+  }
+
+  @Test
+  public void downscaling_gives_the_same_bytes_every_time() throws IOException {
+    byte[] photo = photo(false, ROTATED_90_CLOCKWISE);
+
+    byte[] first = imageUtil.downscaleImage(photo, 100, 80, true);
+    byte[] second = imageUtil.downscaleImage(photo, 100, 80, true);
+
+    assertThat(Arrays.equals(first, second), is(true));
+  }
+
+  /**
+   * @return a 400x200 JPEG, red on the left and blue on the right, with an
+   *     EXIF segment holding the given orientation.
+   */
+  private static byte[] photo(boolean littleEndian, int orientation) throws IOException {
+    BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.RED);
+    g.fillRect(0, 0, 200, 200);
+    g.setColor(Color.BLUE);
+    g.fillRect(200, 0, 200, 200);
+    g.dispose();
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", jpeg);
+    return ImageUtil.insertExifSegment(jpeg.toByteArray(), exifSegment(littleEndian, orientation));
+  }
+
+  /**
+   * @return an APP1 segment holding a TIFF structure whose only directory
+   *     entry is the orientation.
+   */
+  private static byte[] exifSegment(boolean littleEndian, int orientation) {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    b.write(0xFF);
+    b.write(0xE1);
+    writeShort(b, 2 + 6 + 8 + 2 + 12 + 4, false);
+    b.write('E');
+    b.write('x');
+    b.write('i');
+    b.write('f');
+    b.write(0);
+    b.write(0);
+    // TIFF header: byte order, 42, offset of the first directory
+    b.write(littleEndian ? 'I' : 'M');
+    b.write(littleEndian ? 'I' : 'M');
+    writeShort(b, 42, littleEndian);
+    writeInt(b, 8, littleEndian);
+    // one entry: orientation, SHORT, count 1, value; then no next directory
+    writeShort(b, 1, littleEndian);
+    writeShort(b, 0x0112, littleEndian);
+    writeShort(b, 3, littleEndian);
+    writeInt(b, 1, littleEndian);
+    writeShort(b, orientation, littleEndian);
+    writeShort(b, 0, littleEndian);
+    writeInt(b, 0, littleEndian);
+    return b.toByteArray();
+  }
+
+  private static int orientation(byte[] exif, boolean littleEndian) {
+    int p = ImageUtil.getOrientationOffset(exif);
+    return littleEndian ? ((exif[p + 1] & 0xFF) << 8) | (exif[p] & 0xFF)
+        : ((exif[p] & 0xFF) << 8) | (exif[p + 1] & 0xFF);
+  }
+
+  private static void writeShort(ByteArrayOutputStream b, int value, boolean littleEndian) {
+    if (littleEndian) {
+      b.write(value & 0xFF);
+      b.write((value >> 8) & 0xFF);
+    } else {
+      b.write((value >> 8) & 0xFF);
+      b.write(value & 0xFF);
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream b, int value, boolean littleEndian) {
+    if (littleEndian) {
+      writeShort(b, value & 0xFFFF, true);
+      writeShort(b, (value >> 16) & 0xFFFF, true);
+    } else {
+      writeShort(b, (value >> 16) & 0xFFFF, false);
+      writeShort(b, value & 0xFFFF, false);
+    }
+  }
+
+  private static int red(int rgb) {
+    return (rgb >> 16) & 0xFF;
+  }
+
+  private static int blue(int rgb) {
+    return rgb & 0xFF;
+  }
+}
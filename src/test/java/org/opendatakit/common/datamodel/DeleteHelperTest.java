@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.datamodel;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that the set-based delete of a batch of submissions removes their
+ * rows from every table of the form, releases the attachment content they
+ * hold outside the form's tables, and leaves other submissions alone.
+ */
+public class DeleteHelperTest {
+
+  private static final byte[] SHARED = "shared attachment content".getBytes();
+  private static final byte[] EXTERNAL = "external attachment content".getBytes();
+  private static final byte[] INLINE = "inline attachment content".getBytes();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CallingContext cc;
+  private FileSystemBlobStore blobStore;
+  private MyTopLevelRelation top;
+  private MyRepeatRelation repeat;
+  private BinaryContent content;
+  private BinaryContentRefBlob refs;
+  private RefBlob blobs;
+  private List<CommonFieldsBase> backingTables;
+  private String sharedKey;
+  private String externalLocation;
+
+  @Before
+  public void setUp() throws ODKDatastoreException, IOException {
+    cc = TestContextFactory.getCallingContext();
+    blobStore = new FileSystemBlobStore();
+    blobStore.setRootDirectory(folder.newFolder().getAbsolutePath());
+    blobStore.afterPropertiesSet();
+    dropRelations();
+    assertRelations();
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    blobStore.destroy();
+    dropRelations();
+  }
+
+  @Test
+  public void deletes_the_batch_from_every_table_and_releases_its_content() throws ODKDatastoreException, IOException {
+    String inline = insert(false);
+    String stored = insert(true);
+    String survivor = insert(true);
+
+    DeleteHelper.deleteSubmissionsByTopLevelAuri(Arrays.asList(inline, stored), top,
+        backingTables, cc);
+
+    for (String uri : Arrays.asList(inline, stored)) {
+      assertThat(count(top, top.primaryKey, uri), is(0));
+      assertThat(count(repeat, repeat.topLevelAuri, uri), is(0));
+      assertThat(count(content, content.topLevelAuri, uri), is(0));
+      assertThat(count(refs, refs.topLevelAuri, uri), is(0));
+      assertThat(count(blobs, blobs.topLevelAuri, uri), is(0));
+    }
+    assertThat(count(top, top.primaryKey, survivor), is(1));
+    assertThat(count(repeat, repeat.topLevelAuri, survivor), is(2));
+    assertThat(count(content, content.topLevelAuri, survivor), is(1));
+    assertThat(count(refs, refs.topLevelAuri, survivor), is(2));
+
+    // the survivor still references the shared content and its own external content
+    assertThat(Arrays.equals(SharedBlobStore.getBlob(sharedKey, cc), SHARED), is(true));
+    assertThat(Arrays.equals(blobStore.get(externalLocation), EXTERNAL), is(true));
+
+    String survivorLocation = externalLocation;
+    DeleteHelper.deleteSubmissionsByTopLevelAuri(Arrays.asList(survivor), top, backingTables, cc);
+
+    assertThat(count(top, top.primaryKey, survivor), is(0));
+    assertThat(count(refs, refs.topLevelAuri, survivor), is(0));
+    assertThat(sharedContentExists(), is(false));
+    assertThat(externalContentExists(survivorLocation), is(false));
+  }
+
+  private String insert(boolean storedOutsideForm) throws ODKDatastoreException, IOException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    MyTopLevelRelation submission = ds.createEntityUsingRelation(top, user);
+    ds.putEntity(submission, user);
+    String uri = submission.getUri();
+
+    for (long ordinal = 1; ordinal <= 2; ++ordinal) {
+      MyRepeatRelation instance = ds.createEntityUsingRelation(repeat, user);
+      instance.setParentAuri(uri);
+      instance.setTopLevelAuri(uri);
+      instance.setOrdinalNumber(ordinal);
+      instance.setStringField(MyRepeatRelation.visit, "visit " + ordinal);
+      ds.putEntity(instance, user);
+    }
+
+    BinaryContent photo = ds.createEntityUsingRelation(content, user);
+    photo.setParentAuri(uri);
+    photo.setTopLevelAuri(uri);
+    photo.setOrdinalNumber(1L);
+    photo.setUnrootedFilePath("photo.jpg");
+    photo.setContentType("image/jpeg");
+    ds.putEntity(photo, user);
+
+    if (storedOutsideForm) {
+      sharedKey = SharedBlobStore.acquire(SHARED, cc);
+      putRef(photo, uri, sharedKey, SharedBlobStore.SHARED_REFERENCE_PART);
+      externalLocation = blobStore.put(EXTERNAL);
+      putRef(photo, uri, externalLocation, BlobStore.EXTERNAL_REFERENCE_PART);
+    } else {
+      RefBlob part = ds.createEntityUsingRelation(blobs, user);
+      part.setTopLevelAuri(uri);
+      part.setValue(INLINE);
+      ds.putEntity(part, user);
+      putRef(photo, uri, part.getUri(), 1L);
+    }
+    return uri;
+  }
+
+  private void putRef(BinaryContent photo, String uri, String subAuri, long part) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    BinaryContentRefBlob ref = ds.createEntityUsingRelation(refs, user);
+    ref.setDomAuri(photo.getUri());
+    ref.setSubAuri(subAuri);
+    ref.setTopLevelAuri(uri);
+    ref.setPart(part);
+    ds.putEntity(ref, user);
+  }
+
+  private int count(CommonFieldsBase relation, DataField field, String uri) throws ODKDatastoreException {
+    Query query = cc.getDatastore().createQuery(relation, "DeleteHelperTest.count",
+        cc.getCurrentUser());
+    query.addFilter(field, FilterOperation.EQUAL, uri);
+    return query.executeQuery().size();
+  }
+
+  private boolean sharedContentExists() throws ODKDatastoreException {
+    try {
+      SharedBlobStore.getBlob(sharedKey, cc);
+      return true;
+    } catch (ODKEntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  private boolean externalContentExists(String location) {
+    try {
+      blobStore.get(location);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void assertRelations() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String schema = ds.getDefaultSchemaName();
+    top = new MyTopLevelRelation(schema);
+    repeat = new MyRepeatRelation(schema);
+    content = new BinaryContent(schema, "MY_DELETE_PHOTO_BN");
+    refs = new BinaryContentRefBlob(schema, "MY_DELETE_PHOTO_REF");
+    blobs = new RefBlob(schema, "MY_DELETE_PHOTO_BLB");
+    backingTables = Arrays.asList(repeat, content, refs, blobs);
+    ds.assertRelation(top, user);
+    for (CommonFieldsBase table : backingTables) {
+      ds.assertRelation(table, user);
+    }
+  }
+
+  private void dropRelations() throws ODKDatastoreException {
+    // assert first, in case a prior test was messed up...
+    assertRelations();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    for (CommonFieldsBase table : backingTables) {
+      ds.dropRelation(table, user);
+    }
+    ds.dropRelation(top, user);
+  }
+
+  @Ignore
+  static class MyTopLevelRelation extends TopLevelDynamicBase {
+
+    private MyTopLevelRelation(String databaseSchema) {
+      super(databaseSchema, "MY_DELETE_CORE");
+    }
+
+    private MyTopLevelRelation(MyTopLevelRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyTopLevelRelation(this, user);
+    }
+  }
+
+  @Ignore
+  static class MyRepeatRelation extends DynamicBase {
+
+    static final DataField visit =
+        new DataField("VISIT", DataField.DataType.STRING, true, 80L);
+
+    private MyRepeatRelation(String databaseSchema) {
+      super(databaseSchema, "MY_DELETE_VISITS");
+      fieldList.add(visit);
+    }
+
+    private MyRepeatRelation(MyRepeatRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyRepeatRelation(this, user);
+    }
+  }
+}
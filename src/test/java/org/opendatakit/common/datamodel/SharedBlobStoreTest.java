@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.datamodel;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that deleting the submissions referencing shared attachment content
+ * releases it, and that the last release removes the content.
+ */
+public class SharedBlobStoreTest {
+
+  private static final byte[] CONTENT = "shared attachment content".getBytes();
+
+  private CallingContext cc;
+  private MySubmissionRelation submissions;
+  private BinaryContentRefBlob refs;
+  private BinaryContentRefBlob sharedParts;
+  private String sharedKey;
+
+  @Before
+  public void setUp() throws ODKDatastoreException {
+    cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    submissions = new MySubmissionRelation(ds.getDefaultSchemaName());
+    refs = new BinaryContentRefBlob(ds.getDefaultSchemaName(), "MY_SHARED_REF_TABLE");
+    // drop them, in case prior test was messed up...
+    ds.assertRelation(submissions, user);
+    ds.dropRelation(submissions, user);
+    ds.assertRelation(submissions, user);
+    ds.assertRelation(refs, user);
+    ds.dropRelation(refs, user);
+    ds.assertRelation(refs, user);
+    sharedParts = new BinaryContentRefBlob(ds.getDefaultSchemaName(), "_shared_blob_ref");
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    cc.getDatastore().dropRelation(refs, cc.getCurrentUser());
+    cc.getDatastore().dropRelation(submissions, cc.getCurrentUser());
+  }
+
+  @Test
+  public void deleting_the_last_submission_removes_the_shared_content() throws ODKDatastoreException {
+    String first = newSubmissionWithAttachment();
+    int partCount = countSharedParts();
+    String second = newSubmissionWithAttachment();
+    // the same content is only stored once
+    assertThat(countSharedParts(), is(partCount));
+
+    deleteSubmission(first);
+    assertThat(Arrays.equals(SharedBlobStore.getBlob(sharedKey, cc), CONTENT), is(true));
+
+    deleteSubmission(second);
+    boolean gone = false;
+    try {
+      SharedBlobStore.getBlob(sharedKey, cc);
+    } catch (ODKEntityNotFoundException e) {
+      gone = true;
+    }
+    assertThat(gone, is(true));
+    assertThat(countSharedParts(), is(partCount - 1));
+  }
+
+  private String newSubmissionWithAttachment() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    MySubmissionRelation submission = ds.createEntityUsingRelation(submissions, user);
+    ds.putEntity(submission, user);
+
+    sharedKey = SharedBlobStore.acquire(CONTENT, cc);
+    BinaryContentRefBlob ref = ds.createEntityUsingRelation(refs, user);
+    ref.setTopLevelAuri(submission.getUri());
+    ref.setDomAuri(CommonFieldsBase.newUri());
+    ref.setSubAuri(sharedKey);
+    ref.setPart(SharedBlobStore.SHARED_REFERENCE_PART);
+    ds.putEntity(ref, user);
+    return submission.getUri();
+  }
+
+  private void deleteSubmission(String uri) throws ODKDatastoreException {
+    DeleteHelper.deleteSubmissionsByTopLevelAuri(Collections.singletonList(uri), submissions,
+        Collections.singletonList(refs), cc);
+  }
+
+  private int countSharedParts() throws ODKDatastoreException {
+    return cc.getDatastore().createQuery(sharedParts, "SharedBlobStoreTest.countSharedParts",
+        cc.getCurrentUser()).executeQuery().size();
+  }
+
+  @Ignore
+  static class MySubmissionRelation extends CommonFieldsBase {
+
+    private MySubmissionRelation(String databaseSchema) {
+      super(databaseSchema, "MY_SHARED_SUBMISSION_TABLE");
+    }
+
+    private MySubmissionRelation(MySubmissionRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MySubmissionRelation(this, user);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.common.persistence;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that bulk inserts (a COPY on PostgreSQL) store values exactly as
+ * individual puts do: awkward characters, NULL as distinct from an empty
+ * string, and arbitrary binary content.
+ */
+public class BulkInsertTest {
+
+  private CallingContext cc;
+  private MyBulkInsertRelation rel;
+
+  @Before
+  public void setUp() throws ODKDatastoreException {
+    cc = TestContextFactory.getCallingContext();
+    rel = MyBulkInsertRelation.assertRelation(cc);
+    // drop it, in case prior test was messed up...
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+    rel = MyBulkInsertRelation.assertRelation(cc);
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+  }
+
+  @Test
+  public void strings_survive_copy_escaping() throws ODKDatastoreException {
+    String awkward = "a,\"quoted\", back\\slash\\N\ttab\r\nnew line \u00e9\u4e2d";
+    MyBulkInsertRelation row = newRow("awkward");
+    row.setStringField(MyBulkInsertRelation.fieldValue, awkward);
+    row.setStringField(MyBulkInsertRelation.fieldLongValue, awkward);
+
+    cc.getDatastore().bulkInsertEntities(Arrays.asList(row), cc.getCurrentUser());
+
+    MyBulkInsertRelation stored = read("awkward");
+    assertThat(stored.getStringField(MyBulkInsertRelation.fieldValue), is(awkward));
+    assertThat(stored.getStringField(MyBulkInsertRelation.fieldLongValue), is(awkward));
+  }
+
+  @Test
+  public void null_stays_distinct_from_the_empty_string() throws ODKDatastoreException {
+    MyBulkInsertRelation empty = newRow("empty");
+    empty.setStringField(MyBulkInsertRelation.fieldValue, "");
+    empty.setStringField(MyBulkInsertRelation.fieldLongValue, "");
+    MyBulkInsertRelation missing = newRow("missing");
+    MyBulkInsertRelation nullString = newRow("null-string");
+    nullString.setStringField(MyBulkInsertRelation.fieldValue, "NULL");
+
+    cc.getDatastore().bulkInsertEntities(Arrays.asList(empty, missing, nullString), cc.getCurrentUser());
+
+    assertThat(read("empty").getStringField(MyBulkInsertRelation.fieldValue), is(""));
+    assertThat(read("empty").getStringField(MyBulkInsertRelation.fieldLongValue), is(""));
+    assertThat(read("missing").getStringField(MyBulkInsertRelation.fieldValue), nullValue());
+    assertThat(read("missing").getStringField(MyBulkInsertRelation.fieldLongValue), nullValue());
+    assertThat(read("missing").getLongField(MyBulkInsertRelation.fieldCount), nullValue());
+    assertThat(read("missing").getBlobField(MyBulkInsertRelation.fieldContent), nullValue());
+    assertThat(read("null-string").getStringField(MyBulkInsertRelation.fieldValue), is("NULL"));
+  }
+
+  @Test
+  public void binary_content_is_stored_byte_for_byte() throws ODKDatastoreException {
+    byte[] content = new byte[256];
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = (byte) i;
+    }
+    MyBulkInsertRelation row = newRow("binary");
+    row.setBlobField(MyBulkInsertRelation.fieldContent, content);
+    row.setLongField(MyBulkInsertRelation.fieldCount, -42L);
+    MyBulkInsertRelation empty = newRow("empty-binary");
+    empty.setBlobField(MyBulkInsertRelation.fieldContent, new byte[0]);
+
+    cc.getDatastore().bulkInsertEntities(Arrays.asList(row, empty), cc.getCurrentUser());
+
+    assertThat(read("binary").getBlobField(MyBulkInsertRelation.fieldContent), is(content));
+    assertThat(read("binary").getLongField(MyBulkInsertRelation.fieldCount), is(-42L));
+    assertThat(read("empty-binary").getBlobField(MyBulkInsertRelation.fieldContent), is(new byte[0]));
+  }
+
+  private MyBulkInsertRelation newRow(String key) {
+    MyBulkInsertRelation row = cc.getDatastore().createEntityUsingRelation(rel, cc.getCurrentUser());
+    row.setStringField(row.primaryKey, key);
+    return row;
+  }
+
+  private MyBulkInsertRelation read(String key) throws ODKDatastoreException {
+    return cc.getDatastore().getEntity(rel, key, cc.getCurrentUser());
+  }
+
+  @Ignore
+  static class MyBulkInsertRelation extends CommonFieldsBase {
+
+    static final DataField fieldValue =
+        new DataField("VALUE", DataField.DataType.STRING, true, 200L);
+    static final DataField fieldLongValue =
+        new DataField("LONG_VALUE", DataField.DataType.LONG_STRING, true);
+    static final DataField fieldCount =
+        new DataField("COUNT_VALUE", DataField.DataType.INTEGER, true);
+    static final DataField fieldContent =
+        new DataField("CONTENT", DataField.DataType.BINARY, true);
+
+    private MyBulkInsertRelation(String databaseSchema) {
+      super(databaseSchema, "MY_BULK_INSERT_TABLE");
+      fieldList.add(fieldValue);
+      fieldList.add(fieldLongValue);
+      fieldList.add(fieldCount);
+      fieldList.add(fieldContent);
+    }
+
+    private MyBulkInsertRelation(MyBulkInsertRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyBulkInsertRelation(this, user);
+    }
+
+    static synchronized final MyBulkInsertRelation assertRelation(CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      MyBulkInsertRelation relationPrototype = new MyBulkInsertRelation(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      return relationPrototype;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.common.persistence;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TestFormDataModel;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.query.submission.QueryBase;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests filtering submissions on fields stored outside the top-level table:
+ * a phantom table holding one row per submission and a repeat table holding
+ * any number of rows per submission, on one page and across resumed pages.
+ */
+public class ChildTableFilterTest {
+
+  private CallingContext cc;
+  private MyTopLevelRelation top;
+  private MyPhantomRelation phantom;
+  private MyRepeatRelation repeat;
+  private IForm form;
+  private FormElementModel color;
+  private FormElementModel visit;
+
+  @Before
+  public void setUp() throws ODKDatastoreException {
+    cc = TestContextFactory.getCallingContext();
+    dropRelations();
+    assertRelations();
+
+    FormDataModel root = TestFormDataModel.newElement(ElementType.GROUP, "data", top, null);
+    TestFormDataModel.addChild(root,
+        TestFormDataModel.newElement(ElementType.STRING, "name", top, MyTopLevelRelation.name));
+    TestFormDataModel.addChild(root,
+        TestFormDataModel.newElement(ElementType.STRING, "color", phantom, MyPhantomRelation.color));
+    FormDataModel visits = TestFormDataModel.addChild(root,
+        TestFormDataModel.newElement(ElementType.REPEAT, "visits", repeat, null));
+    TestFormDataModel.addChild(visits,
+        TestFormDataModel.newElement(ElementType.STRING, "visit", repeat, MyRepeatRelation.visit));
+    FormElementModel rootElement = FormElementModel.buildFormElementModelTree(root);
+    color = rootElement.findElementByName("color");
+    visit = rootElement.findElementByName("visits").findElementByName("visit");
+
+    form = mock(IForm.class);
+    when(form.getTopLevelGroupElement()).thenReturn(rootElement);
+
+    insert("s1", "red", "x", "y");
+    insert("s2", "blue", "y");
+    insert("s3", null);
+    insert("s4", "red", "x");
+    insert("s5", "blue", (String) null);
+    insert("s6", "red", "y", "y");
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    dropRelations();
+  }
+
+  @Test
+  public void phantom_fields_filter_like_top_level_fields() throws ODKDatastoreException {
+    assertThat(names(color, FilterOperation.EQUAL, "red"), contains("s1", "s4", "s6"));
+    assertThat(names(color, FilterOperation.NOT_EQUAL, "red"), contains("s2", "s5"));
+    assertThat(names(color, FilterOperation.EQUAL, null), contains("s3"));
+    assertThat(names(color, FilterOperation.NOT_EQUAL, null), contains("s1", "s2", "s4", "s5", "s6"));
+  }
+
+  @Test
+  public void repeat_fields_match_if_any_row_matches() throws ODKDatastoreException {
+    assertThat(names(visit, FilterOperation.EQUAL, "x"), contains("s1", "s4"));
+    assertThat(names(visit, FilterOperation.GREATER_THAN, "x"), contains("s1", "s2", "s6"));
+    assertThat(names(visit, FilterOperation.NOT_EQUAL, null), contains("s1", "s2", "s4", "s6"));
+  }
+
+  @Test
+  public void negated_repeat_filters_match_if_no_row_matches() throws ODKDatastoreException {
+    // s1 also has a "y" visit, but it has an "x" visit too
+    assertThat(names(visit, FilterOperation.NOT_EQUAL, "x"), contains("s2", "s3", "s5", "s6"));
+    // s3 has no visits, s5 has only a blank one
+    assertThat(names(visit, FilterOperation.EQUAL, null), contains("s3", "s5"));
+  }
+
+  @Test
+  public void negated_repeat_filters_ignore_rows_without_a_submission() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    MyRepeatRelation orphan = ds.createEntityUsingRelation(repeat, user);
+    orphan.setParentAuri(CommonFieldsBase.newUri());
+    orphan.setOrdinalNumber(1L);
+    orphan.setStringField(MyRepeatRelation.visit, "x");
+    ds.putEntity(orphan, user);
+
+    assertThat(names(visit, FilterOperation.NOT_EQUAL, "x"), contains("s2", "s3", "s5", "s6"));
+    assertThat(names(visit, FilterOperation.EQUAL, null), contains("s3", "s5"));
+  }
+
+  @Test
+  public void filters_hold_across_resumed_pages() throws ODKDatastoreException {
+    MyQuery query = new MyQuery(form, cc);
+    query.addFilter(visit, FilterOperation.NOT_EQUAL, "x");
+
+    List<String> names = new ArrayList<>();
+    QueryResumePoint cursor = null;
+    QueryResult page;
+    int pages = 0;
+    do {
+      page = query.page(cursor, 1);
+      for (CommonFieldsBase row : page.getResultList()) {
+        names.add(row.getStringField(MyTopLevelRelation.name));
+      }
+      cursor = page.getResumeCursor();
+      ++pages;
+    } while (page.hasMoreResults());
+
+    assertThat(names, contains("s2", "s3", "s5", "s6"));
+    assertThat(pages, is(4));
+  }
+
+  private List<String> names(FormElementModel element, FilterOperation op, Object value) throws ODKDatastoreException {
+    MyQuery query = new MyQuery(form, cc);
+    query.addFilter(element, op, value);
+    List<String> names = new ArrayList<>();
+    for (CommonFieldsBase row : query.page(null, 100).getResultList()) {
+      names.add(row.getStringField(MyTopLevelRelation.name));
+    }
+    return names;
+  }
+
+  private void insert(String name, String colorValue, String... visits) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    MyTopLevelRelation submission = ds.createEntityUsingRelation(top, user);
+    submission.setStringField(MyTopLevelRelation.name, name);
+    ds.putEntity(submission, user);
+
+    MyPhantomRelation split = ds.createEntityUsingRelation(phantom, user);
+    split.setParentAuri(submission.getUri());
+    split.setTopLevelAuri(submission.getUri());
+    split.setOrdinalNumber(1L);
+    split.setStringField(MyPhantomRelation.color, colorValue);
+    ds.putEntity(split, user);
+
+    long ordinal = 0;
+    for (String visitValue : visits) {
+      MyRepeatRelation instance = ds.createEntityUsingRelation(repeat, user);
+      instance.setParentAuri(submission.getUri());
+      instance.setTopLevelAuri(submission.getUri());
+      instance.setOrdinalNumber(++ordinal);
+      instance.setStringField(MyRepeatRelation.visit, visitValue);
+      ds.putEntity(instance, user);
+    }
+  }
+
+  private void assertRelations() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    top = new MyTopLevelRelation(ds.getDefaultSchemaName());
+    ds.assertRelation(top, user);
+    phantom = new MyPhantomRelation(ds.getDefaultSchemaName());
+    ds.assertRelation(phantom, user);
+    repeat = new MyRepeatRelation(ds.getDefaultSchemaName());
+    ds.assertRelation(repeat, user);
+  }
+
+  private void dropRelations() throws ODKDatastoreException {
+    // assert first, in case a prior test was messed up...
+    assertRelations();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    ds.dropRelation(repeat, user);
+    ds.dropRelation(phantom, user);
+    ds.dropRelation(top, user);
+  }
+
+  @Ignore
+  static class MyQuery extends QueryBase {
+
+    MyQuery(IForm form, CallingContext cc) {
+      super(form);
+      TopLevelDynamicBase tlb = (TopLevelDynamicBase) form.getTopLevelGroupElement().getFormDataModel().getBackingObjectPrototype();
+      query = cc.getDatastore().createQuery(tlb, "ChildTableFilterTest.MyQuery", cc.getCurrentUser());
+      query.addSort(MyTopLevelRelation.name, Query.Direction.ASCENDING);
+    }
+
+    QueryResult page(QueryResumePoint cursor, int fetchLimit) throws ODKDatastoreException {
+      return getQueryResult(cursor, fetchLimit);
+    }
+
+    @Override
+    public List<Submission> getResultSubmissions(CallingContext cc) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Ignore
+  static class MyTopLevelRelation extends TopLevelDynamicBase {
+
+    static final DataField name =
+        new DataField("NAME", DataField.DataType.STRING, true, 80L);
+
+    private MyTopLevelRelation(String databaseSchema) {
+      super(databaseSchema, "MY_FILTER_CORE");
+      fieldList.add(name);
+    }
+
+    private MyTopLevelRelation(MyTopLevelRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyTopLevelRelation(this, user);
+    }
+  }
+
+  @Ignore
+  static class MyPhantomRelation extends DynamicBase {
+
+    static final DataField color =
+        new DataField("COLOR", DataField.DataType.STRING, true, 80L);
+
+    private MyPhantomRelation(String databaseSchema) {
+      super(databaseSchema, "MY_FILTER_CORE2");
+      fieldList.add(color);
+    }
+
+    private MyPhantomRelation(MyPhantomRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyPhantomRelation(this, user);
+    }
+  }
+
+  @Ignore
+  static class MyRepeatRelation extends DynamicBase {
+
+    static final DataField visit =
+        new DataField("VISIT", DataField.DataType.STRING, true, 80L);
+
+    private MyRepeatRelation(String databaseSchema) {
+      super(databaseSchema, "MY_FILTER_VISITS");
+      fieldList.add(visit);
+    }
+
+    private MyRepeatRelation(MyRepeatRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyRepeatRelation(this, user);
+    }
+  }
+}
@@ -14,6 +14,8 @@
 package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -208,4 +210,52 @@ public class TaskLockTest {
 
     assertEquals(failure, false);
   }
+
+  /**
+   * Each call runs its statements on a pooled connection; a lock that is
+   * not committed, or a connection handed back with auto-commit off, shows
+   * up here as a second holder being let in.
+   */
+  @Test
+  public void a_held_lock_excludes_other_holders_until_released() throws ODKTaskLockException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String formId = "TASK_LOCK_TESTING_" + UUID.randomUUID().toString();
+    String holderId = UUID.randomUUID().toString();
+    String otherId = UUID.randomUUID().toString();
+
+    assertTrue(ds.createTaskLock(user).obtainLock(holderId, formId, TaskLockType.CREATE_FORM));
+    assertFalse(ds.createTaskLock(user).obtainLock(otherId, formId, TaskLockType.CREATE_FORM));
+    // a different task type on the same form is a different resource
+    assertTrue(ds.createTaskLock(user).obtainLock(otherId, formId, TaskLockType.FORM_DELETION));
+    assertTrue(ds.createTaskLock(user).releaseLock(otherId, formId, TaskLockType.FORM_DELETION));
+
+    assertTrue(ds.createTaskLock(user).releaseLock(holderId, formId, TaskLockType.CREATE_FORM));
+    assertTrue(ds.createTaskLock(user).obtainLock(otherId, formId, TaskLockType.CREATE_FORM));
+    assertTrue(ds.createTaskLock(user).releaseLock(otherId, formId, TaskLockType.CREATE_FORM));
+  }
+
+  @Test
+  public void a_renewed_lock_stays_with_its_holder() throws ODKTaskLockException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String formId = "TASK_LOCK_TESTING_" + UUID.randomUUID().toString();
+    String holderId = UUID.randomUUID().toString();
+    String otherId = UUID.randomUUID().toString();
+
+    assertTrue(ds.createTaskLock(user).obtainLock(holderId, formId, TaskLockType.CREATE_FORM));
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(ds.createTaskLock(user).renewLock(holderId, formId, TaskLockType.CREATE_FORM));
+      assertFalse(ds.createTaskLock(user).obtainLock(otherId, formId, TaskLockType.CREATE_FORM));
+    }
+    // the renewal of a lock for another resource is refused and leaves it in place
+    assertFalse(ds.createTaskLock(user).renewLock(holderId, formId, TaskLockType.FORM_DELETION));
+    assertFalse(ds.createTaskLock(user).obtainLock(otherId, formId, TaskLockType.CREATE_FORM));
+
+    assertTrue(ds.createTaskLock(user).releaseLock(holderId, formId, TaskLockType.CREATE_FORM));
+    // nothing is left to renew
+    assertFalse(ds.createTaskLock(user).renewLock(holderId, formId, TaskLockType.CREATE_FORM));
+  }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.common.persistence;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that upserts insert new rows and overwrite existing ones without
+ * the entity having been read from the database, and that conditional
+ * updates never move a row backwards.
+ */
+public class UpsertTest {
+
+  private CallingContext cc;
+  private MyUpsertRelation rel;
+
+  @Before
+  public void setUp() throws ODKDatastoreException {
+    cc = TestContextFactory.getCallingContext();
+    rel = MyUpsertRelation.assertRelation(cc);
+    // drop it, in case prior test was messed up...
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+    rel = MyUpsertRelation.assertRelation(cc);
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+  }
+
+  @Test
+  public void upserts_insert_then_overwrite() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    ds.upsertEntity(newRow("first"), user);
+    MyUpsertRelation stored = ds.getEntity(rel, "upsert-key", user);
+    assertThat(stored.getStringField(MyUpsertRelation.fieldValue), is("first"));
+    Date creationDate = stored.getCreationDate();
+
+    // a fresh entity with the same primary key -- not read from the database
+    ds.upsertEntity(newRow("second"), user);
+    stored = ds.getEntity(rel, "upsert-key", user);
+    assertThat(stored.getStringField(MyUpsertRelation.fieldValue), is("second"));
+    assertThat(stored.getCreationDate(), is(creationDate));
+  }
+
+  @Test
+  public void conditional_updates_only_move_rows_forward() throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    assertThat(ds.updateEntityIfLater(newRow("b"), MyUpsertRelation.fieldValue, rel.primaryKey, user), is(false));
+    ds.upsertEntity(newRow("b"), user);
+
+    assertThat(ds.updateEntityIfLater(newRow("a"), MyUpsertRelation.fieldValue, rel.primaryKey, user), is(false));
+    assertThat(ds.getEntity(rel, "upsert-key", user).getStringField(MyUpsertRelation.fieldValue), is("b"));
+
+    assertThat(ds.updateEntityIfLater(newRow("c"), MyUpsertRelation.fieldValue, rel.primaryKey, user), is(true));
+    assertThat(ds.getEntity(rel, "upsert-key", user).getStringField(MyUpsertRelation.fieldValue), is("c"));
+  }
+
+  private MyUpsertRelation newRow(String value) {
+    MyUpsertRelation row = cc.getDatastore().createEntityUsingRelation(rel, cc.getCurrentUser());
+    row.setStringField(row.primaryKey, "upsert-key");
+    row.setStringField(MyUpsertRelation.fieldValue, value);
+    return row;
+  }
+
+  @Ignore
+  static class MyUpsertRelation extends CommonFieldsBase {
+
+    static final DataField fieldValue =
+        new DataField("VALUE", DataField.DataType.STRING, true, 80L);
+
+    private MyUpsertRelation(String databaseSchema) {
+      super(databaseSchema, "MY_UPSERT_TABLE");
+      fieldList.add(fieldValue);
+    }
+
+    private MyUpsertRelation(MyUpsertRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyUpsertRelation(this, user);
+    }
+
+    static synchronized final MyUpsertRelation assertRelation(CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      MyUpsertRelation relationPrototype = new MyUpsertRelation(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      return relationPrototype;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.common.persistence;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that work queue items are claimed by one server at a time, become
+ * available again once their lease expires and are gone once completed.
+ */
+public class WorkQueueTest {
+
+  private static final String TASK_TYPE = "WORK_QUEUE_TEST";
+  private static final long LONG_LEASE = 60000L;
+
+  private CallingContext cc;
+  private WorkQueue queue;
+  private String taskKey;
+  private List<WorkItem> claimed = new ArrayList<WorkItem>();
+
+  @Before
+  public void setUp() {
+    cc = TestContextFactory.getCallingContext();
+    queue = cc.getDatastore().createWorkQueue(cc.getCurrentUser());
+    taskKey = CommonFieldsBase.newUri();
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException {
+    for (WorkItem item : claimed) {
+      queue.complete(item);
+    }
+  }
+
+  @Test
+  public void items_are_queued_once() throws ODKDatastoreException {
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+
+    List<WorkItem> items = claimOwn("server-a", LONG_LEASE);
+
+    assertThat(items.size(), is(1));
+    assertThat(items.get(0).getFormId(), is("form"));
+  }
+
+  @Test
+  public void leased_items_are_not_claimed_by_another_server() throws ODKDatastoreException {
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+    assertThat(claimOwn("server-a", LONG_LEASE).size(), is(1));
+
+    assertThat(claimOwn("server-b", LONG_LEASE).size(), is(0));
+  }
+
+  @Test
+  public void items_are_claimed_again_once_their_lease_expires() throws ODKDatastoreException, InterruptedException {
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+    assertThat(claimOwn("server-a", 1L).size(), is(1));
+
+    Thread.sleep(PersistConsts.MIN_SETTLE_MILLISECONDS);
+
+    assertThat(claimOwn("server-b", LONG_LEASE).size(), is(1));
+  }
+
+  @Test
+  public void renewed_leases_outlive_their_original_expiration() throws ODKDatastoreException, InterruptedException {
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+    WorkItem item = claimOwn("server-a", 1L).get(0);
+
+    assertThat(queue.renew("server-b", item, LONG_LEASE), is(false));
+    assertThat(queue.renew("server-a", item, LONG_LEASE), is(true));
+
+    Thread.sleep(PersistConsts.MIN_SETTLE_MILLISECONDS);
+
+    assertThat(claimOwn("server-b", LONG_LEASE).size(), is(0));
+  }
+
+  @Test
+  public void completed_items_are_removed() throws ODKDatastoreException, InterruptedException {
+    queue.enqueue(TASK_TYPE, taskKey, "form");
+    List<WorkItem> items = claimOwn("server-a", 1L);
+    queue.complete(items.get(0));
+
+    Thread.sleep(PersistConsts.MIN_SETTLE_MILLISECONDS);
+
+    assertThat(claimOwn("server-b", LONG_LEASE).size(), is(0));
+  }
+
+  /**
+   * Claim every available item, keeping those queued by this test. The
+   * others are left to expire, as the queue may be shared with other tests.
+   */
+  private List<WorkItem> claimOwn(String leaseOwner, long leaseMilliseconds) throws ODKDatastoreException {
+    List<WorkItem> own = new ArrayList<WorkItem>();
+    for (WorkItem item : queue.claim(leaseOwner, Integer.MAX_VALUE, leaseMilliseconds)) {
+      if (TASK_TYPE.equals(item.getTaskType()) && taskKey.equals(item.getTaskKey())) {
+        own.add(item);
+        claimed.add(item);
+      }
+    }
+    return own;
+  }
+}